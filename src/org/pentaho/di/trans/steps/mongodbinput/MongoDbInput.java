@@ -19,7 +19,20 @@ package org.pentaho.di.trans.steps.mongodbinput;
 
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
@@ -34,10 +47,16 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoClientRegistry;
 import org.pentaho.mongo.MongoUtils;
+import org.pentaho.mongo.NamedReadPreference;
 
-import com.mongodb.AggregationOutput;
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
 import com.mongodb.ServerAddress;
 import com.mongodb.util.JSON;
 
@@ -53,6 +72,99 @@ public class MongoDbInput extends BaseStep implements StepInterface {
   private boolean m_serverDetermined;
   private Object[] m_currentInputRowDrivingQuery = null;
 
+  /** The number of connections the client was leased for */
+  protected int m_leasedConnections;
+
+  /** Chooses the member to read from, if routing reads (otherwise null) */
+  protected MongoDbInputReadRouter m_readRouter;
+
+  /** The member that reads are routed to (null if not routed) */
+  protected MongoDbInputReadRouter.Member m_routedMember;
+
+  /** A client connected directly to the routed member (may be null) */
+  protected MongoClient m_routedMongo;
+
+  /** Authenticated context, created once at init and released on dispose */
+  private AuthContext m_authContext;
+
+  /** Maximum number of documents to process per call to processRow() */
+  private int m_processingBatchSize = 1;
+
+  /** Cached from the meta so that we don't have to check per document */
+  private boolean m_queryIsPipeline;
+
+  /**
+   * Creates decoders that only materialize the values at our field paths
+   * (null if decoding documents in full)
+   */
+  private MongoDbInputDecoder.Factory m_decoderFactory;
+
+  /**
+   * Projection derived from the field paths, used when the user has not
+   * specified one (null if none)
+   */
+  private DBObject m_projection;
+
+  /** Whether the query plan has been checked (if explaining queries) */
+  private boolean m_preflightDone;
+
+  /**
+   * An index found by the preflight check that answers the query on its own
+   * (null if none)
+   */
+  private DBObject m_coveringHint;
+
+  /** Number of driving rows whose queries may be combined into one */
+  private int m_drivingRowBatchSize;
+
+  /** Driving rows read but not yet queried for */
+  private final LinkedList<Object[]> m_pendingDrivingRows = new LinkedList<Object[]>();
+
+  /**
+   * Results of a combined query for a batch of driving rows, in row order, or
+   * of a query run by the query pool (null if neither)
+   */
+  private LinkedList<DBObject> m_bufferedDocs;
+
+  /** Runs per-row queries concurrently (null if running them in turn) */
+  private ExecutorService m_queryPool;
+
+  /** Number of per-row queries to keep in flight */
+  private int m_concurrentQueries;
+
+  /** Per-row queries in flight, in incoming row order */
+  private final LinkedList<Future<List<DBObject>>> m_inFlight = new LinkedList<Future<List<DBObject>>>();
+
+  /** Hands out per-row query results as they complete, if so configured */
+  private CompletionService<List<DBObject>> m_completedQueries;
+
+  /**
+   * The key range read by this copy when doing a partitioned read (null if
+   * not partitioning)
+   */
+  private DBObject m_partitionRange;
+
+  /** Reads ahead of us on a separate thread, if prefetching is enabled */
+  private MongoDbInputPrefetcher m_prefetcher;
+
+  private int m_prefetchQueueDocs;
+  private long m_prefetchQueueBytes;
+
+  // prefetch statistics accumulated over all queries
+  private long m_prefetchDocs;
+  private long m_prefetchDepthSum;
+  private int m_prefetchMaxDepth;
+  private long m_prefetchReaderBlocked;
+  private long m_prefetchConsumerBlocked;
+
+  /** Reused for every call to processRow() */
+  private final PrivilegedExceptionAction<Boolean> m_processDocsAction = new PrivilegedExceptionAction<Boolean>() {
+    @Override
+    public Boolean run() throws KettleException {
+      return processDocs();
+    }
+  };
+
   public MongoDbInput(StepMeta stepMeta, StepDataInterface stepDataInterface,
       int copyNr, TransMeta transMeta, Trans trans) {
     super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
@@ -62,103 +174,463 @@ public class MongoDbInput extends BaseStep implements StepInterface {
   public boolean processRow(StepMetaInterface smi, StepDataInterface sdi)
       throws KettleException {
 
-    AuthContext context = MongoUtils.createAuthContext(meta, this);
     try {
-      return /* allow autoboxing */ context.doAs(new PrivilegedExceptionAction<Boolean>() {
-
-        @Override
-        public Boolean run() throws KettleException {
-          if (meta.getExecuteForEachIncomingRow()
-              && m_currentInputRowDrivingQuery == null) {
-            m_currentInputRowDrivingQuery = getRow();
-
-            if (m_currentInputRowDrivingQuery == null) {
-              // no more input, no more queries to make
-              setOutputDone();
-              return false;
-            }
-
-            if (!first) {
-              initQuery();
-            }
-          }
+      return /* allow autoboxing */ m_authContext.doAs(m_processDocsAction);
+    } catch (PrivilegedActionException e) {
+      Throwable cause = e.getException();
+      if (cause instanceof KettleException) {
+        throw (KettleException) cause;
+      } else {
+        throw new KettleException("Unexpected error", e.getException());
+      }
+    }
+  }
 
-          if (first) {
-            data.outputRowMeta = new RowMeta();
-            meta.getFields(data.outputRowMeta, getStepname(), null, null, MongoDbInput.this);
+  /**
+   * Process up to m_processingBatchSize documents. Called from within the
+   * privileged block set up by processRow()
+   * 
+   * @return false if there are no more documents to process
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean processDocs() throws KettleException {
+    int processed = 0;
+    do {
+      if (!processDoc()) {
+        return false;
+      }
+    } while (++processed < m_processingBatchSize && !isStopped());
 
-            initQuery();
-            first = false;
+    return true;
+  }
 
-            data.init();
-          }
+  /**
+   * Process the next document
+   * 
+   * @return false if there are no more documents to process
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean processDoc() throws KettleException {
+    if (first) {
+      setUpOutput();
+    }
+
+    if (meta.getExecuteForEachIncomingRow()
+        && m_currentInputRowDrivingQuery == null && m_bufferedDocs == null) {
+      if (!nextDrivingQuery()) {
+        // no more input, no more queries to make
+        setOutputDone();
+        return false;
+      }
+    } else if (first) {
+      initQuery();
+    }
+    first = false;
 
-          boolean hasNext = ((meta.getQueryIsPipeline() ? data.m_pipelineResult
-              .hasNext() : data.cursor.hasNext()) && !isStopped());
-          if (hasNext) {
-            DBObject nextDoc = null;
-            Object row[] = null;
-            if (meta.getQueryIsPipeline()) {
-              nextDoc = data.m_pipelineResult.next();
-            } else {
-              nextDoc = data.cursor.next();
-            }
-
-            if (!meta.getQueryIsPipeline() && !m_serverDetermined) {
-              ServerAddress s = data.cursor.getServerAddress();
-              if (s != null) {
-                m_serverDetermined = true;
-                logBasic(BaseMessages.getString(PKG,
-                    "MongoDbInput.Message.QueryPulledDataFrom", s.toString())); //$NON-NLS-1$
-              }
-            }
-
-            if (meta.getOutputJson() || meta.getMongoFields() == null
-                || meta.getMongoFields().size() == 0) {
-              String json = nextDoc.toString();
-              row = RowDataUtil.allocateRowData(data.outputRowMeta.size());
-              int index = 0;
-
-              row[index++] = json;
-              putRow(data.outputRowMeta, row);
-            } else {
-              Object[][] outputRows = data.mongoDocumentToKettle(nextDoc, MongoDbInput.this);
-
-              // there may be more than one row if the paths contain an array
-              // unwind
-              for (int i = 0; i < outputRows.length; i++) {
-                putRow(data.outputRowMeta, outputRows[i]);
-              }
-            }
-          } else {
-            if (!meta.getExecuteForEachIncomingRow()) {
-              setOutputDone();
-
-              return false;
-            } else {
-              m_currentInputRowDrivingQuery = null; // finished with this row
-            }
-          }
 
-          return true;
+    DBObject nextDoc = isStopped() ? null : nextDocument();
+    if (nextDoc != null) {
+      Object row[] = null;
+
+      if (!m_queryIsPipeline && !m_serverDetermined && data.cursor != null) {
+        // a prefetched cursor may only be used by the reader thread
+        ServerAddress s = m_prefetcher != null ? m_prefetcher
+            .getServerAddress() : data.cursor.getServerAddress();
+        if (s != null) {
+          m_serverDetermined = true;
+          logBasic(BaseMessages.getString(PKG,
+              "MongoDbInput.Message.QueryPulledDataFrom", s.toString())); //$NON-NLS-1$
         }
-      });
-    } catch (PrivilegedActionException e) {
-      Throwable cause = e.getException();
-      if (cause instanceof KettleException) {
-        throw (KettleException) cause;
+      }
+
+      if (meta.getOutputJson() || meta.getMongoFields() == null
+          || meta.getMongoFields().size() == 0) {
+        String json = nextDoc.toString();
+        row = RowDataUtil.allocateRowData(data.outputRowMeta.size());
+        int index = 0;
+
+        row[index++] = json;
+        putRow(data.outputRowMeta, row);
       } else {
-        throw new KettleException("Unexpected error", e.getException());
+        Object[][] outputRows = data.mongoDocumentToKettle(nextDoc, this);
+
+        // there may be more than one row if the paths contain an array
+        // unwind
+        for (int i = 0; i < outputRows.length; i++) {
+          putRow(data.outputRowMeta, outputRows[i]);
+        }
+      }
+    } else {
+      if (!meta.getExecuteForEachIncomingRow()) {
+        setOutputDone();
+
+        return false;
+      } else {
+        m_currentInputRowDrivingQuery = null; // finished with this row
       }
     }
+
+    return true;
   }
 
-  protected void initQuery() throws KettleException {
+  /**
+   * Set up the output row structure and everything derived from the field
+   * paths. Called once, before the first query
+   * 
+   * @throws KettleException if a problem occurs
+   */
+  protected void setUpOutput() throws KettleException {
+    data.outputRowMeta = new RowMeta();
+    meta.getFields(data.outputRowMeta, getStepname(), null, null, this);
+
+    data.init(this);
+    if (meta.getSelectiveDecoding() && !meta.getOutputJson()) {
+      m_decoderFactory = data.createDecoderFactory();
+    }
+    if (!meta.getOutputJson()
+        && Const.isEmpty(environmentSubstitute(meta.getFieldsName()))) {
+      // no user-specified projection - only fetch what our paths need
+      m_projection = data.createProjection();
+      if (m_projection != null) {
+        logDetailed(BaseMessages.getString(PKG,
+            "MongoDbInput.Message.AutomaticProjection", //$NON-NLS-1$
+            m_projection.toString()));
+      }
+    }
+  }
+
+  /**
+   * Read the next driving row and run the query for it. If batching is
+   * enabled, the queries for a batch of driving rows are combined into one
+   * where possible
+   * 
+   * @return false if there are no more driving rows
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean nextDrivingQuery() throws KettleException {
+    if (m_drivingRowBatchSize > 1 && !m_queryIsPipeline
+        && m_pendingDrivingRows.isEmpty() && m_inFlight.isEmpty()) {
+      Object[] row = null;
+      while (m_pendingDrivingRows.size() < m_drivingRowBatchSize
+          && (row = getRow()) != null) {
+        m_pendingDrivingRows.add(row);
+      }
+
+      if (m_pendingDrivingRows.size() > 1 && initBatchedQuery()) {
+        m_pendingDrivingRows.clear();
+        return true;
+      }
+    }
+
+    if (m_queryPool != null) {
+      return nextConcurrentResult();
+    }
+
+    // rows that could not be batched are queried one at a time
+    m_currentInputRowDrivingQuery = m_pendingDrivingRows.isEmpty() ? getRow()
+        : m_pendingDrivingRows.removeFirst();
+    if (m_currentInputRowDrivingQuery == null) {
+      return false;
+    }
+    initQuery();
+
+    return true;
+  }
+
+  /**
+   * Keep the query pool busy with queries for the next driving rows and take
+   * the results of the next query - either the oldest or the first to
+   * complete
+   * 
+   * @return false if there are no more driving rows
+   * @throws KettleException if a query failed
+   */
+  protected boolean nextConcurrentResult() throws KettleException {
+    String query = environmentSubstitute(meta.getJsonQuery());
+    String fields = environmentSubstitute(meta.getFieldsName());
+
+    if (m_inFlight.isEmpty()) {
+      // only change members while no queries are running
+      routeReads();
+    }
+
+    while (m_inFlight.size() < m_concurrentQueries && !isStopped()) {
+      Object[] row = m_pendingDrivingRows.isEmpty() ? getRow()
+          : m_pendingDrivingRows.removeFirst();
+      if (row == null) {
+        break;
+      }
+
+      // substitute on this thread, as the row meta isn't shared
+      RowQuery rowQuery = new RowQuery(fieldSubstitute(query,
+          getInputRowMeta(), row), m_queryIsPipeline ? null : fieldSubstitute(
+          fields, getInputRowMeta(), row), MongoDbInputCursorOptions.create(
+          meta, this, getInputRowMeta(), row));
+      m_inFlight.add(m_completedQueries != null ? m_completedQueries
+          .submit(rowQuery) : m_queryPool.submit(rowQuery));
+    }
+
+    if (m_inFlight.isEmpty()) {
+      return false;
+    }
+
+    try {
+      Future<List<DBObject>> next = null;
+      if (m_completedQueries != null) {
+        next = m_completedQueries.take();
+        m_inFlight.remove(next);
+      } else {
+        next = m_inFlight.removeFirst();
+      }
+      m_bufferedDocs = new LinkedList<DBObject>(next.get());
+    } catch (InterruptedException e) {
+      throw new KettleException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KettleException) {
+        throw (KettleException) e.getCause();
+      }
+      throw new KettleException(e.getCause());
+    }
+
+    return true;
+  }
+
+  /**
+   * A query for one driving row, run by the query pool. Collects all the
+   * results so that the pool thread is free for the next query
+   */
+  protected class RowQuery implements Callable<List<DBObject>>,
+      PrivilegedExceptionAction<List<DBObject>> {
+    protected final String m_query;
+    protected final String m_fields;
+    protected final MongoDbInputCursorOptions m_options;
+
+    /**
+     * @param query the query (or pipeline) with all substitutions made
+     * @param fields the projection with all substitutions made (null for a
+     *          pipeline)
+     * @param options the cursor options with all substitutions made
+     */
+    public RowQuery(String query, String fields,
+        MongoDbInputCursorOptions options) {
+      m_query = query;
+      m_fields = fields;
+      m_options = options;
+    }
+
+    @Override
+    public List<DBObject> call() throws Exception {
+      try {
+        return m_authContext.doAs(this);
+      } catch (PrivilegedActionException e) {
+        throw e.getException();
+      }
+    }
+
+    @Override
+    public List<DBObject> run() throws KettleException {
+      logDetailed(BaseMessages.getString(PKG,
+          m_queryIsPipeline ? "MongoDbInput.Message.QueryPulledDataFrom" //$NON-NLS-1$
+              : "MongoDbInput.Message.ExecutingQuery", m_query)); //$NON-NLS-1$
+
+      Iterator<DBObject> results = null;
+      if (m_queryIsPipeline) {
+        if (Const.isEmpty(m_query)) {
+          throw new KettleException(BaseMessages.getString(
+              MongoDbInputMeta.PKG,
+              "MongoDbInput.ErrorMessage.EmptyAggregationPipeline")); //$NON-NLS-1$
+        }
+        results = openAggregation(m_query, m_options);
+      } else {
+        results = openFind(m_query, m_fields, m_options);
+      }
+
+      List<DBObject> docs = new ArrayList<DBObject>();
+      try {
+        while (results.hasNext() && !isStopped()) {
+          docs.add(results.next());
+        }
+      } finally {
+        if (results instanceof Closeable) {
+          try {
+            ((Closeable) results).close();
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      }
+
+      return docs;
+    }
+  }
+
+  /**
+   * Run a single query for all the pending driving rows and collect the
+   * results for each row, in row order
+   * 
+   * @return false if the queries for the pending rows can't be combined
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean initBatchedQuery() throws KettleException {
+    String query = environmentSubstitute(meta.getJsonQuery());
+    String fields = environmentSubstitute(meta.getFieldsName());
+
+    List<DBObject> queries = new ArrayList<DBObject>(
+        m_pendingDrivingRows.size());
+    String rowFields = null;
+    MongoDbInputCursorOptions options = null;
+    for (Object[] row : m_pendingDrivingRows) {
+      MongoDbInputCursorOptions o = MongoDbInputCursorOptions.create(meta,
+          this, getInputRowMeta(), row);
+      if (!o.allowsCombining() || (options != null && !options.equals(o))) {
+        // a skip or limit applies to each row's results, and the options
+        // must be the same for all rows
+        return false;
+      }
+      options = o;
+
+      String rowQuery = fieldSubstitute(query, getInputRowMeta(), row);
+      queries.add((DBObject) JSON.parse(Const.isEmpty(rowQuery) ? "{}" //$NON-NLS-1$
+          : rowQuery));
+
+      String f = fieldSubstitute(fields, getInputRowMeta(), row);
+      if (rowFields == null) {
+        rowFields = f;
+      } else if (!rowFields.equals(f)) {
+        // different projections per row
+        return false;
+      }
+    }
+
+    MongoDbInputBatcher batcher = MongoDbInputBatcher.create(queries);
+    if (batcher == null) {
+      logDetailed(BaseMessages.getString(PKG,
+          "MongoDbInput.Message.UnableToBatchQueries")); //$NON-NLS-1$
+      return false;
+    }
+
+    // the documents must include the keys that we match them on
+    DBObject projection = null;
+    if (!Const.isEmpty(rowFields)) {
+      projection = (DBObject) JSON.parse(rowFields);
+      for (String key : batcher.getKeys()) {
+        if (!MongoDbInputData.isIncluded(projection, key)) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbInput.Message.UnableToBatchQueries")); //$NON-NLS-1$
+          return false;
+        }
+      }
+    } else if (m_projection != null) {
+      projection = new BasicDBObject(m_projection.toMap());
+      for (String key : batcher.getKeys()) {
+        projection.put(key, 1);
+      }
+    }
+
+    prepareQuery();
+
+    DBObject combined = batcher.getCombinedQuery();
+    if (m_partitionRange != null) {
+      combined = MongoDbInputPartitioner.restrictQuery(combined,
+          m_partitionRange);
+    }
+    logDetailed(BaseMessages.getString(PKG,
+        "MongoDbInput.Message.BatchedQuery", m_pendingDrivingRows.size(), //$NON-NLS-1$
+        combined.toString()));
+
+    data.cursor = data.collection.find(combined, projection);
+    shapeCursor(data.cursor, options);
+    if (m_decoderFactory != null) {
+      data.cursor.setDecoderFactory(data.createDecoderFactory(batcher
+          .getKeys()));
+    }
+    while (data.cursor.hasNext() && !isStopped()) {
+      batcher.add(data.cursor.next());
+    }
+    m_bufferedDocs = batcher.getResults();
+
+    return true;
+  }
+
+  /**
+   * Get the next document from the current query
+   * 
+   * @return the next document or null if there are no more
+   * @throws KettleException if a problem occurs
+   */
+  protected DBObject nextDocument() throws KettleException {
+    if (m_bufferedDocs != null) {
+      if (m_bufferedDocs.isEmpty()) {
+        m_bufferedDocs = null;
+        return null;
+      }
+      return m_bufferedDocs.removeFirst();
+    }
+
+    if (m_prefetcher != null) {
+      return m_prefetcher.next();
+    }
+
+    if (m_queryIsPipeline) {
+      return data.m_pipelineResult.hasNext() ? data.m_pipelineResult.next()
+          : null;
+    }
+
+    return data.cursor.hasNext() ? data.cursor.next() : null;
+  }
+
+  /**
+   * Stop any running prefetcher and accumulate its statistics
+   */
+  protected void closePrefetcher() {
+    if (m_prefetcher == null) {
+      return;
+    }
+    m_prefetcher.close();
+    // the cursor belongs to the reader thread, which closes it itself
+    data.cursor = null;
+    data.m_pipelineResult = null;
+
+    long docs = m_prefetcher.getDocsRead();
+    m_prefetchDocs += docs;
+    m_prefetchDepthSum += m_prefetcher.getQueueDepthSum();
+    m_prefetchMaxDepth = Math.max(m_prefetchMaxDepth,
+        m_prefetcher.getMaxQueueDepth());
+    m_prefetchReaderBlocked += m_prefetcher.getReaderBlockedMillis();
+    m_prefetchConsumerBlocked += m_prefetcher.getConsumerBlockedMillis();
+
+    if (log.isDetailed()) {
+      logDetailed(BaseMessages.getString(PKG,
+          "MongoDbInput.Message.PrefetchStats", docs, //$NON-NLS-1$
+          (docs > 0 ? m_prefetcher.getQueueDepthSum() / docs : 0),
+          m_prefetcher.getMaxQueueDepth(),
+          m_prefetcher.getReaderBlockedMillis(),
+          m_prefetcher.getConsumerBlockedMillis()));
+    }
+    m_prefetcher = null;
+  }
+
+  /**
+   * Close the previous query (if any) and work out the partition to read, if
+   * doing a partitioned read
+   * 
+   * @throws KettleException if a problem occurs
+   */
+  protected void prepareQuery() throws KettleException {
+    // stop reading ahead from the previous query
+    closePrefetcher();
 
     // close any previous cursor
     if (data.cursor != null) {
       data.cursor.close();
     }
+    if (data.m_pipelineResult != null) {
+      data.m_pipelineResult.close();
+      data.m_pipelineResult = null;
+    }
+
+    // nothing is reading from the current member now
+    routeReads();
 
     // check logging level and only set to false if
     // logging level at least detailed
@@ -166,6 +638,68 @@ public class MongoDbInput extends BaseStep implements StepInterface {
       m_serverDetermined = false;
     }
 
+    if (m_partitionRange == null && isPartitionedRead()) {
+      String key = environmentSubstitute(meta.getPartitionKey());
+      if (Const.isEmpty(key)) {
+        key = MongoDbInputPartitioner.DEFAULT_PARTITION_KEY;
+      }
+      List<Object> splitPoints = MongoDbInputPartitioner.getSplitPoints(
+          getTrans(), getStepname(), data.collection, key, getStepMeta()
+              .getCopies(), log);
+      m_partitionRange = MongoDbInputPartitioner.partitionRange(key,
+          splitPoints, getCopy());
+
+      logBasic(BaseMessages.getString(PKG,
+          "MongoDbInput.Message.PartitionRange", getCopy(), //$NON-NLS-1$
+          m_partitionRange.toString()));
+    }
+  }
+
+  /**
+   * Choose (or re-evaluate, if due) the replica set member to read from when
+   * routing reads. Must only be called when no queries are running against
+   * the current member
+   * 
+   * @throws KettleException if a problem occurs
+   */
+  protected void routeReads() throws KettleException {
+    if (m_readRouter == null || !m_readRouter.isDue()) {
+      return;
+    }
+
+    MongoDbInputReadRouter.Member member = m_readRouter.route(data.mongo,
+        getCopy());
+    if (member == null) {
+      logBasic(BaseMessages.getString(PKG,
+          "MongoDbInput.Message.NoEligibleReadMember")); //$NON-NLS-1$
+      return;
+    }
+    if (m_routedMember != null
+        && m_routedMember.getName().equals(member.getName())) {
+      return;
+    }
+
+    // a direct connection to the member - reading from a secondary
+    MongoClient routed = MongoUtils.leaseConnection(member.getName(), null,
+        MongoUtils.createCredentials(meta, this), false,
+        meta.getConnectTimeout(), meta.getSocketTimeout(),
+        NamedReadPreference.SECONDARY_PREFERRED.getName(), null, null, false,
+        null, m_leasedConnections, this, log);
+    MongoClientRegistry.release(m_routedMongo, m_leasedConnections);
+    m_routedMongo = routed;
+    m_routedMember = member;
+
+    data.collection = m_routedMongo.getDB(data.db.getName()).getCollection(
+        data.collection.getName());
+
+    logBasic(BaseMessages.getString(PKG,
+        "MongoDbInput.Message.RoutingReadsTo", member.getName(), //$NON-NLS-1$
+        member.getLag(), member.getPing()));
+  }
+
+  protected void initQuery() throws KettleException {
+    prepareQuery();
+
     String query = environmentSubstitute(meta.getJsonQuery());
     String fields = environmentSubstitute(meta.getFieldsName());
     if (Const.isEmpty(query) && Const.isEmpty(fields)) {
@@ -174,7 +708,7 @@ public class MongoDbInput extends BaseStep implements StepInterface {
             "MongoDbInput.ErrorMessage.EmptyAggregationPipeline")); //$NON-NLS-1$
       }
 
-      data.cursor = data.collection.find();
+      data.cursor = openFind(null, null, cursorOptions());
     } else {
 
       if (meta.getQueryIsPipeline()) {
@@ -194,32 +728,17 @@ public class MongoDbInput extends BaseStep implements StepInterface {
         logDetailed(BaseMessages.getString(PKG,
             "MongoDbInput.Message.QueryPulledDataFrom", query));
 
-        List<DBObject> pipeline = MongoDbInputData
-            .jsonPipelineToDBObjectList(query);
-        DBObject firstP = pipeline.get(0);
-        DBObject[] remainder = null;
-        if (pipeline.size() > 1) {
-          remainder = new DBObject[pipeline.size() - 1];
-          for (int i = 1; i < pipeline.size(); i++) {
-            remainder[i - 1] = pipeline.get(i);
-          }
-        } else {
-          remainder = new DBObject[0];
-        }
-
-        AggregationOutput result = data.collection.aggregate(firstP, remainder);
-        data.m_pipelineResult = result.results().iterator();
+        data.m_pipelineResult = openAggregation(query, cursorOptions());
+        ServerAddress server = data.m_pipelineResult.getServerAddress();
         if (first) {
           // log the server used for the first query at the basic level
           logBasic(BaseMessages.getString(PKG,
-              "MongoDbInput.Message.AggregationPulledDataFrom", result //$NON-NLS-1$
-                  .getServerUsed().toString()));
+              "MongoDbInput.Message.AggregationPulledDataFrom", "" + server)); //$NON-NLS-1$ //$NON-NLS-2$
         } else {
           // only log the server used to pull for each subsequent row at the
           // detailed level
           logDetailed(BaseMessages.getString(PKG,
-              "MongoDbInput.Message.AggregationPulledDataFrom", result //$NON-NLS-1$
-                  .getServerUsed().toString()));
+              "MongoDbInput.Message.AggregationPulledDataFrom", "" + server)); //$NON-NLS-1$ //$NON-NLS-2$
         }
       } else {
         if (meta.getExecuteForEachIncomingRow()
@@ -235,14 +754,201 @@ public class MongoDbInput extends BaseStep implements StepInterface {
         logDetailed(BaseMessages.getString(PKG,
             "MongoDbInput.Message.ExecutingQuery", query));
 
-        DBObject dbObject = (DBObject) JSON.parse(Const.isEmpty(query) ? "{}" //$NON-NLS-1$
-            : query);
-        DBObject dbObject2 = (DBObject) JSON.parse(fields);
-        data.cursor = data.collection.find(dbObject, dbObject2);
+        data.cursor = openFind(query, fields, cursorOptions());
+      }
+    }
+
+    if (meta.getPrefetch()) {
+      m_prefetcher = new MongoDbInputPrefetcher(
+          m_queryIsPipeline ? data.m_pipelineResult : data.cursor,
+          m_authContext, m_prefetchQueueDocs, m_prefetchQueueBytes);
+      m_prefetcher.start(getStepname() + " prefetch (" + getCopy() + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  /**
+   * Open a cursor for a find query, restricted to our partition (if doing a
+   * partitioned read)
+   * 
+   * @param query the query (with all substitutions made); empty for all
+   *          documents
+   * @param fields the projection (with all substitutions made); empty for our
+   *          automatic projection, if any
+   * @param options the cursor options (with all substitutions made)
+   * @return the cursor
+   * @throws KettleException if the query plan check fails
+   */
+  protected DBCursor openFind(String query, String fields,
+      MongoDbInputCursorOptions options) throws KettleException {
+    DBObject dbObject = (DBObject) JSON.parse(Const.isEmpty(query) ? "{}" //$NON-NLS-1$
+        : query);
+    if (m_partitionRange != null) {
+      dbObject = MongoDbInputPartitioner.restrictQuery(dbObject,
+          m_partitionRange);
+    }
+    DBObject dbObject2 = Const.isEmpty(fields) ? m_projection
+        : (DBObject) JSON.parse(fields);
+
+    DBCursor cursor = data.collection.find(dbObject, dbObject2);
+    shapeCursor(cursor, options);
+    if (m_decoderFactory != null) {
+      // only materialize the values that we are going to extract
+      cursor.setDecoderFactory(m_decoderFactory);
+    }
+
+    return cursor;
+  }
+
+  /**
+   * Get the cursor options for the current query, substituting the values of
+   * the current driving row (if any)
+   * 
+   * @return the options
+   * @throws KettleException if a problem occurs
+   */
+  protected MongoDbInputCursorOptions cursorOptions() throws KettleException {
+    boolean forRow = meta.getExecuteForEachIncomingRow()
+        && m_currentInputRowDrivingQuery != null;
+
+    return MongoDbInputCursorOptions.create(meta, this,
+        forRow ? getInputRowMeta() : null,
+        forRow ? m_currentInputRowDrivingQuery : null);
+  }
+
+  /**
+   * Apply the cursor options, and the covering index found by the preflight
+   * check if the user has not pinned an index, then run the preflight check
+   * (if so configured)
+   * 
+   * @param cursor the (unread) cursor
+   * @param options the cursor options
+   * @throws KettleException if the query plan check fails
+   */
+  protected void shapeCursor(DBCursor cursor, MongoDbInputCursorOptions options)
+      throws KettleException {
+    options.apply(cursor);
+    if (!options.hasHint() && m_coveringHint != null) {
+      cursor.hint(m_coveringHint);
+    }
+
+    preflight(cursor, options.hasHint());
+  }
+
+  /**
+   * Explain the first find query, if so configured: log the plan, look for an
+   * index that would answer the query on its own (when the user has not
+   * pinned one) and apply the collection scan policy. Explain executes the
+   * query, so this is done once only
+   * 
+   * @param cursor the (unread) cursor for the query
+   * @param hinted true if the user has pinned an index
+   * @throws KettleException if the plan is a collection scan and the policy
+   *           is to fail
+   */
+  protected synchronized void preflight(DBCursor cursor, boolean hinted)
+      throws KettleException {
+    if (!meta.getExplainQuery() || m_preflightDone) {
+      return;
+    }
+    m_preflightDone = true;
+
+    MongoDbInputQueryPlan plan = MongoDbInputQueryPlan.analyze(cursor.copy()
+        .explain());
+
+    if (!plan.isCovered() && !hinted) {
+      DBObject index = MongoDbInputQueryPlan.coveringIndex(
+          data.collection.getIndexInfo(), cursor.getQuery(),
+          cursor.getKeysWanted());
+
+      if (index != null) {
+        DBCursor trial = cursor.copy();
+        trial.hint(index);
+        MongoDbInputQueryPlan covered = MongoDbInputQueryPlan.analyze(trial
+            .explain());
+
+        // the index may still not cover the query - e.g. if it is multikey
+        if (covered.isCovered()) {
+          m_coveringHint = index;
+          cursor.hint(index);
+          plan = covered;
+          logBasic(BaseMessages.getString(PKG,
+              "MongoDbInput.Message.CoveredByIndex", index.toString())); //$NON-NLS-1$
+        }
+      }
+    }
+
+    checkPlan(plan);
+  }
+
+  /**
+   * Explain the first aggregation pipeline, if so configured
+   * 
+   * @param pipeline the pipeline
+   * @throws KettleException if the plan is a collection scan and the policy
+   *           is to fail
+   */
+  protected synchronized void preflight(List<DBObject> pipeline)
+      throws KettleException {
+    if (!meta.getExplainQuery() || m_preflightDone) {
+      return;
+    }
+    m_preflightDone = true;
+
+    checkPlan(MongoDbInputQueryPlan.analyze(data.collection.explainAggregate(
+        pipeline, AggregationOptions.builder().build())));
+  }
+
+  /**
+   * Log a query plan and apply the collection scan policy to it
+   * 
+   * @param plan the plan
+   * @throws KettleException if the plan is a collection scan and the policy
+   *           is to fail
+   */
+  protected void checkPlan(MongoDbInputQueryPlan plan) throws KettleException {
+    logBasic(BaseMessages.getString(PKG,
+        "MongoDbInput.Message.QueryPlan", plan.getWinningPlan(), //$NON-NLS-1$
+        plan.getKeysExamined(), plan.getDocsExamined(), plan.isCovered()));
+
+    if (plan.isCollScan()) {
+      MongoDbInputQueryPlan.CollScanPolicy policy = MongoDbInputQueryPlan.CollScanPolicy
+          .byName(environmentSubstitute(meta.getCollScanPolicy()));
+
+      if (policy == MongoDbInputQueryPlan.CollScanPolicy.FAIL) {
+        throw new KettleException(BaseMessages.getString(PKG,
+            "MongoDbInput.ErrorMessage.CollectionScan")); //$NON-NLS-1$
+      } else if (policy == MongoDbInputQueryPlan.CollScanPolicy.WARN) {
+        logBasic(BaseMessages.getString(PKG,
+            "MongoDbInput.Message.Warning.CollectionScan")); //$NON-NLS-1$
       }
     }
   }
 
+  /**
+   * Run an aggregation pipeline, restricted to our partition (if doing a
+   * partitioned read)
+   * 
+   * @param query the pipeline (with all substitutions made)
+   * @param options the cursor options (with all substitutions made). Only
+   *          the batch size and time limit apply to a pipeline
+   * @return a cursor over the results
+   * @throws KettleException if the pipeline can't be parsed
+   */
+  protected Cursor openAggregation(String query,
+      MongoDbInputCursorOptions options) throws KettleException {
+    List<DBObject> pipeline = MongoDbInputData
+        .jsonPipelineToDBObjectList(query);
+    if (m_partitionRange != null) {
+      // restrict the input to the pipeline to our partition
+      pipeline.add(0, new BasicDBObject("$match", m_partitionRange)); //$NON-NLS-1$
+    }
+    preflight(pipeline);
+
+    return MongoDbInputData.aggregate(data.collection, pipeline,
+        options.getBatchSize(), options.getMaxTime(), meta.getAllowDiskUse(),
+        log);
+  }
+
   @Override
   @SuppressWarnings("deprecation")
   public boolean init(StepMetaInterface stepMetaInterface,
@@ -279,12 +985,74 @@ public class MongoDbInput extends BaseStep implements StepInterface {
           logBasic(authInfo);
         }
 
-        // init connection constructs a MongoCredentials object if necessary
-        data.mongo = MongoDbInputData.initConnection(meta, this, log);
+        if (meta.getPartitionedRead() && meta.getExecuteForEachIncomingRow()) {
+          logBasic(BaseMessages.getString(PKG,
+              "MongoDbInput.Message.PartitionedReadIgnoredForEachRow")); //$NON-NLS-1$
+        }
+
+        m_queryIsPipeline = meta.getQueryIsPipeline();
+        m_processingBatchSize = Math.max(1, Const.toInt(
+            environmentSubstitute(meta.getProcessingBatchSize()), 1));
+        if (m_processingBatchSize > 1) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbInput.Message.ProcessingBatchSize", //$NON-NLS-1$
+              m_processingBatchSize));
+        }
+
+        m_drivingRowBatchSize = Const.toInt(
+            environmentSubstitute(meta.getDrivingRowBatchSize()), 1);
+
+        m_concurrentQueries = Const.toInt(
+            environmentSubstitute(meta.getConcurrentQueries()), 1);
+        if (meta.getExecuteForEachIncomingRow() && m_concurrentQueries > 1) {
+          final String poolName = getStepname() + " query (" + getCopy() //$NON-NLS-1$
+              + ") "; //$NON-NLS-1$
+          m_queryPool = Executors.newFixedThreadPool(m_concurrentQueries,
+              new ThreadFactory() {
+                private int m_count;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, poolName + (m_count++));
+                  t.setDaemon(true);
+                  return t;
+                }
+              });
+          if (meta.getEmitInCompletionOrder()) {
+            m_completedQueries = new ExecutorCompletionService<List<DBObject>>(
+                m_queryPool);
+          }
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbInput.Message.ConcurrentQueries", m_concurrentQueries)); //$NON-NLS-1$
+        }
+
+        m_prefetchQueueDocs = Const.toInt(
+            environmentSubstitute(meta.getPrefetchQueueDocs()), 0);
+        m_prefetchQueueBytes = Const.toLong(
+            environmentSubstitute(meta.getPrefetchQueueBytes()), 0);
+
+        m_authContext = MongoUtils.createAuthContext(meta, this);
+
+        // the lease constructs a MongoCredentials object if necessary. Query
+        // threads (if any) and the step thread may use connections at once
+        m_leasedConnections = Math.max(1, m_concurrentQueries) + 1;
+        data.mongo = MongoDbInputData.leaseConnection(meta, this,
+            m_leasedConnections, log);
         data.db = data.mongo.getDB(db);
 
         data.collection = data.db.getCollection(collection);
 
+        if (meta.getReadRouting()) {
+          long maxLag = Const.toLong(
+              environmentSubstitute(meta.getMaxReplicationLag()), -1);
+          long interval = Const.toLong(
+              environmentSubstitute(meta.getReadRoutingInterval()), -1);
+          m_readRouter = new MongoDbInputReadRouter(
+              maxLag < 0 ? -1 : maxLag * 1000,
+              interval < 0 ? MongoDbInputReadRouter.DEFAULT_INTERVAL
+                  : interval * 1000);
+        }
+
         if (!((MongoDbInputMeta) stepMetaInterface).getOutputJson()) {
           ((MongoDbInputData) stepDataInterface)
               .setMongoFields(((MongoDbInputMeta) stepMetaInterface)
@@ -305,13 +1073,70 @@ public class MongoDbInput extends BaseStep implements StepInterface {
 
   @Override
   public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+    closePrefetcher();
+    if (m_queryPool != null) {
+      m_queryPool.shutdownNow();
+      m_queryPool = null;
+    }
+    if (meta != null && meta.getPrefetch()) {
+      logBasic(BaseMessages.getString(PKG,
+          "MongoDbInput.Message.PrefetchStats", m_prefetchDocs, //$NON-NLS-1$
+          (m_prefetchDocs > 0 ? m_prefetchDepthSum / m_prefetchDocs : 0),
+          m_prefetchMaxDepth, m_prefetchReaderBlocked,
+          m_prefetchConsumerBlocked));
+    }
+
     if (data.cursor != null) {
       data.cursor.close();
     }
+    if (data.m_pipelineResult != null) {
+      data.m_pipelineResult.close();
+    }
+    if (m_routedMongo != null) {
+      MongoClientRegistry.release(m_routedMongo, m_leasedConnections);
+      m_routedMongo = null;
+    }
     if (data.mongo != null) {
-      data.mongo.close();
+      // may be shared with other steps
+      MongoClientRegistry.release(data.mongo, m_leasedConnections);
+      data.mongo = null;
+    }
+    if (m_authContext != null) {
+      m_authContext.release();
+      m_authContext = null;
+    }
+    if (isPartitionedRead()) {
+      MongoDbInputPartitioner.release(getTrans(), getStepname(),
+          getStepMeta().getCopies());
     }
 
     super.dispose(smi, sdi);
   }
+
+  /**
+   * Returns true if this step is reading a partition of the collection in
+   * parallel with other copies of the step
+   * 
+   * @return true if doing a partitioned read
+   */
+  protected boolean isPartitionedRead() {
+    return meta != null
+        && isPartitionedRead(meta, getStepMeta().getCopies());
+  }
+
+  /**
+   * Returns true if the copies of a step read partitions of the collection.
+   * When executing a query for each incoming row the driving rows are spread
+   * over the copies, so each copy has to query the whole collection for the
+   * rows it gets - partitioning doesn't apply
+   * 
+   * @param meta the step meta data
+   * @param copies the number of copies of the step
+   * @return true if doing a partitioned read
+   */
+  protected static boolean isPartitionedRead(MongoDbInputMeta meta,
+      int copies) {
+    return meta.getPartitionedRead() && !meta.getExecuteForEachIncomingRow()
+        && copies > 1;
+  }
 }
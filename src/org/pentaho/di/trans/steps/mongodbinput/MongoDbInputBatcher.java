@@ -0,0 +1,258 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Combines the queries for a batch of driving rows (when executing a query for
+ * each incoming row) into one query, and assigns the documents it returns back
+ * to the driving rows whose queries they match. This is only possible when
+ * every query is a conjunction of equality tests on the same set of top-level
+ * keys, e.g. {customer : 42}, as these can be matched on the client. The
+ * results for each driving row keep the order in which the server returned
+ * them, and driving rows are emitted in the order they were read.
+ */
+public class MongoDbInputBatcher {
+
+  /** The keys tested by every query, in a fixed order */
+  protected final List<String> m_keys;
+
+  /** The values tested by each query, in the order of m_keys */
+  protected final List<List<Object>> m_values;
+
+  /** The driving rows (indexes) for each distinct combination of values */
+  protected final Map<List<Object>, List<Integer>> m_rowsByValues = new HashMap<List<Object>, List<Integer>>();
+
+  /** The documents matched by each driving row */
+  protected final List<List<DBObject>> m_results;
+
+  protected MongoDbInputBatcher(List<String> keys, List<List<Object>> values) {
+    m_keys = keys;
+    m_values = values;
+    m_results = new ArrayList<List<DBObject>>(values.size());
+
+    for (int i = 0; i < values.size(); i++) {
+      m_results.add(new ArrayList<DBObject>());
+
+      List<Object> normalized = new ArrayList<Object>(m_keys.size());
+      for (Object v : values.get(i)) {
+        normalized.add(normalize(v));
+      }
+      List<Integer> rows = m_rowsByValues.get(normalized);
+      if (rows == null) {
+        rows = new ArrayList<Integer>(1);
+        m_rowsByValues.put(normalized, rows);
+      }
+      rows.add(i);
+    }
+  }
+
+  /**
+   * Create a batcher for the queries of a number of driving rows
+   *
+   * @param queries the (substituted) queries, one per driving row
+   * @return a batcher, or null if the queries can't be combined
+   */
+  public static MongoDbInputBatcher create(List<DBObject> queries) {
+    if (queries.size() == 0) {
+      return null;
+    }
+
+    List<String> keys = null;
+    List<List<Object>> values = new ArrayList<List<Object>>(queries.size());
+    for (DBObject q : queries) {
+      List<String> qKeys = equalityKeys(q);
+      if (qKeys == null) {
+        return null;
+      }
+      if (keys == null) {
+        keys = qKeys;
+      } else if (!keys.equals(qKeys)) {
+        return null;
+      }
+
+      List<Object> qValues = new ArrayList<Object>(keys.size());
+      for (String k : keys) {
+        qValues.add(q.get(k));
+      }
+      values.add(qValues);
+    }
+
+    return new MongoDbInputBatcher(keys, values);
+  }
+
+  /**
+   * Get the keys of a query that is a conjunction of equality tests against
+   * literal values
+   *
+   * @param query the query
+   * @return the keys in sorted order, or null if the query is of some other
+   *         form
+   */
+  protected static List<String> equalityKeys(DBObject query) {
+    if (query == null || query.keySet().size() == 0) {
+      return null;
+    }
+
+    List<String> keys = new ArrayList<String>(query.keySet());
+    for (String k : keys) {
+      if (k.startsWith("$") || k.indexOf('.') >= 0) { //$NON-NLS-1$
+        // operators, and paths that may traverse arrays, aren't supported
+        return null;
+      }
+      Object v = query.get(k);
+      if (!(v instanceof String || v instanceof Number
+          || v instanceof Boolean || v instanceof Date || v instanceof ObjectId)) {
+        // operators, sub-documents, arrays, null and regexes have
+        // semantics that we don't attempt to reproduce
+        return null;
+      }
+    }
+    Collections.sort(keys);
+
+    return keys;
+  }
+
+  /**
+   * Normalize a value so that values the server considers equal (e.g. 42 and
+   * 42.0) are equal on the client
+   */
+  protected static Object normalize(Object v) {
+    if (v instanceof Number) {
+      double d = ((Number) v).doubleValue();
+      if (v instanceof Long || v instanceof Integer || v instanceof Short
+          || v instanceof Byte) {
+        return Long.valueOf(((Number) v).longValue());
+      }
+      if (d == Math.rint(d) && Math.abs(d) < (double) (1L << 53)) {
+        return Long.valueOf((long) d);
+      }
+
+      return Double.valueOf(d);
+    }
+
+    return v;
+  }
+
+  /**
+   * @return the keys that documents are matched on. These must be present in
+   *         the documents returned by the combined query
+   */
+  public List<String> getKeys() {
+    return m_keys;
+  }
+
+  /**
+   * @return the single query that selects the documents for all the driving
+   *         rows
+   */
+  public DBObject getCombinedQuery() {
+    if (m_keys.size() == 1) {
+      Set<Object> distinct = new LinkedHashSet<Object>();
+      for (List<Object> v : m_values) {
+        distinct.add(v.get(0));
+      }
+      BasicDBList in = new BasicDBList();
+      in.addAll(distinct);
+
+      return new BasicDBObject(m_keys.get(0), new BasicDBObject("$in", in)); //$NON-NLS-1$
+    }
+
+    Set<List<Object>> distinct = new LinkedHashSet<List<Object>>(m_values);
+    BasicDBList or = new BasicDBList();
+    for (List<Object> v : distinct) {
+      BasicDBObject q = new BasicDBObject();
+      for (int i = 0; i < m_keys.size(); i++) {
+        q.put(m_keys.get(i), v.get(i));
+      }
+      or.add(q);
+    }
+
+    return new BasicDBObject("$or", or); //$NON-NLS-1$
+  }
+
+  /**
+   * Assign a document returned by the combined query to the driving rows it
+   * matches
+   *
+   * @param doc the document
+   */
+  public void add(DBObject doc) {
+    List<List<Object>> candidates = new ArrayList<List<Object>>();
+    candidates.add(new ArrayList<Object>(m_keys.size()));
+
+    for (String k : m_keys) {
+      Object v = doc.get(k);
+      if (v == null) {
+        return;
+      }
+
+      // an equality test matches an array if any element matches
+      List<?> options = v instanceof List ? (List<?>) v : Collections
+          .singletonList(v);
+      List<List<Object>> expanded = new ArrayList<List<Object>>();
+      for (List<Object> c : candidates) {
+        for (Object o : options) {
+          List<Object> e = new ArrayList<Object>(c);
+          e.add(normalize(o));
+          expanded.add(e);
+        }
+      }
+      candidates = expanded;
+    }
+
+    Set<Integer> matched = new LinkedHashSet<Integer>();
+    for (List<Object> c : candidates) {
+      List<Integer> rows = m_rowsByValues.get(c);
+      if (rows != null) {
+        matched.addAll(rows);
+      }
+    }
+    for (Integer row : matched) {
+      m_results.get(row).add(doc);
+    }
+  }
+
+  /**
+   * @return the matched documents, grouped by driving row in the order that
+   *         the rows were read
+   */
+  public LinkedList<DBObject> getResults() {
+    LinkedList<DBObject> results = new LinkedList<DBObject>();
+    for (List<DBObject> r : m_results) {
+      results.addAll(r);
+    }
+
+    return results;
+  }
+}
@@ -0,0 +1,180 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+
+import com.mongodb.Bytes;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * The server-side options for a query of the MongoDB Input step - sort, skip,
+ * limit, maxTimeMS, batch size, index hint, $comment and no cursor timeout -
+ * with all substitutions made. When executing for each incoming row the
+ * options are substituted with the field values of the row, so they can
+ * differ from query to query.
+ */
+public class MongoDbInputCursorOptions {
+
+  protected String m_sort;
+  protected int m_skip;
+  protected int m_limit;
+  protected long m_maxTime;
+  protected int m_batchSize;
+  protected String m_hint;
+  protected String m_comment;
+  protected boolean m_noCursorTimeout;
+
+  /**
+   * Get the options for a query
+   *
+   * @param meta the step meta data
+   * @param vars variables to substitute
+   * @param rowMeta the meta data of the driving row (null if not executing
+   *          for each row)
+   * @param row the driving row (null if not executing for each row)
+   * @return the options
+   * @throws KettleException if field values can't be substituted
+   */
+  public static MongoDbInputCursorOptions create(MongoDbInputMeta meta,
+      VariableSpace vars, RowMetaInterface rowMeta, Object[] row)
+      throws KettleException {
+    MongoDbInputCursorOptions options = new MongoDbInputCursorOptions();
+
+    options.m_sort = substitute(meta.getSort(), vars, rowMeta, row);
+    options.m_skip = Math.max(0,
+        Const.toInt(substitute(meta.getSkip(), vars, rowMeta, row), 0));
+    options.m_limit = Math.max(0,
+        Const.toInt(substitute(meta.getLimit(), vars, rowMeta, row), 0));
+    options.m_maxTime = Math.max(0,
+        Const.toLong(substitute(meta.getMaxTimeMS(), vars, rowMeta, row), 0));
+    options.m_batchSize = Math.max(0,
+        Const.toInt(substitute(meta.getBatchSize(), vars, rowMeta, row), 0));
+    options.m_hint = substitute(meta.getIndexHint(), vars, rowMeta, row);
+    options.m_comment = substitute(meta.getComment(), vars, rowMeta, row);
+    options.m_noCursorTimeout = meta.getNoCursorTimeout();
+
+    return options;
+  }
+
+  protected static String substitute(String value, VariableSpace vars,
+      RowMetaInterface rowMeta, Object[] row) throws KettleException {
+    if (Const.isEmpty(value)) {
+      return null;
+    }
+
+    value = vars.environmentSubstitute(value);
+    if (row != null) {
+      value = vars.fieldSubstitute(value, rowMeta, row);
+    }
+
+    return Const.isEmpty(value) ? null : value.trim();
+  }
+
+  /**
+   * Apply the options to a (not yet read) cursor
+   *
+   * @param cursor the cursor
+   */
+  public void apply(DBCursor cursor) {
+    if (m_sort != null) {
+      cursor.sort((DBObject) JSON.parse(m_sort));
+    }
+    if (m_skip > 0) {
+      cursor.skip(m_skip);
+    }
+    if (m_limit > 0) {
+      cursor.limit(m_limit);
+    }
+    if (m_maxTime > 0) {
+      cursor.maxTime(m_maxTime, TimeUnit.MILLISECONDS);
+    }
+    if (m_batchSize > 0) {
+      cursor.batchSize(m_batchSize);
+    }
+    if (m_hint != null) {
+      if (m_hint.startsWith("{")) { //$NON-NLS-1$
+        cursor.hint((DBObject) JSON.parse(m_hint));
+      } else {
+        cursor.hint(m_hint);
+      }
+    }
+    if (m_comment != null) {
+      cursor.comment(m_comment);
+    }
+    if (m_noCursorTimeout) {
+      cursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+    }
+  }
+
+  /**
+   * Returns true if queries with these options can be combined into one.
+   * Skip and limit apply to the results of each query, so queries that use
+   * them can't be combined into one
+   * 
+   * @return true if queries can be combined
+   */
+  public boolean allowsCombining() {
+    return m_skip == 0 && m_limit == 0;
+  }
+
+  /**
+   * @return true if an index hint is set
+   */
+  public boolean hasHint() {
+    return m_hint != null;
+  }
+
+  /**
+   * @return the server-side time limit in milliseconds (0 for none)
+   */
+  public long getMaxTime() {
+    return m_maxTime;
+  }
+
+  /**
+   * @return the number of documents per batch (0 for the server's default)
+   */
+  public int getBatchSize() {
+    return m_batchSize;
+  }
+
+  protected Object[] values() {
+    return new Object[] { m_sort, m_skip, m_limit, m_maxTime, m_batchSize,
+        m_hint, m_comment, m_noCursorTimeout };
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof MongoDbInputCursorOptions
+        && Arrays.equals(values(), ((MongoDbInputCursorOptions) o).values());
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(values());
+  }
+}
@@ -17,15 +17,15 @@
 
 package org.pentaho.di.trans.steps.mongodbinput;
 
-import java.math.BigDecimal;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.types.BSONTimestamp;
 import org.bson.types.Binary;
@@ -47,11 +47,14 @@ import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoClientRegistry;
 import org.pentaho.mongo.MongoUtils;
 
-import com.mongodb.AggregationOutput;
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandFailureException;
+import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -80,7 +83,7 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
   public DBCursor cursor;
 
   /** results of an aggregation pipeline */
-  Iterator<DBObject> m_pipelineResult;
+  Cursor m_pipelineResult;
 
   private List<MongoField> m_userFields;
   private MongoArrayExpansion m_expansionHandler;
@@ -130,10 +133,11 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
     /** The index that this field is in the output row structure */
     protected int m_outputIndex;
 
-    private ValueMeta m_tempValueMeta;
+    /** Converts leaf values to the Kettle type for this field */
+    private MongoValueConverter m_converter;
 
-    private List<String> m_pathParts;
-    private List<String> m_tempParts;
+    /** The compiled path */
+    private MongoFieldPath m_path;
 
     public MongoField copy() {
       MongoField newF = new MongoField();
@@ -152,57 +156,30 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
      * 
      * @param outputIndex the index for this field in the outgoing row
      *          structure.
+     * @param space variables to resolve in the path (may be null)
      * @throws KettleException if a problem occurs
      */
-    public void init(int outputIndex) throws KettleException {
+    public void init(int outputIndex, VariableSpace space)
+        throws KettleException {
       if (Const.isEmpty(m_fieldPath)) {
         throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
             "MongoDbOutput.Messages.MongoField.Error.NoPathSet")); //$NON-NLS-1$
       }
 
-      if (m_pathParts != null) {
+      if (m_path != null) {
         return;
       }
 
-      String fieldPath = cleansePath(m_fieldPath);
-
-      String[] temp = fieldPath.split("\\."); //$NON-NLS-1$
-      m_pathParts = new ArrayList<String>();
-      for (String part : temp) {
-        m_pathParts.add(part);
-      }
-
-      if (m_pathParts.get(0).equals("$")) { //$NON-NLS-1$
-        m_pathParts.remove(0); // root record indicator
-      } else if (m_pathParts.get(0).startsWith("$[")) { //$NON-NLS-1$
-
-        // strip leading $ off of array
-        String r = m_pathParts.get(0).substring(1, m_pathParts.get(0).length());
-        m_pathParts.set(0, r);
+      m_path = MongoFieldPath.compile(m_fieldPath, space);
+      if (m_path.length() == 0) {
+        throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
+            "MongoDbInput.ErrorMessage.MalformedPathRecord")); //$NON-NLS-1$
       }
 
-      m_tempParts = new ArrayList<String>();
-      m_tempValueMeta = new ValueMeta();
-      m_tempValueMeta.setType(ValueMeta.getType(m_kettleType));
+      m_converter = MongoValueConverter.forType(ValueMeta.getType(m_kettleType));
       m_outputIndex = outputIndex;
     }
 
-    /**
-     * Reset this field, ready for processing a new document
-     * 
-     * @param space variables to use
-     */
-    public void reset(VariableSpace space) {
-      // first clear because there may be stuff left over from processing
-      // the previous mongo document object (especially if a path exited early
-      // due to non-existent field or array index out of bounds)
-      m_tempParts.clear();
-
-      for (String part : m_pathParts) {
-        m_tempParts.add(space.environmentSubstitute(part));
-      }
-    }
-
     /**
      * Perform Kettle type conversions for the Mongo leaf field value.
      * 
@@ -211,206 +188,28 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
      * @throws KettleException if a problem occurs
      */
     protected Object getKettleValue(Object fieldValue) throws KettleException {
-
-      switch (m_tempValueMeta.getType()) {
-      case ValueMetaInterface.TYPE_BIGNUMBER:
-        if (fieldValue instanceof Number) {
-          fieldValue = BigDecimal.valueOf(((Number) fieldValue).doubleValue());
-        } else if (fieldValue instanceof Date) {
-          fieldValue = new BigDecimal(((Date) fieldValue).getTime());
-        } else {
-          fieldValue = new BigDecimal(fieldValue.toString());
-        }
-        return m_tempValueMeta.getBigNumber(fieldValue);
-      case ValueMetaInterface.TYPE_BINARY:
-        if (fieldValue instanceof Binary) {
-          fieldValue = ((Binary) fieldValue).getData();
-        } else {
-          fieldValue = fieldValue.toString().getBytes();
-        }
-        return m_tempValueMeta.getBinary(fieldValue);
-      case ValueMetaInterface.TYPE_BOOLEAN:
-        if (fieldValue instanceof Number) {
-          fieldValue = new Boolean(((Number) fieldValue).intValue() != 0);
-        } else if (fieldValue instanceof Date) {
-          fieldValue = new Boolean(((Date) fieldValue).getTime() != 0);
-        } else {
-          fieldValue = new Boolean(fieldValue.toString().equalsIgnoreCase("Y") //$NON-NLS-1$
-              || fieldValue.toString().equalsIgnoreCase("T") //$NON-NLS-1$
-              || fieldValue.toString().equalsIgnoreCase("1")); //$NON-NLS-1$
-        }
-        return m_tempValueMeta.getBoolean(fieldValue);
-      case ValueMetaInterface.TYPE_DATE:
-        if (fieldValue instanceof Number) {
-          fieldValue = new Date(((Number) fieldValue).longValue());
-        } else if (fieldValue instanceof Date) {
-          // nothing to do
-        } else {
-          throw new KettleException(BaseMessages.getString(
-              MongoDbInputMeta.PKG, "MongoDbInput.ErrorMessage.DateConversion", //$NON-NLS-1$
-              fieldValue.toString()));
-        }
-        return m_tempValueMeta.getDate(fieldValue);
-      case ValueMetaInterface.TYPE_INTEGER:
-        if (fieldValue instanceof Number) {
-          fieldValue = new Long(((Number) fieldValue).intValue());
-        } else if (fieldValue instanceof Binary) {
-          byte[] b = ((Binary) fieldValue).getData();
-          String s = new String(b);
-          fieldValue = new Integer(s);
-        } else {
-          fieldValue = new Integer(fieldValue.toString());
-        }
-        return m_tempValueMeta.getInteger(fieldValue);
-      case ValueMetaInterface.TYPE_NUMBER:
-        if (fieldValue instanceof Number) {
-          fieldValue = new Double(((Number) fieldValue).doubleValue());
-        } else if (fieldValue instanceof Binary) {
-          byte[] b = ((Binary) fieldValue).getData();
-          String s = new String(b);
-          fieldValue = new Double(s);
-        } else {
-          fieldValue = new Double(fieldValue.toString());
-        }
-        return m_tempValueMeta.getNumber(fieldValue);
-      case ValueMetaInterface.TYPE_STRING:
-        return m_tempValueMeta.getString(fieldValue);
-      default:
-        return null;
-      }
+      return m_converter.convert(fieldValue);
     }
 
     /**
-     * Convert a mongo record object to a Kettle field value (for the field
+     * Convert a mongo record or array to a Kettle field value (for the field
      * defined by this path)
      * 
-     * @param mongoObject the record to convert
-     * @return the kettle field value
+     * @param mongoObject the record (BasicDBObject) or array (BasicDBList) to
+     *          convert
+     * @return the kettle field value or null if the path does not exist in
+     *         the structure
      * @throws KettleException if a problem occurs
      */
-    public Object convertToKettleValue(BasicDBObject mongoObject)
+    public Object convertToKettleValue(Object mongoObject)
         throws KettleException {
 
-      if (mongoObject == null) {
-        return null;
-      }
-
-      if (m_tempParts.size() == 0) {
-        throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
-            "MongoDbInput.ErrorMessage.MalformedPathRecord")); //$NON-NLS-1$
-      }
-
-      String part = m_tempParts.remove(0);
-
-      if (part.charAt(0) == '[') {
-        // we're not expecting an array at this point - this document does not
-        // contain our field
-        return null;
-      }
-
-      if (part.indexOf('[') > 0) {
-        String arrayPart = part.substring(part.indexOf('['));
-        part = part.substring(0, part.indexOf('['));
-
-        // put the array section back into location zero
-        m_tempParts.add(0, arrayPart);
-      }
-
-      // part is a named field of this record
-      Object fieldValue = mongoObject.get(part);
+      Object fieldValue = m_path.get(mongoObject);
       if (fieldValue == null) {
         return null;
       }
 
-      // what have we got
-      if (m_tempParts.size() == 0) {
-        // we're expecting a leaf primitive - lets see if that's what we have
-        // here...
-        return getKettleValue(fieldValue);
-      }
-
-      if (fieldValue instanceof BasicDBObject) {
-        return convertToKettleValue(((BasicDBObject) fieldValue));
-      }
-
-      if (fieldValue instanceof BasicDBList) {
-        return convertToKettleValue(((BasicDBList) fieldValue));
-      }
-
-      // must mean we have a primitive here, but we're expecting to process more
-      // path so this doesn't match us - return null
-      return null;
-    }
-
-    /**
-     * Convert a mongo array object to a Kettle field value (for the field
-     * defined in this path)
-     * 
-     * @param mongoObject the array to convert
-     * @return the kettle field value
-     * @throws KettleException if a problem occurs
-     */
-    public Object convertToKettleValue(BasicDBList mongoList)
-        throws KettleException {
-
-      if (mongoList == null) {
-        return null;
-      }
-
-      if (m_tempParts.size() == 0) {
-        throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
-            "MongoDbInput.ErrorMessage.MalformedPathArray")); //$NON-NLS-1$
-      }
-
-      String part = m_tempParts.remove(0);
-      if (!(part.charAt(0) == '[')) {
-        // we're expecting an array at this point - this document does not
-        // contain our field
-        return null;
-      }
-
-      String index = part.substring(1, part.indexOf(']'));
-      int arrayI = 0;
-      try {
-        arrayI = Integer.parseInt(index.trim());
-      } catch (NumberFormatException e) {
-        throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
-            "MongoDbInput.ErrorMessage.UnableToParseArrayIndex", index)); //$NON-NLS-1$
-      }
-
-      if (part.indexOf(']') < part.length() - 1) {
-        // more dimensions to the array
-        part = part.substring(part.indexOf(']') + 1, part.length());
-        m_tempParts.add(0, part);
-      }
-
-      if (arrayI >= mongoList.size() || arrayI < 0) {
-        return null;
-      }
-
-      Object element = mongoList.get(arrayI);
-
-      if (element == null) {
-        return null;
-      }
-
-      if (m_tempParts.size() == 0) {
-        // we're expecting a leaf primitive - let's see if that's what we have
-        // here...
-        return getKettleValue(element);
-      }
-
-      if (element instanceof BasicDBObject) {
-        return convertToKettleValue(((BasicDBObject) element));
-      }
-
-      if (element instanceof BasicDBList) {
-        return convertToKettleValue(((BasicDBList) element));
-      }
-
-      // must mean we have a primitive here, but we're expecting to process more
-      // path so this doesn't match us - return null
-      return null;
+      return getKettleValue(fieldValue);
     }
 
     @Override
@@ -430,8 +229,8 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
      */
     protected List<MongoField> m_subFields;
 
-    private List<String> m_pathParts;
-    private List<String> m_tempParts;
+    /** The compiled path to the array being expanded (excluding the [*]) */
+    private MongoFieldPath m_path;
 
     protected RowMetaInterface m_outputRowMeta;
 
@@ -442,64 +241,31 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
     /**
      * Initialize this field by parsing the path etc.
      * 
+     * @param space variables to resolve in the paths (may be null)
      * @throws KettleException if a problem occurs
      */
-    public void init() throws KettleException {
+    public void init(VariableSpace space) throws KettleException {
       if (Const.isEmpty(m_expansionPath)) {
         throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
             "MongoDbInput.ErrorMessage.NoPathSet")); //$NON-NLS-1$
       }
-      if (m_pathParts != null) {
+      if (m_path != null) {
         return;
       }
 
-      String expansionPath = cleansePath(m_expansionPath);
-
-      String[] temp = expansionPath.split("\\."); //$NON-NLS-1$
-      m_pathParts = new ArrayList<String>();
-      for (String part : temp) {
-        m_pathParts.add(part);
-      }
-
-      if (m_pathParts.get(0).equals("$")) { //$NON-NLS-1$
-        m_pathParts.remove(0); // root record indicator
-      } else if (m_pathParts.get(0).startsWith("$[")) { //$NON-NLS-1$
-
-        // strip leading $ off of array
-        String r = m_pathParts.get(0).substring(1, m_pathParts.get(0).length());
-        m_pathParts.set(0, r);
-      }
-      m_tempParts = new ArrayList<String>();
+      // the expansion path always ends with [*]
+      m_path = MongoFieldPath.compile(
+          m_expansionPath.substring(0, m_expansionPath.length() - 3), space);
 
       // initialize the sub fields
       if (m_subFields != null) {
         for (MongoField f : m_subFields) {
           int outputIndex = m_outputRowMeta.indexOfValue(f.m_fieldName);
-          f.init(outputIndex);
+          f.init(outputIndex, space);
         }
       }
     }
 
-    /**
-     * Reset this field. Should be called prior to processing a new field value
-     * from the avro file
-     * 
-     * @param space environment variables (values that environment variables
-     *          resolve to cannot contain "."s)
-     */
-    public void reset(VariableSpace space) {
-      m_tempParts.clear();
-
-      for (String part : m_pathParts) {
-        m_tempParts.add(space.environmentSubstitute(part));
-      }
-
-      // reset sub fields
-      for (MongoField f : m_subFields) {
-        f.reset(space);
-      }
-    }
-
     protected Object[][] nullResult() {
       Object[][] result = new Object[1][m_outputRowMeta.size()
           + RowDataUtil.OVER_ALLOCATE_SIZE];
@@ -507,141 +273,47 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
       return result;
     }
 
-    public Object[][] convertToKettleValue(BasicDBObject mongoObject,
-        VariableSpace space) throws KettleException {
-
-      if (mongoObject == null) {
-        return nullResult();
-      }
-
-      if (m_tempParts.size() == 0) {
-        throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
-            "MongoDbInput.ErrorMessage.MalformedPathRecord")); //$NON-NLS-1$
-      }
-
-      String part = m_tempParts.remove(0);
-
-      if (part.charAt(0) == '[') {
-        // we're not expecting an array at this point - this document does not
-        // contain our field(s)
-        return nullResult();
-      }
-
-      if (part.indexOf('[') > 0) {
-        String arrayPart = part.substring(part.indexOf('['));
-        part = part.substring(0, part.indexOf('['));
-
-        // put the array section back into location zero
-        m_tempParts.add(0, arrayPart);
-      }
-
-      // part is a named field of this record
-      Object fieldValue = mongoObject.get(part);
-      if (fieldValue == null) {
-        return nullResult();
-      }
-
-      if (fieldValue instanceof BasicDBObject) {
-        return convertToKettleValue(((BasicDBObject) fieldValue), space);
-      }
-
-      if (fieldValue instanceof BasicDBList) {
-        return convertToKettleValue(((BasicDBList) fieldValue), space);
-      }
-
-      // must mean we have a primitive here, but we're expecting to process more
-      // path so this doesn't match us - return null
-      return nullResult();
-    }
-
-    public Object[][] convertToKettleValue(BasicDBList mongoList,
-        VariableSpace space) throws KettleException {
+    /**
+     * Convert a mongo record or array to Kettle rows - one for each element of
+     * the array being expanded
+     * 
+     * @param mongoObject the record (BasicDBObject) or array (BasicDBList) to
+     *          convert
+     * @return the converted rows
+     * @throws KettleException if a problem occurs
+     */
+    public Object[][] convertToKettleValue(Object mongoObject)
+        throws KettleException {
 
-      if (mongoList == null) {
+      Object array = m_path.get(mongoObject);
+      if (!(array instanceof BasicDBList)) {
+        // this document does not contain our field(s)
         return nullResult();
       }
 
-      if (m_tempParts.size() == 0) {
-        throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
-            "MongoDbInput.ErrorMessage.MalformedPathArray")); //$NON-NLS-1$
-      }
-
-      String part = m_tempParts.remove(0);
-      if (!(part.charAt(0) == '[')) {
-        // we're expecting an array at this point - this document does not
-        // contain our field
-        return nullResult();
-      }
+      // start the expansion - we delegate conversion to our subfields
+      BasicDBList mongoList = (BasicDBList) array;
+      Object[][] result = new Object[mongoList.size()][m_outputRowMeta.size()
+          + RowDataUtil.OVER_ALLOCATE_SIZE];
 
-      String index = part.substring(1, part.indexOf(']'));
+      for (int i = 0; i < mongoList.size(); i++) {
+        Object element = mongoList.get(i);
 
-      if (part.indexOf(']') < part.length() - 1) {
-        // more dimensions to the array
-        part = part.substring(part.indexOf(']') + 1, part.length());
-        m_tempParts.add(0, part);
-      }
+        for (int j = 0; j < m_subFields.size(); j++) {
+          MongoField sf = m_subFields.get(j);
 
-      if (index.equals("*")) { //$NON-NLS-1$
-        // start the expansion - we delegate conversion to our subfields
-        Object[][] result = new Object[mongoList.size()][m_outputRowMeta.size()
-            + RowDataUtil.OVER_ALLOCATE_SIZE];
-
-        for (int i = 0; i < mongoList.size(); i++) {
-          Object element = mongoList.get(i);
-
-          for (int j = 0; j < m_subFields.size(); j++) {
-            MongoField sf = m_subFields.get(j);
-            sf.reset(space);
-
-            // what have we got?
-            if (element instanceof BasicDBObject) {
-              result[i][sf.m_outputIndex] = sf
-                  .convertToKettleValue((BasicDBObject) element);
-            } else if (element instanceof BasicDBList) {
-              result[i][sf.m_outputIndex] = sf
-                  .convertToKettleValue((BasicDBList) element);
-            } else {
-              // assume a primitive
-              result[i][sf.m_outputIndex] = sf.getKettleValue(element);
-            }
+          // what have we got?
+          if (element instanceof BasicDBObject
+              || element instanceof BasicDBList) {
+            result[i][sf.m_outputIndex] = sf.convertToKettleValue(element);
+          } else if (element != null) {
+            // assume a primitive
+            result[i][sf.m_outputIndex] = sf.getKettleValue(element);
           }
         }
-
-        return result;
-      } else {
-        int arrayI = 0;
-        try {
-          arrayI = Integer.parseInt(index.trim());
-        } catch (NumberFormatException e) {
-          throw new KettleException(BaseMessages.getString(
-              MongoDbInputMeta.PKG,
-              "MongoDbInput.ErrorMessage.UnableToParseArrayIndex", index)); //$NON-NLS-1$
-        }
-
-        if (arrayI >= mongoList.size() || arrayI < 0) {
-          // index is out of bounds
-          return nullResult();
-        }
-
-        Object element = mongoList.get(arrayI);
-
-        if (element == null) {
-          return nullResult();
-        }
-
-        if (element instanceof BasicDBObject) {
-          return convertToKettleValue(((BasicDBObject) element), space);
-        }
-
-        if (element instanceof BasicDBList) {
-          return convertToKettleValue(((BasicDBList) element), space);
-        }
-
-        // must mean we have a primitive here, but we're expecting to process
-        // more
-        // path so this doesn't match us - return null
-        return nullResult();
       }
+
+      return result;
     }
   }
 
@@ -732,11 +404,22 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
 
   /**
    * Initialize all the paths by locating the index for their field name in the
-   * outgoing row structure.
+   * outgoing row structure and compiling them.
    * 
    * @throws KettleException
    */
   public void init() throws KettleException {
+    init(null);
+  }
+
+  /**
+   * Initialize all the paths by locating the index for their field name in the
+   * outgoing row structure and compiling them.
+   * 
+   * @param space variables to resolve in the paths (may be null)
+   * @throws KettleException
+   */
+  public void init(VariableSpace space) throws KettleException {
     if (m_userFields != null) {
 
       // set up array expansion/unwinding (if necessary)
@@ -744,13 +427,197 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
 
       for (MongoField f : m_userFields) {
         int outputIndex = outputRowMeta.indexOfValue(f.m_fieldName);
-        f.init(outputIndex);
+        f.init(outputIndex, space);
       }
 
       if (m_expansionHandler != null) {
-        m_expansionHandler.init();
+        m_expansionHandler.init(space);
+      }
+    }
+  }
+
+  /**
+   * Create a projection that returns just the parts of documents needed by the
+   * user-specified paths. Paths with array indexes become $slice projections
+   * that keep the array elements up to the largest index used, so that the
+   * indexes remain valid. Arrays being expanded are returned in full. Must be
+   * called after {@link #init(VariableSpace)}
+   * <p>
+   * Servers before 4.4 treat a projection of only $slice entries (and _id:0)
+   * as an exclusion, returning the rest of the document too. So when every
+   * path has an array index, _id is included to make it an inclusion. The
+   * parents of the sliced arrays can't be used for this, as they would
+   * collide with the slices on 4.4 and later
+   * 
+   * @return the projection or null if a projection can't be used
+   */
+  public DBObject createProjection() {
+    if (m_userFields == null
+        || (m_userFields.size() == 0 && m_expansionHandler == null)) {
+      return null;
+    }
+
+    // dotted path -> 0 to include or n > 0 to include the first n elements
+    Map<String, Integer> entries = new TreeMap<String, Integer>();
+    List<MongoFieldPath> paths = new ArrayList<MongoFieldPath>();
+    for (MongoField f : m_userFields) {
+      paths.add(f.m_path);
+    }
+    if (m_expansionHandler != null) {
+      paths.add(m_expansionHandler.m_path);
+    }
+
+    for (MongoFieldPath path : paths) {
+      StringBuilder dotted = new StringBuilder();
+      int slice = 0;
+      for (int i = 0; i < path.length(); i++) {
+        if (path.getKey(i) == null) {
+          slice = path.getIndex(i) + 1;
+          break;
+        }
+        if (dotted.length() > 0) {
+          dotted.append('.');
+        }
+        dotted.append(path.getKey(i));
+      }
+      if (dotted.length() == 0) {
+        // an array at the root
+        return null;
+      }
+
+      String key = dotted.toString();
+      Integer existing = entries.get(key);
+      if (existing == null) {
+        entries.put(key, slice);
+      } else if (existing.intValue() != 0) {
+        // a full inclusion wins over a slice; otherwise keep the longest slice
+        entries.put(key, slice == 0 ? 0 : Math.max(slice, existing));
+      }
+    }
+
+    BasicDBObject projection = new BasicDBObject();
+    boolean includesId = false;
+    boolean includesField = false;
+    for (Map.Entry<String, Integer> e : entries.entrySet()) {
+      // sub-paths of a path that is already being returned would collide
+      boolean covered = false;
+      for (String other : entries.keySet()) {
+        if (e.getKey().startsWith(other + ".")) { //$NON-NLS-1$
+          covered = true;
+          break;
+        }
+      }
+      if (covered) {
+        continue;
+      }
+
+      if (e.getKey().equals("_id")) { //$NON-NLS-1$
+        includesId = true;
+      }
+      if (e.getValue().intValue() == 0) {
+        projection.put(e.getKey(), 1);
+        includesField = true;
+      } else {
+        projection.put(e.getKey(), new BasicDBObject("$slice", e.getValue())); //$NON-NLS-1$
+      }
+    }
+    if (!includesId) {
+      // only slices: include _id so that older servers don't return
+      // everything else as well
+      projection.put("_id", includesField ? 0 : 1); //$NON-NLS-1$
+    }
+
+    return projection;
+  }
+
+  /**
+   * Returns true if a projection returns a top-level field
+   * 
+   * @param projection the projection
+   * @param field the field
+   * @return true if the field is returned by the projection
+   */
+  public static boolean isIncluded(DBObject projection, String field) {
+    if (projection == null) {
+      return true;
+    }
+
+    Object v = projection.get(field);
+    if (v != null) {
+      return isInclusion(v);
+    }
+
+    // not mentioned - returned if this is an exclusion projection (or the
+    // field is _id)
+    if (field.equals("_id")) { //$NON-NLS-1$
+      return true;
+    }
+    for (String k : projection.keySet()) {
+      if (!k.equals("_id") && isInclusion(projection.get(k))) { //$NON-NLS-1$
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean isInclusion(Object projectionValue) {
+    if (projectionValue instanceof Number) {
+      return ((Number) projectionValue).intValue() != 0;
+    }
+    if (projectionValue instanceof Boolean) {
+      return ((Boolean) projectionValue).booleanValue();
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Create a factory for decoders that only materialize the values needed by
+   * the user-specified paths. Must be called after {@link #init(VariableSpace)}
+   * 
+   * @return a decoder factory or null if there are no paths
+   */
+  public MongoDbInputDecoder.Factory createDecoderFactory() {
+    return createDecoderFactory(null);
+  }
+
+  /**
+   * Create a factory for decoders that only materialize the values needed by
+   * the user-specified paths, plus some additional top-level fields. Must be
+   * called after {@link #init(VariableSpace)}
+   * 
+   * @param extraFields additional top-level fields to materialize (may be
+   *          null)
+   * @return a decoder factory or null if there are no paths
+   */
+  public MongoDbInputDecoder.Factory createDecoderFactory(
+      List<String> extraFields) {
+    if (m_userFields == null
+        || (m_userFields.size() == 0 && m_expansionHandler == null)) {
+      return null;
+    }
+
+    MongoDbInputDecoder.PathNode root = new MongoDbInputDecoder.PathNode();
+    if (extraFields != null) {
+      for (String f : extraFields) {
+        root.child(f).setWhole();
+      }
+    }
+    for (MongoField f : m_userFields) {
+      root.add(f.m_path).setWhole();
+    }
+
+    if (m_expansionHandler != null) {
+      MongoDbInputDecoder.PathNode elements = root.add(
+          m_expansionHandler.m_path).anyChild();
+      for (MongoField f : m_expansionHandler.m_subFields) {
+        elements.add(f.m_path).setWhole();
       }
     }
+
+    return new MongoDbInputDecoder.Factory(root);
   }
 
   /**
@@ -759,7 +626,8 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
    * being expanded/unwound
    * 
    * @param mongoObj the mongo document
-   * @param space variables to use
+   * @param space variables to use (variables in paths are resolved by
+   *          {@link #init(VariableSpace)})
    * @return populated Kettle row(s)
    * @throws KettleException if a problem occurs
    */
@@ -769,33 +637,15 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
     Object[][] result = null;
 
     if (m_expansionHandler != null) {
-      m_expansionHandler.reset(space);
-
-      if (mongoObj instanceof BasicDBObject) {
-        result = m_expansionHandler.convertToKettleValue(
-            (BasicDBObject) mongoObj, space);
-      } else {
-        result = m_expansionHandler.convertToKettleValue(
-            (BasicDBList) mongoObj, space);
-      }
+      result = m_expansionHandler.convertToKettleValue(mongoObj);
     } else {
       result = new Object[1][];
     }
 
     // get the normal (non expansion-related fields)
     Object[] normalData = RowDataUtil.allocateRowData(outputRowMeta.size());
-    Object value;
     for (MongoField f : m_userFields) {
-      value = null;
-      f.reset(space);
-
-      if (mongoObj instanceof BasicDBObject) {
-        value = f.convertToKettleValue((BasicDBObject) mongoObj);
-      } else if (mongoObj instanceof BasicDBList) {
-        value = f.convertToKettleValue((BasicDBList) mongoObj);
-      }
-
-      normalData[f.m_outputIndex] = value;
+      normalData[f.m_outputIndex] = f.convertToKettleValue(mongoObj);
     }
 
     // copy normal fields over to each expansion row (if necessary)
@@ -830,6 +680,27 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
         MongoUtils.createCredentials(meta, vars), log);
   }
 
+  /**
+   * Lease a (possibly shared) connection to a Mongo database based on
+   * parameters provided by the user in the step meta data. The lease must be
+   * given back via {@link MongoClientRegistry#release(MongoClient, int)}
+   * 
+   * @param meta MongoDbInputMeta
+   * @param vars variables to use
+   * @param connections the number of connections the step may use
+   *          concurrently
+   * @param log for logging
+   * @return a configured MongoClient object
+   * @throws KettleException if a problem occurs
+   */
+  public static MongoClient leaseConnection(MongoDbInputMeta meta,
+      VariableSpace vars, int connections, LogChannelInterface log)
+      throws KettleException {
+
+    return MongoUtils.leaseConnection(meta, vars,
+        MongoUtils.createCredentials(meta, vars), connections, log);
+  }
+
   /**
    * Cleanses a string path by ensuring that any variables names present in the
    * path do not contain "."s (replaces any dots with underscores).
@@ -1167,27 +1038,112 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
     }
   }
 
-  private static Iterator<DBObject> setUpPipelineSample(String query,
-      int numDocsToSample, DBCollection collection) throws KettleException {
+  private static Cursor setUpPipelineSample(String query, int numDocsToSample,
+      DBCollection collection) throws KettleException {
 
     query = query + ", {$limit : " + numDocsToSample + "}"; //$NON-NLS-1$ //$NON-NLS-2$
     List<DBObject> samplePipe = jsonPipelineToDBObjectList(query);
 
-    DBObject first = samplePipe.get(0);
-    DBObject[] remainder = new DBObject[samplePipe.size() - 1];
-    for (int i = 1; i < samplePipe.size(); i++) {
-      remainder[i - 1] = samplePipe.get(i);
+    // allow disk use so that sampling a pipeline with a large $sort or
+    // $group does not fail where the step itself might be configured to
+    // succeed
+    return aggregate(collection, samplePipe, numDocsToSample, true, null);
+  }
+
+  /**
+   * Run an aggregation pipeline, streaming the results back through a cursor
+   * so that the result set is not limited to the maximum document size and
+   * does not have to be held in memory. Servers that pre-date aggregation
+   * cursors (< 2.6) reject the cursor option; for these we fall back to an
+   * inline result. Any other failure of the pipeline is thrown.
+   *
+   * @param collection the collection to aggregate
+   * @param pipeline the pipeline stages
+   * @param batchSize the number of documents per batch (<= 0 for the server
+   *          default)
+   * @param allowDiskUse true if stages may write temporary files
+   * @param log the log to use (may be null)
+   * @return a cursor over the results
+   */
+  public static Cursor aggregate(DBCollection collection,
+      List<DBObject> pipeline, int batchSize, boolean allowDiskUse,
+      LogChannelInterface log) {
+    return aggregate(collection, pipeline, batchSize, 0, allowDiskUse, log);
+  }
+
+  /**
+   * Run an aggregation pipeline with a server-side time limit
+   *
+   * @param collection the collection to aggregate
+   * @param pipeline the pipeline stages
+   * @param batchSize the number of documents per batch (<= 0 for the server
+   *          default)
+   * @param maxTime the time limit in milliseconds (<= 0 for none)
+   * @param allowDiskUse true if stages may write temporary files
+   * @param log the log to use (may be null)
+   * @return a cursor over the results
+   */
+  public static Cursor aggregate(DBCollection collection,
+      List<DBObject> pipeline, int batchSize, long maxTime,
+      boolean allowDiskUse, LogChannelInterface log) {
+
+    AggregationOptions.Builder options = AggregationOptions.builder()
+        .outputMode(AggregationOptions.OutputMode.CURSOR);
+    if (batchSize > 0) {
+      options.batchSize(batchSize);
+    }
+    if (allowDiskUse) {
+      options.allowDiskUse(true);
+    }
+    if (maxTime > 0) {
+      options.maxTime(maxTime, TimeUnit.MILLISECONDS);
     }
 
-    AggregationOutput result = collection.aggregate(first, remainder);
+    try {
+      return collection.aggregate(pipeline, options.build());
+    } catch (CommandFailureException ex) {
+      if (!isCursorUnsupported(ex)) {
+        throw ex;
+      }
+      if (log != null) {
+        log.logDetailed(BaseMessages.getString(MongoDbInputMeta.PKG,
+            "MongoDbInput.Message.AggregationCursorUnsupported", //$NON-NLS-1$
+            ex.getMessage()));
+      }
+
+      AggregationOptions.Builder inline = AggregationOptions.builder()
+          .outputMode(AggregationOptions.OutputMode.INLINE);
+      if (maxTime > 0) {
+        inline.maxTime(maxTime, TimeUnit.MILLISECONDS);
+      }
 
-    return result.results().iterator();
+      return collection.aggregate(pipeline, inline.build());
+    }
+  }
+
+  /**
+   * Returns true if an aggregate command failed because the server doesn't
+   * support the cursor option. Servers before 2.6 reject it as an
+   * "unrecognized field 'cursor'" when parsing the command
+   *
+   * @param ex the failure
+   * @return true if the failure is due to the cursor option
+   */
+  protected static boolean isCursorUnsupported(CommandFailureException ex) {
+    String message = ex.getMessage();
+    if (message == null) {
+      return false;
+    }
+    message = message.toLowerCase();
+
+    return message.contains("unrecognized field") //$NON-NLS-1$
+        && message.contains("cursor"); //$NON-NLS-1$
   }
 
   public static boolean discoverFields(final MongoDbInputMeta meta,
       final VariableSpace vars, final int docsToSample) throws KettleException {
+    AuthContext context = MongoUtils.createAuthContext(meta, vars);
     try {
-      AuthContext context = MongoUtils.createAuthContext(meta, vars);
       return context.doAs(new PrivilegedExceptionAction<Boolean>() {
 
         @Override
@@ -1198,6 +1154,7 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
           }
 
           DBCursor cursor = null;
+          Cursor pipeSample = null;
           MongoClient mongo = null;
           String db = vars.environmentSubstitute(meta.getDbName());
           String collection = vars.environmentSubstitute(meta.getCollection());
@@ -1236,7 +1193,7 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
             String fields = vars.environmentSubstitute(meta.getFieldsName());
 
             cursor = null;
-            Iterator<DBObject> pipeSample = null;
+            pipeSample = null;
 
             if (meta.getQueryIsPipeline()) {
               pipeSample = setUpPipelineSample(query, numDocsToSample, dbcollection);
@@ -1274,6 +1231,9 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
             if (cursor != null) {
               cursor.close();
             }
+            if (pipeSample != null) {
+              pipeSample.close();
+            }
 
             if (mongo != null) {
               mongo.close();
@@ -1289,6 +1249,8 @@ public class MongoDbInputData extends BaseStepData implements StepDataInterface
       } else {
         throw new KettleException("Unable to discover fields from MongoDB", ex);
       }
+    } finally {
+      context.release();
     }
   }
 
@@ -0,0 +1,413 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
+import org.bson.io.Bits;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * A decoder that scans raw BSON and only materializes the values at a fixed
+ * set of paths, skipping over everything else using the length information in
+ * the BSON. Documents produced contain just enough structure (nested
+ * BasicDBObjects and BasicDBLists) for the paths to be walked by
+ * {@link MongoFieldPath}. Values at the end of a path are decoded in full by
+ * the driver's default decoder, so their types are exactly as normal.
+ */
+public class MongoDbInputDecoder implements DBDecoder {
+
+  // BSON element types
+  protected static final byte DOUBLE = 0x01;
+  protected static final byte STRING = 0x02;
+  protected static final byte DOCUMENT = 0x03;
+  protected static final byte ARRAY = 0x04;
+  protected static final byte BINARY = 0x05;
+  protected static final byte UNDEFINED = 0x06;
+  protected static final byte OBJECT_ID = 0x07;
+  protected static final byte BOOLEAN = 0x08;
+  protected static final byte DATE = 0x09;
+  protected static final byte NULL = 0x0A;
+  protected static final byte REGEX = 0x0B;
+  protected static final byte DB_POINTER = 0x0C;
+  protected static final byte CODE = 0x0D;
+  protected static final byte SYMBOL = 0x0E;
+  protected static final byte CODE_W_SCOPE = 0x0F;
+  protected static final byte INT32 = 0x10;
+  protected static final byte TIMESTAMP = 0x11;
+  protected static final byte INT64 = 0x12;
+  protected static final byte DECIMAL128 = 0x13;
+  protected static final byte MIN_KEY = (byte) 0xFF;
+  protected static final byte MAX_KEY = 0x7F;
+
+  /**
+   * A node in the tree of paths to materialize. Children are matched against
+   * element names in their UTF-8 encoded form so that names of skipped
+   * elements never have to be decoded.
+   */
+  public static class PathNode {
+    /** Materialize the entire value at this node */
+    protected boolean m_whole;
+
+    protected final List<String> m_names = new ArrayList<String>();
+    protected final List<byte[]> m_nameBytes = new ArrayList<byte[]>();
+    protected final List<PathNode> m_children = new ArrayList<PathNode>();
+
+    /** Matches any element (array expansion) */
+    protected PathNode m_anyChild;
+
+    /**
+     * Get (creating if necessary) the child for an element name
+     *
+     * @param name the element name
+     * @return the child
+     */
+    public PathNode child(String name) {
+      int i = m_names.indexOf(name);
+      if (i >= 0) {
+        return m_children.get(i);
+      }
+
+      PathNode c = new PathNode();
+      m_names.add(name);
+      try {
+        m_nameBytes.add(name.getBytes("UTF-8")); //$NON-NLS-1$
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+      m_children.add(c);
+
+      return c;
+    }
+
+    /**
+     * Get (creating if necessary) the child that matches any element
+     *
+     * @return the child
+     */
+    public PathNode anyChild() {
+      if (m_anyChild == null) {
+        m_anyChild = new PathNode();
+      }
+
+      return m_anyChild;
+    }
+
+    /**
+     * Add a path below this node
+     *
+     * @param path the path
+     * @return the node at the end of the path
+     */
+    public PathNode add(MongoFieldPath path) {
+      PathNode node = this;
+      for (int i = 0; i < path.length(); i++) {
+        String key = path.getKey(i);
+        node = node.child(key != null ? key : Integer.toString(path
+            .getIndex(i)));
+      }
+
+      return node;
+    }
+
+    /**
+     * Mark this node as one whose value should be materialized in full
+     */
+    public void setWhole() {
+      m_whole = true;
+    }
+
+    /**
+     * Find the child matching the element name at the given offset
+     *
+     * @param b the BSON bytes
+     * @param nameStart the offset of the (null terminated) name
+     * @param nameEnd the offset of the terminating null
+     * @return the index of the matching child, or -1 if none
+     */
+    protected int match(byte[] b, int nameStart, int nameEnd) {
+      int len = nameEnd - nameStart;
+      for (int i = 0; i < m_nameBytes.size(); i++) {
+        byte[] n = m_nameBytes.get(i);
+        if (n.length != len) {
+          continue;
+        }
+        int j = 0;
+        while (j < len && n[j] == b[nameStart + j]) {
+          j++;
+        }
+        if (j == len) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+  }
+
+  /**
+   * Creates decoders that share one tree of paths
+   */
+  public static class Factory implements DBDecoderFactory {
+    protected final PathNode m_root;
+
+    public Factory(PathNode root) {
+      m_root = root;
+    }
+
+    @Override
+    public DBDecoder create() {
+      return new MongoDbInputDecoder(m_root);
+    }
+  }
+
+  protected final PathNode m_root;
+
+  /** The name of the first element of a query failure reply */
+  protected static final byte[] ERR = { '$', 'e', 'r', 'r' };
+
+  /** Decodes values at the end of paths */
+  protected final DefaultDBDecoder m_valueDecoder = new DefaultDBDecoder();
+
+  public MongoDbInputDecoder(PathNode root) {
+    m_root = root;
+  }
+
+  @Override
+  public DBObject decode(byte[] b, DBCollection collection) {
+    if (m_root.m_whole || isQueryFailure(b)) {
+      // the driver reads $err and code from a failure reply to raise the
+      // right exception, so it must be decoded in full
+      return m_valueDecoder.decode(b, collection);
+    }
+
+    return (DBObject) decodeDocument(b, 0, m_root, false);
+  }
+
+  @Override
+  public DBObject decode(InputStream in, DBCollection collection)
+      throws IOException {
+    byte[] lengthBytes = new byte[4];
+    Bits.readFully(in, lengthBytes);
+    int length = Bits.readInt(lengthBytes);
+
+    byte[] b = new byte[length];
+    System.arraycopy(lengthBytes, 0, b, 0, 4);
+    Bits.readFully(in, b, 4, length - 4);
+
+    return decode(b, collection);
+  }
+
+  @Override
+  public DBCallback getDBCallback(DBCollection collection) {
+    return m_valueDecoder.getDBCallback(collection);
+  }
+
+  @Override
+  public BSONObject readObject(byte[] b) {
+    return decode(b, (DBCollection) null);
+  }
+
+  @Override
+  public BSONObject readObject(InputStream in) throws IOException {
+    return decode(in, (DBCollection) null);
+  }
+
+  @Override
+  public int decode(byte[] b, BSONCallback callback) {
+    return m_valueDecoder.decode(b, callback);
+  }
+
+  @Override
+  public int decode(InputStream in, BSONCallback callback) throws IOException {
+    return m_valueDecoder.decode(in, callback);
+  }
+
+  /**
+   * Returns true if a reply document reports a failed query, i.e. its first
+   * element is $err
+   *
+   * @param b the BSON bytes of the document
+   * @return true if the document is a query failure
+   */
+  protected static boolean isQueryFailure(byte[] b) {
+    // length (4) + type (1) + name + null
+    if (b.length < 5 + ERR.length + 1 || b[5 + ERR.length] != 0) {
+      return false;
+    }
+    for (int i = 0; i < ERR.length; i++) {
+      if (b[5 + i] != ERR[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Decode the parts of an embedded document or array that lie on a path
+   *
+   * @param b the BSON bytes
+   * @param start the offset of the document's length prefix
+   * @param node the path node for the document
+   * @param isArray true if the document is an array
+   * @return the partially materialized document
+   */
+  protected BSONObject decodeDocument(byte[] b, int start, PathNode node,
+      boolean isArray) {
+    BSONObject result = isArray ? new BasicDBList() : new BasicDBObject();
+    int end = start + Bits.readInt(b, start) - 1;
+    int pos = start + 4;
+
+    while (pos < end) {
+      byte type = b[pos];
+      int nameStart = pos + 1;
+      int nameEnd = nameStart;
+      while (b[nameEnd] != 0) {
+        nameEnd++;
+      }
+      int valueStart = nameEnd + 1;
+      int valueEnd = valueStart + valueSize(b, type, valueStart);
+
+      int i = node.match(b, nameStart, nameEnd);
+      PathNode child = i >= 0 ? node.m_children.get(i) : node.m_anyChild;
+      if (child != null) {
+        String name = i >= 0 ? node.m_names.get(i) : decodeName(b, nameStart,
+            nameEnd);
+        Object value = null;
+        if (child.m_whole) {
+          value = decodeValue(b, type, valueStart, valueEnd);
+        } else if (type == DOCUMENT || type == ARRAY) {
+          value = decodeDocument(b, valueStart, child, type == ARRAY);
+        } else if (child == node.m_anyChild) {
+          // primitive array elements are converted directly when expanding
+          value = decodeValue(b, type, valueStart, valueEnd);
+        }
+
+        if (value != null) {
+          result.put(name, value);
+        }
+      }
+
+      pos = valueEnd;
+    }
+
+    return result;
+  }
+
+  /**
+   * Fully decode a single value by wrapping it in a one element document and
+   * passing it to the default decoder
+   */
+  protected Object decodeValue(byte[] b, byte type, int valueStart,
+      int valueEnd) {
+    int valueLength = valueEnd - valueStart;
+
+    // length + type + "v\0" + value + terminator
+    byte[] doc = new byte[4 + 1 + 2 + valueLength + 1];
+    int docLength = doc.length;
+    doc[0] = (byte) (docLength & 0xFF);
+    doc[1] = (byte) ((docLength >> 8) & 0xFF);
+    doc[2] = (byte) ((docLength >> 16) & 0xFF);
+    doc[3] = (byte) ((docLength >> 24) & 0xFF);
+    doc[4] = type;
+    doc[5] = 'v';
+    doc[6] = 0;
+    System.arraycopy(b, valueStart, doc, 7, valueLength);
+    doc[doc.length - 1] = 0;
+
+    return m_valueDecoder.decode(doc, (DBCollection) null).get("v"); //$NON-NLS-1$
+  }
+
+  protected static String decodeName(byte[] b, int nameStart, int nameEnd) {
+    try {
+      return new String(b, nameStart, nameEnd - nameStart, "UTF-8"); //$NON-NLS-1$
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Get the encoded size of a value
+   *
+   * @param b the BSON bytes
+   * @param type the element type
+   * @param valueStart the offset of the value
+   * @return the number of bytes occupied by the value
+   */
+  protected static int valueSize(byte[] b, byte type, int valueStart) {
+    switch (type) {
+    case UNDEFINED:
+    case NULL:
+    case MIN_KEY:
+    case MAX_KEY:
+      return 0;
+    case BOOLEAN:
+      return 1;
+    case INT32:
+      return 4;
+    case DOUBLE:
+    case DATE:
+    case TIMESTAMP:
+    case INT64:
+      return 8;
+    case OBJECT_ID:
+      return 12;
+    case DECIMAL128:
+      return 16;
+    case STRING:
+    case CODE:
+    case SYMBOL:
+      return 4 + Bits.readInt(b, valueStart);
+    case DOCUMENT:
+    case ARRAY:
+    case CODE_W_SCOPE:
+      return Bits.readInt(b, valueStart);
+    case BINARY:
+      return 4 + 1 + Bits.readInt(b, valueStart);
+    case DB_POINTER:
+      return 4 + Bits.readInt(b, valueStart) + 12;
+    case REGEX:
+      int pos = valueStart;
+      // pattern and options cstrings
+      for (int i = 0; i < 2; i++) {
+        while (b[pos] != 0) {
+          pos++;
+        }
+        pos++;
+      }
+      return pos - valueStart;
+    default:
+      throw new IllegalArgumentException("Unknown BSON type: " + type); //$NON-NLS-1$
+    }
+  }
+}
@@ -96,6 +96,83 @@ public class MongoDbInputMeta extends BaseStepMeta implements StepMetaInterface
 
   private boolean m_executeForEachIncomingRow = false;
 
+  /**
+   * Maximum number of documents to output per call to processRow() (i.e. per
+   * privileged block). Empty or 1 processes one document per call
+   */
+  private String m_processingBatchSize = ""; //$NON-NLS-1$
+
+  /**
+   * whether copies of this step read disjoint key ranges of the collection
+   */
+  private boolean m_partitionedRead = false;
+
+  /** key (path) to partition on when reading in parallel - empty for _id */
+  private String m_partitionKey = ""; //$NON-NLS-1$
+
+  /** whether to read documents ahead of the step on a separate thread */
+  private boolean m_prefetch = false;
+
+  /** maximum number of prefetched documents to queue */
+  private String m_prefetchQueueDocs = "1000"; //$NON-NLS-1$
+
+  /** maximum (estimated) size in bytes of prefetched documents to queue */
+  private String m_prefetchQueueBytes = ""; //$NON-NLS-1$
+
+  /** number of documents per batch returned by the server */
+  private String m_batchSize = ""; //$NON-NLS-1$
+
+  /** whether aggregation stages may write temporary files */
+  private boolean m_allowDiskUse = false;
+
+  /** whether to decode only the values at the configured field paths */
+  private boolean m_selectiveDecoding = false;
+
+  /** number of driving rows to combine into one query */
+  private String m_drivingRowBatchSize = ""; //$NON-NLS-1$
+
+  /** number of per-row queries to keep in flight */
+  private String m_concurrentQueries = ""; //$NON-NLS-1$
+
+  /** whether concurrent per-row query results are output as they complete */
+  private boolean m_emitInCompletionOrder = false;
+
+  /** Whether to route reads to a healthy, low latency secondary */
+  private boolean m_readRouting = false;
+
+  /** Secondaries lagging by more seconds than this are not read from */
+  private String m_maxReplicationLag = ""; //$NON-NLS-1$
+
+  /** How often (in seconds) to re-evaluate the member that reads go to */
+  private String m_readRoutingInterval = ""; //$NON-NLS-1$
+
+  /** Whether to explain the first query and check its plan */
+  private boolean m_explainQuery = false;
+
+  /** What to do if the explained query scans the whole collection */
+  private String m_collScanPolicy = ""; //$NON-NLS-1$
+
+  /** Index to use for find queries - a name or a JSON key pattern */
+  private String m_indexHint = ""; //$NON-NLS-1$
+
+  /** Sort order for find queries, as JSON (e.g. {"ts" : -1}) */
+  private String m_sort = ""; //$NON-NLS-1$
+
+  /** Number of documents to skip in find queries */
+  private String m_skip = ""; //$NON-NLS-1$
+
+  /** Maximum number of documents returned by a find query */
+  private String m_limit = ""; //$NON-NLS-1$
+
+  /** Server-side time limit (milliseconds) for a query or pipeline */
+  private String m_maxTimeMS = ""; //$NON-NLS-1$
+
+  /** $comment attached to find queries (shows up in the profiler) */
+  private String m_comment = ""; //$NON-NLS-1$
+
+  /** Whether the server should never time out idle cursors */
+  private boolean m_noCursorTimeout = false;
+
   public MongoDbInputMeta() {
     super(); // allocate BaseStepMeta
   }
@@ -132,6 +209,483 @@ public class MongoDbInputMeta extends BaseStepMeta implements StepMetaInterface
     return m_executeForEachIncomingRow;
   }
 
+  /**
+   * Set the maximum number of documents to process in one call to processRow()
+   * 
+   * @param size the number of documents (may contain variables)
+   */
+  public void setProcessingBatchSize(String size) {
+    m_processingBatchSize = size;
+  }
+
+  /**
+   * Get the maximum number of documents to process in one call to
+   * processRow()
+   * 
+   * @return the number of documents (may contain variables)
+   */
+  public String getProcessingBatchSize() {
+    return m_processingBatchSize;
+  }
+
+  /**
+   * Set whether to split the collection into disjoint key ranges, one per
+   * copy of this step, so that copies read in parallel rather than each
+   * reading the whole result
+   * 
+   * @param p true if copies are to read disjoint key ranges
+   */
+  public void setPartitionedRead(boolean p) {
+    m_partitionedRead = p;
+  }
+
+  /**
+   * Get whether to split the collection into disjoint key ranges, one per
+   * copy of this step
+   * 
+   * @return true if copies are to read disjoint key ranges
+   */
+  public boolean getPartitionedRead() {
+    return m_partitionedRead;
+  }
+
+  /**
+   * Set the document path to partition on when doing a partitioned read.
+   * The path should be indexed. Empty means partition on _id
+   * 
+   * @param key the path to partition on
+   */
+  public void setPartitionKey(String key) {
+    m_partitionKey = key;
+  }
+
+  /**
+   * Get the document path to partition on when doing a partitioned read
+   * 
+   * @return the path to partition on
+   */
+  public String getPartitionKey() {
+    return m_partitionKey;
+  }
+
+  /**
+   * Set whether to read documents on a separate thread into a bounded
+   * queue, so that reading from MongoDB overlaps with row output
+   * 
+   * @param p true to prefetch documents
+   */
+  public void setPrefetch(boolean p) {
+    m_prefetch = p;
+  }
+
+  /**
+   * Get whether to read documents on a separate thread into a bounded
+   * queue
+   * 
+   * @return true to prefetch documents
+   */
+  public boolean getPrefetch() {
+    return m_prefetch;
+  }
+
+  /**
+   * Set the maximum number of prefetched documents to hold in the queue.
+   * Empty or 0 for no limit on the number of documents
+   * 
+   * @param docs the maximum number of documents (may contain variables)
+   */
+  public void setPrefetchQueueDocs(String docs) {
+    m_prefetchQueueDocs = docs;
+  }
+
+  /**
+   * Get the maximum number of prefetched documents to hold in the queue
+   * 
+   * @return the maximum number of documents (may contain variables)
+   */
+  public String getPrefetchQueueDocs() {
+    return m_prefetchQueueDocs;
+  }
+
+  /**
+   * Set the maximum estimated size, in bytes, of the prefetched documents to
+   * hold in the queue. Empty or 0 for no limit on size
+   * 
+   * @param bytes the maximum size in bytes (may contain variables)
+   */
+  public void setPrefetchQueueBytes(String bytes) {
+    m_prefetchQueueBytes = bytes;
+  }
+
+  /**
+   * Get the maximum estimated size, in bytes, of the prefetched documents
+   * to hold in the queue
+   * 
+   * @return the maximum size in bytes (may contain variables)
+   */
+  public String getPrefetchQueueBytes() {
+    return m_prefetchQueueBytes;
+  }
+
+  /**
+   * Set the number of documents the server should return per batch when
+   * streaming aggregation results through a cursor. Empty for the server
+   * default
+   * 
+   * @param size the batch size (may contain variables)
+   */
+  public void setBatchSize(String size) {
+    m_batchSize = size;
+  }
+
+  /**
+   * Get the number of documents the server should return per batch when
+   * streaming aggregation results through a cursor
+   * 
+   * @return the batch size (may contain variables)
+   */
+  public String getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * Set whether aggregation pipeline stages may write to temporary files on
+   * the server, which lifts the 100MB memory limit per stage
+   * 
+   * @param a true to allow disk use
+   */
+  public void setAllowDiskUse(boolean a) {
+    m_allowDiskUse = a;
+  }
+
+  /**
+   * Get whether aggregation pipeline stages may write to temporary files on
+   * the server
+   * 
+   * @return true to allow disk use
+   */
+  public boolean getAllowDiskUse() {
+    return m_allowDiskUse;
+  }
+
+  /**
+   * Set whether documents returned by a query should only have the values
+   * at the configured field paths decoded. Everything else is skipped over in
+   * the raw BSON
+   * 
+   * @param s true to decode selectively
+   */
+  public void setSelectiveDecoding(boolean s) {
+    m_selectiveDecoding = s;
+  }
+
+  /**
+   * Get whether documents returned by a query should only have the values
+   * at the configured field paths decoded
+   * 
+   * @return true to decode selectively
+   */
+  public boolean getSelectiveDecoding() {
+    return m_selectiveDecoding;
+  }
+
+  /**
+   * Set the number of incoming rows whose queries may be combined into a
+   * single query when executing a query for each incoming row. Empty or 1 to
+   * query for each row separately
+   * 
+   * @param size the batch size (may contain variables)
+   */
+  public void setDrivingRowBatchSize(String size) {
+    m_drivingRowBatchSize = size;
+  }
+
+  /**
+   * Get the number of incoming rows whose queries may be combined into a
+   * single query when executing a query for each incoming row
+   * 
+   * @return the batch size (may contain variables)
+   */
+  public String getDrivingRowBatchSize() {
+    return m_drivingRowBatchSize;
+  }
+
+  /**
+   * Set the number of queries to keep in flight concurrently when executing
+   * a query for each incoming row. Empty or 1 to run one query at a time
+   * 
+   * @param queries the number of queries (may contain variables)
+   */
+  public void setConcurrentQueries(String queries) {
+    m_concurrentQueries = queries;
+  }
+
+  /**
+   * Get the number of queries to keep in flight concurrently when executing
+   * a query for each incoming row
+   * 
+   * @return the number of queries (may contain variables)
+   */
+  public String getConcurrentQueries() {
+    return m_concurrentQueries;
+  }
+
+  /**
+   * Set whether the results of concurrent per-row queries are output in the
+   * order that the queries complete rather than in incoming row order
+   * 
+   * @param c true to output results in completion order
+   */
+  public void setEmitInCompletionOrder(boolean c) {
+    m_emitInCompletionOrder = c;
+  }
+
+  /**
+   * Get whether the results of concurrent per-row queries are output in the
+   * order that the queries complete rather than in incoming row order
+   * 
+   * @return true to output results in completion order
+   */
+  public boolean getEmitInCompletionOrder() {
+    return m_emitInCompletionOrder;
+  }
+
+  /**
+   * Set whether to route reads to a replica set secondary chosen from
+   * replSetGetStatus: members that lag the primary by too much are left out,
+   * the lowest latency members are preferred and the copies of the step are
+   * spread over them
+   * 
+   * @param route true to route reads
+   */
+  public void setReadRouting(boolean route) {
+    m_readRouting = route;
+  }
+
+  /**
+   * Get whether to route reads to a chosen replica set secondary
+   * 
+   * @return true if reads are routed
+   */
+  public boolean getReadRouting() {
+    return m_readRouting;
+  }
+
+  /**
+   * Set the maximum replication lag (in seconds) of a secondary that reads
+   * are routed to. Empty for no limit
+   * 
+   * @param lag the maximum lag (may contain variables)
+   */
+  public void setMaxReplicationLag(String lag) {
+    m_maxReplicationLag = lag;
+  }
+
+  /**
+   * Get the maximum replication lag (in seconds) of a secondary that reads
+   * are routed to
+   * 
+   * @return the maximum lag (may contain variables)
+   */
+  public String getMaxReplicationLag() {
+    return m_maxReplicationLag;
+  }
+
+  /**
+   * Set how often (in seconds) to re-evaluate the member that reads are
+   * routed to. The member is only changed between queries. Empty for the
+   * default (60 seconds)
+   * 
+   * @param interval the interval (may contain variables)
+   */
+  public void setReadRoutingInterval(String interval) {
+    m_readRoutingInterval = interval;
+  }
+
+  /**
+   * Get how often (in seconds) to re-evaluate the member that reads are
+   * routed to
+   * 
+   * @return the interval (may contain variables)
+   */
+  public String getReadRoutingInterval() {
+    return m_readRoutingInterval;
+  }
+
+  /**
+   * Set whether to run explain on the first query (or pipeline) before
+   * reading, log its plan and check for a collection scan
+   * 
+   * @param explain true to explain the first query
+   */
+  public void setExplainQuery(boolean explain) {
+    m_explainQuery = explain;
+  }
+
+  /**
+   * Get whether to run explain on the first query (or pipeline) before
+   * reading
+   * 
+   * @return true if the first query is explained
+   */
+  public boolean getExplainQuery() {
+    return m_explainQuery;
+  }
+
+  /**
+   * Set what to do if the explained query scans the whole collection:
+   * Ignore, Warn or Fail. Empty for Warn
+   * 
+   * @param policy the policy (may contain variables)
+   */
+  public void setCollScanPolicy(String policy) {
+    m_collScanPolicy = policy;
+  }
+
+  /**
+   * Get what to do if the explained query scans the whole collection
+   * 
+   * @return the policy (may contain variables)
+   */
+  public String getCollScanPolicy() {
+    return m_collScanPolicy;
+  }
+
+  /**
+   * Set the index that find queries must use - either the name of the
+   * index or its key pattern as JSON. Empty to let the server choose
+   * 
+   * @param hint the index (may contain variables)
+   */
+  public void setIndexHint(String hint) {
+    m_indexHint = hint;
+  }
+
+  /**
+   * Get the index that find queries must use
+   * 
+   * @return the index (may contain variables)
+   */
+  public String getIndexHint() {
+    return m_indexHint;
+  }
+
+  /**
+   * Set the sort order for find queries, as JSON. Empty for natural order
+   * 
+   * @param sort the sort order (may contain variables and, when executing for
+   *          each row, field values)
+   */
+  public void setSort(String sort) {
+    m_sort = sort;
+  }
+
+  /**
+   * Get the sort order for find queries
+   * 
+   * @return the sort order (may contain variables and field values)
+   */
+  public String getSort() {
+    return m_sort;
+  }
+
+  /**
+   * Set the number of documents to skip at the start of the results of a
+   * find query. Empty to skip none
+   * 
+   * @param skip the number to skip (may contain variables and field values)
+   */
+  public void setSkip(String skip) {
+    m_skip = skip;
+  }
+
+  /**
+   * Get the number of documents to skip at the start of the results of a
+   * find query
+   * 
+   * @return the number to skip (may contain variables and field values)
+   */
+  public String getSkip() {
+    return m_skip;
+  }
+
+  /**
+   * Set the maximum number of documents returned by a find query. Empty
+   * for no limit
+   * 
+   * @param limit the limit (may contain variables and field values)
+   */
+  public void setLimit(String limit) {
+    m_limit = limit;
+  }
+
+  /**
+   * Get the maximum number of documents returned by a find query
+   * 
+   * @return the limit (may contain variables and field values)
+   */
+  public String getLimit() {
+    return m_limit;
+  }
+
+  /**
+   * Set the time limit, in milliseconds, for the server to spend on a
+   * query or pipeline. Empty for no limit
+   * 
+   * @param maxTime the time limit (may contain variables and field values)
+   */
+  public void setMaxTimeMS(String maxTime) {
+    m_maxTimeMS = maxTime;
+  }
+
+  /**
+   * Get the time limit, in milliseconds, for the server to spend on a
+   * query or pipeline
+   * 
+   * @return the time limit (may contain variables and field values)
+   */
+  public String getMaxTimeMS() {
+    return m_maxTimeMS;
+  }
+
+  /**
+   * Set the $comment to attach to find queries, so that they can be
+   * identified in the server's profiler and logs
+   * 
+   * @param comment the comment (may contain variables and field values)
+   */
+  public void setComment(String comment) {
+    m_comment = comment;
+  }
+
+  /**
+   * Get the $comment to attach to find queries
+   * 
+   * @return the comment (may contain variables and field values)
+   */
+  public String getComment() {
+    return m_comment;
+  }
+
+  /**
+   * Set whether the server should keep idle find cursors open
+   * indefinitely rather than timing them out
+   * 
+   * @param noTimeout true to keep idle cursors open
+   */
+  public void setNoCursorTimeout(boolean noTimeout) {
+    m_noCursorTimeout = noTimeout;
+  }
+
+  /**
+   * Get whether the server should keep idle find cursors open indefinitely
+   * 
+   * @return true if idle cursors are kept open
+   */
+  public boolean getNoCursorTimeout() {
+    return m_noCursorTimeout;
+  }
+
   @Override
   public void loadXML(Node stepnode, List<DatabaseMeta> databases,
       Map<String, Counter> counters) throws KettleXMLException {
@@ -194,6 +748,69 @@ public class MongoDbInputMeta extends BaseStepMeta implements StepMetaInterface
         m_executeForEachIncomingRow = executeForEachR.equalsIgnoreCase("Y");
       }
 
+      m_processingBatchSize = XMLHandler.getTagValue(stepnode,
+          "processing_batch_size"); //$NON-NLS-1$
+
+      String partitionedRead = XMLHandler.getTagValue(stepnode, "partitioned_read"); //$NON-NLS-1$
+      if (!Const.isEmpty(partitionedRead)) {
+        m_partitionedRead = partitionedRead.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+      m_partitionKey = XMLHandler.getTagValue(stepnode, "partition_key"); //$NON-NLS-1$
+
+      String prefetch = XMLHandler.getTagValue(stepnode, "prefetch"); //$NON-NLS-1$
+      if (!Const.isEmpty(prefetch)) {
+        m_prefetch = prefetch.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+      // an empty setting means no limit, but steps saved before the setting
+      // existed get the default
+      if (XMLHandler.getSubNode(stepnode, "prefetch_queue_docs") != null) { //$NON-NLS-1$
+        m_prefetchQueueDocs = XMLHandler.getTagValue(stepnode, "prefetch_queue_docs"); //$NON-NLS-1$
+      }
+      m_prefetchQueueBytes = XMLHandler.getTagValue(stepnode, "prefetch_queue_bytes"); //$NON-NLS-1$
+
+      m_batchSize = XMLHandler.getTagValue(stepnode, "batch_size"); //$NON-NLS-1$
+      String allowDiskUse = XMLHandler.getTagValue(stepnode, "allow_disk_use"); //$NON-NLS-1$
+      if (!Const.isEmpty(allowDiskUse)) {
+        m_allowDiskUse = allowDiskUse.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+
+      String selectiveDecoding = XMLHandler.getTagValue(stepnode, "selective_decoding"); //$NON-NLS-1$
+      if (!Const.isEmpty(selectiveDecoding)) {
+        m_selectiveDecoding = selectiveDecoding.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+
+      m_drivingRowBatchSize = XMLHandler.getTagValue(stepnode, "driving_row_batch_size"); //$NON-NLS-1$
+
+      m_concurrentQueries = XMLHandler.getTagValue(stepnode, "concurrent_queries"); //$NON-NLS-1$
+      String emitInCompletionOrder = XMLHandler.getTagValue(stepnode, "emit_in_completion_order"); //$NON-NLS-1$
+      if (!Const.isEmpty(emitInCompletionOrder)) {
+        m_emitInCompletionOrder = emitInCompletionOrder.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+
+      String readRouting = XMLHandler.getTagValue(stepnode, "read_routing"); //$NON-NLS-1$
+      if (!Const.isEmpty(readRouting)) {
+        m_readRouting = readRouting.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+      m_maxReplicationLag = XMLHandler.getTagValue(stepnode, "max_replication_lag"); //$NON-NLS-1$
+      m_readRoutingInterval = XMLHandler.getTagValue(stepnode, "read_routing_interval"); //$NON-NLS-1$
+
+      String explainQuery = XMLHandler.getTagValue(stepnode, "explain_query"); //$NON-NLS-1$
+      if (!Const.isEmpty(explainQuery)) {
+        m_explainQuery = explainQuery.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+      m_collScanPolicy = XMLHandler.getTagValue(stepnode, "collscan_policy"); //$NON-NLS-1$
+      m_indexHint = XMLHandler.getTagValue(stepnode, "index_hint"); //$NON-NLS-1$
+
+      m_sort = XMLHandler.getTagValue(stepnode, "query_sort"); //$NON-NLS-1$
+      m_skip = XMLHandler.getTagValue(stepnode, "query_skip"); //$NON-NLS-1$
+      m_limit = XMLHandler.getTagValue(stepnode, "query_limit"); //$NON-NLS-1$
+      m_maxTimeMS = XMLHandler.getTagValue(stepnode, "max_time_ms"); //$NON-NLS-1$
+      m_comment = XMLHandler.getTagValue(stepnode, "query_comment"); //$NON-NLS-1$
+      String noCursorTimeout = XMLHandler.getTagValue(stepnode, "no_cursor_timeout"); //$NON-NLS-1$
+      if (!Const.isEmpty(noCursorTimeout)) {
+        m_noCursorTimeout = noCursorTimeout.equalsIgnoreCase("Y"); //$NON-NLS-1$
+      }
+
       Node mongo_fields = XMLHandler.getSubNode(stepnode, "mongo_fields"); //$NON-NLS-1$
       if (mongo_fields != null
           && XMLHandler.countNodes(mongo_fields, "mongo_field") > 0) { //$NON-NLS-1$
@@ -330,6 +947,63 @@ public class MongoDbInputMeta extends BaseStepMeta implements StepMetaInterface
     retval.append("    ").append( //$NON-NLS-1$
         XMLHandler.addTagValue(
             "execute_for_each_row", m_executeForEachIncomingRow)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("processing_batch_size", m_processingBatchSize)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("partitioned_read", m_partitionedRead)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("partition_key", m_partitionKey)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("prefetch", m_prefetch)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("prefetch_queue_docs", m_prefetchQueueDocs)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("prefetch_queue_bytes", m_prefetchQueueBytes)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("batch_size", m_batchSize)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("allow_disk_use", m_allowDiskUse)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("selective_decoding", m_selectiveDecoding)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("driving_row_batch_size", m_drivingRowBatchSize)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("concurrent_queries", m_concurrentQueries)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("emit_in_completion_order", m_emitInCompletionOrder)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("read_routing", m_readRouting)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("max_replication_lag", m_maxReplicationLag)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("read_routing_interval", m_readRoutingInterval)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("explain_query", m_explainQuery)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("collscan_policy", m_collScanPolicy)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("index_hint", m_indexHint)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("query_sort", m_sort)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("query_skip", m_skip)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("query_limit", m_limit)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("max_time_ms", m_maxTimeMS)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("query_comment", m_comment)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("no_cursor_timeout", m_noCursorTimeout)); //$NON-NLS-1$
 
     if (m_fields != null && m_fields.size() > 0) {
       retval.append("\n    ").append(XMLHandler.openTag("mongo_fields")); //$NON-NLS-1$ //$NON-NLS-2$
@@ -389,6 +1063,43 @@ public class MongoDbInputMeta extends BaseStepMeta implements StepMetaInterface
       m_aggPipeline = rep.getStepAttributeBoolean(id_step, "query_is_pipeline"); //$NON-NLS-1$
       m_executeForEachIncomingRow = rep.getStepAttributeBoolean(id_step,
           "execute_for_each_row"); //$NON-NLS-1$
+      m_processingBatchSize = rep.getStepAttributeString(id_step,
+          "processing_batch_size"); //$NON-NLS-1$
+
+      m_partitionedRead = rep.getStepAttributeBoolean(id_step, 0, "partitioned_read"); //$NON-NLS-1$
+      m_partitionKey = rep.getStepAttributeString(id_step, "partition_key"); //$NON-NLS-1$
+
+      m_prefetch = rep.getStepAttributeBoolean(id_step, 0, "prefetch"); //$NON-NLS-1$
+      String prefetchQueueDocs = rep.getStepAttributeString(id_step, "prefetch_queue_docs"); //$NON-NLS-1$
+      if (prefetchQueueDocs != null) {
+        m_prefetchQueueDocs = prefetchQueueDocs;
+      }
+      m_prefetchQueueBytes = rep.getStepAttributeString(id_step, "prefetch_queue_bytes"); //$NON-NLS-1$
+
+      m_batchSize = rep.getStepAttributeString(id_step, "batch_size"); //$NON-NLS-1$
+      m_allowDiskUse = rep.getStepAttributeBoolean(id_step, 0, "allow_disk_use"); //$NON-NLS-1$
+
+      m_selectiveDecoding = rep.getStepAttributeBoolean(id_step, 0, "selective_decoding"); //$NON-NLS-1$
+
+      m_drivingRowBatchSize = rep.getStepAttributeString(id_step, "driving_row_batch_size"); //$NON-NLS-1$
+
+      m_concurrentQueries = rep.getStepAttributeString(id_step, "concurrent_queries"); //$NON-NLS-1$
+      m_emitInCompletionOrder = rep.getStepAttributeBoolean(id_step, 0, "emit_in_completion_order"); //$NON-NLS-1$
+
+      m_readRouting = rep.getStepAttributeBoolean(id_step, 0, "read_routing"); //$NON-NLS-1$
+      m_maxReplicationLag = rep.getStepAttributeString(id_step, "max_replication_lag"); //$NON-NLS-1$
+      m_readRoutingInterval = rep.getStepAttributeString(id_step, "read_routing_interval"); //$NON-NLS-1$
+
+      m_explainQuery = rep.getStepAttributeBoolean(id_step, 0, "explain_query"); //$NON-NLS-1$
+      m_collScanPolicy = rep.getStepAttributeString(id_step, "collscan_policy"); //$NON-NLS-1$
+      m_indexHint = rep.getStepAttributeString(id_step, "index_hint"); //$NON-NLS-1$
+
+      m_sort = rep.getStepAttributeString(id_step, "query_sort"); //$NON-NLS-1$
+      m_skip = rep.getStepAttributeString(id_step, "query_skip"); //$NON-NLS-1$
+      m_limit = rep.getStepAttributeString(id_step, "query_limit"); //$NON-NLS-1$
+      m_maxTimeMS = rep.getStepAttributeString(id_step, "max_time_ms"); //$NON-NLS-1$
+      m_comment = rep.getStepAttributeString(id_step, "query_comment"); //$NON-NLS-1$
+      m_noCursorTimeout = rep.getStepAttributeBoolean(id_step, 0, "no_cursor_timeout"); //$NON-NLS-1$
 
       int nrfields = rep.countNrStepAttributes(id_step, "field_name"); //$NON-NLS-1$
       if (nrfields > 0) {
@@ -464,6 +1175,63 @@ public class MongoDbInputMeta extends BaseStepMeta implements StepMetaInterface
       rep.saveStepAttribute(id_transformation, id_step, 0,
           "execute_for_each_row", //$NON-NLS-1$
           m_executeForEachIncomingRow);
+      rep.saveStepAttribute(id_transformation, id_step,
+          "processing_batch_size", m_processingBatchSize); //$NON-NLS-1$
+
+      rep.saveStepAttribute(id_transformation, id_step, "partitioned_read", //$NON-NLS-1$
+          m_partitionedRead);
+      rep.saveStepAttribute(id_transformation, id_step, "partition_key", //$NON-NLS-1$
+          m_partitionKey);
+
+      rep.saveStepAttribute(id_transformation, id_step, "prefetch", //$NON-NLS-1$
+          m_prefetch);
+      rep.saveStepAttribute(id_transformation, id_step, "prefetch_queue_docs", //$NON-NLS-1$
+          m_prefetchQueueDocs);
+      rep.saveStepAttribute(id_transformation, id_step, "prefetch_queue_bytes", //$NON-NLS-1$
+          m_prefetchQueueBytes);
+
+      rep.saveStepAttribute(id_transformation, id_step, "batch_size", //$NON-NLS-1$
+          m_batchSize);
+      rep.saveStepAttribute(id_transformation, id_step, "allow_disk_use", //$NON-NLS-1$
+          m_allowDiskUse);
+
+      rep.saveStepAttribute(id_transformation, id_step, "selective_decoding", //$NON-NLS-1$
+          m_selectiveDecoding);
+
+      rep.saveStepAttribute(id_transformation, id_step, "driving_row_batch_size", //$NON-NLS-1$
+          m_drivingRowBatchSize);
+
+      rep.saveStepAttribute(id_transformation, id_step, "concurrent_queries", //$NON-NLS-1$
+          m_concurrentQueries);
+      rep.saveStepAttribute(id_transformation, id_step, "emit_in_completion_order", //$NON-NLS-1$
+          m_emitInCompletionOrder);
+
+      rep.saveStepAttribute(id_transformation, id_step, "read_routing", //$NON-NLS-1$
+          m_readRouting);
+      rep.saveStepAttribute(id_transformation, id_step, "max_replication_lag", //$NON-NLS-1$
+          m_maxReplicationLag);
+      rep.saveStepAttribute(id_transformation, id_step, "read_routing_interval", //$NON-NLS-1$
+          m_readRoutingInterval);
+
+      rep.saveStepAttribute(id_transformation, id_step, "explain_query", //$NON-NLS-1$
+          m_explainQuery);
+      rep.saveStepAttribute(id_transformation, id_step, "collscan_policy", //$NON-NLS-1$
+          m_collScanPolicy);
+      rep.saveStepAttribute(id_transformation, id_step, "index_hint", //$NON-NLS-1$
+          m_indexHint);
+
+      rep.saveStepAttribute(id_transformation, id_step, "query_sort", //$NON-NLS-1$
+          m_sort);
+      rep.saveStepAttribute(id_transformation, id_step, "query_skip", //$NON-NLS-1$
+          m_skip);
+      rep.saveStepAttribute(id_transformation, id_step, "query_limit", //$NON-NLS-1$
+          m_limit);
+      rep.saveStepAttribute(id_transformation, id_step, "max_time_ms", //$NON-NLS-1$
+          m_maxTimeMS);
+      rep.saveStepAttribute(id_transformation, id_step, "query_comment", //$NON-NLS-1$
+          m_comment);
+      rep.saveStepAttribute(id_transformation, id_step, "no_cursor_timeout", //$NON-NLS-1$
+          m_noCursorTimeout);
 
       if (m_fields != null && m_fields.size() > 0) {
         for (int i = 0; i < m_fields.size(); i++) {
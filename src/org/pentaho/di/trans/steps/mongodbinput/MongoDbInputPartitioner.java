@@ -0,0 +1,365 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.logging.LogChannelInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Splits a collection into disjoint key ranges so that the copies of a MongoDB
+ * Input step can read in parallel. Split points are obtained from the
+ * splitVector command where possible (this requires a direct connection to a
+ * mongod and the clusterManager privilege); otherwise they are computed as
+ * quantiles over the (indexed) partition key.
+ * <p>
+ * All copies of a step must use identical split points, so the first copy to
+ * need them computes them and the remaining copies reuse the result.
+ */
+public class MongoDbInputPartitioner {
+
+  /** The default key to partition on */
+  public static final String DEFAULT_PARTITION_KEY = "_id"; //$NON-NLS-1$
+
+  /**
+   * How many candidate split points to ask splitVector for per partition. A
+   * finer granularity lets us pick more evenly sized ranges
+   */
+  protected static final int SPLIT_VECTOR_OVERSAMPLE = 4;
+
+  /** Split points shared by the copies of a step */
+  private static final Map<List<Object>, SharedSplitPoints> s_splitPoints = new HashMap<List<Object>, SharedSplitPoints>();
+
+  /**
+   * Holds the split points for one step along with the number of copies that
+   * have finished with them
+   */
+  protected static class SharedSplitPoints {
+    protected List<Object> m_points;
+    protected int m_released;
+  }
+
+  /**
+   * Get the split points for the copies of a step, computing them if this is
+   * the first copy to ask.
+   *
+   * @param owner the object (typically the running transformation) that,
+   *          together with the step name, identifies the step
+   * @param stepName the name of the step
+   * @param collection the collection to split
+   * @param key the key to split on
+   * @param numPartitions the number of partitions (step copies)
+   * @param log the log to use
+   * @return a list of at most numPartitions - 1 ascending split points
+   * @throws KettleException if the split points can't be determined
+   */
+  public static List<Object> getSplitPoints(Object owner, String stepName,
+      DBCollection collection, String key, int numPartitions,
+      LogChannelInterface log) throws KettleException {
+
+    SharedSplitPoints shared = null;
+    List<Object> shareKey = Arrays.asList(owner, stepName);
+    synchronized (s_splitPoints) {
+      shared = s_splitPoints.get(shareKey);
+      if (shared == null) {
+        shared = new SharedSplitPoints();
+        s_splitPoints.put(shareKey, shared);
+      }
+    }
+
+    synchronized (shared) {
+      if (shared.m_points == null) {
+        shared.m_points = computeSplitPoints(collection, key, numPartitions,
+            log);
+      }
+
+      return shared.m_points;
+    }
+  }
+
+  /**
+   * Signal that a copy of a step has finished with the split points. Once all
+   * copies have done so the shared split points are discarded. Must be called
+   * exactly once by each copy, whether or not it asked for the split points.
+   *
+   * @param owner the object that, together with the step name, identifies the
+   *          step
+   * @param stepName the name of the step
+   * @param numPartitions the number of partitions (step copies)
+   */
+  public static void release(Object owner, String stepName, int numPartitions) {
+    List<Object> shareKey = Arrays.asList(owner, stepName);
+    synchronized (s_splitPoints) {
+      SharedSplitPoints shared = s_splitPoints.get(shareKey);
+      if (shared == null) {
+        shared = new SharedSplitPoints();
+        s_splitPoints.put(shareKey, shared);
+      }
+
+      if (++shared.m_released >= numPartitions) {
+        s_splitPoints.remove(shareKey);
+      }
+    }
+  }
+
+  /**
+   * Compute split points for a collection
+   *
+   * @param collection the collection to split
+   * @param key the key to split on
+   * @param numPartitions the number of partitions required
+   * @param log the log to use (may be null)
+   * @return a list of at most numPartitions - 1 ascending split points
+   * @throws KettleException if the split points can't be determined
+   */
+  protected static List<Object> computeSplitPoints(DBCollection collection,
+      String key, int numPartitions, LogChannelInterface log)
+      throws KettleException {
+
+    List<Object> candidates = null;
+    try {
+      candidates = splitVector(collection, key, numPartitions);
+    } catch (MongoException ex) {
+      // fall through to quantiles
+    }
+
+    if (candidates != null) {
+      if (log != null) {
+        log.logDetailed(BaseMessages.getString(MongoDbInputMeta.PKG,
+            "MongoDbInput.Message.PartitionUsingSplitVector", //$NON-NLS-1$
+            candidates.size()));
+      }
+
+      return pickEvenly(candidates, numPartitions);
+    }
+
+    if (log != null) {
+      log.logDetailed(BaseMessages.getString(MongoDbInputMeta.PKG,
+          "MongoDbInput.Message.PartitionUsingQuantiles")); //$NON-NLS-1$
+    }
+
+    try {
+      return quantiles(collection, key, numPartitions);
+    } catch (MongoException ex) {
+      throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
+          "MongoDbInput.ErrorMessage.UnableToPartition", key), ex); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Ask the server for candidate split points via the splitVector command
+   *
+   * @param collection the collection to split
+   * @param key the key to split on
+   * @param numPartitions the number of partitions required
+   * @return the candidate split points or null if the command failed
+   */
+  protected static List<Object> splitVector(DBCollection collection,
+      String key, int numPartitions) {
+    CommandResult stats = collection.getStats();
+    long size = 0;
+    if (stats.ok() && stats.get("size") instanceof Number) { //$NON-NLS-1$
+      size = ((Number) stats.get("size")).longValue(); //$NON-NLS-1$
+    }
+    long chunkSize = Math.max(1, size
+        / ((long) numPartitions * SPLIT_VECTOR_OVERSAMPLE));
+
+    BasicDBObject cmd = new BasicDBObject("splitVector", //$NON-NLS-1$
+        collection.getFullName());
+    cmd.put("keyPattern", new BasicDBObject(key, 1)); //$NON-NLS-1$
+    cmd.put("maxChunkSizeBytes", chunkSize); //$NON-NLS-1$
+
+    CommandResult result = collection.getDB().command(cmd);
+    if (!result.ok() || !(result.get("splitKeys") instanceof BasicDBList)) { //$NON-NLS-1$
+      return null;
+    }
+
+    List<Object> points = new ArrayList<Object>();
+    for (Object k : (BasicDBList) result.get("splitKeys")) { //$NON-NLS-1$
+      DBObject splitKey = (DBObject) k;
+      // key patterns with dotted paths come back as a top-level "a.b" field
+      Object value = splitKey.containsField(key) ? splitKey.get(key)
+          : getValue(splitKey, key);
+      if (value != null) {
+        points.add(value);
+      }
+    }
+
+    return points;
+  }
+
+  /**
+   * Compute split points as quantiles over the key. This walks the key's
+   * index so the key should be indexed.
+   *
+   * @param collection the collection to split
+   * @param key the key to split on
+   * @param numPartitions the number of partitions required
+   * @return the split points
+   */
+  protected static List<Object> quantiles(DBCollection collection, String key,
+      int numPartitions) {
+    List<Object> points = new ArrayList<Object>();
+    long count = collection.count();
+    if (count == 0) {
+      return points;
+    }
+
+    BasicDBObject projection = new BasicDBObject(key, 1);
+    if (!DEFAULT_PARTITION_KEY.equals(key)) {
+      projection.put(DEFAULT_PARTITION_KEY, 0);
+    }
+    BasicDBObject sort = new BasicDBObject(key, 1);
+    BasicDBObject exists = new BasicDBObject(key, new BasicDBObject("$exists", //$NON-NLS-1$
+        true));
+
+    for (int i = 1; i < numPartitions; i++) {
+      int skip = (int) Math.min(Integer.MAX_VALUE, count * i / numPartitions);
+
+      DBCursor c = collection.find(exists, projection).sort(sort).skip(skip)
+          .limit(1);
+      try {
+        if (c.hasNext()) {
+          Object value = getValue(c.next(), key);
+          if (value != null) {
+            points.add(value);
+          }
+        }
+      } finally {
+        c.close();
+      }
+    }
+
+    return points;
+  }
+
+  /**
+   * Pick numPartitions - 1 evenly spaced split points from a list of
+   * candidates
+   *
+   * @param candidates the candidate split points in ascending order
+   * @param numPartitions the number of partitions required
+   * @return the chosen split points
+   */
+  protected static List<Object> pickEvenly(List<Object> candidates,
+      int numPartitions) {
+    if (candidates.size() < numPartitions) {
+      return candidates;
+    }
+
+    List<Object> points = new ArrayList<Object>(numPartitions - 1);
+    for (int i = 1; i < numPartitions; i++) {
+      points.add(candidates.get((int) ((long) candidates.size() * i / numPartitions)));
+    }
+
+    return points;
+  }
+
+  /**
+   * Build the query clause selecting one partition. The first partition also
+   * picks up documents where the key is missing or of a type different to
+   * the split points, so that every document is read by exactly one copy.
+   *
+   * @param key the key being partitioned on
+   * @param splitPoints the ascending split points
+   * @param partition the partition (step copy number)
+   * @return the query clause for the partition
+   */
+  public static DBObject partitionRange(String key, List<Object> splitPoints,
+      int partition) {
+
+    if (partition > splitPoints.size()) {
+      // more copies than split points - nothing for this copy to read
+      return new BasicDBObject(key, new BasicDBObject("$in", //$NON-NLS-1$
+          new BasicDBList()));
+    }
+
+    if (splitPoints.size() == 0) {
+      return new BasicDBObject();
+    }
+
+    if (partition == 0) {
+      return new BasicDBObject(key, new BasicDBObject("$not", //$NON-NLS-1$
+          new BasicDBObject("$gte", splitPoints.get(0)))); //$NON-NLS-1$
+    }
+
+    BasicDBObject range = new BasicDBObject("$gte", //$NON-NLS-1$
+        splitPoints.get(partition - 1));
+    if (partition < splitPoints.size()) {
+      range.put("$lt", splitPoints.get(partition)); //$NON-NLS-1$
+    }
+
+    return new BasicDBObject(key, range);
+  }
+
+  /**
+   * Restrict a query to a partition
+   *
+   * @param query the query (may be null or empty)
+   * @param range the partition clause from
+   *          {@link #partitionRange(String, List, int)}
+   * @return the restricted query
+   */
+  public static DBObject restrictQuery(DBObject query, DBObject range) {
+    if (range.keySet().size() == 0) {
+      return query;
+    }
+    if (query == null || query.keySet().size() == 0) {
+      return range;
+    }
+
+    BasicDBList and = new BasicDBList();
+    and.add(query);
+    and.add(range);
+
+    return new BasicDBObject("$and", and); //$NON-NLS-1$
+  }
+
+  /**
+   * Get the value at a dot separated path in a document
+   *
+   * @param doc the document
+   * @param path the path
+   * @return the value or null if the path does not exist
+   */
+  protected static Object getValue(DBObject doc, String path) {
+    Object current = doc;
+    for (String part : path.split("\\.")) { //$NON-NLS-1$
+      if (!(current instanceof DBObject)) {
+        return null;
+      }
+      current = ((DBObject) current).get(part);
+    }
+
+    return current;
+  }
+}
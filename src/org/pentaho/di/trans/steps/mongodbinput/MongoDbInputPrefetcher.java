@@ -0,0 +1,376 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.security.PrivilegedAction;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.BsonSizeEstimator;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+/**
+ * Reads documents from a cursor (or aggregation result) on a dedicated thread
+ * into a bounded queue, so that network waits and document decoding overlap
+ * with row conversion and output on the step thread. The queue may be bounded
+ * by number of documents, by (estimated) size in bytes, or both.
+ * <p>
+ * The reader thread owns the source: a cursor is only ever used, and closed,
+ * by the reader thread, so the step thread must not touch it once the
+ * prefetcher has started.
+ * <p>
+ * Also keeps statistics on queue depth and on how long each side spent
+ * blocked: a reader that is often blocked on a full queue means the
+ * downstream steps are the bottleneck; a step thread that is often blocked on
+ * an empty queue means MongoDB is.
+ */
+public class MongoDbInputPrefetcher implements Runnable {
+
+  /** The source of documents */
+  protected final Iterator<DBObject> m_source;
+
+  /** Context to read as */
+  protected final AuthContext m_authContext;
+
+  /** Maximum number of queued documents (<= 0 for no limit) */
+  protected final int m_maxDocs;
+
+  /** Maximum estimated size of queued documents (<= 0 for no limit) */
+  protected final long m_maxBytes;
+
+  protected final LinkedList<DBObject> m_queue = new LinkedList<DBObject>();
+  protected final LinkedList<Integer> m_sizes = new LinkedList<Integer>();
+  protected final ReentrantLock m_lock = new ReentrantLock();
+  protected final Condition m_notFull = m_lock.newCondition();
+  protected final Condition m_notEmpty = m_lock.newCondition();
+
+  protected long m_queuedBytes;
+  protected boolean m_sourceExhausted;
+  protected volatile boolean m_closed;
+  protected Throwable m_failure;
+
+  protected Thread m_readerThread;
+
+  /** The server the cursor reads from, once known */
+  protected ServerAddress m_serverAddress;
+
+  // statistics
+  protected long m_docsRead;
+  protected long m_readerBlockedNanos;
+  protected long m_consumerBlockedNanos;
+  protected long m_depthSum;
+  protected int m_maxDepth;
+
+  /**
+   * Constructor
+   *
+   * @param source the cursor or aggregation result to read from. If it is a
+   *          {@link Cursor} the reader thread closes it when done
+   * @param authContext the context to read as
+   * @param maxDocs the maximum number of documents to queue (<= 0 for no
+   *          limit)
+   * @param maxBytes the maximum estimated size of queued documents (<= 0 for
+   *          no limit)
+   */
+  public MongoDbInputPrefetcher(Iterator<DBObject> source,
+      AuthContext authContext, int maxDocs, long maxBytes) {
+    m_source = source;
+    m_authContext = authContext;
+    m_maxDocs = maxDocs;
+    m_maxBytes = maxBytes;
+  }
+
+  /**
+   * Start the reader thread
+   *
+   * @param name the name to give the thread
+   */
+  public void start(String name) {
+    m_readerThread = new Thread(this, name);
+    m_readerThread.setDaemon(true);
+    m_readerThread.start();
+  }
+
+  @Override
+  public void run() {
+    m_authContext.doAs(new PrivilegedAction<Void>() {
+      @Override
+      public Void run() {
+        fill();
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Reader thread loop - pulls from the source until it is exhausted, an
+   * error occurs or we are closed
+   */
+  protected void fill() {
+    try {
+      while (!m_closed && m_source.hasNext()) {
+        DBObject doc = m_source.next();
+        int size = m_maxBytes > 0 ? BsonSizeEstimator.estimate(doc) : 0;
+
+        m_lock.lock();
+        try {
+          if (isFull(size)) {
+            long start = System.nanoTime();
+            while (!m_closed && isFull(size)) {
+              m_notFull.await();
+            }
+            m_readerBlockedNanos += System.nanoTime() - start;
+          }
+          if (m_closed) {
+            break;
+          }
+
+          if (m_serverAddress == null && m_source instanceof DBCursor) {
+            m_serverAddress = ((DBCursor) m_source).getServerAddress();
+          }
+          m_queue.addLast(doc);
+          m_sizes.addLast(size);
+          m_queuedBytes += size;
+          m_docsRead++;
+          m_notEmpty.signal();
+        } finally {
+          m_lock.unlock();
+        }
+      }
+    } catch (InterruptedException ex) {
+      // closed
+    } catch (Throwable t) {
+      m_lock.lock();
+      try {
+        m_failure = t;
+      } finally {
+        m_lock.unlock();
+      }
+    } finally {
+      if (m_source instanceof Cursor) {
+        try {
+          ((Cursor) m_source).close();
+        } catch (Throwable t) {
+          // we're done with it anyway
+        }
+      }
+
+      m_lock.lock();
+      try {
+        m_sourceExhausted = true;
+        m_notEmpty.signalAll();
+      } finally {
+        m_lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Must be called with the lock held
+   */
+  protected boolean isFull(int nextSize) {
+    if (m_queue.isEmpty()) {
+      // always admit at least one document, however big
+      return false;
+    }
+    if (m_maxDocs > 0 && m_queue.size() >= m_maxDocs) {
+      return true;
+    }
+
+    return m_maxBytes > 0 && m_queuedBytes + nextSize > m_maxBytes;
+  }
+
+  /**
+   * Get the next document, waiting for the reader thread if necessary
+   *
+   * @return the next document or null if there are no more
+   * @throws KettleException if the reader thread failed
+   */
+  public DBObject next() throws KettleException {
+    m_lock.lock();
+    try {
+      if (m_queue.isEmpty() && !m_sourceExhausted) {
+        long start = System.nanoTime();
+        while (m_queue.isEmpty() && !m_sourceExhausted) {
+          m_notEmpty.await();
+        }
+        m_consumerBlockedNanos += System.nanoTime() - start;
+      }
+
+      if (m_queue.isEmpty()) {
+        if (m_failure != null) {
+          if (m_failure instanceof KettleException) {
+            throw (KettleException) m_failure;
+          }
+          throw new KettleException(m_failure);
+        }
+        return null;
+      }
+
+      int depth = m_queue.size();
+      m_depthSum += depth;
+      if (depth > m_maxDepth) {
+        m_maxDepth = depth;
+      }
+
+      DBObject doc = m_queue.removeFirst();
+      m_queuedBytes -= m_sizes.removeFirst();
+      m_notFull.signal();
+
+      return doc;
+    } catch (InterruptedException ex) {
+      throw new KettleException(ex);
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Stop the reader thread and discard any queued documents. The reader
+   * thread closes the cursor as soon as it finishes the read it is in the
+   * middle of (if any), so this doesn't have to wait for it.
+   */
+  public void close() {
+    m_lock.lock();
+    try {
+      m_closed = true;
+      m_queue.clear();
+      m_sizes.clear();
+      m_queuedBytes = 0;
+      m_notFull.signalAll();
+    } finally {
+      m_lock.unlock();
+    }
+
+    if (m_readerThread != null) {
+      try {
+        // usually it is just waiting for space in the queue
+        m_readerThread.join(1000);
+      } catch (InterruptedException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * @return the server the cursor reads from, or null if not known (yet)
+   */
+  public ServerAddress getServerAddress() {
+    m_lock.lock();
+    try {
+      return m_serverAddress;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return true if the reader thread has finished (and closed the cursor)
+   */
+  public boolean isFinished() {
+    m_lock.lock();
+    try {
+      return m_sourceExhausted;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of documents read from the source so far
+   */
+  public long getDocsRead() {
+    m_lock.lock();
+    try {
+      return m_docsRead;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the time (ms) the reader thread spent waiting for space in the
+   *         queue
+   */
+  public long getReaderBlockedMillis() {
+    m_lock.lock();
+    try {
+      return m_readerBlockedNanos / 1000000L;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the time (ms) the step thread spent waiting for documents
+   */
+  public long getConsumerBlockedMillis() {
+    m_lock.lock();
+    try {
+      return m_consumerBlockedNanos / 1000000L;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the sum of the queue depths seen by each call to next() that
+   *         returned a document. Divide by the number of documents consumed
+   *         for the average depth
+   */
+  public long getQueueDepthSum() {
+    m_lock.lock();
+    try {
+      return m_depthSum;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the maximum queue depth seen by the step thread
+   */
+  public int getMaxQueueDepth() {
+    m_lock.lock();
+    try {
+      return m_maxDepth;
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the current number of queued documents
+   */
+  public int getQueueDepth() {
+    m_lock.lock();
+    try {
+      return m_queue.size();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+}
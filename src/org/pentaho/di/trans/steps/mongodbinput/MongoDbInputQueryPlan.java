@@ -0,0 +1,279 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.util.List;
+
+import org.pentaho.di.core.Const;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * The parts of the output of explain that the preflight check of the MongoDB
+ * Input step reports on. Understands both the legacy (2.x server) format,
+ * with a "cursor" description, and the queryPlanner/executionStats format of
+ * later servers.
+ */
+public class MongoDbInputQueryPlan {
+
+  /** What to do when the winning plan is a collection scan */
+  public static enum CollScanPolicy {
+    IGNORE, WARN, FAIL;
+
+    /**
+     * Look up a policy by name (case insensitive)
+     *
+     * @param name the name of the policy
+     * @return the policy, or WARN if the name is empty or unknown
+     */
+    public static CollScanPolicy byName(String name) {
+      if (!Const.isEmpty(name)) {
+        for (CollScanPolicy p : values()) {
+          if (p.name().equalsIgnoreCase(name.trim())) {
+            return p;
+          }
+        }
+      }
+
+      return WARN;
+    }
+  }
+
+  protected static final String STAGE_COLLSCAN = "COLLSCAN"; //$NON-NLS-1$
+  protected static final String STAGE_IXSCAN = "IXSCAN"; //$NON-NLS-1$
+  protected static final String STAGE_FETCH = "FETCH"; //$NON-NLS-1$
+  protected static final String LEGACY_COLLSCAN = "BasicCursor"; //$NON-NLS-1$
+
+  /** A description of the winning plan */
+  protected String m_winningPlan = ""; //$NON-NLS-1$
+
+  /** Index keys examined (-1 if not reported) */
+  protected long m_keysExamined = -1;
+
+  /** Documents examined (-1 if not reported) */
+  protected long m_docsExamined = -1;
+
+  protected boolean m_collScan;
+  protected boolean m_covered;
+
+  /**
+   * Extract the plan from the output of explain. For an aggregation the first
+   * query plan found in the output is used
+   *
+   * @param explain the output of explain
+   * @return the plan
+   */
+  public static MongoDbInputQueryPlan analyze(DBObject explain) {
+    MongoDbInputQueryPlan plan = new MongoDbInputQueryPlan();
+
+    DBObject source = findPlanSource(explain);
+    if (source == null) {
+      return plan;
+    }
+
+    Object planner = source.get("queryPlanner"); //$NON-NLS-1$
+    if (planner instanceof DBObject) {
+      Object winning = ((DBObject) planner).get("winningPlan"); //$NON-NLS-1$
+      if (winning instanceof DBObject) {
+        plan.m_winningPlan = JSON.serialize(winning);
+        plan.m_collScan = hasStage((DBObject) winning, STAGE_COLLSCAN);
+        plan.m_covered = hasStage((DBObject) winning, STAGE_IXSCAN)
+            && !hasStage((DBObject) winning, STAGE_FETCH);
+      }
+
+      Object stats = source.get("executionStats"); //$NON-NLS-1$
+      if (stats instanceof DBObject) {
+        plan.m_keysExamined = number((DBObject) stats, "totalKeysExamined"); //$NON-NLS-1$
+        plan.m_docsExamined = number((DBObject) stats, "totalDocsExamined"); //$NON-NLS-1$
+      }
+    } else {
+      // legacy
+      plan.m_winningPlan = source.get("cursor").toString(); //$NON-NLS-1$
+      plan.m_collScan = plan.m_winningPlan.startsWith(LEGACY_COLLSCAN);
+      plan.m_covered = Boolean.TRUE.equals(source.get("indexOnly")); //$NON-NLS-1$
+      plan.m_keysExamined = number(source, "nscanned"); //$NON-NLS-1$
+      plan.m_docsExamined = number(source, "nscannedObjects"); //$NON-NLS-1$
+    }
+
+    return plan;
+  }
+
+  /**
+   * Find an index that contains every field returned by a projection and
+   * every field tested by a query, so that the query could be answered from
+   * the index alone
+   *
+   * @param indexes the indexes of the collection (from getIndexInfo)
+   * @param query the query
+   * @param projection the projection
+   * @return the key pattern of the first such index, or null if there isn't
+   *         one
+   */
+  public static DBObject coveringIndex(List<DBObject> indexes, DBObject query,
+      DBObject projection) {
+    if (indexes == null || projection == null) {
+      return null;
+    }
+
+    for (DBObject index : indexes) {
+      Object k = index.get("key"); //$NON-NLS-1$
+      if (!(k instanceof DBObject)
+          || Boolean.TRUE.equals(index.get("sparse"))) { //$NON-NLS-1$
+        // a sparse index doesn't hold every document
+        continue;
+      }
+      DBObject keys = (DBObject) k;
+
+      if (covers(keys, query, projection)) {
+        return keys;
+      }
+    }
+
+    return null;
+  }
+
+  protected static boolean covers(DBObject keys, DBObject query,
+      DBObject projection) {
+    for (Object v : keys.toMap().values()) {
+      if (!(v instanceof Number)) {
+        // text, hashed, geo etc. indexes can't cover
+        return false;
+      }
+    }
+
+    boolean anyIncluded = false;
+    for (String field : projection.keySet()) {
+      Object v = projection.get(field);
+      if (field.equals("_id") && v instanceof Number //$NON-NLS-1$
+          && ((Number) v).intValue() == 0) {
+        continue;
+      }
+      if (!(v instanceof Number) || ((Number) v).intValue() == 0
+          || !keys.containsField(field)) {
+        // e.g. a $slice, or a field not in the index
+        return false;
+      }
+      anyIncluded = true;
+    }
+    if (!anyIncluded || (projection.get("_id") == null //$NON-NLS-1$
+        && !keys.containsField("_id"))) { //$NON-NLS-1$
+      return false;
+    }
+
+    if (query != null) {
+      for (String field : query.keySet()) {
+        if (field.startsWith("$") || !keys.containsField(field)) { //$NON-NLS-1$
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  protected static DBObject findPlanSource(Object explain) {
+    if (explain instanceof BasicDBList) {
+      for (Object o : (BasicDBList) explain) {
+        DBObject found = findPlanSource(o);
+        if (found != null) {
+          return found;
+        }
+      }
+    } else if (explain instanceof DBObject) {
+      DBObject obj = (DBObject) explain;
+      if (obj.get("queryPlanner") instanceof DBObject //$NON-NLS-1$
+          || obj.get("cursor") instanceof String) { //$NON-NLS-1$
+        return obj;
+      }
+
+      for (String key : obj.keySet()) {
+        DBObject found = findPlanSource(obj.get(key));
+        if (found != null) {
+          return found;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  protected static boolean hasStage(DBObject plan, String stage) {
+    if (stage.equals(plan.get("stage"))) { //$NON-NLS-1$
+      return true;
+    }
+
+    Object input = plan.get("inputStage"); //$NON-NLS-1$
+    if (input instanceof DBObject && hasStage((DBObject) input, stage)) {
+      return true;
+    }
+
+    Object inputs = plan.get("inputStages"); //$NON-NLS-1$
+    if (inputs instanceof BasicDBList) {
+      for (Object o : (BasicDBList) inputs) {
+        if (o instanceof DBObject && hasStage((DBObject) o, stage)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  protected static long number(DBObject obj, String key) {
+    Object v = obj.get(key);
+
+    return v instanceof Number ? ((Number) v).longValue() : -1;
+  }
+
+  /**
+   * @return a description of the winning plan
+   */
+  public String getWinningPlan() {
+    return m_winningPlan;
+  }
+
+  /**
+   * @return the number of index keys examined, or -1 if not reported
+   */
+  public long getKeysExamined() {
+    return m_keysExamined;
+  }
+
+  /**
+   * @return the number of documents examined, or -1 if not reported
+   */
+  public long getDocsExamined() {
+    return m_docsExamined;
+  }
+
+  /**
+   * @return true if the winning plan scans the whole collection
+   */
+  public boolean isCollScan() {
+    return m_collScan;
+  }
+
+  /**
+   * @return true if the query is answered from an index alone
+   */
+  public boolean isCovered() {
+    return m_covered;
+  }
+}
@@ -0,0 +1,243 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+
+/**
+ * Chooses the replica set member that a copy of the MongoDB Input step reads
+ * from, using the output of replSetGetStatus:
+ * <ul>
+ * <li>only healthy secondaries are eligible</li>
+ * <li>secondaries that lag the primary by more than a maximum are left out</li>
+ * <li>of the rest, those within a latency window of the lowest ping time are
+ * preferred</li>
+ * <li>step copies are spread over the preferred members by copy number</li>
+ * </ul>
+ * Ping times are those reported by the member that answers replSetGetStatus
+ * (normally the primary), which is a proxy for our own distance from each
+ * member. The choice is re-evaluated when a given interval has passed.
+ */
+public class MongoDbInputReadRouter {
+
+  /** Default interval between evaluations (milliseconds) */
+  public static final long DEFAULT_INTERVAL = 60000L;
+
+  /**
+   * Members whose ping time is within this many milliseconds of the lowest
+   * are treated as equally near (the same as the driver's default)
+   */
+  public static final long LATENCY_WINDOW = 15L;
+
+  protected static final int STATE_PRIMARY = 1;
+  protected static final int STATE_SECONDARY = 2;
+
+  /** A secondary that reads could be routed to */
+  public static class Member {
+    protected String m_name;
+    protected long m_lag;
+    protected long m_ping;
+
+    /**
+     * @return the host:port of the member
+     */
+    public String getName() {
+      return m_name;
+    }
+
+    /**
+     * @return how far (in milliseconds) the member lags the primary
+     */
+    public long getLag() {
+      return m_lag;
+    }
+
+    /**
+     * @return the ping time (in milliseconds) of the member
+     */
+    public long getPing() {
+      return m_ping;
+    }
+  }
+
+  /** Maximum lag in milliseconds (or -1 for no limit) */
+  protected long m_maxLag;
+
+  /** Milliseconds between evaluations */
+  protected long m_interval;
+
+  /** When the last evaluation was made (-1 for never) */
+  protected long m_lastEvaluated = -1;
+
+  /**
+   * @param maxLag the maximum lag, in milliseconds, of a member to read from
+   *          (or -1 for no limit)
+   * @param interval the number of milliseconds between evaluations
+   */
+  public MongoDbInputReadRouter(long maxLag, long interval) {
+    m_maxLag = maxLag;
+    m_interval = interval;
+  }
+
+  /**
+   * Returns true if the member to read from should be (re-)evaluated
+   *
+   * @return true if an evaluation is due
+   */
+  public boolean isDue() {
+    return m_lastEvaluated < 0
+        || System.currentTimeMillis() - m_lastEvaluated >= m_interval;
+  }
+
+  /**
+   * Choose the member for a step copy to read from
+   *
+   * @param mongo a client connected to the replica set
+   * @param copy the copy number of the step
+   * @return the member, or null if there are no eligible members
+   * @throws KettleException if the replica set status can't be read
+   */
+  public Member route(MongoClient mongo, int copy) throws KettleException {
+    m_lastEvaluated = System.currentTimeMillis();
+
+    CommandResult status = null;
+    try {
+      status = mongo.getDB("admin").command( //$NON-NLS-1$
+          new BasicDBObject("replSetGetStatus", 1)); //$NON-NLS-1$
+      status.throwOnError();
+    } catch (MongoException e) {
+      throw new KettleException(e);
+    }
+
+    return choose(eligibleMembers(status, m_maxLag), copy);
+  }
+
+  /**
+   * Get the members from a replica set status that can be read from, nearest
+   * first
+   *
+   * @param status the output of replSetGetStatus
+   * @param maxLag the maximum lag in milliseconds (or -1 for no limit)
+   * @return the eligible members
+   */
+  protected static List<Member> eligibleMembers(DBObject status, long maxLag) {
+    List<Member> eligible = new ArrayList<Member>();
+    Object members = status.get("members"); //$NON-NLS-1$
+    if (!(members instanceof BasicDBList)) {
+      return eligible;
+    }
+
+    // lag is measured against the primary, or the most recent member if there
+    // is no primary
+    long latest = -1;
+    long primary = -1;
+    for (Object o : (BasicDBList) members) {
+      DBObject m = (DBObject) o;
+      long optime = optime(m);
+      latest = Math.max(latest, optime);
+      if (state(m) == STATE_PRIMARY) {
+        primary = optime;
+      }
+    }
+    long reference = primary >= 0 ? primary : latest;
+
+    for (Object o : (BasicDBList) members) {
+      DBObject m = (DBObject) o;
+      if (state(m) != STATE_SECONDARY || !healthy(m) || optime(m) < 0) {
+        continue;
+      }
+
+      Member member = new Member();
+      member.m_name = m.get("name").toString(); //$NON-NLS-1$
+      member.m_lag = Math.max(0, reference - optime(m));
+      Object ping = m.get("pingMs"); //$NON-NLS-1$
+      member.m_ping = ping instanceof Number ? ((Number) ping).longValue() : 0;
+
+      if (maxLag < 0 || member.m_lag <= maxLag) {
+        eligible.add(member);
+      }
+    }
+
+    Collections.sort(eligible, new Comparator<Member>() {
+      @Override
+      public int compare(Member a, Member b) {
+        if (a.m_ping != b.m_ping) {
+          return a.m_ping < b.m_ping ? -1 : 1;
+        }
+
+        return a.m_name.compareTo(b.m_name);
+      }
+    });
+
+    return eligible;
+  }
+
+  /**
+   * Choose a member for a step copy from the eligible members. Copies are
+   * spread over the members within the latency window of the nearest
+   *
+   * @param eligible the eligible members, nearest first
+   * @param copy the copy number of the step
+   * @return the member, or null if there are no eligible members
+   */
+  protected static Member choose(List<Member> eligible, int copy) {
+    if (eligible.isEmpty()) {
+      return null;
+    }
+
+    int near = 0;
+    long nearest = eligible.get(0).m_ping;
+    while (near < eligible.size()
+        && eligible.get(near).m_ping - nearest <= LATENCY_WINDOW) {
+      near++;
+    }
+
+    return eligible.get(copy % near);
+  }
+
+  protected static int state(DBObject member) {
+    Object state = member.get("state"); //$NON-NLS-1$
+
+    return state instanceof Number ? ((Number) state).intValue() : -1;
+  }
+
+  protected static boolean healthy(DBObject member) {
+    Object health = member.get("health"); //$NON-NLS-1$
+
+    return health instanceof Number && ((Number) health).intValue() == 1;
+  }
+
+  protected static long optime(DBObject member) {
+    Object optime = member.get("optimeDate"); //$NON-NLS-1$
+
+    return optime instanceof Date ? ((Date) optime).getTime() : -1;
+  }
+}
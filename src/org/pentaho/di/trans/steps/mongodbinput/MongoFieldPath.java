@@ -0,0 +1,199 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.i18n.BaseMessages;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * A field path (e.g. $.person.addresses[0].street) compiled into a fixed
+ * sequence of steps, each of which is either the lookup of a named field in a
+ * record or of an index in an array. Variables in the path are resolved once,
+ * when the path is compiled, so that walking a document involves no string
+ * handling or allocation.
+ */
+public class MongoFieldPath {
+
+  /** The field name for each step - null if the step is an array index */
+  private final String[] m_keys;
+
+  /** The array index for each step that is not a named field */
+  private final int[] m_indexes;
+
+  private MongoFieldPath(String[] keys, int[] indexes) {
+    m_keys = keys;
+    m_indexes = indexes;
+  }
+
+  /**
+   * Compile a path
+   *
+   * @param path the path to compile. A leading "$" denotes the root of the
+   *          document
+   * @param space variables to resolve in the path (may be null). Values that
+   *          variables resolve to cannot contain "."s
+   * @return the compiled path
+   * @throws KettleException if an array index can't be parsed
+   */
+  public static MongoFieldPath compile(String path, VariableSpace space)
+      throws KettleException {
+    String[] parts = MongoDbInputData.cleansePath(path).split("\\."); //$NON-NLS-1$
+
+    List<String> keys = new ArrayList<String>();
+    List<Integer> indexes = new ArrayList<Integer>();
+    for (int i = 0; i < parts.length; i++) {
+      String part = parts[i];
+      if (i == 0 && part.startsWith("$")) { //$NON-NLS-1$
+        // root record indicator
+        part = part.substring(1);
+        if (part.length() == 0) {
+          continue;
+        }
+      }
+      if (space != null) {
+        part = space.environmentSubstitute(part);
+      }
+
+      int bracket = part.indexOf('[');
+      if (bracket < 0) {
+        keys.add(part);
+        indexes.add(-1);
+        continue;
+      }
+
+      int start = 0;
+      while (bracket >= 0) {
+        if (bracket > start) {
+          keys.add(part.substring(start, bracket));
+          indexes.add(-1);
+        }
+
+        int close = part.indexOf(']', bracket);
+        String index = close < 0 ? part.substring(bracket + 1) : part
+            .substring(bracket + 1, close);
+        try {
+          indexes.add(Integer.parseInt(index.trim()));
+        } catch (NumberFormatException e) {
+          throw new KettleException(BaseMessages.getString(
+              MongoDbInputMeta.PKG,
+              "MongoDbInput.ErrorMessage.UnableToParseArrayIndex", index)); //$NON-NLS-1$
+        }
+        keys.add(null);
+
+        start = close + 1;
+        bracket = close < 0 ? -1 : part.indexOf('[', start);
+      }
+      if (start > 0 && start < part.length()) {
+        keys.add(part.substring(start));
+        indexes.add(-1);
+      }
+    }
+
+    int[] indexArray = new int[indexes.size()];
+    for (int i = 0; i < indexArray.length; i++) {
+      indexArray[i] = indexes.get(i);
+    }
+
+    return new MongoFieldPath(keys.toArray(new String[keys.size()]),
+        indexArray);
+  }
+
+  /**
+   * @return the number of steps in this path
+   */
+  public int length() {
+    return m_keys.length;
+  }
+
+  /**
+   * @param step the step
+   * @return the field name for the step or null if the step is an array index
+   */
+  public String getKey(int step) {
+    return m_keys[step];
+  }
+
+  /**
+   * @param step the step
+   * @return the array index for the step (only meaningful if
+   *         {@link #getKey(int)} returns null)
+   */
+  public int getIndex(int step) {
+    return m_indexes[step];
+  }
+
+  /**
+   * Walk this path from a document or array
+   *
+   * @param root the document (BasicDBObject) or array (BasicDBList) to start
+   *          from
+   * @return the value at the end of the path or null if the path does not
+   *         exist in the structure
+   */
+  public Object get(Object root) {
+    Object current = root;
+    for (int i = 0; i < m_keys.length; i++) {
+      if (current == null) {
+        return null;
+      }
+
+      String key = m_keys[i];
+      if (key != null) {
+        if (!(current instanceof BasicDBObject)) {
+          // a primitive or an array where we expect a record - this document
+          // does not contain our field
+          return null;
+        }
+        current = ((BasicDBObject) current).get(key);
+      } else {
+        if (!(current instanceof BasicDBList)) {
+          return null;
+        }
+        BasicDBList list = (BasicDBList) current;
+        int index = m_indexes[i];
+        if (index < 0 || index >= list.size()) {
+          return null;
+        }
+        current = list.get(index);
+      }
+    }
+
+    return current;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder b = new StringBuilder("$"); //$NON-NLS-1$
+    for (int i = 0; i < m_keys.length; i++) {
+      if (m_keys[i] != null) {
+        b.append('.').append(m_keys[i]);
+      } else {
+        b.append('[').append(m_indexes[i]).append(']');
+      }
+    }
+
+    return b.toString();
+  }
+}
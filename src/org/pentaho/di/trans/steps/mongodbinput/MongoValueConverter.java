@@ -0,0 +1,206 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import org.bson.types.Binary;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Converts leaf values from Mongo documents to a particular Kettle type. A
+ * converter is chosen once per field when the step initializes. Each one
+ * checks first for the Java type that the Mongo driver normally decodes to
+ * for its Kettle type (e.g. Long for Integer) and passes such values straight
+ * through.
+ */
+public abstract class MongoValueConverter {
+
+  /**
+   * Convert a (non-null) Mongo value
+   *
+   * @param value the value to convert
+   * @return the value as an object of the appropriate Kettle type
+   * @throws KettleException if the value can't be converted
+   */
+  public abstract Object convert(Object value) throws KettleException;
+
+  /**
+   * Get a converter for a Kettle type
+   *
+   * @param kettleType the Kettle type (one of the ValueMetaInterface.TYPE_
+   *          constants)
+   * @return the converter
+   */
+  public static MongoValueConverter forType(int kettleType) {
+    switch (kettleType) {
+    case ValueMetaInterface.TYPE_BIGNUMBER:
+      return BIGNUMBER;
+    case ValueMetaInterface.TYPE_BINARY:
+      return BINARY;
+    case ValueMetaInterface.TYPE_BOOLEAN:
+      return BOOLEAN;
+    case ValueMetaInterface.TYPE_DATE:
+      return DATE;
+    case ValueMetaInterface.TYPE_INTEGER:
+      return INTEGER;
+    case ValueMetaInterface.TYPE_NUMBER:
+      return NUMBER;
+    case ValueMetaInterface.TYPE_STRING:
+      return new StringConverter();
+    default:
+      return NULL;
+    }
+  }
+
+  protected static final MongoValueConverter BIGNUMBER = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      if (value instanceof BigDecimal) {
+        return value;
+      }
+      if (value instanceof Long || value instanceof Integer) {
+        return BigDecimal.valueOf(((Number) value).longValue());
+      }
+      if (value instanceof Number) {
+        return BigDecimal.valueOf(((Number) value).doubleValue());
+      }
+      if (value instanceof Date) {
+        return BigDecimal.valueOf(((Date) value).getTime());
+      }
+
+      return new BigDecimal(value.toString());
+    }
+  };
+
+  protected static final MongoValueConverter BINARY = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      if (value instanceof byte[]) {
+        return value;
+      }
+      if (value instanceof Binary) {
+        return ((Binary) value).getData();
+      }
+
+      return value.toString().getBytes();
+    }
+  };
+
+  protected static final MongoValueConverter BOOLEAN = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      if (value instanceof Boolean) {
+        return value;
+      }
+      if (value instanceof Number) {
+        return Boolean.valueOf(((Number) value).longValue() != 0);
+      }
+      if (value instanceof Date) {
+        return Boolean.valueOf(((Date) value).getTime() != 0);
+      }
+
+      String s = value.toString();
+      return Boolean.valueOf(s.equalsIgnoreCase("Y") //$NON-NLS-1$
+          || s.equalsIgnoreCase("T") //$NON-NLS-1$
+          || s.equalsIgnoreCase("1")); //$NON-NLS-1$
+    }
+  };
+
+  protected static final MongoValueConverter DATE = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) throws KettleException {
+      if (value instanceof Date) {
+        return value;
+      }
+      if (value instanceof Number) {
+        return new Date(((Number) value).longValue());
+      }
+
+      throw new KettleException(BaseMessages.getString(MongoDbInputMeta.PKG,
+          "MongoDbInput.ErrorMessage.DateConversion", value.toString())); //$NON-NLS-1$
+    }
+  };
+
+  protected static final MongoValueConverter INTEGER = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      if (value instanceof Long) {
+        return value;
+      }
+      if (value instanceof Number) {
+        return Long.valueOf(((Number) value).longValue());
+      }
+      if (value instanceof Binary) {
+        return Long.valueOf(new String(((Binary) value).getData()));
+      }
+
+      return Long.valueOf(value.toString());
+    }
+  };
+
+  protected static final MongoValueConverter NUMBER = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      if (value instanceof Double) {
+        return value;
+      }
+      if (value instanceof Number) {
+        return Double.valueOf(((Number) value).doubleValue());
+      }
+      if (value instanceof Binary) {
+        return Double.valueOf(new String(((Binary) value).getData()));
+      }
+
+      return Double.valueOf(value.toString());
+    }
+  };
+
+  protected static final MongoValueConverter NULL = new MongoValueConverter() {
+    @Override
+    public Object convert(Object value) {
+      return null;
+    }
+  };
+
+  /**
+   * Strings pass straight through; anything else is formatted by a value meta
+   * of type String. Not shared, as the value meta is not thread safe
+   */
+  protected static class StringConverter extends MongoValueConverter {
+    protected final ValueMeta m_stringMeta = new ValueMeta();
+
+    public StringConverter() {
+      m_stringMeta.setType(ValueMetaInterface.TYPE_STRING);
+    }
+
+    @Override
+    public Object convert(Object value) throws KettleValueException {
+      if (value instanceof String) {
+        return value;
+      }
+
+      return m_stringMeta.getString(value);
+    }
+  }
+}
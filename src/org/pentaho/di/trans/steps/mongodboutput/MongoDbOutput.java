@@ -21,9 +21,19 @@ import java.net.UnknownHostException;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
@@ -37,10 +47,18 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.BsonSizeEstimator;
 import org.pentaho.mongo.MongoUtils;
 
+import com.mongodb.BulkUpdateRequestBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.LazyDBEncoder;
 import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteResult;
@@ -67,9 +85,99 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
   /** Holds a batch */
   protected List<DBObject> m_batch;
 
+  /**
+   * Holds the match queries for a batch of upserts/updates (m_batch holds the
+   * corresponding update objects)
+   */
+  protected List<DBObject> m_batchQueries;
+
+  /** Adapts the batch size when the batch insert size is "auto" (else null) */
+  protected MongoDbOutputBatchSizer m_batchSizer;
+
+  /**
+   * Encodes rows straight into BSON for inserts (null if the document
+   * structure needs the document plan, or for upserts)
+   */
+  protected MongoDbOutputBsonEncoder m_encoder;
+
+  /**
+   * Whether consecutive modifier updates to the same document are merged into
+   * one update
+   */
+  protected boolean m_coalesceUpdates;
+
+  /** The number of updates merged into the update before them */
+  protected long m_coalescedUpdates;
+
+  /** The target (estimated) size of a batch in bytes - 0 for no limit */
+  protected long m_batchSizeBytes;
+
+  /** Whether to estimate the size of each document added to a batch */
+  protected boolean m_estimateBatchBytes;
+
+  /** The estimated size of the current batch in bytes */
+  protected long m_batchBytes;
+
+  /** The number of batches written (or handed to the writer pool) so far */
+  protected int m_batchCount;
+
+  /**
+   * Decides whether documents exist already, when fields use the insert/update
+   * modifier policies (else null)
+   */
+  protected MongoDbOutputExistenceLookup m_existenceLookup;
+
+  /** Rows waiting for the existence of their documents to be looked up */
+  protected List<Object[]> m_lookupRows;
+
+  /** The match queries of the rows waiting for a lookup */
+  protected List<DBObject> m_lookupQueries;
+
+  /** Whether batched upserts/updates are applied in order */
+  protected boolean m_orderedBulkWrites = true;
+
+  /** Writes batches while the step thread builds the next one (may be null) */
+  protected ExecutorService m_writerPool;
+
+  /** How long dispose() waits for the writer threads to finish */
+  protected static final int WRITER_SHUTDOWN_SECONDS = 30;
+
+  /** Maximum number of batches to have in flight on the writer pool */
+  protected int m_batchesInFlight = 1;
+
+  /**
+   * The number of connections the client was leased for - the writer threads
+   * plus the step thread
+   */
+  protected int m_leasedConnections;
+
+  /** The batches in flight, oldest first */
+  protected final LinkedList<BatchWrite> m_inFlightBatches = new LinkedList<BatchWrite>();
+
+  /**
+   * The match queries of the upserts/updates in flight. A row that targets one
+   * of these waits for the batches in flight, so that concurrent batches can't
+   * reorder the updates to a document
+   */
+  protected Set<DBObject> m_inFlightMatchQueries;
+
   protected int m_writeRetries = MongoDbOutputMeta.RETRIES;
   protected int m_writeRetryDelay = MongoDbOutputMeta.RETRY_DELAY;
 
+  /** Authenticated context, created once at init and released on dispose */
+  protected AuthContext m_authContext;
+
+  /** Maximum number of incoming rows to process per call to processRow() */
+  protected int m_processingBatchSize = 1;
+
+  /** Reused for every call to processRow() */
+  private final PrivilegedExceptionAction<Boolean> m_processRowsAction = new PrivilegedExceptionAction<Boolean>() {
+    @Override
+    public Boolean run() throws KettleException {
+      return processRows();
+    }
+  };
+
   public MongoDbOutput(StepMeta stepMeta, StepDataInterface stepDataInterface,
       int copyNr, TransMeta transMeta, Trans trans) {
     super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
@@ -78,165 +186,8 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
   @Override
   public boolean processRow(StepMetaInterface smi, StepDataInterface sdi)
       throws KettleException {
-    AuthContext context = MongoUtils.createAuthContext(m_meta, this);
     try {
-      return /* allow autoboxing */ context.doAs(new PrivilegedExceptionAction<Boolean>() {
-
-        @Override
-        public Boolean run() throws KettleException {
-
-          Object[] row = getRow();
-      
-          if (row == null) {
-            // no more output
-      
-            // check any remaining buffered objects
-            if (m_batch != null && m_batch.size() > 0) {
-              doBatch();
-            }
-      
-            // INDEXING - http://www.mongodb.org/display/DOCS/Indexes
-            // Indexing is computationally expensive - it needs to be
-            // done after all data is inserted and done in the BACKGROUND.
-      
-            // UNIQUE indexes (prevent duplicates on the
-            // keys in the index) and SPARSE indexes (don't index docs that
-            // don't have the key field) - current limitation is that SPARSE
-            // indexes can only have a single field
-      
-            List<MongoDbOutputMeta.MongoIndex> indexes = m_meta.getMongoIndexes();
-            if (indexes != null && indexes.size() > 0) {
-              logBasic(BaseMessages.getString(PKG,
-                  "MongoDbOutput.Messages.ApplyingIndexOpps")); //$NON-NLS-1$
-              m_data.applyIndexes(indexes, log, m_meta.getTruncate());
-            }
-      
-            disconnect();
-            setOutputDone();
-            return false;
-          }
-      
-          if (first) {
-            first = false;
-      
-            m_batchInsertSize = 100;
-      
-            String batchInsert = environmentSubstitute(m_meta.getBatchInsertSize());
-            if (!Const.isEmpty(batchInsert)) {
-              m_batchInsertSize = Integer.parseInt(batchInsert);
-            }
-            m_batch = new ArrayList<DBObject>(m_batchInsertSize);
-      
-            // output the same as the input
-            m_data.setOutputRowMeta(getInputRowMeta());
-      
-            m_mongoTopLevelStructure = MongoDbOutputData.checkTopLevelConsistency(
-                m_meta.m_mongoFields, MongoDbOutput.this);
-            // scan for top-level JSON document insert and validate
-            // field specification in this case.
-            m_data.m_hasTopLevelJSONDocInsert = MongoDbOutputData
-                .scanForInsertTopLevelJSONDoc(m_meta.m_mongoFields);
-      
-            if (m_mongoTopLevelStructure == MongoDbOutputData.MongoTopLevel.INCONSISTENT) {
-              throw new KettleException(BaseMessages.getString(PKG,
-                  "MongoDbOutput.Messages.Error.InconsistentMongoTopLevel")); //$NON-NLS-1$
-            }
-      
-            // first check our incoming fields against our meta data for fields to
-            // insert
-            // this fields is came to step input
-            RowMetaInterface rmi = getInputRowMeta();
-            // this fields we are going to use for mongo output
-            List<MongoDbOutputMeta.MongoField> mongoFields = m_meta.getMongoFields();
-            checkInputFieldsMatch( rmi, mongoFields );
-
-            // copy and initialize mongo fields
-            m_data.setMongoFields(m_meta.getMongoFields());
-            m_data.init(MongoDbOutput.this);
-      
-            // check truncate
-            if (m_meta.getTruncate()) {
-              try {
-                logBasic(BaseMessages.getString(PKG,
-                    "MongoDbOutput.Messages.TruncatingCollection")); //$NON-NLS-1$
-                m_data.getCollection().drop();
-      
-                // re-establish the collection
-                String collection = environmentSubstitute(m_meta.getCollection());
-                m_data.createCollection(collection);
-                m_data.setCollection(m_data.getDB().getCollection(collection));
-              } catch (Exception m) {
-                disconnect();
-                throw new KettleException(m.getMessage(), m);
-              }
-            }
-          }
-      
-          if (!isStopped()) {
-      
-            if (m_meta.getUpsert()) {
-              DBObject updateQuery = m_data.getQueryObject(m_data.m_userFields,
-                  getInputRowMeta(), row, MongoDbOutput.this, m_mongoTopLevelStructure);
-      
-              if (log.isDebug()) {
-                logDebug(BaseMessages.getString(PKG,
-                    "MongoDbOutput.Messages.Debug.QueryForUpsert", updateQuery)); //$NON-NLS-1$
-              }
-      
-              if (updateQuery != null) {
-                // i.e. we have some non-null incoming query field values
-                DBObject insertUpdate = null;
-      
-                // get the record to update the match with
-                if (!m_meta.getModifierUpdate()) {
-                  // complete record replace or insert
-      
-                  insertUpdate = MongoDbOutputData.kettleRowToMongo(
-                      m_data.m_userFields, getInputRowMeta(), row, MongoDbOutput.this,
-                      m_mongoTopLevelStructure, m_data.m_hasTopLevelJSONDocInsert);
-                  if (log.isDebug()) {
-                    logDebug(BaseMessages.getString(PKG,
-                        "MongoDbOutput.Messages.Debug.InsertUpsertObject", //$NON-NLS-1$
-                        insertUpdate));
-                  }
-      
-                } else {
-      
-                  // specific field update or insert
-                  insertUpdate = m_data.getModifierUpdateObject(m_data.m_userFields,
-                      getInputRowMeta(), row, MongoDbOutput.this, m_mongoTopLevelStructure);
-                  if (log.isDebug()) {
-                    logDebug(BaseMessages.getString(PKG,
-                        "MongoDbOutput.Messages.Debug.ModifierUpdateObject", //$NON-NLS-1$
-                        insertUpdate));
-                  }
-                }
-      
-                if (insertUpdate != null) {
-                  commitUpsert(updateQuery, insertUpdate);
-                }
-              }
-            } else {
-              // straight insert
-      
-              DBObject mongoInsert = MongoDbOutputData.kettleRowToMongo(
-                  m_data.m_userFields, getInputRowMeta(), row, MongoDbOutput.this,
-                  m_mongoTopLevelStructure, m_data.m_hasTopLevelJSONDocInsert);
-      
-              if (mongoInsert != null) {
-                m_batch.add(mongoInsert);
-              }
-              if (m_batch.size() == m_batchInsertSize) {
-                logDetailed(BaseMessages.getString(PKG,
-                    "MongoDbOutput.Messages.CommitingABatch")); //$NON-NLS-1$
-                doBatch();
-              }
-            }
-          }
-      
-          return true;
-        }
-      });
+      return /* allow autoboxing */ m_authContext.doAs(m_processRowsAction);
     } catch (PrivilegedActionException e) {
       Throwable cause = e.getException();
       if (cause instanceof KettleException) {
@@ -247,15 +198,564 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
     }
   }
 
+  /**
+   * Process up to m_processingBatchSize incoming rows. Called from within the
+   * privileged block set up by processRow()
+   * 
+   * @return false if there are no more rows to process
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean processRows() throws KettleException {
+    int processed = 0;
+    do {
+      if (!processSingleRow()) {
+        return false;
+      }
+    } while (++processed < m_processingBatchSize && !isStopped());
+
+    return true;
+  }
+
+  /**
+   * Process the next incoming row
+   * 
+   * @return false if there are no more rows to process
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean processSingleRow() throws KettleException {
+    Object[] row = getRow();
+
+    if (row == null) {
+      // no more output
+
+      // check any remaining buffered objects
+      if (m_lookupRows != null && m_lookupRows.size() > 0) {
+        resolveLookups();
+      }
+      if (m_batch != null && m_batch.size() > 0) {
+        doBatch();
+      }
+      // and that every batch has been acknowledged
+      waitForBatchesInFlight();
+
+      if (m_coalescedUpdates > 0) {
+        logDetailed(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.CoalescedUpdates", m_coalescedUpdates)); //$NON-NLS-1$
+      }
+
+      // INDEXING - http://www.mongodb.org/display/DOCS/Indexes
+      // Indexing is computationally expensive - it needs to be
+      // done after all data is inserted and done in the BACKGROUND.
+
+      // UNIQUE indexes (prevent duplicates on the
+      // keys in the index) and SPARSE indexes (don't index docs that
+      // don't have the key field) - current limitation is that SPARSE
+      // indexes can only have a single field
+
+      List<MongoDbOutputMeta.MongoIndex> indexes = m_meta.getMongoIndexes();
+      if (indexes != null && indexes.size() > 0) {
+        logBasic(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.ApplyingIndexOpps")); //$NON-NLS-1$
+        m_data.applyIndexes(indexes, log, m_meta.getTruncate());
+      }
+
+      disconnect();
+      setOutputDone();
+      return false;
+    }
+
+    if (first) {
+      first = false;
+
+      m_batchInsertSize = 100;
+
+      String batchInsert = environmentSubstitute(m_meta.getBatchInsertSize());
+      if (MongoDbOutputMeta.AUTO_BATCH_SIZE.equalsIgnoreCase(batchInsert)) {
+        int min = Const.toInt(environmentSubstitute(m_meta
+            .getAutoBatchSizeMin()), MongoDbOutputMeta.AUTO_BATCH_SIZE_MIN);
+        int max = Const.toInt(environmentSubstitute(m_meta
+            .getAutoBatchSizeMax()), MongoDbOutputMeta.AUTO_BATCH_SIZE_MAX);
+        m_batchSizer = new MongoDbOutputBatchSizer(min, max, m_batchInsertSize);
+        m_batchInsertSize = m_batchSizer.getBatchSize();
+        logDetailed(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.AutoBatchSize", m_batchSizer.m_min, //$NON-NLS-1$
+            m_batchSizer.m_max, m_batchInsertSize));
+      } else if (!Const.isEmpty(batchInsert)) {
+        m_batchInsertSize = Integer.parseInt(batchInsert);
+      }
+      m_batch = new ArrayList<DBObject>(m_batchInsertSize);
+      m_batchQueries = new ArrayList<DBObject>(m_batchInsertSize);
+      m_coalesceUpdates = m_meta.getCoalesceUpdates() && m_meta.getUpsert()
+          && m_meta.getModifierUpdate();
+
+      m_batchSizeBytes = Math.max(0, Const.toLong(
+          environmentSubstitute(m_meta.getBatchSizeBytes()), 0));
+      if (m_batchSizeBytes > 0) {
+        int maxBatchBytes = m_data.getMaxBatchBytes();
+        if (m_batchSizeBytes > maxBatchBytes) {
+          logBasic(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.BatchSizeBytesLimited", //$NON-NLS-1$
+              m_batchSizeBytes, maxBatchBytes));
+          m_batchSizeBytes = maxBatchBytes;
+        }
+      }
+      // sizes are also needed for the per-batch statistics
+      m_estimateBatchBytes = m_batchSizeBytes > 0 || log.isDetailed();
+      m_orderedBulkWrites = m_meta.getOrderedBulkWrites();
+
+      // output the same as the input
+      m_data.setOutputRowMeta(getInputRowMeta());
+
+      m_mongoTopLevelStructure = MongoDbOutputData.checkTopLevelConsistency(
+          m_meta.m_mongoFields, this);
+      // scan for top-level JSON document insert and validate
+      // field specification in this case.
+      m_data.m_hasTopLevelJSONDocInsert = MongoDbOutputData
+          .scanForInsertTopLevelJSONDoc(m_meta.m_mongoFields);
+
+      if (m_mongoTopLevelStructure == MongoDbOutputData.MongoTopLevel.INCONSISTENT) {
+        throw new KettleException(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.Error.InconsistentMongoTopLevel")); //$NON-NLS-1$
+      }
+
+      // first check our incoming fields against our meta data for fields to
+      // insert
+      // this fields is came to step input
+      RowMetaInterface rmi = getInputRowMeta();
+      // this fields we are going to use for mongo output
+      List<MongoDbOutputMeta.MongoField> mongoFields = m_meta.getMongoFields();
+      checkInputFieldsMatch( rmi, mongoFields );
+
+      // copy and initialize mongo fields
+      m_data.setMongoFields(m_meta.getMongoFields());
+      m_data.init(this, rmi, m_mongoTopLevelStructure);
+
+      if (!m_meta.getUpsert()) {
+        m_encoder = MongoDbOutputBsonEncoder.create(m_data.m_documentPlan);
+        if (m_encoder != null) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.EncodingDirectlyToBSON")); //$NON-NLS-1$
+        }
+      }
+
+      if (m_meta.getUpsert() && m_meta.getModifierUpdate()
+          && MongoDbOutputData.requiresMatchCheck(m_data.m_userFields)) {
+        m_existenceLookup = new MongoDbOutputExistenceLookup(
+            MongoDbOutputExistenceLookup.MAX_SEEN);
+        m_lookupRows = new ArrayList<Object[]>(m_batchInsertSize);
+        m_lookupQueries = new ArrayList<DBObject>(m_batchInsertSize);
+      }
+      if (m_meta.getUpsert() && m_writerPool != null) {
+        m_inFlightMatchQueries = new HashSet<DBObject>();
+      }
+
+      // check truncate
+      if (m_meta.getTruncate()) {
+        try {
+          logBasic(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.TruncatingCollection")); //$NON-NLS-1$
+          m_data.getCollection().drop();
+
+          // re-establish the collection
+          String collection = environmentSubstitute(m_meta.getCollection());
+          m_data.createCollection(collection);
+          m_data.setCollection(m_data.getDB().getCollection(collection));
+        } catch (Exception m) {
+          disconnect();
+          throw new KettleException(m.getMessage(), m);
+        }
+      }
+    }
+
+    if (!isStopped()) {
+
+      if (m_meta.getUpsert()) {
+        DBObject updateQuery = m_data.getQueryObject(row);
+
+        if (log.isDebug()) {
+          logDebug(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.Debug.QueryForUpsert", updateQuery)); //$NON-NLS-1$
+        }
+
+        if (updateQuery != null) {
+          // i.e. we have some non-null incoming query field values
+
+          if (m_existenceLookup != null) {
+            // wait until the existence of the documents for a batch of rows
+            // can be looked up in one go
+            m_lookupRows.add(row);
+            m_lookupQueries.add(updateQuery);
+            if (m_lookupRows.size() >= m_batchInsertSize) {
+              resolveLookups();
+            }
+          } else {
+            upsertRow(row, updateQuery, null);
+          }
+        }
+      } else {
+        // straight insert
+
+        DBObject mongoInsert = m_encoder != null ? m_encoder.encode(row)
+            : m_data.kettleRowToMongo(row);
+
+        if (mongoInsert != null) {
+          addToBatch(null, mongoInsert);
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Build the upsert/update for a row and add it to the current batch
+   * 
+   * @param row the row
+   * @param updateQuery the query that matches the document(s) to update
+   * @param matchExists whether the document(s) to update exist already (only
+   *          needed when fields use the insert/update modifier policies; null
+   *          to look this up if needed)
+   * @return true if the row resulted in an upsert/update
+   * @throws KettleException if a problem occurs
+   */
+  protected boolean upsertRow(Object[] row, DBObject updateQuery,
+      Boolean matchExists) throws KettleException {
+    if (m_inFlightMatchQueries != null
+        && m_inFlightMatchQueries.contains(updateQuery)) {
+      // an earlier update to the same document is still in flight
+      waitForBatchesInFlight();
+    }
+    DBObject insertUpdate = null;
+
+    // get the record to update the match with
+    if (!m_meta.getModifierUpdate()) {
+      // complete record replace or insert
+
+      insertUpdate = m_data.kettleRowToMongo(row);
+      if (log.isDebug()) {
+        logDebug(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.Debug.InsertUpsertObject", //$NON-NLS-1$
+            insertUpdate));
+      }
+
+    } else {
+
+      // specific field update or insert
+      insertUpdate = m_data.getModifierUpdateObject(row, matchExists);
+      if (log.isDebug()) {
+        logDebug(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.Debug.ModifierUpdateObject", //$NON-NLS-1$
+            insertUpdate));
+      }
+    }
+
+    if (insertUpdate != null) {
+      commitUpsert(updateQuery, insertUpdate);
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Look up whether the documents for the rows waiting for a lookup exist
+   * (with a single query for all of those not seen before), and then upsert
+   * the rows in order
+   * 
+   * @throws KettleException if a problem occurs
+   */
+  protected void resolveLookups() throws KettleException {
+    Set<DBObject> existing = m_existenceLookup.findExisting(
+        m_data.getCollection(), m_lookupQueries);
+    if (log.isDebug()) {
+      logDebug(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.Debug.ExistenceLookup", //$NON-NLS-1$
+          m_lookupQueries.size(), existing.size()));
+    }
+
+    for (int i = 0; i < m_lookupRows.size(); i++) {
+      DBObject query = m_lookupQueries.get(i);
+      // a document written by an earlier row (perhaps in this same batch)
+      // exists by the time this row's update is applied
+      boolean exists = existing.contains(query)
+          || m_existenceLookup.isSeen(query);
+      if (upsertRow(m_lookupRows.get(i), query, exists)) {
+        m_existenceLookup.markSeen(query);
+      }
+    }
+
+    m_lookupRows.clear();
+    m_lookupQueries.clear();
+  }
+
+  /**
+   * Add an upsert/update to the current batch, writing the batch if it is full
+   * 
+   * @param updateQuery the query that matches the document(s) to update
+   * @param insertUpdate the replacement document or modifier update
+   * @throws KettleException if the batch is written and a problem occurs
+   */
   protected void commitUpsert(DBObject updateQuery, DBObject insertUpdate)
       throws KettleException {
 
+    if (m_coalesceUpdates && m_batch.size() > 0
+        && updateQuery.equals(m_batchQueries.get(m_batchQueries.size() - 1))
+        && MongoDbOutputUpdateCoalescer.merge(m_batch.get(m_batch.size() - 1),
+            insertUpdate)) {
+      // merged into the update before it (to the same document)
+      m_coalescedUpdates++;
+      if (m_estimateBatchBytes) {
+        m_batchBytes += BsonSizeEstimator.estimate(insertUpdate);
+        if (m_batchSizeBytes > 0 && m_batchBytes >= m_batchSizeBytes) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.CommitingABatch")); //$NON-NLS-1$
+          doBatch();
+        }
+      }
+      return;
+    }
+
+    addToBatch(updateQuery, insertUpdate);
+  }
+
+  /**
+   * Add a document to the current batch. The batch is written first if the
+   * document would take it over the byte limit, and afterwards if it has
+   * reached either the document or the byte limit
+   * 
+   * @param query the match query (null for an insert)
+   * @param doc the document to insert or the update to make
+   * @throws KettleException if a batch is written and a problem occurs
+   */
+  protected void addToBatch(DBObject query, DBObject doc)
+      throws KettleException {
+    int size = 0;
+    if (m_estimateBatchBytes) {
+      size = BsonSizeEstimator.estimate(doc);
+      if (query != null) {
+        size += BsonSizeEstimator.estimate(query);
+      }
+
+      if (m_batchSizeBytes > 0 && m_batch.size() > 0
+          && m_batchBytes + size > m_batchSizeBytes) {
+        logDetailed(BaseMessages.getString(PKG,
+            "MongoDbOutput.Messages.CommitingABatch")); //$NON-NLS-1$
+        doBatch();
+      }
+    }
+
+    if (query != null) {
+      m_batchQueries.add(query);
+    }
+    m_batch.add(doc);
+    m_batchBytes += size;
+
+    if (m_batch.size() >= m_batchInsertSize
+        || (m_batchSizeBytes > 0 && m_batchBytes >= m_batchSizeBytes)) {
+      logDetailed(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.CommitingABatch")); //$NON-NLS-1$
+      doBatch();
+    }
+  }
+
+  /**
+   * Write the current batch, either directly or by handing it to the writer
+   * pool. In the latter case this waits for the oldest batch in flight if the
+   * maximum number are already in flight
+   * 
+   * @throws KettleException if a problem occurs
+   */
+  protected void doBatch() throws KettleException {
+    List<DBObject> queries = m_batchQueries;
+    List<DBObject> docs = m_batch;
+    long bytes = m_batchBytes;
+    int batchNumber = ++m_batchCount;
+    if (m_batchSizer != null) {
+      m_batchInsertSize = m_batchSizer.getBatchSize();
+    }
+    m_batchQueries = new ArrayList<DBObject>(m_batchInsertSize);
+    m_batch = new ArrayList<DBObject>(m_batchInsertSize);
+    m_batchBytes = 0;
+
+    if (m_writerPool == null) {
+      writeBatch(batchNumber, queries, docs, bytes);
+      return;
+    }
+
+    while (m_inFlightBatches.size() >= m_batchesInFlight) {
+      waitForOldestBatch();
+    }
+
+    BatchWrite write = new BatchWrite(batchNumber, queries, docs, bytes);
+    write.m_future = m_writerPool.submit(write);
+    m_inFlightBatches.add(write);
+    if (m_inFlightMatchQueries != null) {
+      m_inFlightMatchQueries.addAll(queries);
+    }
+  }
+
+  /**
+   * Wait for the oldest batch in flight to be acknowledged
+   * 
+   * @throws KettleException if the batch could not be written
+   */
+  protected void waitForOldestBatch() throws KettleException {
+    BatchWrite write = m_inFlightBatches.removeFirst();
+    try {
+      write.m_future.get();
+    } catch (InterruptedException e) {
+      throw new KettleException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KettleException) {
+        throw (KettleException) e.getCause();
+      }
+      throw new KettleException(e.getCause());
+    }
+
+    if (m_inFlightMatchQueries != null) {
+      m_inFlightMatchQueries.removeAll(write.m_queries);
+    }
+  }
+
+  /**
+   * Wait for every batch in flight to be acknowledged
+   * 
+   * @throws KettleException if a batch could not be written
+   */
+  protected void waitForBatchesInFlight() throws KettleException {
+    while (!m_inFlightBatches.isEmpty()) {
+      waitForOldestBatch();
+    }
+  }
+
+  /**
+   * A batch handed to the writer pool
+   */
+  protected class BatchWrite implements Callable<Void>,
+      PrivilegedExceptionAction<Void> {
+    protected final int m_batchNumber;
+    protected final List<DBObject> m_queries;
+    protected final List<DBObject> m_docs;
+    protected final long m_bytes;
+    protected Future<Void> m_future;
+
+    /**
+     * @param batchNumber the number of the batch (for logging)
+     * @param queries the match queries (empty for inserts)
+     * @param docs the documents to insert or the updates to make
+     * @param bytes the estimated size of the batch in bytes
+     */
+    public BatchWrite(int batchNumber, List<DBObject> queries,
+        List<DBObject> docs, long bytes) {
+      m_batchNumber = batchNumber;
+      m_queries = queries;
+      m_docs = docs;
+      m_bytes = bytes;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      try {
+        return m_authContext.doAs(this);
+      } catch (PrivilegedActionException e) {
+        throw e.getException();
+      }
+    }
+
+    @Override
+    public Void run() throws KettleException {
+      writeBatch(m_batchNumber, m_queries, m_docs, m_bytes);
+      return null;
+    }
+  }
+
+  /**
+   * Write a batch, retrying if necessary. May be called from a writer thread
+   * 
+   * @param batchNumber the number of the batch (for logging)
+   * @param queries the match queries (for upserts/updates)
+   * @param docs the documents to insert or the updates to make
+   * @param bytes the estimated size of the batch in bytes (0 if not
+   *          estimated)
+   * @throws KettleException if the batch could not be written
+   */
+  protected void writeBatch(int batchNumber, List<DBObject> queries,
+      List<DBObject> docs, long bytes) throws KettleException {
+    long start = System.currentTimeMillis();
+    int retries = m_meta.getUpsert() ? doBulkUpdate(queries, docs)
+        : doInsert(docs);
+    long millis = System.currentTimeMillis() - start;
+
+    if (log.isDetailed()) {
+      logDetailed(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.BatchStatistics", batchNumber, //$NON-NLS-1$
+          docs.size(), bytes, docs.size() > 0 ? bytes / docs.size() : 0,
+          millis));
+    }
+
+    if (m_batchSizer != null) {
+      synchronized (m_batchSizer) {
+        int previous = m_batchSizer.getBatchSize();
+        MongoDbOutputBatchSizer.Change change = m_batchSizer.batchWritten(
+            docs.size(), millis, retries);
+        if (change != MongoDbOutputBatchSizer.Change.NONE) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.AutoBatchSize." + change.name(), //$NON-NLS-1$
+              previous, m_batchSizer.getBatchSize()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Update operators that give the same result when applied twice. A bulk
+   * write that fails part way through may have applied some of its updates
+   * already, so only batches made up of these (or of replacement documents)
+   * can safely be retried as a whole
+   */
+  protected static final Set<String> IDEMPOTENT_MODIFIERS = new HashSet<String>(
+      Arrays.asList("$set", "$unset", "$setOnInsert", "$min", "$max", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+          "$addToSet", "$pull", "$pullAll", "$rename", "$currentDate")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+  /**
+   * Find the operators in a batch of modifier updates that would give a
+   * different result if applied twice (e.g. $inc or $push)
+   * 
+   * @param docs the modifier updates
+   * @return the non-idempotent operators used (empty if the batch can be
+   *         retried safely)
+   */
+  protected static Set<String> nonIdempotentModifiers(List<DBObject> docs) {
+    Set<String> found = new TreeSet<String>();
+    for (DBObject doc : docs) {
+      for (String op : doc.keySet()) {
+        if (op.startsWith("$") && !IDEMPOTENT_MODIFIERS.contains(op)) { //$NON-NLS-1$
+          found.add(op);
+        }
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Write a batch of upserts/updates as a single bulk write. A batch that
+   * fails with anything other than write errors is retried, unless it contains
+   * modifier updates that are not idempotent: part of the batch may have been
+   * applied before the failure, and retrying would apply those updates twice
+   * 
+   * @param queries the match queries
+   * @param docs the corresponding replacement documents or modifier updates
+   * @return the number of times the batch was retried
+   * @throws KettleException if a problem occurs
+   */
+  protected int doBulkUpdate(List<DBObject> queries, List<DBObject> docs)
+      throws KettleException {
     int retrys = 0;
     MongoException lastEx = null;
+    boolean interrupted = false;
 
     while (retrys <= m_writeRetries && !isStopped()) {
-      WriteResult result = null;
-      CommandResult cmd = null;
       try {
         // TODO It seems that doing an update() via a secondary node does not
         // generate any sort of exception or error result! (at least via
@@ -266,52 +766,150 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
         // some logic to check whether or not the connection configuration
         // contains the primary in the replica set and give feedback if it
         // doesnt
-        result = m_data.getCollection().update(updateQuery, insertUpdate, true,
-            m_meta.getMulti());
+        BulkWriteResult result = createBulkUpdate(m_data.getCollection(),
+            queries, docs).execute();
 
-        cmd = result.getLastError();
-        if (cmd != null && !cmd.ok()) {
-          String message = cmd.getErrorMessage();
-          logError(BaseMessages.getString(PKG,
-              "MongoDbOutput.Messages.Error.MongoReported", message)); //$NON-NLS-1$
-
-          cmd.throwOnError();
+        if (result.isAcknowledged()) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.WroteBulkUpdate", docs.size(), //$NON-NLS-1$
+              result.getMatchedCount(), result.getUpserts().size()));
         }
+        lastEx = null;
+        break;
       } catch (MongoException me) {
+        if (me instanceof BulkWriteException
+            && ((BulkWriteException) me).getWriteErrors().size() > 0) {
+          // errors with individual documents won't go away by retrying
+          List<BulkWriteError> errors = ((BulkWriteException) me)
+              .getWriteErrors();
+          reportBulkWriteErrors(queries, docs, errors);
+          throw new KettleException(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.Error.BulkWriteFailed", errors.size(), //$NON-NLS-1$
+              docs.size()), me);
+        }
+
         lastEx = me;
         retrys++;
         if (retrys <= m_writeRetries) {
           logError(BaseMessages.getString(PKG,
               "MongoDbOutput.Messages.Error.ErrorWritingToMongo", //$NON-NLS-1$
               me.toString()));
+
+          Set<String> unsafe = new TreeSet<String>();
+          if (m_meta.getModifierUpdate()) {
+            unsafe = nonIdempotentModifiers(docs);
+          }
+          if (!unsafe.isEmpty()) {
+            String message = BaseMessages.getString(PKG,
+                "MongoDbOutput.Messages.Error.BatchNotRetried", docs.size(), //$NON-NLS-1$
+                unsafe.toString());
+            logError(message);
+            throw new KettleException(message, me);
+          }
+
           logBasic(BaseMessages.getString(PKG,
               "MongoDbOutput.Messages.Message.Retry", m_writeRetryDelay)); //$NON-NLS-1$
           try {
             Thread.sleep(m_writeRetryDelay * 1000);
           } catch (InterruptedException e) {
+            // the writer pool is shutting down - give up on the batch
+            Thread.currentThread().interrupt();
+            interrupted = true;
+            break;
           }
         }
       }
+    }
 
-      if (cmd != null && cmd.ok()) {
-        break;
+    if ((retrys > m_writeRetries || isStopped() || interrupted)
+        && lastEx != null) {
+      throw new KettleException(lastEx);
+    }
+
+    return retrys;
+  }
+
+  /**
+   * Build a bulk write operation for a batch of upserts/updates
+   * 
+   * @param collection the collection to write to
+   * @param queries the match queries
+   * @param docs the corresponding replacement documents or modifier updates
+   * @return the bulk write operation, ready to execute
+   */
+  protected BulkWriteOperation createBulkUpdate(DBCollection collection,
+      List<DBObject> queries, List<DBObject> docs) {
+    BulkWriteOperation bulk = m_orderedBulkWrites ? collection
+        .initializeOrderedBulkOperation() : collection
+        .initializeUnorderedBulkOperation();
+
+    for (int i = 0; i < docs.size(); i++) {
+      BulkUpdateRequestBuilder upsert = bulk.find(queries.get(i)).upsert();
+      DBObject insertUpdate = docs.get(i);
+
+      if (!m_meta.getModifierUpdate()) {
+        // a replacement document can only ever replace a single match
+        upsert.replaceOne(insertUpdate);
+      } else if (m_meta.getMulti()) {
+        upsert.update(insertUpdate);
+      } else {
+        upsert.updateOne(insertUpdate);
       }
     }
 
-    if ((retrys > m_writeRetries || isStopped()) && lastEx != null) {
-      throw new KettleException(lastEx);
+    return bulk;
+  }
+
+  /**
+   * Log the errors reported for individual documents in a bulk write against
+   * the documents that caused them
+   * 
+   * @param queries the match queries of the batch
+   * @param docs the updates of the batch
+   * @param errors the errors reported by the server
+   */
+  protected void reportBulkWriteErrors(List<DBObject> queries,
+      List<DBObject> docs, List<BulkWriteError> errors) {
+    int lastIndex = -1;
+    for (BulkWriteError error : errors) {
+      int index = error.getIndex();
+      logError(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.Error.DocumentWriteError", index, //$NON-NLS-1$
+          error.getCode(), error.getMessage(), queries.get(index),
+          docs.get(index)));
+      lastIndex = Math.max(lastIndex, index);
+    }
+
+    if (m_orderedBulkWrites && lastIndex >= 0 && lastIndex < docs.size() - 1) {
+      logError(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.Error.RemainderOfBatchNotWritten", //$NON-NLS-1$
+          docs.size() - lastIndex - 1));
     }
   }
 
-  protected void doBatch() throws KettleException {
+  /**
+   * Insert a batch of documents
+   * 
+   * @param docs the documents to insert
+   * @return the number of times the batch was retried
+   * @throws KettleException if a problem occurs
+   */
+  protected int doInsert(List<DBObject> docs) throws KettleException {
     int retrys = 0;
     MongoException lastEx = null;
+    boolean interrupted = false;
 
     while (retrys <= m_writeRetries && !isStopped()) {
       WriteResult result = null;
       CommandResult cmd = null;
       try {
-        result = m_data.getCollection().insert(m_batch);
+        if (m_encoder != null) {
+          // documents are already encoded
+          result = m_data.getCollection().insert(docs,
+              m_data.getCollection().getWriteConcern(), new LazyDBEncoder());
+        } else {
+          result = m_data.getCollection().insert(docs);
+        }
         cmd = result.getLastError();
 
         if (cmd != null && !cmd.ok()) {
@@ -333,6 +931,10 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
           try {
             Thread.sleep(m_writeRetryDelay * 1000);
           } catch (InterruptedException e) {
+            // the writer pool is shutting down - give up on the batch
+            Thread.currentThread().interrupt();
+            interrupted = true;
+            break;
           }
         }
         // throw new KettleException(me.getMessage(), me);
@@ -351,11 +953,12 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
       }
     }
 
-    if ((retrys > m_writeRetries || isStopped()) && lastEx != null) {
+    if ((retrys > m_writeRetries || isStopped() || interrupted)
+        && lastEx != null) {
       throw new KettleException(lastEx);
     }
 
-    m_batch.clear();
+    return retrys;
   }
 
   @Override
@@ -406,7 +1009,39 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
           logBasic(authInfo);
         }
 
-        m_data.setConnection(MongoDbOutputData.connect(m_meta, this, log));
+        m_processingBatchSize = Math.max(1, Const.toInt(
+            environmentSubstitute(m_meta.getProcessingBatchSize()), 1));
+        if (m_processingBatchSize > 1) {
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.ProcessingBatchSize", //$NON-NLS-1$
+              m_processingBatchSize));
+        }
+
+        m_batchesInFlight = Const.toInt(
+            environmentSubstitute(m_meta.getBatchesInFlight()), 1);
+        if (m_batchesInFlight > 1) {
+          final String poolName = getStepname() + " writer (" + getCopy() //$NON-NLS-1$
+              + ") "; //$NON-NLS-1$
+          m_writerPool = Executors.newFixedThreadPool(m_batchesInFlight,
+              new ThreadFactory() {
+                private int m_count;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, poolName + (m_count++));
+                  t.setDaemon(true);
+                  return t;
+                }
+              });
+          logDetailed(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.BatchesInFlight", m_batchesInFlight)); //$NON-NLS-1$
+        }
+
+        m_authContext = MongoUtils.createAuthContext(m_meta, this);
+
+        m_leasedConnections = Math.max(1, m_batchesInFlight) + 1;
+        m_data.setConnection(MongoDbOutputData.lease(m_meta, this,
+            m_leasedConnections, log));
         m_data.setDB(m_data.getConnection().getDB(db));
 
         if (Const.isEmpty(collection)) {
@@ -434,14 +1069,34 @@ public class MongoDbOutput extends BaseStep implements StepInterface {
 
   protected void disconnect() {
     if (m_data != null) {
-      MongoDbOutputData.disconnect(m_data.getConnection());
+      // the client may be shared with other steps, so give back our lease
+      // (once) rather than closing it
+      MongoDbOutputData.release(m_data.getConnection(), m_leasedConnections);
+      m_data.setConnection(null);
     }
   }
 
   @Override
   public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
-    if (m_data != null) {
-      MongoDbOutputData.disconnect(m_data.getConnection());
+    if (m_writerPool != null) {
+      m_writerPool.shutdownNow();
+      try {
+        // don't hand the client back while a writer is still using it
+        if (!m_writerPool.awaitTermination(WRITER_SHUTDOWN_SECONDS,
+            TimeUnit.SECONDS)) {
+          logError(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.Error.WritersStillRunning", //$NON-NLS-1$
+              WRITER_SHUTDOWN_SECONDS));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      m_writerPool = null;
+    }
+    disconnect();
+    if (m_authContext != null) {
+      m_authContext.release();
+      m_authContext = null;
     }
 
     super.dispose(smi, sdi);
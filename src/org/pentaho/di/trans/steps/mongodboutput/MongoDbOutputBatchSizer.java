@@ -0,0 +1,122 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+/**
+ * Chooses the batch size for the output step from the observed write latency
+ * (additive increase, multiplicative decrease). The batch grows by a fixed
+ * step while the time taken per document keeps improving on the running
+ * average, and is cut by a constant factor when a batch needed retries or its
+ * time per document spikes well above the average. The size always stays
+ * within the given bounds.
+ * <p>
+ * Batches may be written on writer threads, so all methods are synchronized.
+ */
+public class MongoDbOutputBatchSizer {
+
+  /** Why the batch size changed */
+  public static enum Change {
+    NONE, GROW, RETRIES, LATENCY_SPIKE
+  }
+
+  /** Factor to cut the batch size by */
+  protected static final double DECREASE_FACTOR = 0.5;
+
+  /** Time per document, relative to the average, that counts as a spike */
+  protected static final double SPIKE_FACTOR = 2.0;
+
+  /** Weight given to the latest batch in the running average */
+  protected static final double SMOOTHING = 0.3;
+
+  protected final int m_min;
+  protected final int m_max;
+  protected final int m_step;
+
+  protected int m_size;
+
+  /** Running average of the time per document (ms), < 0 until known */
+  protected double m_avgMillisPerDoc = -1;
+
+  /**
+   * Constructor
+   * 
+   * @param min the smallest batch size
+   * @param max the largest batch size
+   * @param initial the batch size to start with
+   */
+  public MongoDbOutputBatchSizer(int min, int max, int initial) {
+    m_min = Math.max(1, min);
+    m_max = Math.max(m_min, max);
+    m_step = m_min;
+    m_size = Math.min(m_max, Math.max(m_min, initial));
+  }
+
+  /**
+   * @return the batch size to use for the next batch
+   */
+  public synchronized int getBatchSize() {
+    return m_size;
+  }
+
+  /**
+   * Adjust the batch size after a batch has been acknowledged
+   * 
+   * @param docs the number of documents in the batch
+   * @param millis the time taken to write the batch
+   * @param retries the number of times the batch had to be retried
+   * @return the reason the batch size changed (NONE if it didn't)
+   */
+  public synchronized Change batchWritten(int docs, long millis, int retries) {
+    if (docs <= 0) {
+      return Change.NONE;
+    }
+
+    if (retries > 0) {
+      // treat the latency of a batch that had to be retried as unrepresentative
+      return decrease() ? Change.RETRIES : Change.NONE;
+    }
+
+    double millisPerDoc = (double) millis / docs;
+    double avg = m_avgMillisPerDoc;
+    m_avgMillisPerDoc = avg < 0 ? millisPerDoc : SMOOTHING * millisPerDoc
+        + (1 - SMOOTHING) * avg;
+
+    if (avg < 0) {
+      return Change.NONE;
+    }
+
+    if (millisPerDoc > SPIKE_FACTOR * avg) {
+      return decrease() ? Change.LATENCY_SPIKE : Change.NONE;
+    }
+
+    if (millisPerDoc <= avg && m_size < m_max) {
+      m_size = Math.min(m_max, m_size + m_step);
+      return Change.GROW;
+    }
+
+    return Change.NONE;
+  }
+
+  protected boolean decrease() {
+    int size = Math.max(m_min, (int) (m_size * DECREASE_FACTOR));
+    boolean changed = size != m_size;
+    m_size = size;
+
+    return changed;
+  }
+}
@@ -0,0 +1,393 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
+
+/**
+ * Encodes Kettle rows straight into BSON for insertion, without building a
+ * BasicDBObject tree first. The structure of the document (nested records
+ * and the order of their fields) is fixed by the document plan, so only the
+ * values need to be written for each row. Documents are encoded into a buffer
+ * that is reused from row to row, and returned as LazyDBObjects that the
+ * driver can send as-is (using a LazyDBEncoder).
+ * <p>
+ * Only documents whose paths consist of records are supported - paths with
+ * arrays, fields holding JSON and top-level JSON documents are left to the
+ * document plan. Documents produced are identical to those the driver would
+ * encode from the document plan's output, including the _id that is generated
+ * for documents that don't have one.
+ * <p>
+ * An encoder is not safe for use by more than one thread.
+ */
+public class MongoDbOutputBsonEncoder {
+
+  private static Class<?> PKG = MongoDbOutputMeta.class;
+
+  // BSON element types
+  protected static final byte DOUBLE = 0x01;
+  protected static final byte STRING = 0x02;
+  protected static final byte DOCUMENT = 0x03;
+  protected static final byte BINARY = 0x05;
+  protected static final byte OBJECT_ID = 0x07;
+  protected static final byte BOOLEAN = 0x08;
+  protected static final byte DATE = 0x09;
+  protected static final byte INT64 = 0x12;
+
+  protected static final String ID = "_id"; //$NON-NLS-1$
+
+  /**
+   * A record, or a leaf value from a field of the row
+   */
+  protected static class Node {
+    protected final String m_name;
+
+    /** The name as a BSON cstring */
+    protected final byte[] m_nameBytes;
+
+    /** The field for a leaf (null for a record) */
+    protected final MongoDbOutputDocumentPlan.Field m_field;
+
+    protected final List<Node> m_children = new ArrayList<Node>();
+
+    protected Node(String name, MongoDbOutputDocumentPlan.Field field) {
+      m_name = name;
+      m_nameBytes = cString(name);
+      m_field = field;
+    }
+
+    protected Node child(String name) {
+      for (Node c : m_children) {
+        if (c.m_name.equals(name)) {
+          return c;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  /** The top level record */
+  protected final Node m_root;
+
+  /** Shared by the documents produced */
+  protected final LazyDBCallback m_callback = new LazyDBCallback(null);
+
+  /** Reused for each document */
+  protected byte[] m_buffer = new byte[1024];
+  protected int m_pos;
+
+  /** Whether the current document has any values from the row */
+  protected boolean m_hasValues;
+
+  protected MongoDbOutputBsonEncoder(Node root) {
+    m_root = root;
+  }
+
+  /**
+   * Create an encoder for the documents built by a document plan
+   *
+   * @param plan the plan
+   * @return an encoder, or null if the plan's documents can't be encoded
+   *         directly
+   */
+  public static MongoDbOutputBsonEncoder create(MongoDbOutputDocumentPlan plan) {
+    if (plan.m_topLevelJSONDoc != null
+        || plan.m_topLevelStructure != MongoDbOutputData.MongoTopLevel.RECORD) {
+      return null;
+    }
+
+    Node root = new Node("", null); //$NON-NLS-1$
+    for (MongoDbOutputDocumentPlan.Field field : plan.m_fields) {
+      if (field.m_JSON) {
+        return null;
+      }
+
+      MongoDbOutputDocumentPlan.Step[] steps = field.m_steps;
+      int records = field.m_useIncomingFieldNameAsMongoFieldName ? steps.length
+          : steps.length - 1;
+      if (records < 0) {
+        // no field name - let the document plan report this
+        return null;
+      }
+
+      Node current = root;
+      for (int i = 0; i < records; i++) {
+        if (steps[i].m_kind != MongoDbOutputDocumentPlan.RECORD_FIELD) {
+          return null;
+        }
+        current = addChild(current, steps[i].m_key, null);
+        if (current == null) {
+          return null;
+        }
+      }
+
+      MongoDbOutputDocumentPlan.Step last = records < steps.length ? steps[records]
+          : null;
+      if (last != null && last.m_kind != MongoDbOutputDocumentPlan.RECORD_FIELD) {
+        return null;
+      }
+      String name = last != null ? last.m_key : field.m_incomingFieldName;
+      if (addChild(current, name, field) == null) {
+        return null;
+      }
+    }
+
+    return new MongoDbOutputBsonEncoder(root);
+  }
+
+  /**
+   * Add a record or leaf to a record
+   *
+   * @return the (possibly existing) child or null if it conflicts with an
+   *         existing child (or can't be inserted by the driver)
+   */
+  protected static Node addChild(Node parent, String name,
+      MongoDbOutputDocumentPlan.Field field) {
+    if (name.length() == 0 || name.startsWith("$")) { //$NON-NLS-1$
+      return null;
+    }
+
+    Node child = parent.child(name);
+    if (child != null) {
+      // records can be shared between paths, but values can't be replaced
+      return field == null && child.m_field == null ? child : null;
+    }
+
+    child = new Node(name, field);
+    parent.m_children.add(child);
+
+    return child;
+  }
+
+  /**
+   * Encode the document for a row
+   *
+   * @param row the row
+   * @return the document, or null if all the values in the row are null
+   * @throws KettleException if a problem occurs
+   */
+  public DBObject encode(Object[] row) throws KettleException {
+    m_pos = 0;
+    m_hasValues = false;
+
+    int start = m_pos;
+    writeInt(0);
+
+    // _id goes first, generating one if there isn't one in the row
+    Node id = m_root.child(ID);
+    if (id == null || !writeNode(id, row)) {
+      writeObjectId(ObjectId.get());
+    }
+    for (Node child : m_root.m_children) {
+      if (child != id) {
+        writeNode(child, row);
+      }
+    }
+    endDocument(start);
+
+    if (!m_hasValues) {
+      return null; // nothing has been set!
+    }
+
+    byte[] bytes = new byte[m_pos];
+    System.arraycopy(m_buffer, 0, bytes, 0, m_pos);
+
+    return new LazyDBObject(bytes, m_callback);
+  }
+
+  /**
+   * Write a record or leaf value
+   *
+   * @return true if anything was written (leaf values that are null are not)
+   */
+  protected boolean writeNode(Node node, Object[] row) throws KettleException {
+    if (node.m_field == null) {
+      writeByte(DOCUMENT);
+      writeBytes(node.m_nameBytes);
+      int start = m_pos;
+      writeInt(0);
+      for (Node child : node.m_children) {
+        writeNode(child, row);
+      }
+      endDocument(start);
+
+      return true;
+    }
+
+    MongoDbOutputDocumentPlan.Field field = node.m_field;
+    ValueMetaInterface vm = field.m_valueMeta;
+    Object value = row[field.m_rowIndex];
+    if (vm.isNull(value)) {
+      return false; // don't insert nulls!
+    }
+
+    if (vm.isString()) {
+      writeByte(STRING);
+      writeBytes(node.m_nameBytes);
+      writeString(vm.getString(value));
+    } else if (vm.isBoolean()) {
+      writeByte(BOOLEAN);
+      writeBytes(node.m_nameBytes);
+      writeByte(vm.getBoolean(value).booleanValue() ? (byte) 1 : (byte) 0);
+    } else if (vm.isInteger()) {
+      writeByte(INT64);
+      writeBytes(node.m_nameBytes);
+      writeLong(vm.getInteger(value).longValue());
+    } else if (vm.isDate()) {
+      Date val = vm.getDate(value);
+      writeByte(DATE);
+      writeBytes(node.m_nameBytes);
+      writeLong(val.getTime());
+    } else if (vm.isNumber()) {
+      writeByte(DOUBLE);
+      writeBytes(node.m_nameBytes);
+      writeLong(Double.doubleToRawLongBits(vm.getNumber(value).doubleValue()));
+    } else if (vm.isBigNumber()) {
+      // use string value - user can use Kettle to convert back
+      writeByte(STRING);
+      writeBytes(node.m_nameBytes);
+      writeString(vm.getString(value));
+    } else if (vm.isBinary()) {
+      byte[] val = vm.getBinary(value);
+      writeByte(BINARY);
+      writeBytes(node.m_nameBytes);
+      writeInt(val.length);
+      writeByte((byte) 0);
+      writeBytes(val);
+    } else if (vm.isSerializableType()) {
+      throw new KettleValueException(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.Error.CantStoreKettleSerializableVals")); //$NON-NLS-1$
+    } else {
+      return false;
+    }
+
+    m_hasValues = true;
+    return true;
+  }
+
+  protected void writeObjectId(ObjectId id) {
+    writeByte(OBJECT_ID);
+    writeBytes(cString(ID));
+    writeBytes(id.toByteArray());
+  }
+
+  protected void endDocument(int start) {
+    writeByte((byte) 0);
+    putInt(start, m_pos - start);
+  }
+
+  protected void ensure(int n) {
+    if (m_pos + n > m_buffer.length) {
+      byte[] b = new byte[Math.max(m_buffer.length * 2, m_pos + n)];
+      System.arraycopy(m_buffer, 0, b, 0, m_pos);
+      m_buffer = b;
+    }
+  }
+
+  protected void writeByte(byte b) {
+    ensure(1);
+    m_buffer[m_pos++] = b;
+  }
+
+  protected void writeBytes(byte[] b) {
+    ensure(b.length);
+    System.arraycopy(b, 0, m_buffer, m_pos, b.length);
+    m_pos += b.length;
+  }
+
+  protected void writeInt(int v) {
+    ensure(4);
+    putInt(m_pos, v);
+    m_pos += 4;
+  }
+
+  protected void putInt(int pos, int v) {
+    m_buffer[pos] = (byte) (v & 0xFF);
+    m_buffer[pos + 1] = (byte) ((v >> 8) & 0xFF);
+    m_buffer[pos + 2] = (byte) ((v >> 16) & 0xFF);
+    m_buffer[pos + 3] = (byte) ((v >> 24) & 0xFF);
+  }
+
+  protected void writeLong(long v) {
+    ensure(8);
+    for (int i = 0; i < 8; i++) {
+      m_buffer[m_pos++] = (byte) ((v >> (8 * i)) & 0xFF);
+    }
+  }
+
+  /**
+   * Write a BSON string (length prefix, UTF-8 bytes and terminating null)
+   * directly into the buffer
+   */
+  protected void writeString(String s) {
+    int start = m_pos;
+    writeInt(0);
+
+    // at most 4 bytes per code point (and at least 2 chars for 4 bytes)
+    ensure(s.length() * 3 + 1);
+    for (int i = 0; i < s.length();) {
+      int c = Character.codePointAt(s, i);
+      if (c < 0x80) {
+        m_buffer[m_pos++] = (byte) c;
+      } else if (c < 0x800) {
+        m_buffer[m_pos++] = (byte) (0xC0 | (c >> 6));
+        m_buffer[m_pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c < 0x10000) {
+        m_buffer[m_pos++] = (byte) (0xE0 | (c >> 12));
+        m_buffer[m_pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        m_buffer[m_pos++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        m_buffer[m_pos++] = (byte) (0xF0 | (c >> 18));
+        m_buffer[m_pos++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+        m_buffer[m_pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        m_buffer[m_pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+      i += Character.charCount(c);
+    }
+    m_buffer[m_pos++] = 0;
+
+    // length excludes the length prefix itself
+    putInt(start, m_pos - start - 4);
+  }
+
+  protected static byte[] cString(String s) {
+    try {
+      byte[] b = s.getBytes("UTF-8"); //$NON-NLS-1$
+      byte[] c = new byte[b.length + 1];
+      System.arraycopy(b, 0, c, 0, b.length);
+
+      return c;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
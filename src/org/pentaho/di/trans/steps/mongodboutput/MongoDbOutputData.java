@@ -19,10 +19,7 @@ package org.pentaho.di.trans.steps.mongodboutput;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
@@ -37,10 +34,11 @@ import org.pentaho.di.core.variables.Variables;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.mongo.MongoClientRegistry;
 import org.pentaho.mongo.MongoUtils;
 
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -66,6 +64,9 @@ public class MongoDbOutputData extends BaseStepData implements
   public static final String REPL_SET_SETTINGS = "settings"; //$NON-NLS-1$
   public static final String REPL_SET_LAST_ERROR_MODES = "getLastErrorModes"; //$NON-NLS-1$
 
+  /** Largest message accepted by servers that don't report their own limit */
+  public static final int DEFAULT_MAX_MESSAGE_SIZE = 48000000;
+
   /** Enum for the type of the top level object of the document structure */
   public static enum MongoTopLevel {
     RECORD, ARRAY, INCONSISTENT;
@@ -85,24 +86,6 @@ public class MongoDbOutputData extends BaseStepData implements
 
   protected List<MongoDbOutputMeta.MongoField> m_userFields;
 
-  /**
-   * Map for grouping together $set operations that involve setting complex
-   * array-based objects. Key = dot path to array name; value = DBObject
-   * specifying array to set to
-   */
-  protected Map<String, List<MongoDbOutputMeta.MongoField>> m_setComplexArrays = new HashMap<String, List<MongoDbOutputMeta.MongoField>>();
-
-  /**
-   * Map for grouping together $push operations that involve complex objects.
-   * Use [] to indicate the start of the complex object to push. Key - dot path
-   * to the array name to push to; value - DBObject specifying the complex
-   * object to push
-   */
-  protected Map<String, List<MongoDbOutputMeta.MongoField>> m_pushComplexStructures = new HashMap<String, List<MongoDbOutputMeta.MongoField>>();
-
-  /** all other modifier updates that involve primitive leaf fields */
-  protected Map<String, Object[]> m_primitiveLeafModifiers = new LinkedHashMap<String, Object[]>();
-
   /**
    * True if the list of paths specifies an incoming Kettle field that contains
    * a JSON doc that is intended to be inserted as is (i.e. not added to a field
@@ -110,6 +93,12 @@ public class MongoDbOutputData extends BaseStepData implements
    */
   protected boolean m_hasTopLevelJSONDocInsert = false;
 
+  /** The field paths compiled for the incoming row format */
+  protected MongoDbOutputDocumentPlan m_documentPlan;
+
+  /** The match query and modifier update compiled for the incoming row format */
+  protected MongoDbOutputUpdatePlan m_updatePlan;
+
   public static boolean scanForInsertTopLevelJSONDoc(
       List<MongoDbOutputMeta.MongoField> fieldDefs) throws KettleException {
 
@@ -175,6 +164,27 @@ public class MongoDbOutputData extends BaseStepData implements
     }
   }
 
+  /**
+   * Initialize field paths and compile them into plans for building documents,
+   * match queries and modifier updates from rows of the given format
+   * 
+   * @param vars variables to use
+   * @param inputMeta the incoming row format
+   * @param topLevelStructure the top level structure of the Mongo document
+   * @throws KettleException if a problem occurs
+   */
+  public void init(VariableSpace vars, RowMetaInterface inputMeta,
+      MongoTopLevel topLevelStructure) throws KettleException {
+    init(vars);
+
+    if (m_userFields != null) {
+      m_documentPlan = MongoDbOutputDocumentPlan.compile(m_userFields,
+          inputMeta, vars, topLevelStructure, m_hasTopLevelJSONDocInsert);
+      m_updatePlan = MongoDbOutputUpdatePlan.compile(m_userFields, inputMeta,
+          vars);
+    }
+  }
+
   /**
    * Create a connection to a Mongo server based on parameters supplied in the
    * step meta data
@@ -192,6 +202,36 @@ public class MongoDbOutputData extends BaseStepData implements
         MongoUtils.createCredentials(meta, vars), log);
   }
 
+  /**
+   * Lease a (possibly shared) connection to a Mongo server based on parameters
+   * supplied in the step meta data. The lease must be given back via
+   * {@link #release(MongoClient, int)}
+   * 
+   * @param meta the step meta data
+   * @param vars variables to use
+   * @param connections the number of connections the step may use
+   *          concurrently
+   * @param log for logging
+   * @return a configured MongoClient object
+   * @throws KettleException if a problem occurs
+   */
+  public static MongoClient lease(MongoDbOutputMeta meta, VariableSpace vars,
+      int connections, LogChannelInterface log) throws KettleException {
+
+    return MongoUtils.leaseConnection(meta, vars,
+        MongoUtils.createCredentials(meta, vars), connections, log);
+  }
+
+  /**
+   * Give back a leased connection
+   * 
+   * @param mongo the connection (may be null)
+   * @param connections the number of connections it was leased for
+   */
+  public static void release(MongoClient mongo, int connections) {
+    MongoClientRegistry.release(mongo, connections);
+  }
+
   /**
    * Connect to mongo and retrieve any custom getLastError modes defined in the
    * local.system.replset collection
@@ -287,6 +327,33 @@ public class MongoDbOutputData extends BaseStepData implements
     return m_collection;
   }
 
+  /**
+   * Get the largest batch (in bytes) that the server will accept in a single
+   * write. Servers that support write commands (wire version 2 and above)
+   * limit a write command to their maximum document size; older servers limit
+   * the size of an insert message
+   * 
+   * @return the maximum size of a batch in bytes
+   */
+  public int getMaxBatchBytes() {
+    try {
+      CommandResult isMaster = m_mongo.getDB("admin").command("isMaster"); //$NON-NLS-1$ //$NON-NLS-2$
+      Object wireVersion = isMaster.get("maxWireVersion"); //$NON-NLS-1$
+      if (wireVersion instanceof Number
+          && ((Number) wireVersion).intValue() >= 2) {
+        return m_mongo.getMaxBsonObjectSize();
+      }
+      Object maxMessage = isMaster.get("maxMessageSizeBytes"); //$NON-NLS-1$
+      if (maxMessage instanceof Number) {
+        return ((Number) maxMessage).intValue();
+      }
+    } catch (MongoException e) {
+      // fall back to the default
+    }
+
+    return DEFAULT_MAX_MESSAGE_SIZE;
+  }
+
   /**
    * Set the output row format
    * 
@@ -407,238 +474,92 @@ public class MongoDbOutputData extends BaseStepData implements
       List<MongoDbOutputMeta.MongoField> fieldDefs, RowMetaInterface inputMeta,
       Object[] row, VariableSpace vars, MongoTopLevel topLevelStructure)
       throws KettleException {
+    return getModifierUpdateObject(fieldDefs, inputMeta, row, vars,
+        topLevelStructure, null);
+  }
 
-    boolean haveUpdateFields = false;
-    boolean hasNonNullUpdateValues = false;
+  /**
+   * Get an object that encapsulates the fields and modifier operations to use
+   * for a modifier update.
+   * 
+   * @param fieldDefs the list of document field definitions
+   * @param inputMeta the input row format
+   * @param row the current incoming row
+   * @param vars environment variables
+   * @param topLevelStructure the top level structure of the document
+   * @param matchExists whether the document to update exists already. Only
+   *          used when fields apply their modifier only on insert or only on
+   *          update - null to query the collection for this row
+   * @return a DBObject encapsulating the update to make
+   * @throws KettleException if a problem occurs
+   */
+  protected DBObject getModifierUpdateObject(
+      List<MongoDbOutputMeta.MongoField> fieldDefs, RowMetaInterface inputMeta,
+      Object[] row, VariableSpace vars, MongoTopLevel topLevelStructure,
+      Boolean matchExists) throws KettleException {
 
-    // main update object, keyed by $ operator
-    BasicDBObject updateObject = new BasicDBObject();
+    return getModifierUpdateObject(
+        MongoDbOutputUpdatePlan.compile(fieldDefs, inputMeta, vars), row,
+        matchExists);
+  }
+
+  /**
+   * Get an object that encapsulates the fields and modifier operations to use
+   * for a modifier update, using the plan compiled by
+   * {@link #init(VariableSpace, RowMetaInterface, MongoTopLevel)}
+   * 
+   * @param row the current incoming row
+   * @param matchExists whether the document to update exists already. Only
+   *          used when fields apply their modifier only on insert or only on
+   *          update - null to query the collection for this row
+   * @return a DBObject encapsulating the update to make
+   * @throws KettleException if a problem occurs
+   */
+  public DBObject getModifierUpdateObject(Object[] row, Boolean matchExists)
+      throws KettleException {
+    return getModifierUpdateObject(m_updatePlan, row, matchExists);
+  }
 
-    m_setComplexArrays.clear();
-    m_primitiveLeafModifiers.clear();
-    m_pushComplexStructures.clear();
+  protected DBObject getModifierUpdateObject(MongoDbOutputUpdatePlan plan,
+      Object[] row, Boolean matchExists) throws KettleException {
 
     // do we need to determine whether this will be an insert or an update?
-    boolean checkForMatch = false;
-    for (MongoDbOutputMeta.MongoField field : fieldDefs) {
-      if (!field.m_updateMatchField
-          && (field.m_modifierOperationApplyPolicy.equals("Insert") || field.m_modifierOperationApplyPolicy //$NON-NLS-1$
-              .equals("Update"))) { //$NON-NLS-1$
-        checkForMatch = true;
-        break;
-      }
-    }
-
     boolean isUpdate = false;
-    if (checkForMatch) {
-      DBObject query = getQueryObject(fieldDefs, inputMeta, row, vars,
-          topLevelStructure);
+    if (plan.requiresMatchCheck() && matchExists != null) {
+      isUpdate = matchExists.booleanValue();
+    } else if (plan.requiresMatchCheck()) {
+      DBObject query = plan.getQuery(row);
 
       DBCursor cursor = getCollection().find(query).limit(1);
-      if (cursor.hasNext()) {
-        isUpdate = true;
-      }
-    }
-
-    for (MongoDbOutputMeta.MongoField field : fieldDefs) {
-      // skip query match fields
-      if (field.m_updateMatchField) {
-        continue;
-      }
-
-      String modifierUpdateOpp = vars
-          .environmentSubstitute(field.m_modifierUpdateOperation);
-
-      if (!Const.isEmpty(modifierUpdateOpp) && !modifierUpdateOpp.equals("N/A")) { //$NON-NLS-1$
-        if (checkForMatch) {
-          if (isUpdate && field.m_modifierOperationApplyPolicy.equals("Insert")) { //$NON-NLS-1$
-            continue; // don't apply this opp
-          }
-
-          if (!isUpdate
-              && field.m_modifierOperationApplyPolicy.equals("Update")) { //$NON-NLS-1$
-            continue; // don't apply this opp
-          }
-        }
-
-        haveUpdateFields = true;
-
-        String incomingFieldName = vars
-            .environmentSubstitute(field.m_incomingFieldName);
-        int index = inputMeta.indexOfValue(incomingFieldName);
-        ValueMetaInterface vm = inputMeta.getValueMeta(index);
-
-        if (!vm.isNull(row[index])) {
-          hasNonNullUpdateValues = true;
-
-          // modifier update objects have fields using "dot" notation to reach
-          // into embedded documents
-          String mongoPath = (field.m_mongoDocPath != null) ? field.m_mongoDocPath
-              : ""; //$NON-NLS-1$
-          String path = vars.environmentSubstitute(mongoPath);
-
-          if (path.endsWith("]") && modifierUpdateOpp.equals("$push") //$NON-NLS-1$ //$NON-NLS-2$
-              && !field.m_useIncomingFieldNameAsMongoFieldName) {
-
-            // strip off the brackets as push appends to the end of the named
-            // array
-            path = path.substring(0, path.indexOf('['));
-          }
-
-          boolean hasPath = !Const.isEmpty(path);
-          path += ((field.m_useIncomingFieldNameAsMongoFieldName) ? (hasPath ? "." //$NON-NLS-1$
-              + incomingFieldName
-              : incomingFieldName)
-              : ""); //$NON-NLS-1$
-
-          // check for array creation
-          if (modifierUpdateOpp.equals("$set") && path.indexOf('[') > 0) { //$NON-NLS-1$
-            String arrayPath = path.substring(0, path.indexOf('['));
-            String arraySpec = path.substring(path.indexOf('['), path.length());
-            MongoDbOutputMeta.MongoField a = new MongoDbOutputMeta.MongoField();
-            a.m_incomingFieldName = field.m_incomingFieldName;
-            a.m_mongoDocPath = arraySpec;
-            // incoming field name has already been appended (if necessary)
-            a.m_useIncomingFieldNameAsMongoFieldName = false;
-            a.m_JSON = field.m_JSON;
-            a.init(vars);
-            List<MongoDbOutputMeta.MongoField> fds = m_setComplexArrays
-                .get(arrayPath);
-            if (fds == null) {
-              fds = new ArrayList<MongoDbOutputMeta.MongoField>();
-              m_setComplexArrays.put(arrayPath, fds);
-            }
-            fds.add(a);
-          } else if (modifierUpdateOpp.equals("$push") && path.indexOf('[') > 0) { //$NON-NLS-1$
-            // we ignore any index that might have been specified as $push
-            // always appends to the end of the array.
-            String arrayPath = path.substring(0, path.indexOf('['));
-            String structureToPush = path.substring(path.indexOf(']') + 1,
-                path.length());
-
-            // check to see if we're pushing a record at this point in the path
-            // or another array...
-            if (structureToPush.charAt(0) == '.') {
-              // skip the dot
-              structureToPush = structureToPush.substring(1,
-                  structureToPush.length());
-            }
-
-            MongoDbOutputMeta.MongoField a = new MongoDbOutputMeta.MongoField();
-            a.m_incomingFieldName = field.m_incomingFieldName;
-            a.m_mongoDocPath = structureToPush;
-            // incoming field name has already been appended (if necessary)
-            a.m_useIncomingFieldNameAsMongoFieldName = false;
-            a.m_JSON = field.m_JSON;
-            a.init(vars);
-            List<MongoDbOutputMeta.MongoField> fds = m_pushComplexStructures
-                .get(arrayPath);
-            if (fds == null) {
-              fds = new ArrayList<MongoDbOutputMeta.MongoField>();
-              m_pushComplexStructures.put(arrayPath, fds);
-            }
-            fds.add(a);
-          } else {
-            Object[] params = new Object[3];
-            params[0] = modifierUpdateOpp;
-            params[1] = new Integer(index);
-            params[2] = new Boolean(field.m_JSON);
-            m_primitiveLeafModifiers.put(path, params);
-          }
-        }
+      try {
+        isUpdate = cursor.hasNext();
+      } finally {
+        cursor.close();
       }
     }
 
-    // do the array $sets
-    for (String path : m_setComplexArrays.keySet()) {
-      List<MongoDbOutputMeta.MongoField> fds = m_setComplexArrays.get(path);
-      DBObject valueToSet = kettleRowToMongo(fds, inputMeta, row, vars,
-          MongoTopLevel.ARRAY, false);
-
-      DBObject fieldsToUpdateWithValues = null;
-
-      if (updateObject.get("$set") != null) { //$NON-NLS-1$
-        // if we have some field(s) already associated with this type of
-        // modifier
-        // operation then just add to them
-        fieldsToUpdateWithValues = (DBObject) updateObject.get("$set"); //$NON-NLS-1$
-      } else {
-        // otherwise create a new DBObject for this modifier operation
-        fieldsToUpdateWithValues = new BasicDBObject();
-      }
-
-      fieldsToUpdateWithValues.put(path, valueToSet);
-      updateObject.put("$set", fieldsToUpdateWithValues); //$NON-NLS-1$
-    }
-
-    // now do the $push complex
-    for (String path : m_pushComplexStructures.keySet()) {
-      List<MongoDbOutputMeta.MongoField> fds = m_pushComplexStructures
-          .get(path);
-
-      // check our top-level structure
-      MongoTopLevel topLevel = MongoTopLevel.RECORD;
-      if (fds.get(0).m_mongoDocPath.charAt(0) == '[') {
-        topLevel = MongoTopLevel.RECORD;
-      }
-
-      DBObject valueToSet = kettleRowToMongo(fds, inputMeta, row, vars,
-          topLevel, false);
-
-      DBObject fieldsToUpdateWithValues = null;
-
-      if (updateObject.get("$push") != null) { //$NON-NLS-1$
-        // if we have some field(s) already associated with this type of
-        // modifier
-        // operation then just add to them
-        fieldsToUpdateWithValues = (DBObject) updateObject.get("$push"); //$NON-NLS-1$
-      } else {
-        // otherwise create a new DBObject for this modifier operation
-        fieldsToUpdateWithValues = new BasicDBObject();
-      }
-
-      fieldsToUpdateWithValues.put(path, valueToSet);
-      updateObject.put("$push", fieldsToUpdateWithValues); //$NON-NLS-1$
-    }
+    return plan.getModifierUpdate(row, isUpdate);
+  }
 
-    // do the modifiers that involve primitive field values
-    for (String path : m_primitiveLeafModifiers.keySet()) {
-      Object[] params = m_primitiveLeafModifiers.get(path);
-      String modifierUpdateOpp = params[0].toString();
-      int index = ((Integer) params[1]).intValue();
-      boolean isJSON = ((Boolean) params[2]).booleanValue();
-      ValueMetaInterface vm = inputMeta.getValueMeta(index);
-
-      DBObject fieldsToUpdateWithValues = null;
-
-      if (updateObject.get(modifierUpdateOpp) != null) {
-        // if we have some field(s) already associated with this type of
-        // modifier
-        // operation then just add to them
-        fieldsToUpdateWithValues = (DBObject) updateObject
-            .get(modifierUpdateOpp);
-      } else {
-        // otherwise create a new DBObject for this modifier operation
-        fieldsToUpdateWithValues = new BasicDBObject();
+  /**
+   * Determine whether a modifier update needs to know if the document to
+   * update exists already, i.e. whether any field applies its modifier only on
+   * insert or only on update
+   * 
+   * @param fieldDefs the list of document field definitions
+   * @return true if a match check is needed for each row
+   */
+  protected static boolean requiresMatchCheck(
+      List<MongoDbOutputMeta.MongoField> fieldDefs) {
+    for (MongoDbOutputMeta.MongoField field : fieldDefs) {
+      if (!field.m_updateMatchField
+          && (field.m_modifierOperationApplyPolicy.equals("Insert") || field.m_modifierOperationApplyPolicy //$NON-NLS-1$
+              .equals("Update"))) { //$NON-NLS-1$
+        return true;
       }
-      setMongoValueFromKettleValue(fieldsToUpdateWithValues, path, vm,
-          row[index], isJSON);
-
-      updateObject.put(modifierUpdateOpp, fieldsToUpdateWithValues);
-    }
-
-    if (!haveUpdateFields) {
-      throw new KettleException(
-          BaseMessages
-              .getString(PKG,
-                  "MongoDbOutput.Messages.Error.NoFieldsToUpdateSpecifiedForModifierOpp")); //$NON-NLS-1$
-    }
-
-    if (!hasNonNullUpdateValues) {
-      return null;
     }
 
-    return updateObject;
+    return false;
   }
 
   /**
@@ -656,76 +577,23 @@ public class MongoDbOutputData extends BaseStepData implements
       List<MongoDbOutputMeta.MongoField> fieldDefs, RowMetaInterface inputMeta,
       Object[] row, VariableSpace vars, MongoTopLevel topLevelStructure)
       throws KettleException {
-    BasicDBObject query = new BasicDBObject();
-
-    boolean haveMatchFields = false;
-    boolean hasNonNullMatchValues = false;
-
-    for (MongoDbOutputMeta.MongoField field : fieldDefs) {
-      if (field.m_updateMatchField) {
-        haveMatchFields = true;
-        String incomingFieldName = vars
-            .environmentSubstitute(field.m_incomingFieldName);
-        int index = inputMeta.indexOfValue(incomingFieldName);
-        ValueMetaInterface vm = inputMeta.getValueMeta(index);
-
-        // ignore null fields
-        if (vm.isNull(row[index])) {
-          continue;
-        }
-
-        if (field.m_JSON && Const.isEmpty(field.m_mongoDocPath)
-            && !field.m_useIncomingFieldNameAsMongoFieldName) {
-          // We have a query based on a complete incoming JSON doc -
-          // i.e. no field processing necessary
-
-          if (vm.isString()) {
-            String val = vm.getString(row[index]);
-            query = (BasicDBObject) JSON.parse(val);
-          } else {
-            throw new KettleException(
-                BaseMessages
-                    .getString(PKG,
-                        "MongoDbOutput.Messages.MatchFieldJSONButIncomingValueNotString"));
-          }
-          break;
-        }
-
-        hasNonNullMatchValues = true;
-
-        // query objects have fields using "dot" notation to reach into embedded
-        // documents
-        String mongoPath = (field.m_mongoDocPath != null) ? field.m_mongoDocPath
-            : ""; //$NON-NLS-1$
-        String path = vars.environmentSubstitute(mongoPath);
-        boolean hasPath = !Const.isEmpty(path);
-        path += ((field.m_useIncomingFieldNameAsMongoFieldName) ? (hasPath ? "." //$NON-NLS-1$
-            + incomingFieldName
-            : incomingFieldName)
-            : ""); //$NON-NLS-1$
-
-        // post process arrays to fit the dot notation (if not already done
-        // by the user)
-        if (path.indexOf('[') > 0) {
-          path = path.replace("[", ".").replace("]", ""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-        }
-
-        setMongoValueFromKettleValue(query, path, vm, row[index], field.m_JSON);
-      }
-    }
-
-    if (!haveMatchFields) {
-      throw new KettleException(BaseMessages.getString(PKG,
-          "MongoDbOutput.Messages.Error.NoFieldsToUpdateSpecifiedForMatch")); //$NON-NLS-1$
-    }
 
-    if (!hasNonNullMatchValues) {
-      // indicates that we don't have anything to match with with respect to
-      // this row
-      return null;
-    }
+    return MongoDbOutputUpdatePlan.compile(fieldDefs, inputMeta, vars)
+        .getQuery(row);
+  }
 
-    return query;
+  /**
+   * Get an object that encapsulates the query to make for an update/upsert
+   * operation, using the plan compiled by
+   * {@link #init(VariableSpace, RowMetaInterface, MongoTopLevel)}
+   * 
+   * @param row the current incoming row
+   * @return a DBObject encapsulating the query, or null if all the match values
+   *         in the row are null
+   * @throws KettleException if something goes wrong
+   */
+  public DBObject getQueryObject(Object[] row) throws KettleException {
+    return m_updatePlan.getQuery(row);
   }
 
   /**
@@ -748,152 +616,25 @@ public class MongoDbOutputData extends BaseStepData implements
       Object[] row, VariableSpace vars, MongoTopLevel topLevelStructure,
       boolean hasTopLevelJSONDocInsert) throws KettleException {
 
-    // the easy case
-    if (hasTopLevelJSONDocInsert) {
-      for (MongoDbOutputMeta.MongoField f : fieldDefs) {
-        if (f.m_JSON && Const.isEmpty(f.m_mongoDocPath)
-            && !f.m_useIncomingFieldNameAsMongoFieldName) {
-          String incomingFieldName = vars
-              .environmentSubstitute(f.m_incomingFieldName);
-          int index = inputMeta.indexOfValue(incomingFieldName);
-          ValueMetaInterface vm = inputMeta.getValueMeta(index);
-          if (!vm.isNull(row[index])) {
-            String jsonDoc = vm.getString(row[index]);
-            DBObject docToInsert = (DBObject) JSON.parse(jsonDoc);
-            return docToInsert;
-          } else {
-            return null;
-          }
-        }
-      }
-    }
-
-    DBObject root = null;
-    if (topLevelStructure == MongoTopLevel.RECORD) {
-      root = new BasicDBObject();
-    } else if (topLevelStructure == MongoTopLevel.ARRAY) {
-      root = new BasicDBList();
-    }
-
-    if (vars == null) {
-      vars = new Variables();
-    }
-
-    boolean haveNonNullFields = false;
-    for (MongoDbOutputMeta.MongoField field : fieldDefs) {
-      if (!field.m_updateMatchField) {
-        DBObject current = root;
-
-        field.reset();
-        List<String> pathParts = field.m_tempPathList;
-        String incomingFieldName = vars
-            .environmentSubstitute(field.m_incomingFieldName);
-        int index = inputMeta.indexOfValue(incomingFieldName);
-        ValueMetaInterface vm = inputMeta.getValueMeta(index);
-
-        Object lookup = getPathElementName(pathParts, current,
-            field.m_useIncomingFieldNameAsMongoFieldName);
-        do {
-          // array?
-          if (lookup != null && lookup instanceof Integer) {
-            BasicDBList temp = (BasicDBList) current;
-            if (temp.get(lookup.toString()) == null) {
-              if (pathParts.size() == 0
-                  && !field.m_useIncomingFieldNameAsMongoFieldName) {
-                // leaf - primitive element of the array (unless kettle field
-                // value is JSON)
-                boolean res = setMongoValueFromKettleValue(temp, lookup, vm,
-                    row[index], field.m_JSON);
-                haveNonNullFields = (haveNonNullFields || res);
-              } else {
-                // must be a record here (since multi-dimensional array creation
-                // is handled
-                // in getPathElementName())
-
-                // need to create this record/object
-                BasicDBObject newRec = new BasicDBObject();
-                temp.put(lookup.toString(), newRec);
-                current = newRec;
-
-                // end of the path?
-                if (pathParts.size() == 0) {
-                  if (field.m_useIncomingFieldNameAsMongoFieldName) {
-                    boolean res = setMongoValueFromKettleValue(current,
-                        incomingFieldName, vm, row[index], field.m_JSON);
-                    haveNonNullFields = (haveNonNullFields || res);
-                  } else {
-                    throw new KettleException(
-                        BaseMessages
-                            .getString(PKG,
-                                "MongoDbOutput.Messages.Error.NoFieldNameSpecifiedForPath")); //$NON-NLS-1$
-                  }
-                }
-              }
-            } else {
-              // existing element of the array
-              current = (DBObject) temp.get(lookup.toString());
-
-              // no more path parts so we must be setting a field in an array
-              // element
-              // that is a record
-              if (pathParts == null || pathParts.size() == 0) {
-                if (current instanceof BasicDBObject) {
-                  if (field.m_useIncomingFieldNameAsMongoFieldName) {
-                    boolean res = setMongoValueFromKettleValue(current,
-                        incomingFieldName, vm, row[index], field.m_JSON);
-                    haveNonNullFields = (haveNonNullFields || res);
-                  } else {
-                    throw new KettleException(
-                        BaseMessages
-                            .getString(PKG,
-                                "MongoDbOutput.Messages.Error.NoFieldNameSpecifiedForPath")); //$NON-NLS-1$
-                  }
-                }
-              }
-            }
-          } else {
-            // record/object
-            if (lookup == null && pathParts.size() == 0) {
-              if (field.m_useIncomingFieldNameAsMongoFieldName) {
-                boolean res = setMongoValueFromKettleValue(current,
-                    incomingFieldName, vm, row[index], field.m_JSON);
-                haveNonNullFields = (haveNonNullFields || res);
-              } else {
-                throw new KettleException(BaseMessages.getString(PKG,
-                    "MongoDbOutput.Messages.Error.NoFieldNameSpecifiedForPath")); //$NON-NLS-1$
-              }
-            } else {
-              if (pathParts.size() == 0) {
-                if (!field.m_useIncomingFieldNameAsMongoFieldName) {
-                  boolean res = setMongoValueFromKettleValue(current,
-                      lookup.toString(), vm, row[index], field.m_JSON);
-                  haveNonNullFields = (haveNonNullFields || res);
-                } else {
-                  current = (DBObject) current.get(lookup.toString());
-                  boolean res = setMongoValueFromKettleValue(current,
-                      incomingFieldName, vm, row[index], field.m_JSON);
-                  haveNonNullFields = (haveNonNullFields || res);
-                }
-              } else {
-                current = (DBObject) current.get(lookup.toString());
-              }
-            }
-          }
-
-          lookup = getPathElementName(pathParts, current,
-              field.m_useIncomingFieldNameAsMongoFieldName);
-        } while (lookup != null);
-      }
-    }
-
-    if (!haveNonNullFields) {
-      return null; // nothing has been set!
-    }
+    return MongoDbOutputDocumentPlan.compile(fieldDefs, inputMeta, vars,
+        topLevelStructure, hasTopLevelJSONDocInsert).toMongo(row);
+  }
 
-    return root;
+  /**
+   * Converts a kettle row to a Mongo Object for inserting/updating, using the
+   * document plan compiled by {@link #init(VariableSpace, RowMetaInterface,
+   * MongoTopLevel)}
+   * 
+   * @param row the current incoming row
+   * @return a DBObject encapsulating the document to insert/upsert or null if
+   *         there are no non-null incoming fields
+   * @throws KettleException if a problem occurs
+   */
+  public DBObject kettleRowToMongo(Object[] row) throws KettleException {
+    return m_documentPlan.toMongo(row);
   }
 
-  private static boolean setMongoValueFromKettleValue(DBObject mongoObject,
+  protected static boolean setMongoValueFromKettleValue(DBObject mongoObject,
       Object lookup, ValueMetaInterface kettleType, Object kettleValue,
       boolean kettleValueIsJSON) throws KettleValueException {
     if (kettleType.isNull(kettleValue)) {
@@ -949,72 +690,6 @@ public class MongoDbOutputData extends BaseStepData implements
     return false;
   }
 
-  private static Object getPathElementName(List<String> pathParts,
-      DBObject current, boolean incomingAsFieldName) throws KettleException {
-
-    if (pathParts == null || pathParts.size() == 0) {
-      return null;
-    }
-
-    String part = pathParts.get(0);
-    if (part.startsWith("[")) { //$NON-NLS-1$
-      String index = part.substring(1, part.indexOf(']')).trim();
-      part = part.substring(part.indexOf(']') + 1).trim();
-      if (part.length() > 0) {
-        // any remaining characters must indicate a multi-dimensional array
-        pathParts.set(0, part);
-
-        // does this next array exist?
-        if (current.get(index) == null) {
-          BasicDBList newArr = new BasicDBList();
-          current.put(index, newArr);
-        }
-      } else {
-        // remove - we're finished with this part
-        pathParts.remove(0);
-      }
-      return new Integer(index);
-    } else if (part.endsWith("]")) { //$NON-NLS-1$
-      String fieldName = part.substring(0, part.indexOf('['));
-      Object mongoField = current.get(fieldName);
-      if (mongoField == null) {
-        // create this field
-        BasicDBList newField = new BasicDBList();
-        current.put(fieldName, newField);
-      } else {
-        // check type - should be an array
-        if (!(mongoField instanceof BasicDBList)) {
-          throw new KettleException(BaseMessages.getString(PKG,
-              "MongoDbOutput.Messages.Error.FieldExistsButIsntAnArray", part)); //$NON-NLS-1$
-        }
-      }
-      part = part.substring(part.indexOf('['));
-      pathParts.set(0, part);
-
-      return fieldName;
-    }
-
-    // otherwise this path part is a record (object) or possibly a leaf (if we
-    // are not
-    // using the incoming kettle field name as the mongo field name)
-    Object mongoField = current.get(part);
-    if (mongoField == null) {
-      if (incomingAsFieldName || pathParts.size() > 1) {
-        // create this field
-        BasicDBObject newField = new BasicDBObject();
-        current.put(part, newField);
-      }
-    } else {
-      // check type = should be a record (object)
-      if (!(mongoField instanceof BasicDBObject) && pathParts.size() > 1) {
-        throw new KettleException(BaseMessages.getString(PKG,
-            "MongoDbOutput.Messages.Error.FieldExistsButIsntARecord", part)); //$NON-NLS-1$
-      }
-    }
-    pathParts.remove(0);
-    return part;
-  }
-
   /**
    * Determines the top level structure of the outgoing Mongo document from the
    * user-specified field paths. This can be either RECORD ( for a top level
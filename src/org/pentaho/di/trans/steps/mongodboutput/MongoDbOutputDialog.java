@@ -1376,34 +1376,39 @@ public class MongoDbOutputDialog extends BaseStepDialog implements
       getInfo(meta);
       try {
         AuthContext context = MongoUtils.createAuthContext(meta, transMeta);
-        Set<String> collections = context.doAs(new PrivilegedExceptionAction<Set<String>>() {
-
-          @Override
-          public Set<String> run() throws Exception {
-            MongoClient conn = null;
-            try {
-              conn = MongoDbOutputData.connect(meta, transMeta, null);
-              DB theDB = conn.getDB(dB);
-
-              if (!Const.isEmpty(username) || !Const.isEmpty(realPass)) {
-                CommandResult comResult = theDB.authenticateCommand(username,
-                    realPass.toCharArray());
-                if (!comResult.ok()) {
-                  throw new Exception(BaseMessages.getString(PKG,
-                      "MongoDbOutput.Messages.Error.UnableToAuthenticate", //$NON-NLS-1$
-                      comResult.getErrorMessage()));
+        Set<String> collections;
+        try {
+          collections = context.doAs(new PrivilegedExceptionAction<Set<String>>() {
+
+            @Override
+            public Set<String> run() throws Exception {
+              MongoClient conn = null;
+              try {
+                conn = MongoDbOutputData.connect(meta, transMeta, null);
+                DB theDB = conn.getDB(dB);
+
+                if (!Const.isEmpty(username) || !Const.isEmpty(realPass)) {
+                  CommandResult comResult = theDB.authenticateCommand(username,
+                      realPass.toCharArray());
+                  if (!comResult.ok()) {
+                    throw new Exception(BaseMessages.getString(PKG,
+                        "MongoDbOutput.Messages.Error.UnableToAuthenticate", //$NON-NLS-1$
+                        comResult.getErrorMessage()));
+                  }
                 }
-              }
 
-              return theDB.getCollectionNames();
-            } finally {
-              if (conn != null) {
-                conn.close();
+                return theDB.getCollectionNames();
+              } finally {
+                if (conn != null) {
+                  conn.close();
+                }
               }
-            }
             
-          }
-        });
+            }
+          });
+        } finally {
+          context.release();
+        }
 
         for (String c : collections) {
           m_collectionField.add(c);
@@ -1506,21 +1511,26 @@ public class MongoDbOutputDialog extends BaseStepDialog implements
         final MongoDbOutputMeta meta = new MongoDbOutputMeta();
         getInfo(meta);
         AuthContext context = MongoUtils.createAuthContext(meta, transMeta);
-        List<String> dbNames = context.doAs(new PrivilegedExceptionAction<List<String>>() {
+        List<String> dbNames;
+        try {
+          dbNames = context.doAs(new PrivilegedExceptionAction<List<String>>() {
           
-          @Override
-          public List<String> run() throws Exception {
-            MongoClient conn = null;
-            try {
-              conn = MongoDbOutputData.connect(meta, transMeta, null);
-              return conn.getDatabaseNames();
-            } finally {
-              if (conn != null) {
-                conn.close();
+            @Override
+            public List<String> run() throws Exception {
+              MongoClient conn = null;
+              try {
+                conn = MongoDbOutputData.connect(meta, transMeta, null);
+                return conn.getDatabaseNames();
+              } finally {
+                if (conn != null) {
+                  conn.close();
+                }
               }
             }
-          }
-        });
+          });
+        } finally {
+          context.release();
+        }
 
         for (String s : dbNames) {
           m_dbNameField.add(s);
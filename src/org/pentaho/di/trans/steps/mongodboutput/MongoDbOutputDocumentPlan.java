@@ -0,0 +1,411 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.i18n.BaseMessages;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * The field definitions for building a document from a Kettle row, compiled
+ * for a particular input row format. Variables in field names and paths are
+ * resolved, incoming fields are looked up in the row format and paths are
+ * parsed (array indexes included) once, so that building the document for a
+ * row only involves walking the compiled steps and filling in values.
+ */
+public class MongoDbOutputDocumentPlan {
+
+  private static Class<?> PKG = MongoDbOutputMeta.class;
+
+  /** A step that selects an element of an array */
+  protected static final int INDEX = 0;
+
+  /**
+   * A step that selects an element of an array, which is itself an array (a
+   * multi-dimensional array)
+   */
+  protected static final int INDEX_OF_ARRAY = 1;
+
+  /** A step that selects a named field that holds an array */
+  protected static final int ARRAY_FIELD = 2;
+
+  /** A step that selects a named field that holds a record (or a leaf value) */
+  protected static final int RECORD_FIELD = 3;
+
+  /**
+   * One step along a field's path
+   */
+  protected static class Step {
+    protected int m_kind;
+
+    /** The field name, or the array index as a string */
+    protected String m_key;
+
+    /** The array index as written in the path (INDEX_OF_ARRAY only) */
+    protected String m_rawIndex;
+
+    /** The path part, for error messages */
+    protected String m_part;
+
+    /** Whether a missing record should be created (RECORD_FIELD only) */
+    protected boolean m_createRecord;
+
+    /** Whether an existing value must be a record (RECORD_FIELD only) */
+    protected boolean m_mustBeRecord;
+
+    /** The number of path parts that remain after this step */
+    protected int m_remaining;
+
+    protected boolean isIndex() {
+      return m_kind == INDEX || m_kind == INDEX_OF_ARRAY;
+    }
+
+    /**
+     * Create (or check) the structure that this step leads to in the current
+     * object
+     */
+    protected void prepare(DBObject current) throws KettleException {
+      switch (m_kind) {
+      case INDEX_OF_ARRAY:
+        if (current.get(m_rawIndex) == null) {
+          current.put(m_rawIndex, new BasicDBList());
+        }
+        break;
+      case ARRAY_FIELD:
+        Object array = current.get(m_key);
+        if (array == null) {
+          current.put(m_key, new BasicDBList());
+        } else if (!(array instanceof BasicDBList)) {
+          throw new KettleException(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.Error.FieldExistsButIsntAnArray", m_part)); //$NON-NLS-1$
+        }
+        break;
+      case RECORD_FIELD:
+        Object record = current.get(m_key);
+        if (record == null) {
+          if (m_createRecord) {
+            current.put(m_key, new BasicDBObject());
+          }
+        } else if (!(record instanceof BasicDBObject) && m_mustBeRecord) {
+          throw new KettleException(BaseMessages.getString(PKG,
+              "MongoDbOutput.Messages.Error.FieldExistsButIsntARecord", m_part)); //$NON-NLS-1$
+        }
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  /**
+   * A compiled field definition
+   */
+  protected static class Field {
+    protected int m_rowIndex;
+    protected ValueMetaInterface m_valueMeta;
+    protected String m_incomingFieldName;
+    protected boolean m_useIncomingFieldNameAsMongoFieldName;
+    protected boolean m_JSON;
+    protected Step[] m_steps;
+  }
+
+  /** The top level structure of the document */
+  protected final MongoDbOutputData.MongoTopLevel m_topLevelStructure;
+
+  /** The field holding a complete JSON document to insert as-is (or null) */
+  protected final Field m_topLevelJSONDoc;
+
+  /** The (non-match) fields that make up the document */
+  protected final Field[] m_fields;
+
+  protected MongoDbOutputDocumentPlan(
+      MongoDbOutputData.MongoTopLevel topLevelStructure,
+      Field topLevelJSONDoc, Field[] fields) {
+    m_topLevelStructure = topLevelStructure;
+    m_topLevelJSONDoc = topLevelJSONDoc;
+    m_fields = fields;
+  }
+
+  /**
+   * Compile field definitions
+   *
+   * @param fieldDefs the field definitions
+   * @param inputMeta the input row format
+   * @param vars variables to resolve in field names and paths (may be null)
+   * @param topLevelStructure the top level structure of the document
+   * @param hasTopLevelJSONDocInsert true if a field holds a complete JSON
+   *          document to insert as-is
+   * @return the plan
+   * @throws KettleException if a path can't be parsed
+   */
+  public static MongoDbOutputDocumentPlan compile(
+      List<MongoDbOutputMeta.MongoField> fieldDefs, RowMetaInterface inputMeta,
+      VariableSpace vars, MongoDbOutputData.MongoTopLevel topLevelStructure,
+      boolean hasTopLevelJSONDocInsert) throws KettleException {
+    if (vars == null) {
+      vars = new Variables();
+    }
+
+    if (hasTopLevelJSONDocInsert) {
+      for (MongoDbOutputMeta.MongoField f : fieldDefs) {
+        if (f.m_JSON && Const.isEmpty(f.m_mongoDocPath)
+            && !f.m_useIncomingFieldNameAsMongoFieldName) {
+          return new MongoDbOutputDocumentPlan(topLevelStructure, compileField(
+              f, inputMeta, vars), null);
+        }
+      }
+    }
+
+    List<Field> fields = new ArrayList<Field>();
+    for (MongoDbOutputMeta.MongoField f : fieldDefs) {
+      if (!f.m_updateMatchField) {
+        fields.add(compileField(f, inputMeta, vars));
+      }
+    }
+
+    return new MongoDbOutputDocumentPlan(topLevelStructure, null,
+        fields.toArray(new Field[fields.size()]));
+  }
+
+  protected static Field compileField(MongoDbOutputMeta.MongoField f,
+      RowMetaInterface inputMeta, VariableSpace vars) throws KettleException {
+    Field field = new Field();
+    field.m_incomingFieldName = vars.environmentSubstitute(f.m_incomingFieldName);
+    field.m_rowIndex = inputMeta.indexOfValue(field.m_incomingFieldName);
+    field.m_valueMeta = inputMeta.getValueMeta(field.m_rowIndex);
+    field.m_useIncomingFieldNameAsMongoFieldName = f.m_useIncomingFieldNameAsMongoFieldName;
+    field.m_JSON = f.m_JSON;
+
+    List<String> parts = new ArrayList<String>();
+    String path = vars.environmentSubstitute(f.m_mongoDocPath);
+    if (!Const.isEmpty(path)) {
+      for (String p : path.split("\\.")) { //$NON-NLS-1$
+        parts.add(p);
+      }
+    }
+
+    List<Step> steps = new ArrayList<Step>();
+    while (parts.size() > 0) {
+      String part = parts.get(0);
+      Step step = new Step();
+      step.m_part = part;
+
+      if (part.startsWith("[")) { //$NON-NLS-1$
+        String index = part.substring(1, part.indexOf(']')).trim();
+        String rest = part.substring(part.indexOf(']') + 1).trim();
+        if (rest.length() > 0) {
+          // any remaining characters must indicate a multi-dimensional array
+          step.m_kind = INDEX_OF_ARRAY;
+          step.m_rawIndex = index;
+          parts.set(0, rest);
+        } else {
+          step.m_kind = INDEX;
+          parts.remove(0);
+        }
+        try {
+          step.m_key = Integer.valueOf(index).toString();
+        } catch (NumberFormatException e) {
+          throw new KettleException(e);
+        }
+      } else if (part.endsWith("]")) { //$NON-NLS-1$
+        step.m_kind = ARRAY_FIELD;
+        step.m_key = part.substring(0, part.indexOf('['));
+        parts.set(0, part.substring(part.indexOf('[')));
+      } else {
+        // a record (object) or possibly a leaf (if we are not using the
+        // incoming kettle field name as the mongo field name)
+        step.m_kind = RECORD_FIELD;
+        step.m_key = part;
+        step.m_createRecord = f.m_useIncomingFieldNameAsMongoFieldName
+            || parts.size() > 1;
+        step.m_mustBeRecord = parts.size() > 1;
+        parts.remove(0);
+      }
+
+      step.m_remaining = parts.size();
+      steps.add(step);
+    }
+    field.m_steps = steps.toArray(new Step[steps.size()]);
+
+    return field;
+  }
+
+  /**
+   * Build the document for a row
+   *
+   * @param row the row
+   * @return the document, or null if all the values in the row are null
+   * @throws KettleException if a problem occurs
+   */
+  public DBObject toMongo(Object[] row) throws KettleException {
+    return toMongo(row, null);
+  }
+
+  /**
+   * Build the document for a row from a subset of the fields
+   *
+   * @param row the row
+   * @param include for each field, whether to include it in the document (null
+   *          to include all fields)
+   * @return the document, or null if all the included values in the row are
+   *         null
+   * @throws KettleException if a problem occurs
+   */
+  public DBObject toMongo(Object[] row, boolean[] include)
+      throws KettleException {
+
+    // the easy case
+    if (m_topLevelJSONDoc != null) {
+      ValueMetaInterface vm = m_topLevelJSONDoc.m_valueMeta;
+      Object value = row[m_topLevelJSONDoc.m_rowIndex];
+      if (!vm.isNull(value)) {
+        return (DBObject) JSON.parse(vm.getString(value));
+      }
+      return null;
+    }
+
+    DBObject root = null;
+    if (m_topLevelStructure == MongoDbOutputData.MongoTopLevel.RECORD) {
+      root = new BasicDBObject();
+    } else if (m_topLevelStructure == MongoDbOutputData.MongoTopLevel.ARRAY) {
+      root = new BasicDBList();
+    }
+
+    boolean haveNonNullFields = false;
+    for (int f = 0; f < m_fields.length; f++) {
+      if (include != null && !include[f]) {
+        continue;
+      }
+      Field field = m_fields[f];
+      DBObject current = root;
+      ValueMetaInterface vm = field.m_valueMeta;
+      Object value = row[field.m_rowIndex];
+      Step[] steps = field.m_steps;
+
+      int s = 0;
+      Step step = steps.length > 0 ? steps[0] : null;
+      if (step != null) {
+        step.prepare(current);
+      }
+      do {
+        // array?
+        if (step != null && step.isIndex()) {
+          BasicDBList temp = (BasicDBList) current;
+          if (temp.get(step.m_key) == null) {
+            if (step.m_remaining == 0
+                && !field.m_useIncomingFieldNameAsMongoFieldName) {
+              // leaf - primitive element of the array (unless kettle field
+              // value is JSON)
+              boolean res = MongoDbOutputData.setMongoValueFromKettleValue(
+                  temp, step.m_key, vm, value, field.m_JSON);
+              haveNonNullFields = (haveNonNullFields || res);
+            } else {
+              // must be a record here (since multi-dimensional array
+              // creation is handled when preparing the step)
+
+              // need to create this record/object
+              BasicDBObject newRec = new BasicDBObject();
+              temp.put(step.m_key, newRec);
+              current = newRec;
+
+              // end of the path?
+              if (step.m_remaining == 0) {
+                if (field.m_useIncomingFieldNameAsMongoFieldName) {
+                  boolean res = MongoDbOutputData.setMongoValueFromKettleValue(
+                      current, field.m_incomingFieldName, vm, value,
+                      field.m_JSON);
+                  haveNonNullFields = (haveNonNullFields || res);
+                } else {
+                  throw new KettleException(BaseMessages.getString(PKG,
+                      "MongoDbOutput.Messages.Error.NoFieldNameSpecifiedForPath")); //$NON-NLS-1$
+                }
+              }
+            }
+          } else {
+            // existing element of the array
+            current = (DBObject) temp.get(step.m_key);
+
+            // no more path parts so we must be setting a field in an array
+            // element that is a record
+            if (step.m_remaining == 0) {
+              if (current instanceof BasicDBObject) {
+                if (field.m_useIncomingFieldNameAsMongoFieldName) {
+                  boolean res = MongoDbOutputData.setMongoValueFromKettleValue(
+                      current, field.m_incomingFieldName, vm, value,
+                      field.m_JSON);
+                  haveNonNullFields = (haveNonNullFields || res);
+                } else {
+                  throw new KettleException(BaseMessages.getString(PKG,
+                      "MongoDbOutput.Messages.Error.NoFieldNameSpecifiedForPath")); //$NON-NLS-1$
+                }
+              }
+            }
+          }
+        } else {
+          // record/object
+          if (step == null) {
+            if (field.m_useIncomingFieldNameAsMongoFieldName) {
+              boolean res = MongoDbOutputData.setMongoValueFromKettleValue(
+                  current, field.m_incomingFieldName, vm, value, field.m_JSON);
+              haveNonNullFields = (haveNonNullFields || res);
+            } else {
+              throw new KettleException(BaseMessages.getString(PKG,
+                  "MongoDbOutput.Messages.Error.NoFieldNameSpecifiedForPath")); //$NON-NLS-1$
+            }
+          } else if (step.m_remaining == 0) {
+            if (!field.m_useIncomingFieldNameAsMongoFieldName) {
+              boolean res = MongoDbOutputData.setMongoValueFromKettleValue(
+                  current, step.m_key, vm, value, field.m_JSON);
+              haveNonNullFields = (haveNonNullFields || res);
+            } else {
+              current = (DBObject) current.get(step.m_key);
+              boolean res = MongoDbOutputData.setMongoValueFromKettleValue(
+                  current, field.m_incomingFieldName, vm, value, field.m_JSON);
+              haveNonNullFields = (haveNonNullFields || res);
+            }
+          } else {
+            current = (DBObject) current.get(step.m_key);
+          }
+        }
+
+        step = ++s < steps.length ? steps[s] : null;
+        if (step != null) {
+          step.prepare(current);
+        }
+      } while (step != null);
+    }
+
+    if (!haveNonNullFields) {
+      return null; // nothing has been set!
+    }
+
+    return root;
+  }
+}
@@ -0,0 +1,427 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Decides whether the documents matched by the update queries for a batch of
+ * rows exist already, for modifier updates with fields that are only applied
+ * on insert or only on update. Queries are resolved with a single lookup that
+ * returns just the match keys, and the documents returned are matched back to
+ * the queries on the client. Queries whose documents this step has written
+ * already (recorded in a bounded set of recently seen queries) are known to
+ * exist and aren't looked up at all.
+ * <p>
+ * Only queries made up of equality tests against literal values can be
+ * matched on the client. Any other query (e.g. a complete JSON query
+ * containing operators) is looked up on its own.
+ */
+public class MongoDbOutputExistenceLookup {
+
+  /** Default number of recently seen queries to remember */
+  public static final int MAX_SEEN = 100000;
+
+  protected final int m_maxSeen;
+
+  /** Recently seen queries, least recently used first */
+  protected final Map<DBObject, Boolean> m_seen;
+
+  /**
+   * Constructor
+   *
+   * @param maxSeen the number of recently seen queries to remember
+   */
+  public MongoDbOutputExistenceLookup(int maxSeen) {
+    m_maxSeen = maxSeen;
+    m_seen = new LinkedHashMap<DBObject, Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<DBObject, Boolean> eldest) {
+        return size() > m_maxSeen;
+      }
+    };
+  }
+
+  /**
+   * @param query an update query
+   * @return true if this step has already written the document(s) matched by
+   *         the query
+   */
+  public boolean isSeen(DBObject query) {
+    return m_seen.get(query) != null;
+  }
+
+  /**
+   * Record that the document(s) matched by a query have been written (i.e.
+   * they exist from now on)
+   *
+   * @param query the update query
+   */
+  public void markSeen(DBObject query) {
+    m_seen.put(query, Boolean.TRUE);
+  }
+
+  /**
+   * Find which of a number of update queries match an existing document.
+   * Queries that have been seen already are not looked up (and are not
+   * included in the result)
+   *
+   * @param collection the collection to look in
+   * @param queries the queries
+   * @return the queries that match an existing document
+   */
+  public Set<DBObject> findExisting(DBCollection collection,
+      List<DBObject> queries) {
+    Set<DBObject> existing = new HashSet<DBObject>();
+
+    Set<DBObject> distinct = new LinkedHashSet<DBObject>();
+    List<DBObject> batchable = new ArrayList<DBObject>();
+    for (DBObject q : queries) {
+      if (isSeen(q) || !distinct.add(q)) {
+        continue;
+      }
+      if (isClientMatchable(q)) {
+        batchable.add(q);
+      } else {
+        DBCursor cursor = collection.find(q, new BasicDBObject("_id", 1)) //$NON-NLS-1$
+            .limit(1);
+        try {
+          if (cursor.hasNext()) {
+            existing.add(q);
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+    }
+
+    if (batchable.isEmpty()) {
+      return existing;
+    }
+
+    DBCursor cursor = collection.find(combine(batchable),
+        projection(batchable));
+    try {
+      while (cursor.hasNext() && !batchable.isEmpty()) {
+        DBObject doc = cursor.next();
+        for (Iterator<DBObject> i = batchable.iterator(); i.hasNext();) {
+          DBObject q = i.next();
+          if (matches(doc, q)) {
+            existing.add(q);
+            i.remove();
+          }
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return existing;
+  }
+
+  /**
+   * Combine a number of client matchable queries into one. Queries on a
+   * single (common) key become an $in, anything else an $or
+   *
+   * @param queries the queries
+   * @return the combined query
+   */
+  protected static DBObject combine(List<DBObject> queries) {
+    if (queries.size() == 1) {
+      return queries.get(0);
+    }
+
+    String key = null;
+    for (DBObject q : queries) {
+      Set<String> keys = q.keySet();
+      String k = keys.size() == 1 ? keys.iterator().next() : null;
+      if (k == null || (key != null && !key.equals(k))) {
+        key = null;
+        break;
+      }
+      key = k;
+    }
+
+    if (key != null) {
+      BasicDBList in = new BasicDBList();
+      for (DBObject q : queries) {
+        in.add(q.get(key));
+      }
+
+      return new BasicDBObject(key, new BasicDBObject("$in", in)); //$NON-NLS-1$
+    }
+
+    BasicDBList or = new BasicDBList();
+    or.addAll(queries);
+
+    return new BasicDBObject("$or", or); //$NON-NLS-1$
+  }
+
+  /**
+   * Get a projection that returns just the keys tested by a number of queries
+   *
+   * @param queries the queries
+   * @return the projection
+   */
+  protected static DBObject projection(List<DBObject> queries) {
+    Set<String> keys = new LinkedHashSet<String>();
+    for (DBObject q : queries) {
+      for (String k : q.keySet()) {
+        keys.add(projectedPath(k));
+      }
+    }
+
+    BasicDBObject projection = new BasicDBObject();
+    boolean usesId = false;
+    for (String k : keys) {
+      // a path below another projected path is returned anyway (and
+      // projecting both is an error for newer servers)
+      boolean covered = false;
+      for (String other : keys) {
+        if (k.startsWith(other + ".")) { //$NON-NLS-1$
+          covered = true;
+          break;
+        }
+      }
+      if (!covered) {
+        projection.put(k, 1);
+      }
+      if (k.equals("_id") || k.startsWith("_id.")) { //$NON-NLS-1$ //$NON-NLS-2$
+        usesId = true;
+      }
+    }
+    if (!usesId) {
+      projection.put("_id", 0); //$NON-NLS-1$
+    }
+
+    return projection;
+  }
+
+  /**
+   * Get the path to project for a key tested by a query. A projection can't
+   * select array elements by index (the server takes the index for a field
+   * name and returns empty documents), so the path is cut off before the
+   * first array index and the whole array is returned
+   *
+   * @param key the key (path) tested by a query
+   * @return the path to project
+   */
+  protected static String projectedPath(String key) {
+    String[] parts = key.split("\\."); //$NON-NLS-1$
+    StringBuilder path = new StringBuilder(parts[0]);
+    for (int i = 1; i < parts.length; i++) {
+      if (isIndex(parts[i])) {
+        break;
+      }
+      path.append('.').append(parts[i]);
+    }
+
+    return path.toString();
+  }
+
+  protected static boolean isIndex(String part) {
+    if (part.length() == 0) {
+      return false;
+    }
+    for (int i = 0; i < part.length(); i++) {
+      if (!Character.isDigit(part.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @param query an update query
+   * @return true if the query consists solely of equality tests against
+   *         literal values, so that documents can be matched to it on the
+   *         client
+   */
+  protected static boolean isClientMatchable(DBObject query) {
+    for (String k : query.keySet()) {
+      if (k.startsWith("$") || !isLiteral(query.get(k))) { //$NON-NLS-1$
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  protected static boolean isLiteral(Object v) {
+    if (v instanceof String || v instanceof Number || v instanceof Boolean
+        || v instanceof Date || v instanceof ObjectId || v instanceof byte[]) {
+      return true;
+    }
+    if (v instanceof BSONObject) {
+      // embedded documents and arrays must match exactly
+      BSONObject o = (BSONObject) v;
+      for (String k : o.keySet()) {
+        if (k.startsWith("$") || !isLiteral(o.get(k))) { //$NON-NLS-1$
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // null matches missing fields, regular expressions match patterns etc.
+    return false;
+  }
+
+  /**
+   * Test whether a document matches a client matchable query
+   *
+   * @param doc the document
+   * @param query the query
+   * @return true if the document matches
+   */
+  protected static boolean matches(DBObject doc, DBObject query) {
+    for (String k : query.keySet()) {
+      if (!pathMatches(doc, k.split("\\."), 0, query.get(k))) { //$NON-NLS-1$
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  protected static boolean pathMatches(Object current, String[] path, int i,
+      Object queryValue) {
+    if (i == path.length) {
+      return valueMatches(current, queryValue);
+    }
+
+    if (current instanceof List) {
+      List<?> list = (List<?>) current;
+      int index = -1;
+      try {
+        index = Integer.parseInt(path[i]);
+      } catch (NumberFormatException e) {
+        // not an array index
+      }
+      if (index >= 0 && index < list.size()
+          && pathMatches(list.get(index), path, i + 1, queryValue)) {
+        return true;
+      }
+
+      // otherwise the path applies to each (document) element
+      for (Object e : list) {
+        if (e instanceof BSONObject && !(e instanceof List)
+            && pathMatches(e, path, i, queryValue)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    if (current instanceof BSONObject) {
+      return pathMatches(((BSONObject) current).get(path[i]), path, i + 1,
+          queryValue);
+    }
+
+    return false;
+  }
+
+  protected static boolean valueMatches(Object value, Object queryValue) {
+    if (value == null) {
+      return false;
+    }
+    if (valuesEqual(value, queryValue)) {
+      return true;
+    }
+    if (value instanceof List && !(queryValue instanceof List)) {
+      // an equality test matches an array if any element matches
+      for (Object e : (List<?>) value) {
+        if (valuesEqual(e, queryValue)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  protected static boolean valuesEqual(Object a, Object b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a instanceof Number && b instanceof Number) {
+      if (isIntegral(a) && isIntegral(b)) {
+        return ((Number) a).longValue() == ((Number) b).longValue();
+      }
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    if (a instanceof byte[] && b instanceof byte[]) {
+      return Arrays.equals((byte[]) a, (byte[]) b);
+    }
+    if (a instanceof List && b instanceof List) {
+      List<?> la = (List<?>) a;
+      List<?> lb = (List<?>) b;
+      if (la.size() != lb.size()) {
+        return false;
+      }
+      for (int i = 0; i < la.size(); i++) {
+        if (!valuesEqual(la.get(i), lb.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (a instanceof BSONObject && b instanceof BSONObject) {
+      // embedded documents match exactly, including the order of fields
+      List<String> ka = new ArrayList<String>(((BSONObject) a).keySet());
+      List<String> kb = new ArrayList<String>(((BSONObject) b).keySet());
+      if (!ka.equals(kb)) {
+        return false;
+      }
+      for (String k : ka) {
+        if (!valuesEqual(((BSONObject) a).get(k), ((BSONObject) b).get(k))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    return a.equals(b);
+  }
+
+  protected static boolean isIntegral(Object n) {
+    return n instanceof Long || n instanceof Integer || n instanceof Short
+        || n instanceof Byte;
+  }
+}
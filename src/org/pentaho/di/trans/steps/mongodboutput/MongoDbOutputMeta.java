@@ -290,9 +290,50 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
   public static final int RETRIES = 5;
   public static final int RETRY_DELAY = 10; // seconds
 
+  /** Batch insert size value that selects adaptive batch sizing */
+  public static final String AUTO_BATCH_SIZE = "auto"; //$NON-NLS-1$
+  public static final int AUTO_BATCH_SIZE_MIN = 10;
+  public static final int AUTO_BATCH_SIZE_MAX = 10000;
+
   private String m_writeRetries = "" + RETRIES; //$NON-NLS-1$
   private String m_writeRetryDelay = "" + RETRY_DELAY; // seconds //$NON-NLS-1$
 
+  /**
+   * Maximum number of incoming rows to process per call to processRow()
+   * (i.e. per privileged block). Empty or 1 processes one row per call
+   */
+  protected String m_processingBatchSize = ""; //$NON-NLS-1$
+
+  /**
+   * Whether batched upserts/updates are applied in order, stopping at the
+   * first error (true), or in any order, continuing past errors (false)
+   */
+  protected boolean m_orderedBulkWrites = true;
+
+  /**
+   * Maximum number of batches to have in flight on writer threads while
+   * the next batch is built. Empty or 1 writes each batch on the step thread
+   */
+  protected String m_batchesInFlight = ""; //$NON-NLS-1$
+
+  /**
+   * Target (estimated) size in bytes of a batch. A batch is written when
+   * either this or the batch insert size is reached. Empty for no limit
+   */
+  protected String m_batchSizeBytes = ""; //$NON-NLS-1$
+
+  /** Smallest batch size to use when the batch insert size is "auto" */
+  protected String m_autoBatchSizeMin = ""; //$NON-NLS-1$
+
+  /** Largest batch size to use when the batch insert size is "auto" */
+  protected String m_autoBatchSizeMax = ""; //$NON-NLS-1$
+
+  /**
+   * Whether consecutive modifier updates with the same match query are
+   * merged into one update
+   */
+  protected boolean m_coalesceUpdates = false;
+
   @Override
   public void setDefault() {
     m_hostnames = "localhost"; //$NON-NLS-1$
@@ -434,6 +475,144 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
     return m_writeRetryDelay;
   }
 
+  /**
+   * Set the maximum number of incoming rows to process in one call to
+   * processRow()
+   * 
+   * @param size the number of rows (may contain variables)
+   */
+  public void setProcessingBatchSize(String size) {
+    m_processingBatchSize = size;
+  }
+
+  /**
+   * Get the maximum number of incoming rows to process in one call to
+   * processRow()
+   * 
+   * @return the number of rows (may contain variables)
+   */
+  public String getProcessingBatchSize() {
+    return m_processingBatchSize;
+  }
+
+  /**
+   * Set whether batched upserts/updates are sent as an ordered bulk write
+   * 
+   * @param ordered true if the updates in a batch should be applied in
+   *          order, stopping at the first error
+   */
+  public void setOrderedBulkWrites(boolean ordered) {
+    m_orderedBulkWrites = ordered;
+  }
+
+  /**
+   * Get whether batched upserts/updates are sent as an ordered bulk write
+   * 
+   * @return true if the updates in a batch are applied in order, stopping at
+   *         the first error
+   */
+  public boolean getOrderedBulkWrites() {
+    return m_orderedBulkWrites;
+  }
+
+  /**
+   * Set the maximum number of batches to have in flight on writer threads
+   * 
+   * @param batches the number of batches (may contain variables)
+   */
+  public void setBatchesInFlight(String batches) {
+    m_batchesInFlight = batches;
+  }
+
+  /**
+   * Get the maximum number of batches to have in flight on writer threads
+   * 
+   * @return the number of batches (may contain variables)
+   */
+  public String getBatchesInFlight() {
+    return m_batchesInFlight;
+  }
+
+  /**
+   * Set the target size of a batch in bytes
+   * 
+   * @param bytes the size in bytes (may contain variables)
+   */
+  public void setBatchSizeBytes(String bytes) {
+    m_batchSizeBytes = bytes;
+  }
+
+  /**
+   * Get the target size of a batch in bytes
+   * 
+   * @return the size in bytes (may contain variables)
+   */
+  public String getBatchSizeBytes() {
+    return m_batchSizeBytes;
+  }
+
+  /**
+   * Set the smallest batch size to use when the batch insert size is
+   * "auto"
+   * 
+   * @param min the smallest batch size (may contain variables)
+   */
+  public void setAutoBatchSizeMin(String min) {
+    m_autoBatchSizeMin = min;
+  }
+
+  /**
+   * Get the smallest batch size to use when the batch insert size is
+   * "auto"
+   * 
+   * @return the smallest batch size (may contain variables)
+   */
+  public String getAutoBatchSizeMin() {
+    return m_autoBatchSizeMin;
+  }
+
+  /**
+   * Set the largest batch size to use when the batch insert size is
+   * "auto"
+   * 
+   * @param max the largest batch size (may contain variables)
+   */
+  public void setAutoBatchSizeMax(String max) {
+    m_autoBatchSizeMax = max;
+  }
+
+  /**
+   * Get the largest batch size to use when the batch insert size is
+   * "auto"
+   * 
+   * @return the largest batch size (may contain variables)
+   */
+  public String getAutoBatchSizeMax() {
+    return m_autoBatchSizeMax;
+  }
+
+  /**
+   * Set whether consecutive modifier updates with the same match query are
+   * merged into one update ($push with $each, summed $inc, last $set wins)
+   * 
+   * @param coalesce true to merge consecutive modifier updates to the same
+   *          document
+   */
+  public void setCoalesceUpdates(boolean coalesce) {
+    m_coalesceUpdates = coalesce;
+  }
+
+  /**
+   * Get whether consecutive modifier updates with the same match query are
+   * merged into one update
+   * 
+   * @return true if consecutive modifier updates to the same document are
+   *         merged
+   */
+  public boolean getCoalesceUpdates() {
+    return m_coalesceUpdates;
+  }
+
   /**
    * Set the database name to use
    * 
@@ -606,7 +785,8 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
   /**
    * Get the batch insert size
    * 
-   * @return the batch insert size
+   * @return the batch insert size, or "auto" to adapt the batch size to the
+   *         observed write latency
    */
   public String getBatchInsertSize() {
     return m_batchInsertSize;
@@ -852,6 +1032,26 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
     retval.append("    ").append( //$NON-NLS-1$
         XMLHandler.addTagValue("write_retry_delay", m_writeRetryDelay)); //$NON-NLS-1$
 
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("processing_batch_size", m_processingBatchSize)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("ordered_bulk_writes", m_orderedBulkWrites)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("batches_in_flight", m_batchesInFlight)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("batch_size_bytes", m_batchSizeBytes)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("auto_batch_size_min", m_autoBatchSizeMin)); //$NON-NLS-1$
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("auto_batch_size_max", m_autoBatchSizeMax)); //$NON-NLS-1$
+
+    retval.append("    ").append( //$NON-NLS-1$
+        XMLHandler.addTagValue("coalesce_updates", m_coalesceUpdates)); //$NON-NLS-1$
+
     if (m_mongoFields != null && m_mongoFields.size() > 0) {
       retval.append("\n    ").append(XMLHandler.openTag("mongo_fields")); //$NON-NLS-1$ //$NON-NLS-2$
 
@@ -965,6 +1165,25 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
       m_writeRetryDelay = writeRetryDelay;
     }
 
+    m_processingBatchSize = XMLHandler.getTagValue(stepnode, "processing_batch_size"); //$NON-NLS-1$
+
+    String orderedBulkWrites = XMLHandler.getTagValue(stepnode, "ordered_bulk_writes"); //$NON-NLS-1$
+    if (!Const.isEmpty(orderedBulkWrites)) {
+      m_orderedBulkWrites = orderedBulkWrites.equalsIgnoreCase("Y"); //$NON-NLS-1$
+    }
+
+    m_batchesInFlight = XMLHandler.getTagValue(stepnode, "batches_in_flight"); //$NON-NLS-1$
+
+    m_batchSizeBytes = XMLHandler.getTagValue(stepnode, "batch_size_bytes"); //$NON-NLS-1$
+
+    m_autoBatchSizeMin = XMLHandler.getTagValue(stepnode, "auto_batch_size_min"); //$NON-NLS-1$
+    m_autoBatchSizeMax = XMLHandler.getTagValue(stepnode, "auto_batch_size_max"); //$NON-NLS-1$
+
+    String coalesceUpdates = XMLHandler.getTagValue(stepnode, "coalesce_updates"); //$NON-NLS-1$
+    if (!Const.isEmpty(coalesceUpdates)) {
+      m_coalesceUpdates = coalesceUpdates.equalsIgnoreCase("Y"); //$NON-NLS-1$
+    }
+
     Node fields = XMLHandler.getSubNode(stepnode, "mongo_fields"); //$NON-NLS-1$
     if (fields != null && XMLHandler.countNodes(fields, "mongo_field") > 0) { //$NON-NLS-1$
       int nrfields = XMLHandler.countNodes(fields, "mongo_field"); //$NON-NLS-1$
@@ -1070,6 +1289,20 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
       m_writeRetryDelay = writeRetryDelay;
     }
 
+    m_processingBatchSize = rep.getStepAttributeString(id_step, "processing_batch_size"); //$NON-NLS-1$
+
+    m_orderedBulkWrites = rep.getStepAttributeBoolean(id_step, 0,
+        "ordered_bulk_writes", true); //$NON-NLS-1$
+
+    m_batchesInFlight = rep.getStepAttributeString(id_step, "batches_in_flight"); //$NON-NLS-1$
+
+    m_batchSizeBytes = rep.getStepAttributeString(id_step, "batch_size_bytes"); //$NON-NLS-1$
+
+    m_autoBatchSizeMin = rep.getStepAttributeString(id_step, "auto_batch_size_min"); //$NON-NLS-1$
+    m_autoBatchSizeMax = rep.getStepAttributeString(id_step, "auto_batch_size_max"); //$NON-NLS-1$
+
+    m_coalesceUpdates = rep.getStepAttributeBoolean(id_step, 0, "coalesce_updates"); //$NON-NLS-1$
+
     if (nrfields > 0) {
       m_mongoFields = new ArrayList<MongoField>();
 
@@ -1178,6 +1411,26 @@ public class MongoDbOutputMeta extends BaseStepMeta implements
     rep.saveStepAttribute(id_transformation, id_step, 0, "write_retry_delay", //$NON-NLS-1$
         m_writeRetryDelay);
 
+    rep.saveStepAttribute(id_transformation, id_step, "processing_batch_size", //$NON-NLS-1$
+        m_processingBatchSize);
+
+    rep.saveStepAttribute(id_transformation, id_step, "ordered_bulk_writes", //$NON-NLS-1$
+        m_orderedBulkWrites);
+
+    rep.saveStepAttribute(id_transformation, id_step, "batches_in_flight", //$NON-NLS-1$
+        m_batchesInFlight);
+
+    rep.saveStepAttribute(id_transformation, id_step, "batch_size_bytes", //$NON-NLS-1$
+        m_batchSizeBytes);
+
+    rep.saveStepAttribute(id_transformation, id_step, "auto_batch_size_min", //$NON-NLS-1$
+        m_autoBatchSizeMin);
+    rep.saveStepAttribute(id_transformation, id_step, "auto_batch_size_max", //$NON-NLS-1$
+        m_autoBatchSizeMax);
+
+    rep.saveStepAttribute(id_transformation, id_step, "coalesce_updates", //$NON-NLS-1$
+        m_coalesceUpdates);
+
     if (m_mongoFields != null && m_mongoFields.size() > 0) {
       for (int i = 0; i < m_mongoFields.size(); i++) {
         MongoField field = m_mongoFields.get(i);
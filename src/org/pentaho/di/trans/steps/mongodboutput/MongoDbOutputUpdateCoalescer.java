@@ -0,0 +1,195 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Merges a modifier update into the update before it, when both have the same
+ * match query, so that a run of rows for one document is written as a single
+ * update. Applying the merged update has the same effect as applying the two
+ * in turn:
+ * <ul>
+ * <li>$push of the same array becomes a $push with $each, in row order</li>
+ * <li>$inc of the same field is summed</li>
+ * <li>$set of the same field keeps the later value</li>
+ * </ul>
+ * Updates that use other operations, or that touch the same field (or a field
+ * and one of its sub-fields) with different operations, are not merged.
+ */
+public class MongoDbOutputUpdateCoalescer {
+
+  protected static final String SET = "$set"; //$NON-NLS-1$
+  protected static final String INC = "$inc"; //$NON-NLS-1$
+  protected static final String PUSH = "$push"; //$NON-NLS-1$
+  protected static final String EACH = "$each"; //$NON-NLS-1$
+
+  /**
+   * The values of a $push built up by merging. Distinguishes them from a
+   * $each supplied in a JSON value, which is never merged
+   */
+  protected static class Each extends BasicDBObject {
+    private static final long serialVersionUID = 1L;
+
+    protected Each(Object first) {
+      BasicDBList values = new BasicDBList();
+      values.add(first);
+      put(EACH, values);
+    }
+
+    protected void add(Object value) {
+      ((BasicDBList) get(EACH)).add(value);
+    }
+  }
+
+  /**
+   * Merge a modifier update into the one before it (for the same match query)
+   *
+   * @param update the earlier update - changed in place if the updates can be
+   *          merged
+   * @param next the later update
+   * @return true if the later update was merged, false if the updates can't be
+   *         merged (in which case neither is changed)
+   */
+  public static boolean merge(DBObject update, DBObject next) {
+    if (!canMerge(update, next)) {
+      return false;
+    }
+
+    for (String op : next.keySet()) {
+      DBObject nextFields = (DBObject) next.get(op);
+      DBObject fields = (DBObject) update.get(op);
+      if (fields == null) {
+        fields = new BasicDBObject();
+        update.put(op, fields);
+      }
+
+      for (String path : nextFields.keySet()) {
+        Object value = nextFields.get(path);
+        Object existing = fields.get(path);
+
+        if (existing == null) {
+          fields.put(path, value);
+        } else if (op.equals(INC)) {
+          fields.put(path, sum((Number) existing, (Number) value));
+        } else if (op.equals(PUSH)) {
+          Each each = existing instanceof Each ? (Each) existing : new Each(
+              existing);
+          each.add(value);
+          fields.put(path, each);
+        } else {
+          // $set - the later value wins
+          fields.put(path, value);
+        }
+      }
+    }
+
+    return true;
+  }
+
+  protected static boolean canMerge(DBObject update, DBObject next) {
+    for (String op : next.keySet()) {
+      if (!(op.equals(SET) || op.equals(INC) || op.equals(PUSH))
+          || !(next.get(op) instanceof DBObject)) {
+        return false;
+      }
+    }
+    for (String op : update.keySet()) {
+      if (!(update.get(op) instanceof DBObject)) {
+        return false;
+      }
+    }
+
+    for (String op : next.keySet()) {
+      DBObject nextFields = (DBObject) next.get(op);
+
+      for (String path : nextFields.keySet()) {
+        Object value = nextFields.get(path);
+
+        for (String otherOp : update.keySet()) {
+          DBObject fields = (DBObject) update.get(otherOp);
+
+          for (String other : fields.keySet()) {
+            if (other.equals(path)) {
+              if (!otherOp.equals(op)) {
+                return false;
+              }
+              Object existing = fields.get(other);
+              if (op.equals(INC)
+                  && !(existing instanceof Number && value instanceof Number)) {
+                return false;
+              }
+              if (op.equals(PUSH)
+                  && ((!(existing instanceof Each) && hasOperators(existing)) || hasOperators(value))) {
+                // e.g. a $each or $slice in a JSON value
+                return false;
+              }
+            } else if (other.startsWith(path + ".") //$NON-NLS-1$
+                || path.startsWith(other + ".")) { //$NON-NLS-1$
+              return false;
+            }
+          }
+        }
+      }
+    }
+
+    return true;
+  }
+
+  protected static boolean hasOperators(Object value) {
+    if (value instanceof DBObject) {
+      for (String k : ((DBObject) value).keySet()) {
+        if (k.startsWith("$")) { //$NON-NLS-1$
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Add two increments. The sum keeps the BSON type of the increments: $inc by
+   * an int64 would turn an int32 field into an int64, so two int32 increments
+   * only give an int64 if their sum doesn't fit in an int32
+   * 
+   * @param a the first increment
+   * @param b the second increment
+   * @return the combined increment
+   */
+  protected static Number sum(Number a, Number b) {
+    if (isIntegral(a) && isIntegral(b)) {
+      long sum = a.longValue() + b.longValue();
+      if (!(a instanceof Long) && !(b instanceof Long)
+          && sum >= Integer.MIN_VALUE && sum <= Integer.MAX_VALUE) {
+        return Integer.valueOf((int) sum);
+      }
+
+      return Long.valueOf(sum);
+    }
+
+    return Double.valueOf(a.doubleValue() + b.doubleValue());
+  }
+
+  protected static boolean isIntegral(Number n) {
+    return n instanceof Long || n instanceof Integer || n instanceof Short
+        || n instanceof Byte;
+  }
+}
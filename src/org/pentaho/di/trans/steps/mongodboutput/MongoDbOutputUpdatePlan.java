@@ -0,0 +1,446 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.variables.Variables;
+import org.pentaho.di.i18n.BaseMessages;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * The match query and modifier update for upserts, compiled from the field
+ * definitions for a particular input row format. Paths are rewritten into dot
+ * notation, and fields that $set arrays or $push structures are grouped into
+ * document plans, once. Per row, all that remains is to decide which modifiers
+ * apply (insert/update policy and null values) and to fill in values. A plan
+ * is not safe for use by more than one thread.
+ */
+public class MongoDbOutputUpdatePlan {
+
+  private static Class<?> PKG = MongoDbOutputMeta.class;
+
+  /**
+   * A field to match on
+   */
+  protected static class MatchField {
+    protected int m_rowIndex;
+    protected ValueMetaInterface m_valueMeta;
+
+    /** The path in dot notation */
+    protected String m_path;
+    protected boolean m_JSON;
+
+    /** True if the field holds a complete query as a JSON document */
+    protected boolean m_wholeQuery;
+  }
+
+  /**
+   * A field with a modifier operation
+   */
+  protected static class Modifier {
+    protected String m_operation;
+    protected boolean m_insertOnly;
+    protected boolean m_updateOnly;
+    protected int m_rowIndex;
+    protected ValueMetaInterface m_valueMeta;
+    protected boolean m_JSON;
+
+    protected boolean applies(boolean checkForMatch, boolean isUpdate) {
+      if (!checkForMatch) {
+        return true;
+      }
+
+      return isUpdate ? !m_insertOnly : !m_updateOnly;
+    }
+  }
+
+  /**
+   * Modifiers that together $set an array or $push a structure
+   */
+  protected static class StructureModifier {
+    protected String m_path;
+    protected List<Modifier> m_modifiers = new ArrayList<Modifier>();
+    protected List<MongoDbOutputMeta.MongoField> m_fields = new ArrayList<MongoDbOutputMeta.MongoField>();
+
+    /** Builds the structure from the fields of the modifiers that apply */
+    protected MongoDbOutputDocumentPlan m_plan;
+
+    /** Which modifiers apply to the current row */
+    protected boolean[] m_include;
+  }
+
+  /**
+   * Modifiers of a primitive value at a path. Only the last one that applies
+   * to a row is used
+   */
+  protected static class PrimitiveModifier {
+    protected String m_path;
+    protected List<Modifier> m_modifiers = new ArrayList<Modifier>();
+  }
+
+  protected final List<MatchField> m_matchFields = new ArrayList<MatchField>();
+
+  /** All fields with a modifier operation, in definition order */
+  protected final List<Modifier> m_modifiers = new ArrayList<Modifier>();
+
+  protected final List<StructureModifier> m_setArrays = new ArrayList<StructureModifier>();
+  protected final List<StructureModifier> m_pushStructures = new ArrayList<StructureModifier>();
+  protected final List<PrimitiveModifier> m_primitives = new ArrayList<PrimitiveModifier>();
+
+  /**
+   * True if whether the document to update exists already decides which
+   * modifiers apply
+   */
+  protected boolean m_checkForMatch;
+
+  /**
+   * Compile field definitions
+   *
+   * @param fieldDefs the field definitions
+   * @param inputMeta the input row format
+   * @param vars variables to resolve in field names, paths and operations (may
+   *          be null)
+   * @return the plan
+   * @throws KettleException if a path can't be parsed
+   */
+  public static MongoDbOutputUpdatePlan compile(
+      List<MongoDbOutputMeta.MongoField> fieldDefs, RowMetaInterface inputMeta,
+      VariableSpace vars) throws KettleException {
+    if (vars == null) {
+      vars = new Variables();
+    }
+
+    MongoDbOutputUpdatePlan plan = new MongoDbOutputUpdatePlan();
+    plan.m_checkForMatch = MongoDbOutputData.requiresMatchCheck(fieldDefs);
+
+    Map<String, StructureModifier> setArrays = new LinkedHashMap<String, StructureModifier>();
+    Map<String, StructureModifier> pushStructures = new LinkedHashMap<String, StructureModifier>();
+    Map<String, PrimitiveModifier> primitives = new LinkedHashMap<String, PrimitiveModifier>();
+
+    for (MongoDbOutputMeta.MongoField field : fieldDefs) {
+      String incomingFieldName = vars
+          .environmentSubstitute(field.m_incomingFieldName);
+      int index = inputMeta.indexOfValue(incomingFieldName);
+      ValueMetaInterface vm = inputMeta.getValueMeta(index);
+
+      String mongoPath = (field.m_mongoDocPath != null) ? field.m_mongoDocPath
+          : ""; //$NON-NLS-1$
+      String path = vars.environmentSubstitute(mongoPath);
+
+      if (field.m_updateMatchField) {
+        MatchField m = new MatchField();
+        m.m_rowIndex = index;
+        m.m_valueMeta = vm;
+        m.m_JSON = field.m_JSON;
+        m.m_wholeQuery = field.m_JSON && Const.isEmpty(field.m_mongoDocPath)
+            && !field.m_useIncomingFieldNameAsMongoFieldName;
+
+        // query objects have fields using "dot" notation to reach into
+        // embedded documents
+        m.m_path = appendIncomingFieldName(path, incomingFieldName,
+            field.m_useIncomingFieldNameAsMongoFieldName);
+
+        // post process arrays to fit the dot notation (if not already done
+        // by the user)
+        if (m.m_path.indexOf('[') > 0) {
+          m.m_path = m.m_path.replace("[", ".").replace("]", ""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        }
+        plan.m_matchFields.add(m);
+        continue;
+      }
+
+      String modifierUpdateOpp = vars
+          .environmentSubstitute(field.m_modifierUpdateOperation);
+      if (Const.isEmpty(modifierUpdateOpp) || modifierUpdateOpp.equals("N/A")) { //$NON-NLS-1$
+        continue;
+      }
+
+      Modifier mod = new Modifier();
+      mod.m_operation = modifierUpdateOpp;
+      mod.m_insertOnly = field.m_modifierOperationApplyPolicy.equals("Insert"); //$NON-NLS-1$
+      mod.m_updateOnly = field.m_modifierOperationApplyPolicy.equals("Update"); //$NON-NLS-1$
+      mod.m_rowIndex = index;
+      mod.m_valueMeta = vm;
+      mod.m_JSON = field.m_JSON;
+      plan.m_modifiers.add(mod);
+
+      // modifier update objects have fields using "dot" notation to reach
+      // into embedded documents
+      if (path.endsWith("]") && modifierUpdateOpp.equals("$push") //$NON-NLS-1$ //$NON-NLS-2$
+          && !field.m_useIncomingFieldNameAsMongoFieldName) {
+
+        // strip off the brackets as push appends to the end of the named
+        // array
+        path = path.substring(0, path.indexOf('['));
+      }
+      path = appendIncomingFieldName(path, incomingFieldName,
+          field.m_useIncomingFieldNameAsMongoFieldName);
+
+      if (modifierUpdateOpp.equals("$set") && path.indexOf('[') > 0) { //$NON-NLS-1$
+        // array creation
+        String arrayPath = path.substring(0, path.indexOf('['));
+        String arraySpec = path.substring(path.indexOf('['), path.length());
+
+        addToStructure(setArrays, arrayPath, mod, field, arraySpec);
+      } else if (modifierUpdateOpp.equals("$push") && path.indexOf('[') > 0) { //$NON-NLS-1$
+        // we ignore any index that might have been specified as $push
+        // always appends to the end of the array.
+        String arrayPath = path.substring(0, path.indexOf('['));
+        String structureToPush = path.substring(path.indexOf(']') + 1,
+            path.length());
+
+        // check to see if we're pushing a record at this point in the path
+        // or another array...
+        if (structureToPush.length() > 0 && structureToPush.charAt(0) == '.') {
+          // skip the dot
+          structureToPush = structureToPush.substring(1,
+              structureToPush.length());
+        }
+
+        addToStructure(pushStructures, arrayPath, mod, field, structureToPush);
+      } else {
+        PrimitiveModifier p = primitives.get(path);
+        if (p == null) {
+          p = new PrimitiveModifier();
+          p.m_path = path;
+          primitives.put(path, p);
+        }
+        p.m_modifiers.add(mod);
+      }
+    }
+
+    for (StructureModifier s : setArrays.values()) {
+      s.m_plan = MongoDbOutputDocumentPlan.compile(s.m_fields, inputMeta,
+          vars, MongoDbOutputData.MongoTopLevel.ARRAY, false);
+      s.m_include = new boolean[s.m_modifiers.size()];
+      plan.m_setArrays.add(s);
+    }
+    for (StructureModifier s : pushStructures.values()) {
+      s.m_plan = MongoDbOutputDocumentPlan.compile(s.m_fields, inputMeta,
+          vars, MongoDbOutputData.MongoTopLevel.RECORD, false);
+      s.m_include = new boolean[s.m_modifiers.size()];
+      plan.m_pushStructures.add(s);
+    }
+    plan.m_primitives.addAll(primitives.values());
+
+    return plan;
+  }
+
+  protected static String appendIncomingFieldName(String path,
+      String incomingFieldName, boolean useIncomingFieldNameAsMongoFieldName) {
+    if (!useIncomingFieldNameAsMongoFieldName) {
+      return path;
+    }
+
+    return Const.isEmpty(path) ? incomingFieldName : path + "." //$NON-NLS-1$
+        + incomingFieldName;
+  }
+
+  protected static void addToStructure(Map<String, StructureModifier> structures,
+      String arrayPath, Modifier mod, MongoDbOutputMeta.MongoField field,
+      String structurePath) {
+    StructureModifier s = structures.get(arrayPath);
+    if (s == null) {
+      s = new StructureModifier();
+      s.m_path = arrayPath;
+      structures.put(arrayPath, s);
+    }
+
+    MongoDbOutputMeta.MongoField a = new MongoDbOutputMeta.MongoField();
+    a.m_incomingFieldName = field.m_incomingFieldName;
+    a.m_mongoDocPath = structurePath;
+    // incoming field name has already been appended (if necessary)
+    a.m_useIncomingFieldNameAsMongoFieldName = false;
+    a.m_JSON = field.m_JSON;
+
+    s.m_modifiers.add(mod);
+    s.m_fields.add(a);
+  }
+
+  /**
+   * @return true if whether the document to update exists already decides
+   *         which modifiers apply to a row
+   */
+  public boolean requiresMatchCheck() {
+    return m_checkForMatch;
+  }
+
+  /**
+   * Get the query for a row
+   *
+   * @param row the row
+   * @return the query, or null if all the match values in the row are null
+   * @throws KettleException if there are no match fields or a problem occurs
+   */
+  public DBObject getQuery(Object[] row) throws KettleException {
+    if (m_matchFields.size() == 0) {
+      throw new KettleException(BaseMessages.getString(PKG,
+          "MongoDbOutput.Messages.Error.NoFieldsToUpdateSpecifiedForMatch")); //$NON-NLS-1$
+    }
+
+    BasicDBObject query = new BasicDBObject();
+    boolean hasNonNullMatchValues = false;
+
+    for (MatchField field : m_matchFields) {
+      ValueMetaInterface vm = field.m_valueMeta;
+      Object value = row[field.m_rowIndex];
+
+      // ignore null fields
+      if (vm.isNull(value)) {
+        continue;
+      }
+
+      if (field.m_wholeQuery) {
+        // We have a query based on a complete incoming JSON doc -
+        // i.e. no field processing necessary
+
+        if (vm.isString()) {
+          query = (BasicDBObject) JSON.parse(vm.getString(value));
+        } else {
+          throw new KettleException(
+              BaseMessages
+                  .getString(PKG,
+                      "MongoDbOutput.Messages.MatchFieldJSONButIncomingValueNotString")); //$NON-NLS-1$
+        }
+        break;
+      }
+
+      hasNonNullMatchValues = true;
+      MongoDbOutputData.setMongoValueFromKettleValue(query, field.m_path, vm,
+          value, field.m_JSON);
+    }
+
+    if (!hasNonNullMatchValues) {
+      // indicates that we don't have anything to match with with respect to
+      // this row
+      return null;
+    }
+
+    return query;
+  }
+
+  /**
+   * Get the modifier update for a row
+   *
+   * @param row the row
+   * @param isUpdate true if the document to update exists already (only used
+   *          if {@link #requiresMatchCheck()})
+   * @return the update, or null if all the values of the modifiers that apply
+   *         are null
+   * @throws KettleException if no modifiers apply or a problem occurs
+   */
+  public DBObject getModifierUpdate(Object[] row, boolean isUpdate)
+      throws KettleException {
+
+    boolean haveUpdateFields = false;
+    boolean hasNonNullUpdateValues = false;
+    for (Modifier mod : m_modifiers) {
+      if (mod.applies(m_checkForMatch, isUpdate)) {
+        haveUpdateFields = true;
+        if (!mod.m_valueMeta.isNull(row[mod.m_rowIndex])) {
+          hasNonNullUpdateValues = true;
+          break;
+        }
+      }
+    }
+
+    if (!haveUpdateFields) {
+      throw new KettleException(
+          BaseMessages
+              .getString(PKG,
+                  "MongoDbOutput.Messages.Error.NoFieldsToUpdateSpecifiedForModifierOpp")); //$NON-NLS-1$
+    }
+
+    if (!hasNonNullUpdateValues) {
+      return null;
+    }
+
+    // main update object, keyed by $ operator
+    BasicDBObject updateObject = new BasicDBObject();
+
+    // do the array $sets and the $push of complex structures
+    addStructures(updateObject, "$set", m_setArrays, row, isUpdate); //$NON-NLS-1$
+    addStructures(updateObject, "$push", m_pushStructures, row, isUpdate); //$NON-NLS-1$
+
+    // do the modifiers that involve primitive field values
+    for (PrimitiveModifier p : m_primitives) {
+      Modifier mod = null;
+      for (Modifier m : p.m_modifiers) {
+        if (m.applies(m_checkForMatch, isUpdate)
+            && !m.m_valueMeta.isNull(row[m.m_rowIndex])) {
+          mod = m;
+        }
+      }
+      if (mod == null) {
+        continue;
+      }
+
+      MongoDbOutputData.setMongoValueFromKettleValue(
+          getOperationObject(updateObject, mod.m_operation), p.m_path,
+          mod.m_valueMeta, row[mod.m_rowIndex], mod.m_JSON);
+    }
+
+    return updateObject;
+  }
+
+  protected void addStructures(BasicDBObject updateObject, String operation,
+      List<StructureModifier> structures, Object[] row, boolean isUpdate)
+      throws KettleException {
+    for (StructureModifier s : structures) {
+      boolean any = false;
+      for (int i = 0; i < s.m_include.length; i++) {
+        Modifier m = s.m_modifiers.get(i);
+        s.m_include[i] = m.applies(m_checkForMatch, isUpdate)
+            && !m.m_valueMeta.isNull(row[m.m_rowIndex]);
+        any = any || s.m_include[i];
+      }
+
+      if (any) {
+        getOperationObject(updateObject, operation).put(s.m_path,
+            s.m_plan.toMongo(row, s.m_include));
+      }
+    }
+  }
+
+  /**
+   * Get the object holding the fields for a modifier operation, creating it if
+   * necessary
+   */
+  protected static DBObject getOperationObject(BasicDBObject updateObject,
+      String operation) {
+    DBObject fieldsToUpdateWithValues = (DBObject) updateObject.get(operation);
+    if (fieldsToUpdateWithValues == null) {
+      fieldsToUpdateWithValues = new BasicDBObject();
+      updateObject.put(operation, fieldsToUpdateWithValues);
+    }
+
+    return fieldsToUpdateWithValues;
+  }
+}
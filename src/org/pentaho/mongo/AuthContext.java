@@ -33,6 +33,7 @@ import javax.security.auth.login.LoginContext;
  */
 public class AuthContext {
   private LoginContext login;
+  private boolean released;
 
   /**
    * Create a context for the given login. If the login is null all operations
@@ -92,4 +93,16 @@ public class AuthContext {
       return Subject.doAs(login.getSubject(), action);
     }
   }
+
+  /**
+   * Release the login used by this context. Logins are shared between contexts
+   * created with the same credentials and are logged out when the last context
+   * using them is released. Calling this more than once has no further effect.
+   */
+  public synchronized void release() {
+    if (!released) {
+      released = true;
+      KerberosLoginCache.release(login);
+    }
+  }
 }
@@ -0,0 +1,127 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BSONObject;
+import org.bson.LazyBSONObject;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Cheap estimates of the BSON encoded size of documents and values. Used where
+ * we need to bound memory or message sizes without paying for a full encode.
+ * Estimates are exact for the common types (strings assume one byte per
+ * character).
+ */
+public class BsonSizeEstimator {
+
+  /**
+   * Estimate the encoded size of a document
+   *
+   * @param doc the document
+   * @return the estimated size in bytes
+   */
+  public static int estimate(BSONObject doc) {
+    if (doc instanceof LazyBSONObject) {
+      // already encoded
+      return ((LazyBSONObject) doc).getBSONSize();
+    }
+
+    // int32 length + terminating null
+    int size = 5;
+    for (String key : doc.keySet()) {
+      size += elementSize(key, doc.get(key));
+    }
+
+    return size;
+  }
+
+  /**
+   * Estimate the encoded size of one element (type byte, name and value)
+   *
+   * @param key the element name
+   * @param value the value
+   * @return the estimated size in bytes
+   */
+  public static int elementSize(String key, Object value) {
+    // type byte + cstring name
+    return 1 + key.length() + 1 + valueSize(value);
+  }
+
+  /**
+   * Estimate the encoded size of a value (excluding its type byte and name)
+   *
+   * @param value the value
+   * @return the estimated size in bytes
+   */
+  @SuppressWarnings("rawtypes")
+  public static int valueSize(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      // int32 length + chars + null
+      return 5 + ((String) value).length();
+    }
+    if (value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      return 4;
+    }
+    if (value instanceof Number || value instanceof Date) {
+      return 8;
+    }
+    if (value instanceof Boolean) {
+      return 1;
+    }
+    if (value instanceof ObjectId) {
+      return 12;
+    }
+    if (value instanceof byte[]) {
+      // int32 length + subtype + data
+      return 5 + ((byte[]) value).length;
+    }
+    if (value instanceof Binary) {
+      return 5 + ((Binary) value).length();
+    }
+    if (value instanceof BSONObject) {
+      return estimate((BSONObject) value);
+    }
+    if (value instanceof Map) {
+      int size = 5;
+      for (Object e : ((Map) value).entrySet()) {
+        Map.Entry entry = (Map.Entry) e;
+        size += elementSize(entry.getKey().toString(), entry.getValue());
+      }
+      return size;
+    }
+    if (value instanceof List) {
+      int size = 5;
+      int i = 0;
+      for (Object e : (List) value) {
+        size += elementSize(Integer.toString(i++), e);
+      }
+      return size;
+    }
+
+    return 5 + value.toString().length();
+  }
+}
@@ -0,0 +1,407 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.security.auth.RefreshFailedException;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.pentaho.mongo.KerberosUtil.JaasAuthenticationMode;
+
+/**
+ * A JVM wide cache of Kerberos logins. Logins are keyed by principal,
+ * authentication mode and keytab file so that all steps, step copies and
+ * dialogs authenticating with the same settings share a single authenticated
+ * {@link javax.security.auth.Subject}. Logins are reference counted: each call
+ * to {@link #acquire(JaasAuthenticationMode, String, String)} must be balanced
+ * by a call to {@link #release(LoginContext)}, and the login is logged out when
+ * the last reference is released.
+ *
+ * While at least one login is cached a daemon thread periodically checks the
+ * ticket granting tickets held by the cached subjects and renews (or, if not
+ * renewable, re-acquires) them before they expire. A re-acquired ticket is
+ * obtained through a separate login and added to the shared subject before the
+ * expiring one is removed, so threads using the subject always find a ticket.
+ */
+public class KerberosLoginCache {
+
+  /** How often (ms) to check cached tickets for renewal */
+  protected static final long RENEWAL_CHECK_INTERVAL = 60 * 1000L;
+
+  /**
+   * The fraction of a ticket's lifetime after which it is renewed. Renewing at
+   * 80% leaves plenty of head room for the renewal itself to complete.
+   */
+  protected static final double RENEWAL_WINDOW = 0.8;
+
+  /** Cached logins */
+  private static final Map<LoginKey, CachedLogin> s_logins = new HashMap<LoginKey, CachedLogin>();
+
+  /** Timer used for ticket renewal - only running while logins are cached */
+  private static Timer s_renewalTimer;
+
+  /**
+   * Logs in for a key. Replaceable so that the cache can be exercised without
+   * a KDC
+   */
+  protected static interface Authenticator {
+    LoginContext login(LoginKey key) throws LoginException;
+  }
+
+  /** Logs in with {@link KerberosUtil} */
+  protected static final Authenticator KERBEROS = new Authenticator() {
+    @Override
+    public LoginContext login(LoginKey key) throws LoginException {
+      return KerberosUtil.loginAs(key.m_authMode, key.m_principal,
+          key.m_keytabFile);
+    }
+  };
+
+  /**
+   * Key for a cached login
+   */
+  protected static class LoginKey {
+    protected final JaasAuthenticationMode m_authMode;
+    protected final String m_principal;
+    protected final String m_keytabFile;
+
+    public LoginKey(JaasAuthenticationMode authMode, String principal,
+        String keytabFile) {
+      m_authMode = authMode;
+      m_principal = principal;
+      m_keytabFile = keytabFile;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof LoginKey)) {
+        return false;
+      }
+      LoginKey other = (LoginKey) o;
+
+      return m_authMode == other.m_authMode && eq(m_principal, other.m_principal)
+          && eq(m_keytabFile, other.m_keytabFile);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = m_authMode == null ? 0 : m_authMode.hashCode();
+      result = 31 * result + (m_principal == null ? 0 : m_principal.hashCode());
+      result = 31 * result
+          + (m_keytabFile == null ? 0 : m_keytabFile.hashCode());
+
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return m_principal + " (" + m_authMode + ")"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    private static boolean eq(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  /**
+   * A cached login along with the number of outstanding references to it
+   */
+  protected static class CachedLogin {
+    protected final LoginKey m_key;
+    protected final LoginContext m_login;
+    protected final Authenticator m_authenticator;
+    protected int m_refCount;
+    protected boolean m_loggedOut;
+
+    /**
+     * Logins made to re-acquire tickets for the shared subject. Logging one
+     * out destroys its ticket, so they are only logged out once their ticket
+     * has been replaced in the shared subject and has expired (or the cached
+     * login is logged out)
+     */
+    protected final List<LoginContext> m_renewals = new ArrayList<LoginContext>();
+
+    public CachedLogin(LoginKey key, LoginContext login,
+        Authenticator authenticator) {
+      m_key = key;
+      m_login = login;
+      m_authenticator = authenticator;
+    }
+
+    protected void logout() {
+      m_loggedOut = true;
+      // the original login first - this removes its tickets from the shared
+      // subject
+      logoutQuietly(m_login);
+      Set<Object> shared = m_login.getSubject().getPrivateCredentials();
+      for (LoginContext renewal : m_renewals) {
+        shared.removeAll(renewal.getSubject().getPrivateCredentials(
+            KerberosTicket.class));
+        logoutQuietly(renewal);
+      }
+      m_renewals.clear();
+    }
+  }
+
+  /**
+   * Get a login for the supplied settings, logging in if there is not already
+   * a cached login for them. The caller must call {@link #release(LoginContext)}
+   * once it no longer needs the login.
+   *
+   * @param authMode the authentication mode to use
+   * @param principal the principal to log in as
+   * @param keytabFile the keytab file to use (may be null)
+   * @return a logged in context
+   * @throws LoginException if a login is necessary and fails
+   */
+  public static LoginContext acquire(JaasAuthenticationMode authMode,
+      String principal, String keytabFile) throws LoginException {
+    return acquire(new LoginKey(authMode, principal, keytabFile), KERBEROS);
+  }
+
+  protected static LoginContext acquire(LoginKey key,
+      Authenticator authenticator) throws LoginException {
+    synchronized (s_logins) {
+      CachedLogin cached = s_logins.get(key);
+      if (cached == null) {
+        LoginContext login = authenticator.login(key);
+        cached = new CachedLogin(key, login, authenticator);
+        s_logins.put(key, cached);
+
+        if (s_renewalTimer == null) {
+          s_renewalTimer = new Timer("Kerberos TGT renewal", true); //$NON-NLS-1$
+          s_renewalTimer.schedule(new RenewalTask(), RENEWAL_CHECK_INTERVAL,
+              RENEWAL_CHECK_INTERVAL);
+        }
+      }
+      cached.m_refCount++;
+
+      return cached.m_login;
+    }
+  }
+
+  /**
+   * Release a login obtained from
+   * {@link #acquire(JaasAuthenticationMode, String, String)}. The login is
+   * logged out once all references to it have been released. Logins that were
+   * not obtained from this cache are ignored.
+   *
+   * @param login the login to release
+   */
+  public static void release(LoginContext login) {
+    if (login == null) {
+      return;
+    }
+
+    CachedLogin toLogout = null;
+    synchronized (s_logins) {
+      for (CachedLogin cached : s_logins.values()) {
+        if (cached.m_login == login) {
+          if (--cached.m_refCount <= 0) {
+            s_logins.remove(cached.m_key);
+            toLogout = cached;
+          }
+          break;
+        }
+      }
+
+      if (s_logins.isEmpty() && s_renewalTimer != null) {
+        s_renewalTimer.cancel();
+        s_renewalTimer = null;
+      }
+    }
+
+    if (toLogout != null) {
+      synchronized (toLogout) {
+        toLogout.logout();
+      }
+    }
+  }
+
+  protected static void logoutQuietly(LoginContext login) {
+    try {
+      login.logout();
+    } catch (LoginException e) {
+      // nothing we can do - the subject is discarded anyway
+    }
+  }
+
+  /**
+   * @param login a login obtained from the cache
+   * @return the number of outstanding references to the login (0 if it is not
+   *         cached)
+   */
+  protected static int getRefCount(LoginContext login) {
+    synchronized (s_logins) {
+      for (CachedLogin cached : s_logins.values()) {
+        if (cached.m_login == login) {
+          return cached.m_refCount;
+        }
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Renew any tickets that are close to expiring in the currently cached
+   * logins.
+   */
+  protected static void renewTickets() {
+    List<CachedLogin> toCheck;
+    synchronized (s_logins) {
+      toCheck = new ArrayList<CachedLogin>(s_logins.values());
+    }
+
+    long now = System.currentTimeMillis();
+    for (CachedLogin cached : toCheck) {
+      synchronized (cached) {
+        if (cached.m_loggedOut) {
+          continue;
+        }
+        discardSupersededRenewals(cached);
+        Set<KerberosTicket> tickets = cached.m_login.getSubject()
+            .getPrivateCredentials(KerberosTicket.class);
+
+        for (KerberosTicket ticket : tickets) {
+          if (!needsRenewal(ticket, now)) {
+            continue;
+          }
+
+          boolean renewed = false;
+          if (ticket.isRenewable()) {
+            try {
+              ticket.refresh();
+              renewed = true;
+            } catch (RefreshFailedException e) {
+              // fall through and log in again
+            }
+          }
+
+          if (!renewed) {
+            reacquire(cached, ticket);
+          }
+          // one renewal (or re-login) per subject per check is enough
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Re-acquire the ticket granting ticket of a cached login. Contexts handed
+   * out by the cache share its subject with threads that may be
+   * authenticating right now, so the subject is never logged out: a separate
+   * login obtains a new ticket, which is added to the shared subject before
+   * the expiring ticket is removed. If the login fails the subject is left
+   * untouched.
+   *
+   * @param cached the cached login
+   * @param expiring the ticket to replace
+   */
+  protected static void reacquire(CachedLogin cached, KerberosTicket expiring) {
+    LoginContext fresh;
+    try {
+      fresh = cached.m_authenticator.login(cached.m_key);
+    } catch (LoginException e) {
+      // the old ticket stays in place; we'll try again on the next check
+      return;
+    }
+
+    Set<KerberosTicket> tickets = fresh.getSubject().getPrivateCredentials(
+        KerberosTicket.class);
+    if (tickets.isEmpty()) {
+      logoutQuietly(fresh);
+      return;
+    }
+
+    Set<Object> shared = cached.m_login.getSubject().getPrivateCredentials();
+    shared.addAll(tickets);
+    shared.remove(expiring);
+
+    cached.m_renewals.add(fresh);
+  }
+
+  /**
+   * Log out renewal logins whose tickets are no longer in the shared subject
+   * and have expired, so nothing can still be using them
+   *
+   * @param cached the cached login
+   */
+  protected static void discardSupersededRenewals(CachedLogin cached) {
+    Set<Object> shared = cached.m_login.getSubject().getPrivateCredentials();
+
+    Iterator<LoginContext> i = cached.m_renewals.iterator();
+    while (i.hasNext()) {
+      LoginContext renewal = i.next();
+      boolean superseded = true;
+      for (KerberosTicket t : renewal.getSubject().getPrivateCredentials(
+          KerberosTicket.class)) {
+        if (shared.contains(t) || t.isCurrent()) {
+          superseded = false;
+          break;
+        }
+      }
+
+      if (superseded) {
+        logoutQuietly(renewal);
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns true if the supplied ticket has passed the renewal point of its
+   * lifetime
+   *
+   * @param ticket the ticket to check
+   * @param now the current time
+   * @return true if the ticket should be renewed
+   */
+  protected static boolean needsRenewal(KerberosTicket ticket, long now) {
+    java.util.Date startTime = ticket.getStartTime() != null ? ticket
+        .getStartTime() : ticket.getAuthTime();
+    if (startTime == null || ticket.getEndTime() == null) {
+      return false;
+    }
+    long start = startTime.getTime();
+    long end = ticket.getEndTime().getTime();
+
+    return now >= start + (long) ((end - start) * RENEWAL_WINDOW);
+  }
+
+  /**
+   * Timer task that checks for tickets needing renewal
+   */
+  protected static class RenewalTask extends TimerTask {
+    @Override
+    public void run() {
+      renewTickets();
+    }
+  }
+}
@@ -65,7 +65,9 @@ public class KettleKerberosHelper {
 
   /**
    * Log in to Kerberos with the principal using the configuration defined in
-   * the variable space provided.
+   * the variable space provided. Logins are shared via the
+   * {@link KerberosLoginCache}, so the returned context must be handed back
+   * with {@link #logout(LoginContext)} when no longer required.
    * 
    * @param varSpace
    *          Variable space to look up configuration in.
@@ -79,9 +81,20 @@ public class KettleKerberosHelper {
     try {
       JaasAuthenticationMode authMode = lookupLoginAuthMode(varSpace);
       String keytabFile = lookupKeytabFile(varSpace);
-      return KerberosUtil.loginAs(authMode, principal, keytabFile);
+      return KerberosLoginCache.acquire(authMode, principal, keytabFile);
     } catch (LoginException ex) {
       throw new KettleException("Unable to authenticate as '" + principal + "'", ex);
     }
   }
+
+  /**
+   * Release a login obtained from {@link #login(VariableSpace, String)}. The
+   * underlying subject is logged out once no other step or dialog is using it.
+   * 
+   * @param login
+   *          The login to release. May be null.
+   */
+  public static void logout(LoginContext login) {
+    KerberosLoginCache.release(login);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,158 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+
+import com.mongodb.MongoClient;
+
+/**
+ * A JVM-wide registry of MongoClients shared by the steps (and step copies)
+ * that connect with the same effective settings. Each MongoClient maintains
+ * its own connection pool, monitor threads and replica set discovery, so
+ * sharing one client avoids opening a pool per step copy against the same
+ * cluster.
+ * <p>
+ * Clients are leased and must be released exactly once per lease; a client is
+ * closed when its last lease is released. Each lease states how many
+ * connections it may use concurrently and the pool of a client is sized for
+ * the total over its leases. The driver can't resize the pool of a client once
+ * it has been created, so when a lease would take the total over the size of
+ * the current pool a larger client is created for it (and subsequent leases).
+ * The old client remains in use by its existing leases until they are
+ * released.
+ */
+public class MongoClientRegistry {
+
+  /** The smallest pool we create - the driver's default */
+  public static final int MIN_CONNECTIONS_PER_HOST = 100;
+
+  /** Creates a client when there isn't a suitable one to share */
+  public static interface ClientFactory {
+
+    /**
+     * Create a client
+     *
+     * @param connectionsPerHost the size of the connection pool (per host)
+     * @return a new client
+     * @throws KettleException if the client can't be created
+     */
+    MongoClient create(int connectionsPerHost) throws KettleException;
+  }
+
+  /** A client and the leases held on it */
+  protected static class SharedClient {
+    protected String m_key;
+    protected MongoClient m_client;
+    protected int m_connectionsPerHost;
+    protected int m_leases;
+    protected int m_connections;
+  }
+
+  /** The client that new leases get, by connection settings */
+  private static final Map<String, SharedClient> s_current = new HashMap<String, SharedClient>();
+
+  /** All leased clients (current and superseded) */
+  private static final Map<MongoClient, SharedClient> s_leased = new IdentityHashMap<MongoClient, SharedClient>();
+
+  /**
+   * Lease a client for the given connection settings, creating one if
+   * necessary
+   *
+   * @param key identifies the effective connection settings. Leases with the
+   *          same key share a client
+   * @param connections the number of connections that the lease may use
+   *          concurrently
+   * @param factory creates a client if there isn't one to share
+   * @return a client
+   * @throws KettleException if a client can't be created
+   */
+  public static synchronized MongoClient lease(String key, int connections,
+      ClientFactory factory) throws KettleException {
+    connections = Math.max(1, connections);
+
+    SharedClient shared = s_current.get(key);
+    if (shared == null
+        || shared.m_connections + connections > shared.m_connectionsPerHost) {
+      int required = connections
+          + (shared != null ? shared.m_connections : 0);
+
+      SharedClient created = new SharedClient();
+      created.m_key = key;
+      created.m_connectionsPerHost = Math.max(MIN_CONNECTIONS_PER_HOST,
+          required);
+      created.m_client = factory.create(created.m_connectionsPerHost);
+
+      // the old client (if any) stays open for the leases it has
+      shared = created;
+      s_current.put(key, shared);
+      s_leased.put(shared.m_client, shared);
+    }
+
+    shared.m_leases++;
+    shared.m_connections += connections;
+
+    return shared.m_client;
+  }
+
+  /**
+   * Release a lease on a client. The client is closed if this was the last
+   * lease on it. Clients that were not obtained from the registry are simply
+   * closed.
+   *
+   * @param client the client to release (may be null)
+   * @param connections the number of connections the lease was for
+   */
+  public static synchronized void release(MongoClient client, int connections) {
+    if (client == null) {
+      return;
+    }
+
+    SharedClient shared = s_leased.get(client);
+    if (shared == null) {
+      client.close();
+      return;
+    }
+
+    shared.m_leases--;
+    shared.m_connections -= Math.max(1, connections);
+    if (shared.m_leases <= 0) {
+      s_leased.remove(client);
+      if (s_current.get(shared.m_key) == shared) {
+        s_current.remove(shared.m_key);
+      }
+      client.close();
+    }
+  }
+
+  /**
+   * Get the number of leases held on a client
+   *
+   * @param client the client
+   * @return the number of leases, or 0 if the client isn't leased
+   */
+  public static synchronized int getLeases(MongoClient client) {
+    SharedClient shared = s_leased.get(client);
+
+    return shared != null ? shared.m_leases : 0;
+  }
+}
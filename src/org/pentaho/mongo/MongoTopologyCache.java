@@ -0,0 +1,138 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Caches the replica set configuration (local.system.replset) read from a
+ * cluster, per host list and credential, so that repeated lookups of member
+ * records, tags and custom getLastError modes don't open a new connection
+ * each time. Entries expire after a time to live and can be refreshed
+ * explicitly.
+ */
+public class MongoTopologyCache {
+
+  /** Default time to live for an entry (milliseconds) */
+  public static final long DEFAULT_TTL = 60000L;
+
+  /** Reads the configuration when there isn't a live entry */
+  public static interface Loader {
+
+    /**
+     * Read the replica set configuration
+     *
+     * @return the configuration, or null if there isn't one
+     * @throws KettleException if a problem occurs
+     */
+    DBObject load() throws KettleException;
+  }
+
+  protected static class Entry {
+    protected DBObject m_config;
+    protected long m_expires;
+    protected boolean m_loaded;
+  }
+
+  private static final Map<String, Entry> s_entries = new HashMap<String, Entry>();
+
+  private static long s_ttl = DEFAULT_TTL;
+
+  /**
+   * Set the time to live for entries loaded from now on
+   *
+   * @param ttl the time to live in milliseconds. 0 or less disables caching
+   */
+  public static synchronized void setTimeToLive(long ttl) {
+    s_ttl = ttl;
+  }
+
+  /**
+   * Get the time to live for entries
+   *
+   * @return the time to live in milliseconds
+   */
+  public static synchronized long getTimeToLive() {
+    return s_ttl;
+  }
+
+  /**
+   * Get the replica set configuration for a cluster, loading it if there is no
+   * live entry. Concurrent lookups of the same key wait for a single load.
+   *
+   * @param key identifies the cluster and credential (see
+   *          {@link MongoUtils#connectionKey})
+   * @param loader reads the configuration
+   * @return a copy of the configuration (which the caller may modify), or null
+   *         if there isn't one
+   * @throws KettleException if the configuration can't be loaded
+   */
+  public static DBObject get(String key, Loader loader) throws KettleException {
+    Entry entry = null;
+    long ttl = 0;
+    synchronized (MongoTopologyCache.class) {
+      entry = s_entries.get(key);
+      if (entry == null) {
+        entry = new Entry();
+        s_entries.put(key, entry);
+      }
+      ttl = s_ttl;
+    }
+
+    synchronized (entry) {
+      if (!entry.m_loaded || System.currentTimeMillis() >= entry.m_expires) {
+        entry.m_config = loader.load();
+        entry.m_expires = System.currentTimeMillis() + ttl;
+        entry.m_loaded = true;
+      }
+
+      return copy(entry.m_config);
+    }
+  }
+
+  /**
+   * Discard the entry for a cluster so that the next lookup reads the
+   * configuration from the server again
+   *
+   * @param key identifies the cluster and credential
+   */
+  public static synchronized void refresh(String key) {
+    s_entries.remove(key);
+  }
+
+  /**
+   * Discard all entries
+   */
+  public static synchronized void clear() {
+    s_entries.clear();
+  }
+
+  protected static DBObject copy(DBObject config) {
+    if (config instanceof BasicDBObject) {
+      return (DBObject) ((BasicDBObject) config).copy();
+    }
+
+    return config;
+  }
+}
@@ -18,6 +18,7 @@
 package org.pentaho.mongo;
 
 import java.net.UnknownHostException;
+import java.security.MessageDigest;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
@@ -311,6 +312,24 @@ public class MongoUtils {
       List<String> tagSet, VariableSpace vars, LogChannelInterface log)
       throws KettleException {
 
+    return initConnection(hostsPorts, singlePort, cred,
+        useAllReplicaSetMembers, connTimeout, socketTimeout, readPreference,
+        writeConcern, wTimeout, journaled, tagSet, -1, vars, log);
+  }
+
+  /**
+   * Create a connection with a connection pool of the given size
+   * 
+   * @param connectionsPerHost the size of the connection pool (per host), or
+   *          -1 for the driver's default
+   */
+  protected static MongoClient initConnection(String hostsPorts,
+      String singlePort, MongoCredential cred, boolean useAllReplicaSetMembers,
+      String connTimeout, String socketTimeout, String readPreference,
+      String writeConcern, String wTimeout, boolean journaled,
+      List<String> tagSet, int connectionsPerHost, VariableSpace vars,
+      LogChannelInterface log) throws KettleException {
+
     hostsPorts = vars.environmentSubstitute(hostsPorts);
     singlePort = vars.environmentSubstitute(singlePort);
     int singlePortI = -1;
@@ -383,6 +402,9 @@ public class MongoUtils {
 
     configureConnectionOptions(mongoOptsBuilder, connTimeout, socketTimeout,
         readPreference, writeConcern, wTimeout, journaled, tagSet, vars, log);
+    if (connectionsPerHost > 0) {
+      mongoOptsBuilder.connectionsPerHost(connectionsPerHost);
+    }
 
     MongoClientOptions opts = mongoOptsBuilder.build();
     try {
@@ -415,6 +437,112 @@ public class MongoUtils {
     }
   }
 
+  /**
+   * Lease a connection from the JVM-wide {@link MongoClientRegistry}. Leases
+   * with the same effective connection settings (after variable substitution)
+   * share a client. The lease must be given back via
+   * {@link MongoClientRegistry#release(MongoClient, int)}.
+   * 
+   * @param connections the number of connections that the caller may use
+   *          concurrently
+   * @return a (possibly shared) MongoClient object
+   * @throws KettleException if a problem occurs
+   */
+  public static MongoClient leaseConnection(final String hostsPorts,
+      final String singlePort, final MongoCredential cred,
+      final boolean useAllReplicaSetMembers, final String connTimeout,
+      final String socketTimeout, final String readPreference,
+      final String writeConcern, final String wTimeout,
+      final boolean journaled, final List<String> tagSet, int connections,
+      final VariableSpace vars, final LogChannelInterface log)
+      throws KettleException {
+
+    String key = connectionKey(hostsPorts, singlePort, cred,
+        useAllReplicaSetMembers, connTimeout, socketTimeout, readPreference,
+        writeConcern, wTimeout, journaled, tagSet, vars);
+
+    return MongoClientRegistry.lease(key, connections,
+        new MongoClientRegistry.ClientFactory() {
+          @Override
+          public MongoClient create(int connectionsPerHost)
+              throws KettleException {
+            return initConnection(hostsPorts, singlePort, cred,
+                useAllReplicaSetMembers, connTimeout, socketTimeout,
+                readPreference, writeConcern, wTimeout, journaled, tagSet,
+                connectionsPerHost, vars, log);
+          }
+        });
+  }
+
+  /**
+   * Build a key that identifies the effective settings of a connection. The
+   * password (if any) is included as a digest rather than in the clear
+   * 
+   * @return the key
+   */
+  public static String connectionKey(String hostsPorts, String singlePort,
+      MongoCredential cred, boolean useAllReplicaSetMembers,
+      String connTimeout, String socketTimeout, String readPreference,
+      String writeConcern, String wTimeout, boolean journaled,
+      List<String> tagSet, VariableSpace vars) {
+
+    StringBuilder key = new StringBuilder();
+    appendKeyPart(key, vars, hostsPorts == null ? null : hostsPorts.trim());
+    appendKeyPart(key, vars, singlePort);
+    appendKeyPart(key, null, "" + useAllReplicaSetMembers); //$NON-NLS-1$
+    appendKeyPart(key, vars, connTimeout);
+    appendKeyPart(key, vars, socketTimeout);
+    appendKeyPart(key, vars, readPreference);
+    appendKeyPart(key, vars, writeConcern);
+    appendKeyPart(key, vars, wTimeout);
+    appendKeyPart(key, null, "" + journaled); //$NON-NLS-1$
+    if (tagSet != null) {
+      for (String tags : tagSet) {
+        appendKeyPart(key, vars, tags == null ? null : tags.trim());
+      }
+    }
+
+    if (cred != null) {
+      appendKeyPart(key, null, cred.getMechanism());
+      appendKeyPart(key, null, cred.getUserName());
+      appendKeyPart(key, null, cred.getSource());
+      appendKeyPart(key, null, digest(cred.getPassword()));
+    }
+
+    return key.toString();
+  }
+
+  protected static void appendKeyPart(StringBuilder key, VariableSpace vars,
+      String part) {
+    if (part != null && vars != null) {
+      part = vars.environmentSubstitute(part);
+    }
+
+    // length prefixed so that parts can't run into each other
+    key.append(part == null ? -1 : part.length()).append(':') //$NON-NLS-1$
+        .append(part == null ? "" : part); //$NON-NLS-1$
+  }
+
+  protected static String digest(char[] password) {
+    if (password == null) {
+      return null;
+    }
+
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256"); //$NON-NLS-1$
+      byte[] hash = md.digest(new String(password).getBytes("UTF-8")); //$NON-NLS-1$
+      StringBuilder hex = new StringBuilder();
+      for (byte b : hash) {
+        hex.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+      }
+
+      return hex.toString();
+    } catch (Exception e) {
+      // SHA-256 and UTF-8 are always available
+      throw new IllegalStateException(e);
+    }
+  }
+
   /**
    * Create a connection to a Mongo server based on parameters supplied in the
    * step meta data
@@ -482,6 +610,55 @@ public class MongoUtils {
         writeConcern, wTimeout, journaled, tagSet, vars, log);
   }
 
+  /**
+   * Lease a (possibly shared) connection based on parameters supplied in the
+   * step meta data
+   * 
+   * @param meta the step meta data
+   * @param vars variables to use
+   * @param cred a configured MongoCredential for authentication (or null for no
+   *          authentication)
+   * @param connections the number of connections that the step may use
+   *          concurrently
+   * @param log for logging
+   * @return a configured MongoClient object
+   * @throws KettleException if a problem occurs
+   */
+  public static MongoClient leaseConnection(MongoDbOutputMeta meta,
+      VariableSpace vars, MongoCredential cred, int connections,
+      LogChannelInterface log) throws KettleException {
+
+    return leaseConnection(meta.getHostnames(), meta.getPort(), cred,
+        meta.getUseAllReplicaSetMembers(), meta.getConnectTimeout(),
+        meta.getSocketTimeout(), meta.getReadPreference(),
+        meta.getWriteConcern(), meta.getWTimeout(), meta.getJournal(), null,
+        connections, vars, log);
+  }
+
+  /**
+   * Lease a (possibly shared) connection based on parameters supplied in the
+   * step meta data
+   * 
+   * @param meta the step meta data
+   * @param vars variables to use
+   * @param cred a configured MongoCredential for authentication (or null for no
+   *          authentication)
+   * @param connections the number of connections that the step may use
+   *          concurrently
+   * @param log for logging
+   * @return a configured MongoClient object
+   * @throws KettleException if a problem occurs
+   */
+  public static MongoClient leaseConnection(MongoDbInputMeta meta,
+      VariableSpace vars, MongoCredential cred, int connections,
+      LogChannelInterface log) throws KettleException {
+
+    return leaseConnection(meta.getHostnames(), meta.getPort(), cred,
+        meta.getUseAllReplicaSetMembers(), meta.getConnectTimeout(),
+        meta.getSocketTimeout(), meta.getReadPreference(), null, null, false,
+        meta.getReadPrefTagSets(), connections, vars, log);
+  }
+
   /**
    * Return a list of custom "lastErrorModes" (if any) defined in the replica
    * set configuration object on the server. These can be used as the "w"
@@ -504,32 +681,8 @@ public class MongoUtils {
 
     List<String> customLastErrorModes = new ArrayList<String>();
 
-    MongoClient mongo = null;
-    try {
-      if (cred != null
-          && cred.getMechanism().equals(MongoCredential.MONGODB_CR_MECHANISM)) {
-        // need to make a new credential that specifies the local database
-        cred = MongoCredential.createMongoCRCredential(cred.getUserName(),
-            LOCAL_DB, cred.getPassword());
-      }
-      mongo = initConnection(hostsPorts, singlePort, cred, false, null, null,
-          null, null, null, false, null, vars, log);
-
-      DB local = mongo.getDB(LOCAL_DB);
-      if (local != null) {
-
-        DBCollection replset = local.getCollection(REPL_SET_COLLECTION);
-        if (replset != null) {
-          DBObject config = replset.findOne();
-
-          extractLastErrorModes(config, customLastErrorModes);
-        }
-      }
-    } finally {
-      if (mongo != null) {
-        mongo.close();
-      }
-    }
+    DBObject config = getRepSetConfig(hostsPorts, singlePort, cred, vars, log);
+    extractLastErrorModes(config, customLastErrorModes);
 
     return customLastErrorModes;
   }
@@ -763,53 +916,117 @@ public class MongoUtils {
       String singlePort, MongoCredential cred, VariableSpace vars,
       LogChannelInterface log) throws KettleException {
 
-    MongoClient mongo = null;
     BasicDBList setMembers = null;
-    try {
-      if (cred != null
-          && cred.getMechanism().equals(MongoCredential.MONGODB_CR_MECHANISM)) {
-        // need to make a new credential that specifies the local database
-        cred = MongoCredential.createMongoCRCredential(cred.getUserName(),
-            LOCAL_DB, cred.getPassword());
+    DBObject config = getRepSetConfig(hostsPorts, singlePort, cred, vars, log);
+
+    if (config != null) {
+      Object members = config.get(REPL_SET_MEMBERS);
+
+      if (members instanceof BasicDBList
+          && ((BasicDBList) members).size() > 0) {
+        setMembers = (BasicDBList) members;
+      } else {
+        // log that there are no replica set members defined
+        if (log != null) {
+          log.logBasic(BaseMessages.getString(PKG,
+              "MongoUtils.Message.Warning.NoReplicaSetMembersDefined")); //$NON-NLS-1$
+        }
+      }
+    } else {
+      // log that there are no replica set members defined
+      if (log != null) {
+        log.logBasic(BaseMessages.getString(PKG,
+            "MongoUtils.Message.Warning.NoReplicaSetMembersDefined")); //$NON-NLS-1$
       }
-      mongo = initConnection(hostsPorts, singlePort, cred, false, null, null,
-          null, null, null, false, null, vars, log);
+    }
+
+    return setMembers;
+  }
+
+  /**
+   * Get the replica set configuration object (from local.system.replset). The
+   * configuration is cached per host list and credential for
+   * {@link MongoTopologyCache#getTimeToLive()} milliseconds, so repeated
+   * lookups don't connect to the server.
+   * 
+   * @param hostsPorts the hosts to use
+   * @param singlePort the default port to use if no ports are given in the
+   *          hostsPorts spec
+   * @param cred the credential to use (or null for no authentication)
+   * @param vars environment variables to use
+   * @param log for logging
+   * @return a copy of the configuration, or null if there isn't one
+   * @throws KettleException if a problem occurs
+   */
+  protected static DBObject getRepSetConfig(final String hostsPorts,
+      final String singlePort, MongoCredential cred, final VariableSpace vars,
+      final LogChannelInterface log) throws KettleException {
+
+    if (cred != null
+        && cred.getMechanism().equals(MongoCredential.MONGODB_CR_MECHANISM)) {
+      // need to make a new credential that specifies the local database
+      cred = MongoCredential.createMongoCRCredential(cred.getUserName(),
+          LOCAL_DB, cred.getPassword());
+    }
+    final MongoCredential localCred = cred;
+
+    return MongoTopologyCache.get(
+        topologyKey(hostsPorts, singlePort, localCred, vars),
+        new MongoTopologyCache.Loader() {
+          @Override
+          public DBObject load() throws KettleException {
+            return readRepSetConfig(hostsPorts, singlePort, localCred, vars,
+                log);
+          }
+        });
+  }
+
+  /**
+   * Discard any cached replica set configuration for a cluster, so that the
+   * next lookup reads it from the server
+   * 
+   * @param hostsPorts the hosts to use
+   * @param singlePort the default port to use if no ports are given in the
+   *          hostsPorts spec
+   * @param cred the credential to use (or null for no authentication)
+   * @param vars environment variables to use
+   */
+  public static void refreshTopology(String hostsPorts, String singlePort,
+      MongoCredential cred, VariableSpace vars) {
+    if (cred != null
+        && cred.getMechanism().equals(MongoCredential.MONGODB_CR_MECHANISM)) {
+      cred = MongoCredential.createMongoCRCredential(cred.getUserName(),
+          LOCAL_DB, cred.getPassword());
+    }
+
+    MongoTopologyCache.refresh(topologyKey(hostsPorts, singlePort, cred,
+        vars));
+  }
+
+  protected static String topologyKey(String hostsPorts, String singlePort,
+      MongoCredential cred, VariableSpace vars) {
+    return connectionKey(hostsPorts, singlePort, cred, false, null, null,
+        null, null, null, false, null, vars);
+  }
+
+  protected static DBObject readRepSetConfig(String hostsPorts,
+      String singlePort, MongoCredential cred, VariableSpace vars,
+      LogChannelInterface log) throws KettleException {
+
+    MongoClient mongo = null;
+    DBObject config = null;
+    try {
+      // shared with anything else connected with the same settings, rather
+      // than opening a pool of our own for one query
+      mongo = leaseConnection(hostsPorts, singlePort, cred, false, null, null,
+          null, null, null, false, null, 1, vars, log);
 
       DB local = mongo.getDB(LOCAL_DB);
       if (local != null) {
 
         DBCollection replset = local.getCollection(REPL_SET_COLLECTION);
         if (replset != null) {
-          DBObject config = replset.findOne();
-
-          if (config != null) {
-            Object members = config.get(REPL_SET_MEMBERS);
-
-            if (members instanceof BasicDBList) {
-              if (((BasicDBList) members).size() == 0) {
-                // log that there are no replica set members defined
-                if (log != null) {
-                  log.logBasic(BaseMessages.getString(PKG,
-                      "MongoUtils.Message.Warning.NoReplicaSetMembersDefined")); //$NON-NLS-1$
-                }
-              } else {
-                setMembers = (BasicDBList) members;
-              }
-
-            } else {
-              // log that there are no replica set members defined
-              if (log != null) {
-                log.logBasic(BaseMessages.getString(PKG,
-                    "MongoUtils.Message.Warning.NoReplicaSetMembersDefined")); //$NON-NLS-1$
-              }
-            }
-          } else {
-            // log that there are no replica set members defined
-            if (log != null) {
-              log.logBasic(BaseMessages.getString(PKG,
-                  "MongoUtils.Message.Warning.NoReplicaSetMembersDefined")); //$NON-NLS-1$
-            }
-          }
+          config = replset.findOne();
         } else {
           // log that the replica set collection is not available
           if (log != null) {
@@ -824,15 +1041,17 @@ public class MongoUtils {
               "MongoUtils.Message.Warning.LocalDBNotAvailable")); //$NON-NLS-1$
         }
       }
+    } catch (KettleException ex) {
+      throw ex;
     } catch (Exception ex) {
       throw new KettleException(ex);
     } finally {
       if (mongo != null) {
-        mongo.close();
+        MongoClientRegistry.release(mongo, 1);
       }
     }
 
-    return setMembers;
+    return config;
   }
 
   /**
@@ -893,7 +1112,9 @@ public class MongoUtils {
   }
 
   /**
-   * Creates an authenticated context for the MongoDb Input step.
+   * Creates an authenticated context for the MongoDb Input step. Kerberos
+   * logins are shared between contexts, so callers must call
+   * {@link AuthContext#release()} when they are finished with the context.
    * 
    * @param meta
    * @param varSpace
@@ -905,7 +1126,9 @@ public class MongoUtils {
   }
 
   /**
-   * Creates an authenticated context for the MongoDb Output step.
+   * Creates an authenticated context for the MongoDb Output step. Kerberos
+   * logins are shared between contexts, so callers must call
+   * {@link AuthContext#release()} when they are finished with the context.
    * 
    * @param meta
    * @param varSpace
@@ -936,8 +1159,8 @@ public class MongoUtils {
    * @throws KettleException
    */
   public static List<String> getDatabaseNames(final MongoDbInputMeta meta, final VariableSpace varSpace) throws KettleException {
+    AuthContext context = MongoUtils.createAuthContext(meta, varSpace);
     try {
-      AuthContext context = MongoUtils.createAuthContext(meta, varSpace);
       return context.doAs(new PrivilegedExceptionAction<List<String>>() {
 
         @Override
@@ -959,6 +1182,8 @@ public class MongoUtils {
       } else {
         throw new KettleException("Unable to retrieve database names from MongoDB", ex.getCause());
       }
+    } finally {
+      context.release();
     }
   }
 
@@ -981,8 +1206,8 @@ public class MongoUtils {
    */
   public static Set<String> getCollectionsNames(final MongoDbInputMeta meta, final TransMeta varSpace, final String dB,
       final String username, final String realPass) throws KettleException {
+    AuthContext context = MongoUtils.createAuthContext(meta, varSpace);
     try {
-      AuthContext context = MongoUtils.createAuthContext(meta, varSpace);
       return context.doAs(new PrivilegedExceptionAction<Set<String>>() {
         @Override
         public Set<String> run() throws Exception {
@@ -1013,6 +1238,8 @@ public class MongoUtils {
       } else {
         throw new KettleException("Unable to retrieve collection names for database " + dB + " from MongoDB", ex.getCause());
       }
+    } finally {
+      context.release();
     }
   }
 
@@ -0,0 +1,246 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.trans.step.StepMeta;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.util.JSON;
+
+/**
+ * Runs the queries for driving rows on the query pool, with the queries
+ * answered by canned cursors instead of a server
+ */
+public class MongoDbInputConcurrentQueryTest {
+
+  protected MongoClient m_client;
+  protected DBCollection m_collection;
+
+  /** A cursor over a fixed list of documents */
+  protected static class ListCursor extends DBCursor {
+    protected final Iterator<DBObject> m_docs;
+
+    public ListCursor(DBCollection collection, List<DBObject> docs) {
+      super(collection, new BasicDBObject(), null, null);
+      m_docs = docs.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return m_docs.hasNext();
+    }
+
+    @Override
+    public DBObject next() {
+      return m_docs.next();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * A step reading driving rows from a list. The query for row 0 only
+   * completes once the queries for all the other rows have, and the queries
+   * for the rows "bad" and "broken" fail
+   */
+  protected class ScriptedInput extends MongoDbInput {
+    protected final LinkedList<Object[]> m_rows = new LinkedList<Object[]>();
+    protected final CountDownLatch m_othersDone;
+
+    public ScriptedInput(String... keys) {
+      super(null, null, 0, null, null);
+      for (String k : keys) {
+        m_rows.add(new Object[] { k });
+      }
+      m_othersDone = new CountDownLatch(keys.length - 1);
+    }
+
+    @Override
+    public Object[] getRow() {
+      return m_rows.isEmpty() ? null : m_rows.removeFirst();
+    }
+
+    @Override
+    public StepMeta getStepMeta() {
+      return new StepMeta();
+    }
+
+    @Override
+    public String fieldSubstitute(String s, RowMetaInterface rowMeta,
+        Object[] row) {
+      return s == null ? null : s.replace("?{k}", row[0].toString());
+    }
+
+    @Override
+    protected DBCursor openFind(String query, String fields,
+        MongoDbInputCursorOptions options) throws KettleException {
+      String k = ((DBObject) JSON.parse(query)).get("k").toString();
+      if (k.equals("bad")) {
+        throw new KettleException("bad query");
+      }
+      if (k.equals("broken")) {
+        throw new MongoException("connection reset");
+      }
+
+      if (k.equals("0")) {
+        try {
+          assertTrue(m_othersDone.await(5, TimeUnit.SECONDS));
+          // let the others' results be collected
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          throw new KettleException(e);
+        }
+      }
+
+      List<DBObject> docs = new ArrayList<DBObject>();
+      for (int i = 0; i < 3; i++) {
+        docs.add(new BasicDBObject("k", k).append("i", i));
+      }
+      if (!k.equals("0")) {
+        m_othersDone.countDown();
+      }
+
+      return new ListCursor(m_collection, docs);
+    }
+  }
+
+  @Before
+  public void setUp() throws UnknownHostException {
+    m_client = new MongoClient(new ServerAddress("localhost"));
+    m_collection = m_client.getDB("test").getCollection("test");
+  }
+
+  @After
+  public void tearDown() {
+    m_client.close();
+  }
+
+  protected static MongoDbInputMeta meta(boolean completionOrder) {
+    MongoDbInputMeta meta = new MongoDbInputMeta();
+    meta.setHostnames("localhost");
+    meta.setDbName("test");
+    meta.setCollection("test");
+    meta.setJsonQuery("{\"k\" : \"?{k}\"}");
+    meta.setExecuteForEachIncomingRow(true);
+    meta.setConcurrentQueries("3");
+    meta.setEmitInCompletionOrder(completionOrder);
+
+    return meta;
+  }
+
+  /**
+   * Run all the queries and return the rows of the results, in the order
+   * emitted
+   */
+  protected static List<String> run(ScriptedInput input)
+      throws KettleException {
+    List<String> emitted = new ArrayList<String>();
+    while (input.nextConcurrentResult()) {
+      int i = 0;
+      DBObject doc = null;
+      while ((doc = input.nextDocument()) != null) {
+        // the results of one query are kept together and in order
+        assertEquals(i++, doc.get("i"));
+        if (i == 1) {
+          emitted.add(doc.get("k").toString());
+        }
+      }
+      assertEquals(3, i);
+    }
+
+    return emitted;
+  }
+
+  @Test
+  public void testResultsAreEmittedInRowOrder() throws KettleException {
+    MongoDbInputMeta meta = meta(false);
+    ScriptedInput input = new ScriptedInput("0", "1", "2");
+    MongoDbInputData data = new MongoDbInputData();
+    assertTrue(input.init(meta, data));
+    try {
+      List<String> emitted = run(input);
+
+      // row 0 completes last but comes out first
+      assertEquals("[0, 1, 2]", emitted.toString());
+    } finally {
+      input.dispose(meta, data);
+    }
+  }
+
+  @Test
+  public void testResultsAreEmittedInCompletionOrder() throws KettleException {
+    MongoDbInputMeta meta = meta(true);
+    ScriptedInput input = new ScriptedInput("0", "1", "2");
+    MongoDbInputData data = new MongoDbInputData();
+    assertTrue(input.init(meta, data));
+    try {
+      List<String> emitted = run(input);
+
+      assertEquals(3, emitted.size());
+      assertTrue(!emitted.get(0).equals("0"));
+      assertEquals("0", emitted.get(2));
+    } finally {
+      input.dispose(meta, data);
+    }
+  }
+
+  @Test
+  public void testFailedQueriesSurfaceAsKettleExceptions() {
+    for (String failing : new String[] { "bad", "broken" }) {
+      MongoDbInputMeta meta = meta(false);
+      ScriptedInput input = new ScriptedInput(failing);
+      MongoDbInputData data = new MongoDbInputData();
+      assertTrue(input.init(meta, data));
+      try {
+        run(input);
+        fail("the query for " + failing + " should have failed");
+      } catch (KettleException ex) {
+        String message = ex.getMessage();
+        assertTrue(message, message.contains(failing.equals("bad") ? "bad query"
+            : "connection reset"));
+      } finally {
+        input.dispose(meta, data);
+      }
+    }
+  }
+}
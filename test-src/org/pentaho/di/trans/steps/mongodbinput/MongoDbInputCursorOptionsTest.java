@@ -0,0 +1,98 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.Variables;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+
+public class MongoDbInputCursorOptionsTest {
+
+  @Test
+  public void testOptionsAreSubstituted() throws KettleException {
+    Variables vars = new Variables();
+    vars.setVariable("limit", "50");
+
+    MongoDbInputMeta meta = new MongoDbInputMeta();
+    meta.setSort(" {\"ts\" : -1} ");
+    meta.setLimit("${limit}");
+    meta.setSkip("-3");
+    meta.setMaxTimeMS("1000");
+    meta.setBatchSize("200");
+    meta.setComment("");
+
+    MongoDbInputCursorOptions options = MongoDbInputCursorOptions.create(
+        meta, vars, null, null);
+    assertEquals("{\"ts\" : -1}", options.m_sort);
+    assertEquals(50, options.m_limit);
+    assertEquals(0, options.m_skip);
+    assertEquals(1000L, options.getMaxTime());
+    assertEquals(200, options.getBatchSize());
+    assertEquals(null, options.m_comment);
+    assertFalse(options.hasHint());
+
+    // a limit applies to the results of each query
+    assertFalse(options.allowsCombining());
+    meta.setLimit("");
+    options = MongoDbInputCursorOptions.create(meta, vars, null, null);
+    assertTrue(options.allowsCombining());
+
+    assertEquals(options,
+        MongoDbInputCursorOptions.create(meta, vars, null, null));
+    meta.setComment("step 1");
+    assertFalse(options.equals(MongoDbInputCursorOptions.create(meta, vars,
+        null, null)));
+  }
+
+  @Test
+  public void testOptionsAreAppliedToTheCursor() throws UnknownHostException,
+      KettleException {
+    MongoClient mongo = new MongoClient(new ServerAddress("localhost"));
+    try {
+      DBCursor cursor = mongo.getDB("test").getCollection("test")
+          .find(new BasicDBObject("a", 1));
+
+      MongoDbInputMeta meta = new MongoDbInputMeta();
+      meta.setNoCursorTimeout(true);
+      meta.setComment("kettle step");
+      meta.setIndexHint("{\"a\" : 1}");
+      MongoDbInputCursorOptions options = MongoDbInputCursorOptions.create(
+          meta, new Variables(), null, null);
+      assertTrue(options.hasHint());
+
+      options.apply(cursor);
+      assertTrue((cursor.getOptions() & Bytes.QUERYOPTION_NOTIMEOUT) != 0);
+      // the query itself is unchanged
+      assertEquals(new BasicDBObject("a", 1), cursor.getQuery());
+    } finally {
+      mongo.close();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class MongoDbInputQueryPlanTest {
+
+  protected static DBObject parse(String json) {
+    return (DBObject) JSON.parse(json);
+  }
+
+  @Test
+  public void testAnalyzeQueryPlannerOutput() {
+    MongoDbInputQueryPlan plan = MongoDbInputQueryPlan.analyze(parse(
+        "{\"queryPlanner\" : {\"winningPlan\" : {\"stage\" : \"FETCH\", "
+            + "\"inputStage\" : {\"stage\" : \"IXSCAN\", "
+            + "\"keyPattern\" : {\"a\" : 1}}}}, "
+            + "\"executionStats\" : {\"totalKeysExamined\" : 10, "
+            + "\"totalDocsExamined\" : 10}}"));
+    assertFalse(plan.isCollScan());
+    assertFalse(plan.isCovered());
+    assertEquals(10L, plan.getKeysExamined());
+    assertEquals(10L, plan.getDocsExamined());
+
+    plan = MongoDbInputQueryPlan.analyze(parse(
+        "{\"queryPlanner\" : {\"winningPlan\" : {\"stage\" : \"PROJECTION\", "
+            + "\"inputStage\" : {\"stage\" : \"IXSCAN\"}}}}"));
+    assertTrue(plan.isCovered());
+    assertEquals(-1L, plan.getKeysExamined());
+
+    // an aggregation
+    plan = MongoDbInputQueryPlan.analyze(parse(
+        "{\"stages\" : [{\"$cursor\" : {\"queryPlanner\" : "
+            + "{\"winningPlan\" : {\"stage\" : \"COLLSCAN\"}}}}]}"));
+    assertTrue(plan.isCollScan());
+  }
+
+  @Test
+  public void testAnalyzeLegacyOutput() {
+    MongoDbInputQueryPlan plan = MongoDbInputQueryPlan.analyze(parse(
+        "{\"cursor\" : \"BasicCursor\", \"indexOnly\" : false, "
+            + "\"nscanned\" : 1000, \"nscannedObjects\" : 1000}"));
+    assertTrue(plan.isCollScan());
+    assertEquals("BasicCursor", plan.getWinningPlan());
+    assertEquals(1000L, plan.getDocsExamined());
+
+    plan = MongoDbInputQueryPlan.analyze(parse(
+        "{\"cursor\" : \"BtreeCursor a_1_b_1\", \"indexOnly\" : true, "
+            + "\"nscanned\" : 5, \"nscannedObjects\" : 0}"));
+    assertFalse(plan.isCollScan());
+    assertTrue(plan.isCovered());
+  }
+
+  @Test
+  public void testCoveringIndex() {
+    List<DBObject> indexes = new ArrayList<DBObject>();
+    indexes.add(parse("{\"key\" : {\"_id\" : 1}, \"name\" : \"_id_\"}"));
+    indexes.add(parse("{\"key\" : {\"a\" : 1, \"b\" : 1}, \"name\" : \"s\", "
+        + "\"sparse\" : true}"));
+    indexes.add(parse("{\"key\" : {\"a\" : 1, \"b.c\" : -1}, \"name\" : \"ab\"}"));
+
+    DBObject projection = parse("{\"a\" : 1, \"b.c\" : 1, \"_id\" : 0}");
+    assertEquals(parse("{\"a\" : 1, \"b.c\" : -1}"),
+        MongoDbInputQueryPlan.coveringIndex(indexes,
+            parse("{\"a\" : {\"$gt\" : 5}}"), projection));
+
+    // the query tests a field that isn't in the index
+    assertEquals(null, MongoDbInputQueryPlan.coveringIndex(indexes,
+        parse("{\"d\" : 1}"), projection));
+
+    // _id is returned
+    assertEquals(null, MongoDbInputQueryPlan.coveringIndex(indexes,
+        parse("{}"), parse("{\"a\" : 1}")));
+
+    // a slice
+    assertEquals(null, MongoDbInputQueryPlan.coveringIndex(indexes,
+        parse("{}"), parse("{\"a\" : {\"$slice\" : 2}, \"_id\" : 0}")));
+  }
+
+  @Test
+  public void testCollScanPolicyByName() {
+    assertEquals(MongoDbInputQueryPlan.CollScanPolicy.FAIL,
+        MongoDbInputQueryPlan.CollScanPolicy.byName(" fail"));
+    assertEquals(MongoDbInputQueryPlan.CollScanPolicy.IGNORE,
+        MongoDbInputQueryPlan.CollScanPolicy.byName("Ignore"));
+    assertEquals(MongoDbInputQueryPlan.CollScanPolicy.WARN,
+        MongoDbInputQueryPlan.CollScanPolicy.byName(""));
+  }
+}
@@ -0,0 +1,108 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodbinput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class MongoDbInputReadRouterTest {
+
+  protected static DBObject member(String name, int state, int health,
+      long optime, Integer ping) {
+    BasicDBObject m = new BasicDBObject("name", name).append("state", state)
+        .append("health", (double) health)
+        .append("optimeDate", new Date(optime));
+    if (ping != null) {
+      m.append("pingMs", ping);
+    }
+
+    return m;
+  }
+
+  protected static DBObject status() {
+    BasicDBList members = new BasicDBList();
+    members.add(member("primary:27017", 1, 1, 100000L, null));
+    members.add(member("near:27017", 2, 1, 99000L, 2));
+    members.add(member("alsonear:27017", 2, 1, 100000L, 10));
+    members.add(member("far:27017", 2, 1, 100000L, 80));
+    members.add(member("lagging:27017", 2, 1, 40000L, 1));
+    members.add(member("down:27017", 2, 0, 100000L, 1));
+    members.add(member("arbiter:27017", 7, 1, 100000L, 1));
+
+    return new BasicDBObject("set", "rs").append("members", members);
+  }
+
+  @Test
+  public void testLaggingAndUnhealthyMembersAreLeftOut() {
+    List<MongoDbInputReadRouter.Member> eligible = MongoDbInputReadRouter
+        .eligibleMembers(status(), 10000L);
+
+    assertEquals(3, eligible.size());
+    // nearest first
+    assertEquals("near:27017", eligible.get(0).getName());
+    assertEquals(1000L, eligible.get(0).getLag());
+    assertEquals("alsonear:27017", eligible.get(1).getName());
+    assertEquals("far:27017", eligible.get(2).getName());
+
+    // no limit on the lag
+    eligible = MongoDbInputReadRouter.eligibleMembers(status(), -1);
+    assertEquals(4, eligible.size());
+    assertEquals("lagging:27017", eligible.get(0).getName());
+    assertEquals(60000L, eligible.get(0).getLag());
+  }
+
+  @Test
+  public void testCopiesAreSpreadOverTheNearestMembers() {
+    List<MongoDbInputReadRouter.Member> eligible = MongoDbInputReadRouter
+        .eligibleMembers(status(), 10000L);
+
+    assertEquals("near:27017", MongoDbInputReadRouter.choose(eligible, 0)
+        .getName());
+    assertEquals("alsonear:27017", MongoDbInputReadRouter.choose(eligible, 1)
+        .getName());
+    // the far member is outside the latency window
+    assertEquals("near:27017", MongoDbInputReadRouter.choose(eligible, 2)
+        .getName());
+
+    eligible = MongoDbInputReadRouter.eligibleMembers(status(), 0);
+    assertTrue(eligible.size() == 2);
+    assertEquals(null, MongoDbInputReadRouter.choose(
+        MongoDbInputReadRouter.eligibleMembers(new BasicDBObject(), 0), 0));
+  }
+
+  @Test
+  public void testEvaluationIsDueAfterTheInterval() {
+    MongoDbInputReadRouter router = new MongoDbInputReadRouter(-1, 60000L);
+    assertTrue(router.isDue());
+
+    router.m_lastEvaluated = System.currentTimeMillis();
+    assertTrue(!router.isDue());
+
+    router.m_lastEvaluated -= 60000L;
+    assertTrue(router.isDue());
+  }
+}
@@ -18,14 +18,19 @@
 package org.pentaho.di.trans.steps.mongodbinput;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.bson.BasicBSONEncoder;
+import org.easymock.EasyMock;
 import org.junit.Test;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettlePluginException;
@@ -36,8 +41,15 @@ import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaPluginType;
 import org.pentaho.di.core.variables.Variables;
+import org.pentaho.mongo.AuthContext;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandFailureException;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
 import com.mongodb.util.JSON;
 
 public class MongoDbInputTest {
@@ -320,6 +332,418 @@ public class MongoDbInputTest {
     assertTrue(result[1][1] == null);
   }
 
+  @Test
+  public void testArrayIndexAndVariablePaths() throws KettleException {
+    Object mongoO = JSON.parse(s_testData3);
+    assertTrue(mongoO instanceof DBObject);
+
+    List<MongoDbInputData.MongoField> fields = new ArrayList<MongoDbInputData.MongoField>();
+
+    MongoDbInputData.MongoField mm = new MongoDbInputData.MongoField();
+    mm.m_fieldName = "test";
+    mm.m_fieldPath = "$.one.two[1].rec1.${rec.field}";
+    mm.m_kettleType = "String";
+    fields.add(mm);
+
+    mm = new MongoDbInputData.MongoField();
+    mm.m_fieldName = "test2";
+    mm.m_fieldPath = "$.one.two[2].rec1.f1";
+    mm.m_kettleType = "String";
+    fields.add(mm);
+
+    mm = new MongoDbInputData.MongoField();
+    mm.m_fieldName = "test3";
+    mm.m_fieldPath = "$.name[0]";
+    mm.m_kettleType = "String";
+    fields.add(mm);
+
+    RowMetaInterface rowMeta = new RowMeta();
+    for (MongoDbInputData.MongoField m : fields) {
+      ValueMetaInterface vm = new ValueMeta(m.m_fieldName,
+          ValueMeta.getType(m.m_kettleType));
+      rowMeta.addValueMeta(vm);
+    }
+
+    // variables are resolved when the paths are compiled
+    Variables vars = new Variables();
+    vars.setVariable("rec_field", "f2");
+
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields(fields);
+    data.init(vars);
+
+    Object[] result = data.mongoDocumentToKettle((DBObject) mongoO,
+        new Variables())[0];
+
+    assertEquals("zaphod", result[0]);
+
+    // index out of bounds
+    assertTrue(result[1] == null);
+
+    // not an array
+    assertTrue(result[2] == null);
+  }
+
+  @Test
+  public void testTypeConversions() throws KettleException {
+    Object mongoO = JSON.parse("{\"big\" : 1099511627776, \"small\" : 7, "
+        + "\"flag\" : true, \"ratio\" : 1.5 }");
+    assertTrue(mongoO instanceof DBObject);
+
+    String[][] specs = { { "big", "Integer" }, { "small", "Integer" },
+        { "flag", "Boolean" }, { "ratio", "Number" }, { "small", "Number" },
+        { "big", "BigNumber" } };
+    List<MongoDbInputData.MongoField> fields = new ArrayList<MongoDbInputData.MongoField>();
+    RowMetaInterface rowMeta = new RowMeta();
+    for (int i = 0; i < specs.length; i++) {
+      MongoDbInputData.MongoField mm = new MongoDbInputData.MongoField();
+      mm.m_fieldName = "f" + i;
+      mm.m_fieldPath = "$." + specs[i][0];
+      mm.m_kettleType = specs[i][1];
+      fields.add(mm);
+      rowMeta.addValueMeta(new ValueMeta(mm.m_fieldName, ValueMeta
+          .getType(mm.m_kettleType)));
+    }
+
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields(fields);
+    data.init();
+    Object[] result = data.mongoDocumentToKettle((DBObject) mongoO,
+        new Variables())[0];
+
+    // 64 bit values must not be truncated
+    assertEquals(new Long(1099511627776L), result[0]);
+    assertEquals(new Long(7), result[1]);
+    assertEquals(Boolean.TRUE, result[2]);
+    assertEquals(new Double(1.5), result[3]);
+    assertEquals(new Double(7), result[4]);
+    assertEquals(new BigDecimal(1099511627776L), result[5]);
+  }
+
+  @Test
+  public void testSelectiveDecoding() throws KettleException {
+    Object mongoO = JSON.parse(s_testData3);
+    assertTrue(mongoO instanceof DBObject);
+    byte[] bson = new BasicBSONEncoder().encode((DBObject) mongoO);
+
+    List<MongoDbInputData.MongoField> fields = new ArrayList<MongoDbInputData.MongoField>();
+    String[] paths = { "$.one.two[*].rec1.f1", "$.name",
+        "$.one.three[0].rec2" };
+    for (int i = 0; i < paths.length; i++) {
+      MongoDbInputData.MongoField mm = new MongoDbInputData.MongoField();
+      mm.m_fieldName = "f" + i;
+      mm.m_fieldPath = paths[i];
+      mm.m_kettleType = "String";
+      fields.add(mm);
+    }
+
+    RowMetaInterface rowMeta = new RowMeta();
+    for (MongoDbInputData.MongoField m : fields) {
+      rowMeta.addValueMeta(new ValueMeta(m.m_fieldName, ValueMeta
+          .getType(m.m_kettleType)));
+    }
+
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields(fields);
+    data.init();
+
+    DBObject decoded = data.createDecoderFactory().create()
+        .decode(bson, (DBCollection) null);
+
+    // only the paths we need are materialized
+    assertTrue(decoded.get("aNumber") == null);
+    DBObject one = (DBObject) decoded.get("one");
+    DBObject rec1 = (DBObject) ((DBObject) ((List<?>) one.get("two")).get(0))
+        .get("rec1");
+    assertEquals("bob", rec1.get("f1"));
+    assertTrue(rec1.get("f2") == null);
+
+    // a query failure reply is decoded in full, so that the driver can raise
+    // the right exception
+    DBObject failure = data.createDecoderFactory().create().decode(
+        new BasicBSONEncoder().encode(new BasicDBObject("$err",
+            "operation exceeded time limit").append("code", 50)),
+        (DBCollection) null);
+    assertEquals("operation exceeded time limit", failure.get("$err"));
+    assertEquals(50, failure.get("code"));
+
+    Object[][] result = data.mongoDocumentToKettle(decoded, new Variables());
+    Object[][] expected = data.mongoDocumentToKettle((DBObject) mongoO,
+        new Variables());
+    assertEquals(expected.length, result.length);
+    for (int i = 0; i < expected.length; i++) {
+      for (int j = 0; j < rowMeta.size(); j++) {
+        assertEquals(expected[i][j], result[i][j]);
+      }
+    }
+    assertEquals("sid", result[1][0]);
+  }
+
+  @Test
+  public void testAutomaticProjection() throws KettleException {
+    List<MongoDbInputData.MongoField> fields = new ArrayList<MongoDbInputData.MongoField>();
+    String[] paths = { "$.name", "$.one.three[0].rec2.f0",
+        "$.one.three[2].rec2.f0", "$.one.two[*].rec1.f1", "$.a",
+        "$.a.b[1]" };
+    for (int i = 0; i < paths.length; i++) {
+      MongoDbInputData.MongoField mm = new MongoDbInputData.MongoField();
+      mm.m_fieldName = "f" + i;
+      mm.m_fieldPath = paths[i];
+      mm.m_kettleType = "String";
+      fields.add(mm);
+    }
+
+    RowMetaInterface rowMeta = new RowMeta();
+    for (MongoDbInputData.MongoField m : fields) {
+      rowMeta.addValueMeta(new ValueMeta(m.m_fieldName, ValueMeta
+          .getType(m.m_kettleType)));
+    }
+
+    MongoDbInputData data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields(fields);
+    data.init();
+
+    DBObject projection = data.createProjection();
+    assertEquals(5, projection.keySet().size());
+    assertEquals(1, projection.get("name"));
+    assertEquals(3, ((DBObject) projection.get("one.three")).get("$slice"));
+    assertEquals(1, projection.get("one.two"));
+    assertEquals(1, projection.get("a"));
+    assertEquals(0, projection.get("_id"));
+
+    // only array elements - a projection of just slices would be an exclusion
+    // on servers before 4.4
+    fields = fields.subList(1, 3);
+    data = new MongoDbInputData();
+    data.outputRowMeta = rowMeta;
+    data.setMongoFields(fields);
+    data.init();
+
+    projection = data.createProjection();
+    assertEquals(2, projection.keySet().size());
+    assertEquals(3, ((DBObject) projection.get("one.three")).get("$slice"));
+    assertEquals(1, projection.get("_id"));
+  }
+
+  @Test
+  public void testBatchedQueriesDemultiplexInRowOrder() {
+    List<DBObject> queries = new ArrayList<DBObject>();
+    queries.add((DBObject) JSON.parse("{\"k\" : 1}"));
+    queries.add((DBObject) JSON.parse("{\"k\" : 2}"));
+    queries.add((DBObject) JSON.parse("{\"k\" : 1.0}"));
+
+    MongoDbInputBatcher batcher = MongoDbInputBatcher.create(queries);
+    assertTrue(batcher != null);
+    DBObject combined = batcher.getCombinedQuery();
+    assertTrue(((DBObject) combined.get("k")).get("$in") != null);
+
+    batcher.add((DBObject) JSON.parse("{\"k\" : 2, \"n\" : \"a\"}"));
+    batcher.add((DBObject) JSON.parse("{\"k\" : 1, \"n\" : \"b\"}"));
+    batcher.add((DBObject) JSON.parse("{\"k\" : [1, 3], \"n\" : \"c\"}"));
+    batcher.add((DBObject) JSON.parse("{\"k\" : 4, \"n\" : \"d\"}"));
+
+    List<DBObject> results = batcher.getResults();
+    String[] expected = { "b", "c", "a", "b", "c" };
+    assertEquals(expected.length, results.size());
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], results.get(i).get("n"));
+    }
+
+    // operators can't be matched on the client
+    queries.add((DBObject) JSON.parse("{\"k\" : {\"$gt\" : 1}}"));
+    assertTrue(MongoDbInputBatcher.create(queries) == null);
+  }
+
+  @Test
+  public void testPartitionRangesAreDisjoint() {
+    List<Object> candidates = new ArrayList<Object>();
+    for (int i = 0; i < 12; i++) {
+      candidates.add(i * 10);
+    }
+
+    List<Object> splits = MongoDbInputPartitioner.pickEvenly(candidates, 4);
+    assertEquals(3, splits.size());
+    assertEquals(30, splits.get(0));
+    assertEquals(60, splits.get(1));
+    assertEquals(90, splits.get(2));
+
+    // first copy gets everything below the first split point (including
+    // docs that don't have the key)
+    assertEquals("{ \"_id\" : { \"$not\" : { \"$gte\" : 30}}}",
+        MongoDbInputPartitioner.partitionRange("_id", splits, 0).toString());
+    assertEquals("{ \"_id\" : { \"$gte\" : 30 , \"$lt\" : 60}}",
+        MongoDbInputPartitioner.partitionRange("_id", splits, 1).toString());
+    assertEquals("{ \"_id\" : { \"$gte\" : 90}}", MongoDbInputPartitioner
+        .partitionRange("_id", splits, 3).toString());
+
+    // more copies than split points
+    assertEquals("{ \"_id\" : { \"$in\" : [ ]}}", MongoDbInputPartitioner
+        .partitionRange("_id", splits, 4).toString());
+
+    DBObject query = (DBObject) JSON.parse("{\"name\" : \"george\"}");
+    DBObject restricted = MongoDbInputPartitioner.restrictQuery(query,
+        MongoDbInputPartitioner.partitionRange("_id", splits, 3));
+    assertEquals(
+        "{ \"$and\" : [ { \"name\" : \"george\"} , { \"_id\" : { \"$gte\" : 90}}]}",
+        restricted.toString());
+  }
+
+  protected static CommandFailureException commandFailure(String message) {
+    CommandFailureException ex = EasyMock
+        .createMock(CommandFailureException.class);
+    EasyMock.expect(ex.getMessage()).andReturn(message).anyTimes();
+    EasyMock.replay(ex);
+
+    return ex;
+  }
+
+  @Test
+  public void testAggregateFallsBackToInlineOnlyForOldServers() {
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add((DBObject) JSON.parse("{\"$match\" : {\"a\" : 1}}"));
+
+    DBCollection collection = EasyMock.createMock(DBCollection.class);
+    Cursor inline = EasyMock.createMock(Cursor.class);
+    EasyMock.expect(
+        collection.aggregate(EasyMock.eq(pipeline),
+            EasyMock.anyObject(AggregationOptions.class))).andThrow(
+        commandFailure("{ \"errmsg\" : \"exception: unrecognized field "
+            + "'cursor'\" , \"code\" : 16436 , \"ok\" : 0.0}"));
+    EasyMock.expect(
+        collection.aggregate(EasyMock.eq(pipeline),
+            EasyMock.anyObject(AggregationOptions.class))).andReturn(inline);
+    EasyMock.replay(collection, inline);
+
+    assertTrue(MongoDbInputData.aggregate(collection, pipeline, 100, 0,
+        false, null) == inline);
+    EasyMock.verify(collection);
+  }
+
+  @Test
+  public void testAggregateFailuresAreNotRetried() {
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add((DBObject) JSON.parse("{\"$bogus\" : {}}"));
+
+    CommandFailureException failure = commandFailure("{ \"errmsg\" : "
+        + "\"exception: Unrecognized pipeline stage name: '$bogus'\" , "
+        + "\"code\" : 16436 , \"ok\" : 0.0}");
+    DBCollection collection = EasyMock.createMock(DBCollection.class);
+    // only the one attempt is expected
+    EasyMock.expect(
+        collection.aggregate(EasyMock.eq(pipeline),
+            EasyMock.anyObject(AggregationOptions.class))).andThrow(failure);
+    EasyMock.replay(collection);
+
+    try {
+      MongoDbInputData.aggregate(collection, pipeline, 100, 1000, false, null);
+      fail("the failure should have been thrown");
+    } catch (CommandFailureException ex) {
+      assertTrue(ex == failure);
+    }
+    EasyMock.verify(collection);
+
+    assertFalse(MongoDbInputData.isCursorUnsupported(commandFailure(
+        "{ \"errmsg\" : \"operation exceeded time limit\" , "
+            + "\"code\" : 50 , \"ok\" : 0.0}")));
+  }
+
+  @Test
+  public void testPrefetchReaderClosesTheCursor() throws KettleException,
+      InterruptedException {
+    final List<Thread> closedBy = new ArrayList<Thread>();
+    Cursor cursor = new Cursor() {
+      int m_n;
+
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public DBObject next() {
+        return (DBObject) JSON.parse("{\"n\" : " + m_n++ + "}");
+      }
+
+      @Override
+      public void remove() {
+      }
+
+      @Override
+      public long getCursorId() {
+        return 1;
+      }
+
+      @Override
+      public ServerAddress getServerAddress() {
+        return null;
+      }
+
+      @Override
+      public void close() {
+        synchronized (closedBy) {
+          closedBy.add(Thread.currentThread());
+        }
+      }
+    };
+
+    MongoDbInputPrefetcher prefetcher = new MongoDbInputPrefetcher(cursor,
+        new AuthContext(null), 5, 0);
+    prefetcher.start("test prefetch");
+    assertEquals(0, ((Number) prefetcher.next().get("n")).intValue());
+
+    // the step thread stops reading part way through an endless cursor
+    prefetcher.close();
+    for (int i = 0; i < 100 && !prefetcher.isFinished(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(prefetcher.isFinished());
+    synchronized (closedBy) {
+      assertEquals(1, closedBy.size());
+      assertTrue(closedBy.get(0) != Thread.currentThread());
+    }
+  }
+
+  @Test
+  public void testNoPartitionsWhenExecutingForEachRow() {
+    MongoDbInputMeta meta = new MongoDbInputMeta();
+    meta.setPartitionedRead(true);
+    assertTrue(MongoDbInput.isPartitionedRead(meta, 4));
+    assertFalse(MongoDbInput.isPartitionedRead(meta, 1));
+
+    // driving rows are spread over the copies, so each row's query has to
+    // see the whole collection
+    meta.setExecuteForEachIncomingRow(true);
+    assertFalse(MongoDbInput.isPartitionedRead(meta, 4));
+  }
+
+  @Test
+  public void testPrefetchDeliversAllDocumentsInOrder() throws KettleException {
+    List<DBObject> docs = new ArrayList<DBObject>();
+    for (int i = 0; i < 500; i++) {
+      docs.add((DBObject) JSON.parse("{\"n\" : " + i + "}"));
+    }
+
+    // small bounds so that the reader has to wait for us
+    MongoDbInputPrefetcher prefetcher = new MongoDbInputPrefetcher(
+        docs.iterator(), new AuthContext(null), 10, 100);
+    prefetcher.start("test prefetch");
+
+    int count = 0;
+    DBObject doc = null;
+    while ((doc = prefetcher.next()) != null) {
+      assertEquals(count++, doc.get("n"));
+    }
+    prefetcher.close();
+
+    assertEquals(500, count);
+    assertEquals(500, prefetcher.getDocsRead());
+    assertTrue(prefetcher.getMaxQueueDepth() <= 10);
+  }
+
   public static void main(String[] args) {
     MongoDbInputTest test = new MongoDbInputTest();
     try {
@@ -330,8 +754,21 @@ public class MongoDbInputTest {
       test.testArrayUnwindArrayFieldsOnly();
       test.testArrayUnwindWithOneExistingAndOneNonExistingField();
       test.testArrayUnwindOneArrayExpandFieldAndOneNormalField();
+      test.testArrayIndexAndVariablePaths();
+      test.testTypeConversions();
+      test.testSelectiveDecoding();
+      test.testAutomaticProjection();
+      test.testBatchedQueriesDemultiplexInRowOrder();
+      test.testPartitionRangesAreDisjoint();
+      test.testNoPartitionsWhenExecutingForEachRow();
+      test.testAggregateFallsBackToInlineOnlyForOldServers();
+      test.testAggregateFailuresAreNotRetried();
+      test.testPrefetchDeliversAllDocumentsInOrder();
+      test.testPrefetchReaderClosesTheCursor();
     } catch (KettleException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
     }
   }
 }
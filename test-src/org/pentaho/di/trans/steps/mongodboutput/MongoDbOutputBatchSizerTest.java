@@ -0,0 +1,82 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.pentaho.di.trans.steps.mongodboutput.MongoDbOutputBatchSizer.Change;
+
+public class MongoDbOutputBatchSizerTest {
+
+  @Test
+  public void testStartsWithinBounds() {
+    assertEquals(50, new MongoDbOutputBatchSizer(50, 500, 10).getBatchSize());
+    assertEquals(500, new MongoDbOutputBatchSizer(50, 500, 1000)
+        .getBatchSize());
+    assertEquals(100, new MongoDbOutputBatchSizer(50, 500, 100)
+        .getBatchSize());
+  }
+
+  @Test
+  public void testGrowsAdditivelyWhileLatencyImproves() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer(10, 40, 10);
+
+    // the first batch only establishes the average
+    assertEquals(Change.NONE, sizer.batchWritten(10, 100, 0));
+    assertEquals(10, sizer.getBatchSize());
+
+    assertEquals(Change.GROW, sizer.batchWritten(10, 90, 0));
+    assertEquals(20, sizer.getBatchSize());
+    assertEquals(Change.GROW, sizer.batchWritten(20, 160, 0));
+    assertEquals(30, sizer.getBatchSize());
+    assertEquals(Change.GROW, sizer.batchWritten(30, 200, 0));
+    assertEquals(40, sizer.getBatchSize());
+
+    // at the upper bound
+    assertEquals(Change.NONE, sizer.batchWritten(40, 200, 0));
+    assertEquals(40, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testHoldsWhenLatencyGetsWorse() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer(10, 100, 20);
+    sizer.batchWritten(20, 200, 0);
+    assertEquals(Change.NONE, sizer.batchWritten(20, 300, 0));
+    assertEquals(20, sizer.getBatchSize());
+  }
+
+  @Test
+  public void testCutsMultiplicativelyOnRetriesAndSpikes() {
+    MongoDbOutputBatchSizer sizer = new MongoDbOutputBatchSizer(10, 1000, 400);
+    sizer.batchWritten(400, 400, 0);
+
+    assertEquals(Change.RETRIES, sizer.batchWritten(400, 5000, 1));
+    assertEquals(200, sizer.getBatchSize());
+
+    assertEquals(Change.LATENCY_SPIKE, sizer.batchWritten(200, 1000, 0));
+    assertEquals(100, sizer.getBatchSize());
+
+    // never below the lower bound
+    for (int i = 0; i < 10; i++) {
+      sizer.batchWritten(100, 1000, 1);
+    }
+    assertEquals(10, sizer.getBatchSize());
+    assertEquals(Change.NONE, sizer.batchWritten(10, 1000, 1));
+  }
+}
@@ -0,0 +1,199 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.LazyBSONObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMeta;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.variables.Variables;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class MongoDbOutputBsonEncoderTest {
+
+  protected static MongoDbOutputMeta.MongoField field(String name,
+      String path, boolean useIncomingName) {
+    MongoDbOutputMeta.MongoField mf = new MongoDbOutputMeta.MongoField();
+    mf.m_incomingFieldName = name;
+    mf.m_mongoDocPath = path;
+    mf.m_useIncomingFieldNameAsMongoFieldName = useIncomingName;
+
+    return mf;
+  }
+
+  protected static MongoDbOutputDocumentPlan plan(
+      List<MongoDbOutputMeta.MongoField> paths, RowMetaInterface rmi)
+      throws KettleException {
+    return MongoDbOutputDocumentPlan.compile(paths, rmi, new Variables(),
+        MongoDbOutputData.checkTopLevelConsistency(paths, new Variables()),
+        false);
+  }
+
+  /**
+   * Check that an encoded document has exactly the bytes that the driver
+   * would produce for the document built by the plan
+   */
+  protected static void assertSameAsDriver(DBObject encoded, DBObject built) {
+    if (built.get("_id") == null) {
+      // the id generated for the document
+      built.put("_id", encoded.get("_id"));
+    }
+    byte[] expected = new BasicBSONEncoder().encode(built);
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    try {
+      ((LazyBSONObject) encoded).pipe(actual);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    assertTrue(built.toString(),
+        Arrays.equals(expected, actual.toByteArray()));
+  }
+
+  @Test
+  public void testEncodesTheSameBytesAsTheDriver() throws KettleException {
+    List<MongoDbOutputMeta.MongoField> paths = new ArrayList<MongoDbOutputMeta.MongoField>();
+    paths.add(field("str", "", true));
+    paths.add(field("int", "rec.a", false));
+    paths.add(field("num", "rec", true));
+    paths.add(field("bool", "other.deeper", true));
+    paths.add(field("date", "rec.when", false));
+    paths.add(field("bin", "", true));
+    paths.add(field("big", "rec.big", false));
+
+    RowMetaInterface rmi = new RowMeta();
+    String[] names = { "str", "int", "num", "bool", "date", "bin", "big" };
+    int[] types = { ValueMetaInterface.TYPE_STRING,
+        ValueMetaInterface.TYPE_INTEGER, ValueMetaInterface.TYPE_NUMBER,
+        ValueMetaInterface.TYPE_BOOLEAN, ValueMetaInterface.TYPE_DATE,
+        ValueMetaInterface.TYPE_BINARY, ValueMetaInterface.TYPE_BIGNUMBER };
+    for (int i = 0; i < names.length; i++) {
+      ValueMetaInterface vm = new ValueMeta(names[i]);
+      vm.setType(types[i]);
+      rmi.addValueMeta(vm);
+    }
+
+    MongoDbOutputDocumentPlan plan = plan(paths, rmi);
+    MongoDbOutputBsonEncoder encoder = MongoDbOutputBsonEncoder.create(plan);
+    assertTrue(encoder != null);
+
+    Object[][] rows = {
+        { "caf\u00e9 \ud83d\ude00", new Long(42), new Double(1.5),
+            Boolean.TRUE, new Date(1234567890L), new byte[] { 1, 2, 3 },
+            new BigDecimal("12.345") },
+        // nulls are left out, but the records on their paths are not
+        { null, new Long(-1), null, null, null, null, null } };
+
+    for (Object[] row : rows) {
+      DBObject encoded = encoder.encode(row);
+      assertTrue(encoded.get("_id") instanceof ObjectId);
+      assertSameAsDriver(encoded, plan.toMongo(row));
+    }
+
+    // nothing set
+    assertEquals(null,
+        encoder.encode(new Object[] { null, null, null, null, null, null,
+            null }));
+  }
+
+  @Test
+  public void testIdFromTheRowIsUsedWhenNotNull() throws KettleException {
+    List<MongoDbOutputMeta.MongoField> paths = new ArrayList<MongoDbOutputMeta.MongoField>();
+    paths.add(field("name", "", true));
+    paths.add(field("key", "_id", false));
+
+    RowMetaInterface rmi = new RowMeta();
+    ValueMetaInterface vm = new ValueMeta("name");
+    vm.setType(ValueMetaInterface.TYPE_STRING);
+    rmi.addValueMeta(vm);
+    vm = new ValueMeta("key");
+    vm.setType(ValueMetaInterface.TYPE_INTEGER);
+    rmi.addValueMeta(vm);
+
+    MongoDbOutputDocumentPlan plan = plan(paths, rmi);
+    MongoDbOutputBsonEncoder encoder = MongoDbOutputBsonEncoder.create(plan);
+
+    Object[] row = { "bob", new Long(7) };
+    DBObject encoded = encoder.encode(row);
+    assertEquals(new Long(7), encoded.get("_id"));
+    assertEquals("_id", encoded.keySet().iterator().next());
+    assertSameAsDriver(encoded, plan.toMongo(row));
+
+    row = new Object[] { "fred", null };
+    encoded = encoder.encode(row);
+    assertTrue(encoded.get("_id") instanceof ObjectId);
+    assertSameAsDriver(encoded, plan.toMongo(row));
+  }
+
+  @Test
+  public void testUnsupportedStructuresAreLeftToThePlan()
+      throws KettleException {
+    RowMetaInterface rmi = new RowMeta();
+    ValueMetaInterface vm = new ValueMeta("f");
+    vm.setType(ValueMetaInterface.TYPE_STRING);
+    rmi.addValueMeta(vm);
+
+    // arrays
+    List<MongoDbOutputMeta.MongoField> paths = new ArrayList<MongoDbOutputMeta.MongoField>();
+    paths.add(field("f", "list[0]", false));
+    assertEquals(null, MongoDbOutputBsonEncoder.create(plan(paths, rmi)));
+
+    // JSON values
+    paths.clear();
+    MongoDbOutputMeta.MongoField mf = field("f", "doc", true);
+    mf.m_JSON = true;
+    paths.add(mf);
+    assertEquals(null, MongoDbOutputBsonEncoder.create(plan(paths, rmi)));
+
+    // a value and a record at the same path
+    paths.clear();
+    paths.add(field("f", "rec", false));
+    paths.add(field("f", "rec", true));
+    assertEquals(null, MongoDbOutputBsonEncoder.create(plan(paths, rmi)));
+
+    // records are shared
+    paths.clear();
+    paths.add(field("f", "rec.a", false));
+    paths.add(field("f", "rec.b", false));
+    MongoDbOutputBsonEncoder encoder = MongoDbOutputBsonEncoder
+        .create(plan(paths, rmi));
+    assertTrue(encoder != null);
+    DBObject encoded = encoder.encode(new Object[] { "x" });
+    assertEquals(new BasicDBObject("a", "x").append("b", "x").toString(),
+        encoded.get("rec").toString());
+  }
+}
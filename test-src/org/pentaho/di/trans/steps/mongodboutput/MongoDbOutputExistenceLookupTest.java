@@ -0,0 +1,211 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class MongoDbOutputExistenceLookupTest {
+
+  @Test
+  public void testMatchesDottedPathsArraysAndNumbers() {
+    DBObject doc = (DBObject) JSON
+        .parse("{\"customer\" : {\"id\" : 42, \"tags\" : [\"a\", \"b\"]}, "
+            + "\"lines\" : [{\"sku\" : \"x1\"}, {\"sku\" : \"x2\"}]}");
+
+    assertTrue(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "customer.id", 42L)));
+    assertTrue(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "customer.id", 42.0)));
+    assertFalse(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "customer.id", 43L)));
+
+    // array elements, by position or any element
+    assertTrue(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "customer.tags", "b")));
+    assertTrue(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "lines.sku", "x2")));
+    assertTrue(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "lines.1.sku", "x2")));
+    assertFalse(MongoDbOutputExistenceLookup.matches(doc, new BasicDBObject(
+        "lines.0.sku", "x2")));
+
+    // all tests must match
+    BasicDBObject q = new BasicDBObject("customer.id", 42L);
+    q.put("lines.sku", "x3");
+    assertFalse(MongoDbOutputExistenceLookup.matches(doc, q));
+  }
+
+  @Test
+  public void testOnlyEqualityQueriesAreMatchedOnTheClient() {
+    assertTrue(MongoDbOutputExistenceLookup
+        .isClientMatchable((DBObject) JSON
+            .parse("{\"a\" : 1, \"b.c\" : \"x\", \"d\" : {\"e\" : true}}")));
+    assertFalse(MongoDbOutputExistenceLookup
+        .isClientMatchable((DBObject) JSON.parse("{\"a\" : {\"$gt\" : 1}}")));
+    assertFalse(MongoDbOutputExistenceLookup
+        .isClientMatchable((DBObject) JSON
+            .parse("{\"$or\" : [{\"a\" : 1}, {\"b\" : 2}]}")));
+  }
+
+  @Test
+  public void testCombineAndProjection() {
+    List<DBObject> queries = new ArrayList<DBObject>();
+    queries.add(new BasicDBObject("k", 1));
+    queries.add(new BasicDBObject("k", 2));
+
+    DBObject combined = MongoDbOutputExistenceLookup.combine(queries);
+    DBObject in = (DBObject) combined.get("k");
+    assertEquals(2, ((BasicDBList) in.get("$in")).size());
+
+    queries.add(new BasicDBObject("j.x", 3));
+    combined = MongoDbOutputExistenceLookup.combine(queries);
+    assertEquals(3, ((BasicDBList) combined.get("$or")).size());
+
+    queries.add(new BasicDBObject("j", 4));
+    DBObject projection = MongoDbOutputExistenceLookup.projection(queries);
+    assertEquals(1, projection.get("k"));
+    assertEquals(1, projection.get("j"));
+    assertFalse(projection.containsField("j.x"));
+    assertEquals(0, projection.get("_id"));
+  }
+
+  /**
+   * Apply an inclusion projection to a document the way the server does - a
+   * path segment is always a field name, also within arrays
+   */
+  protected static Object project(Object value, String[] path, int i) {
+    if (i == path.length) {
+      return value;
+    }
+    if (value instanceof List) {
+      BasicDBList projected = new BasicDBList();
+      for (Object e : (List<?>) value) {
+        if (e instanceof DBObject) {
+          projected.add(project(e, path, i));
+        }
+      }
+      return projected;
+    }
+    BasicDBObject projected = new BasicDBObject();
+    Object field = ((DBObject) value).get(path[i]);
+    if (field instanceof DBObject) {
+      projected.put(path[i], project(field, path, i + 1));
+    } else if (field != null && i == path.length - 1) {
+      projected.put(path[i], field);
+    }
+    return projected;
+  }
+
+  @Test
+  public void testArrayIndexesAreNotProjected() {
+    DBObject doc = (DBObject) JSON
+        .parse("{\"customer\" : {\"id\" : 42}, "
+            + "\"lines\" : [{\"sku\" : \"x1\"}, {\"sku\" : \"x2\"}]}");
+
+    List<DBObject> queries = new ArrayList<DBObject>();
+    queries.add(new BasicDBObject("lines.0.sku", "x1").append("customer.id",
+        42));
+    queries.add(new BasicDBObject("lines.1", new BasicDBObject("sku", "x2")));
+    DBObject projection = MongoDbOutputExistenceLookup.projection(queries);
+    assertEquals(1, projection.get("lines"));
+    assertEquals(1, projection.get("customer.id"));
+    assertFalse(projection.containsField("lines.0.sku"));
+    assertFalse(projection.containsField("lines.1"));
+
+    // the document as returned by the server still matches
+    BasicDBObject returned = new BasicDBObject();
+    for (String k : projection.keySet()) {
+      if (((Number) projection.get(k)).intValue() == 1) {
+        returned.putAll(((DBObject) project(doc, k.split("\\."), 0)));
+      }
+    }
+    for (DBObject q : queries) {
+      assertTrue(MongoDbOutputExistenceLookup.matches(returned, q));
+    }
+
+    // projecting the index itself would not have matched
+    DBObject indexed = (DBObject) project(doc, "lines.0.sku".split("\\."), 0);
+    assertFalse(MongoDbOutputExistenceLookup.matches(indexed, queries.get(0)));
+  }
+
+  @Test
+  public void testFindExistingUsesOneQueryAndSkipsSeenQueries() {
+    MongoDbOutputExistenceLookup lookup = new MongoDbOutputExistenceLookup(10);
+    lookup.markSeen(new BasicDBObject("k", 0L));
+
+    List<DBObject> queries = new ArrayList<DBObject>();
+    for (long i = 0; i < 4; i++) {
+      queries.add(new BasicDBObject("k", i));
+    }
+    // a repeat of an earlier row
+    queries.add(new BasicDBObject("k", 1L));
+
+    DBCollection collection = EasyMock.createMock(DBCollection.class);
+    DBCursor cursor = EasyMock.createMock(DBCursor.class);
+    BasicDBList in = new BasicDBList();
+    in.add(1L);
+    in.add(2L);
+    in.add(3L);
+    EasyMock.expect(
+        collection.find(new BasicDBObject("k", new BasicDBObject("$in", in)),
+            new BasicDBObject("k", 1).append("_id", 0))).andReturn(cursor);
+    EasyMock.expect(cursor.hasNext()).andReturn(true);
+    EasyMock.expect(cursor.next()).andReturn(new BasicDBObject("k", 2));
+    EasyMock.expect(cursor.hasNext()).andReturn(false);
+    cursor.close();
+    EasyMock.replay(collection, cursor);
+
+    Set<DBObject> existing = lookup.findExisting(collection, queries);
+    EasyMock.verify(collection, cursor);
+
+    assertEquals(1, existing.size());
+    assertTrue(existing.contains(new BasicDBObject("k", 2L)));
+    assertTrue(lookup.isSeen(new BasicDBObject("k", 0L)));
+    assertFalse(lookup.isSeen(new BasicDBObject("k", 2L)));
+  }
+
+  @Test
+  public void testSeenQueriesAreBounded() {
+    MongoDbOutputExistenceLookup lookup = new MongoDbOutputExistenceLookup(2);
+    lookup.markSeen(new BasicDBObject("k", 1));
+    lookup.markSeen(new BasicDBObject("k", 2));
+    // use 1 so that 2 is the least recently used
+    assertTrue(lookup.isSeen(new BasicDBObject("k", 1)));
+    lookup.markSeen(new BasicDBObject("k", 3));
+
+    assertTrue(lookup.isSeen(new BasicDBObject("k", 1)));
+    assertFalse(lookup.isSeen(new BasicDBObject("k", 2)));
+    assertTrue(lookup.isSeen(new BasicDBObject("k", 3)));
+  }
+}
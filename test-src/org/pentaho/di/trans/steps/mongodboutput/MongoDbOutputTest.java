@@ -18,13 +18,20 @@
 package org.pentaho.di.trans.steps.mongodboutput;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.pentaho.di.trans.steps.mongodboutput.MongoDbOutputData.kettleRowToMongo;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -52,8 +59,17 @@ import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.di.trans.steps.fuzzymatch.FuzzyMatchData;
 import org.pentaho.di.trans.steps.fuzzymatch.FuzzyMatchMeta;
-
+import org.pentaho.mongo.AuthContext;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkUpdateRequestBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 
 
 /**
@@ -147,6 +163,59 @@ public class MongoDbOutputTest {
     assertEquals(result.toString(), "[ \"value1\" , 12]");
   }
 
+  @Test
+  public void testCompiledDocumentPlanIsReusedAcrossRows()
+      throws KettleException {
+    List<MongoDbOutputMeta.MongoField> paths = new ArrayList<MongoDbOutputMeta.MongoField>();
+
+    MongoDbOutputMeta.MongoField mf = new MongoDbOutputMeta.MongoField();
+    mf.m_incomingFieldName = "${FIELD}";
+    mf.m_mongoDocPath = "${REC}.nested[0][1]";
+    mf.m_useIncomingFieldNameAsMongoFieldName = false;
+    paths.add(mf);
+
+    mf = new MongoDbOutputMeta.MongoField();
+    mf.m_incomingFieldName = "field2";
+    mf.m_mongoDocPath = "rec.list[0]";
+    mf.m_useIncomingFieldNameAsMongoFieldName = true;
+    paths.add(mf);
+
+    RowMetaInterface rmi = new RowMeta();
+    ValueMetaInterface vm = new ValueMeta();
+    vm.setName("field1");
+    vm.setType(ValueMetaInterface.TYPE_STRING);
+    rmi.addValueMeta(vm);
+    vm = new ValueMeta();
+    vm.setName("field2");
+    vm.setType(ValueMetaInterface.TYPE_INTEGER);
+    rmi.addValueMeta(vm);
+
+    VariableSpace vs = new Variables();
+    vs.setVariable("FIELD", "field1");
+    vs.setVariable("REC", "rec");
+
+    MongoDbOutputData data = new MongoDbOutputData();
+    data.setMongoFields(paths);
+    data.init(vs, rmi, MongoDbOutputData.MongoTopLevel.RECORD);
+
+    for (int i = 0; i < 3; i++) {
+      Object[] row = new Object[] { "value" + i, new Long(i) };
+      DBObject result = data.kettleRowToMongo(row);
+
+      // same as interpreting the field definitions for each row
+      assertEquals(
+          kettleRowToMongo(paths, rmi, row, vs,
+              MongoDbOutputData.MongoTopLevel.RECORD, false).toString(),
+          result.toString());
+      assertEquals("{ \"rec\" : { \"nested\" : [ [  null  , \"value" + i
+          + "\"]] , \"list\" : [ { \"field2\" : " + i + "}]}}",
+          result.toString());
+    }
+
+    // null values aren't inserted
+    assertEquals(null, data.kettleRowToMongo(new Object[] { null, null }));
+  }
+
   @Test
   public void testTopLevelArrayStructureWithObjects() throws KettleException {
     List<MongoDbOutputMeta.MongoField> paths = new ArrayList<MongoDbOutputMeta.MongoField>();
@@ -577,6 +646,66 @@ public class MongoDbOutputTest {
             + "{ \"jsonDocField1\" : \"aval\" , \"jsonDocField2\" : 42}}}}}");
   }
 
+  @Test
+  public void testCompiledUpdatePlanAppliesPoliciesPerRow()
+      throws KettleException {
+    List<MongoDbOutputMeta.MongoField> paths = new ArrayList<MongoDbOutputMeta.MongoField>();
+
+    MongoDbOutputMeta.MongoField mf = new MongoDbOutputMeta.MongoField();
+    mf.m_incomingFieldName = "id";
+    mf.m_mongoDocPath = "key[0]";
+    mf.m_useIncomingFieldNameAsMongoFieldName = true;
+    mf.m_updateMatchField = true;
+    paths.add(mf);
+
+    mf = new MongoDbOutputMeta.MongoField();
+    mf.m_incomingFieldName = "count";
+    mf.m_useIncomingFieldNameAsMongoFieldName = true;
+    mf.m_modifierUpdateOperation = "$inc";
+    mf.m_modifierOperationApplyPolicy = "Insert&Update";
+    paths.add(mf);
+
+    mf = new MongoDbOutputMeta.MongoField();
+    mf.m_incomingFieldName = "name";
+    mf.m_mongoDocPath = "names[0]";
+    mf.m_useIncomingFieldNameAsMongoFieldName = false;
+    mf.m_modifierUpdateOperation = "$set";
+    mf.m_modifierOperationApplyPolicy = "Insert";
+    paths.add(mf);
+
+    RowMetaInterface rm = new RowMeta();
+    ValueMetaInterface vm = new ValueMeta("id");
+    vm.setType(ValueMetaInterface.TYPE_INTEGER);
+    rm.addValueMeta(vm);
+    vm = new ValueMeta("count");
+    vm.setType(ValueMetaInterface.TYPE_INTEGER);
+    rm.addValueMeta(vm);
+    vm = new ValueMeta("name");
+    vm.setType(ValueMetaInterface.TYPE_STRING);
+    rm.addValueMeta(vm);
+
+    MongoDbOutputData data = new MongoDbOutputData();
+    data.setMongoFields(paths);
+    data.init(new Variables(), rm, MongoDbOutputData.MongoTopLevel.RECORD);
+
+    Object[] row = new Object[] { new Long(1), new Long(2), "bob" };
+    assertEquals("{ \"key.0.id\" : 1}", data.getQueryObject(row).toString());
+    assertEquals(
+        "{ \"$set\" : { \"names\" : [ \"bob\"]} , \"$inc\" : { \"count\" : 2}}",
+        data.getModifierUpdateObject(row, Boolean.FALSE).toString());
+    assertEquals("{ \"$inc\" : { \"count\" : 2}}", data
+        .getModifierUpdateObject(row, Boolean.TRUE).toString());
+
+    // modifiers with null values are left out, match fields too
+    row = new Object[] { null, new Long(3), null };
+    assertEquals(null, data.getQueryObject(row));
+    assertEquals("{ \"$inc\" : { \"count\" : 3}}", data
+        .getModifierUpdateObject(row, Boolean.FALSE).toString());
+
+    row = new Object[] { new Long(4), null, "fred" };
+    assertEquals(null, data.getModifierUpdateObject(row, Boolean.TRUE));
+  }
+
   @Test
   public void testInsertKettleFieldThatContainsJsonIntoTopLevelRecord()
       throws KettleException {
@@ -939,6 +1068,361 @@ public class MongoDbOutputTest {
   }
   
 
+  @Test
+  public void testBulkUpdateUsesOneRequestPerDocument() throws KettleException {
+    MongoDbOutput output = EasyMock.createMockBuilder(MongoDbOutput.class)
+        .createMock();
+    output.m_meta = new MongoDbOutputMeta();
+    output.m_meta.setModifierUpdate(true);
+    output.m_orderedBulkWrites = false;
+    output.m_batchQueries = new ArrayList<DBObject>();
+    output.m_batch = new ArrayList<DBObject>();
+    for (int i = 0; i < 3; i++) {
+      output.m_batchQueries.add(new BasicDBObject("key", i));
+      output.m_batch.add(new BasicDBObject("$inc", new BasicDBObject("count",
+          i)));
+    }
+
+    DBCollection collection = EasyMock.createMock(DBCollection.class);
+    BulkWriteOperation bulk = EasyMock.createMock(BulkWriteOperation.class);
+    EasyMock.expect(collection.initializeUnorderedBulkOperation()).andReturn(
+        bulk);
+    for (int i = 0; i < 3; i++) {
+      BulkWriteRequestBuilder find = EasyMock
+          .createMock(BulkWriteRequestBuilder.class);
+      BulkUpdateRequestBuilder upsert = EasyMock
+          .createMock(BulkUpdateRequestBuilder.class);
+      EasyMock.expect(bulk.find(output.m_batchQueries.get(i))).andReturn(find);
+      EasyMock.expect(find.upsert()).andReturn(upsert);
+      upsert.updateOne(output.m_batch.get(i));
+      EasyMock.replay(find, upsert);
+    }
+    EasyMock.replay(collection, bulk);
+
+    assertTrue(output.createBulkUpdate(collection, output.m_batchQueries,
+        output.m_batch) == bulk);
+    EasyMock.verify(collection, bulk);
+  }
+
+  @Test
+  public void testNonIdempotentBulkUpdatesAreNotRetried()
+      throws KettleException {
+    MongoDbOutput output = EasyMock.createMockBuilder(MongoDbOutput.class)
+        .addMockedMethod("createBulkUpdate").createMock(); //$NON-NLS-1$
+    output.m_meta = new MongoDbOutputMeta();
+    output.m_meta.setModifierUpdate(true);
+    output.m_data = new MongoDbOutputData();
+    output.m_writeRetries = 3;
+    output.m_writeRetryDelay = 0;
+
+    List<DBObject> queries = new ArrayList<DBObject>();
+    List<DBObject> incs = new ArrayList<DBObject>();
+    List<DBObject> sets = new ArrayList<DBObject>();
+    for (int i = 0; i < 2; i++) {
+      queries.add(new BasicDBObject("key", i));
+      incs.add(new BasicDBObject("$set", new BasicDBObject("a", i)).append(
+          "$inc", new BasicDBObject("count", 1)));
+      sets.add(new BasicDBObject("$set", new BasicDBObject("a", i)).append(
+          "$addToSet", new BasicDBObject("tags", "x")));
+    }
+
+    // a socket timeout part way through the batch
+    BulkWriteOperation bulk = EasyMock.createMock(BulkWriteOperation.class);
+    BulkWriteResult result = EasyMock.createMock(BulkWriteResult.class);
+    EasyMock.expect(
+        output.createBulkUpdate((DBCollection) EasyMock.anyObject(),
+            EasyMock.eq(queries), EasyMock.<List<DBObject>> anyObject()))
+        .andReturn(bulk).times(3);
+    EasyMock.expect(bulk.execute()).andThrow(
+        new MongoException("Read timed out")).times(2);
+    EasyMock.expect(bulk.execute()).andReturn(result);
+    EasyMock.expect(result.isAcknowledged()).andReturn(false);
+    EasyMock.replay(output, bulk, result);
+
+    try {
+      output.doBulkUpdate(queries, incs);
+      fail("the $inc batch should not have been retried");
+    } catch (KettleException ex) {
+      assertTrue(ex.getMessage().contains("$inc"));
+    }
+
+    // $set and $addToSet can be applied twice
+    assertEquals(1, output.doBulkUpdate(queries, sets));
+    EasyMock.verify(output, bulk);
+
+    assertEquals("[$inc]", MongoDbOutput.nonIdempotentModifiers(incs)
+        .toString());
+    assertTrue(MongoDbOutput.nonIdempotentModifiers(sets).isEmpty());
+  }
+
+  @Test
+  public void testBulkWriteErrorsAreMappedToDocuments() {
+    MongoDbOutput output = EasyMock.createMockBuilder(MongoDbOutput.class)
+        .addMockedMethod("logError", String.class).createMock(); //$NON-NLS-1$
+    Capture<String> errors = new Capture<String>(CaptureType.ALL);
+    output.logError(EasyMock.capture(errors));
+    EasyMock.expectLastCall().anyTimes();
+    EasyMock.replay(output);
+
+    output.m_orderedBulkWrites = true;
+    output.m_batchQueries = new ArrayList<DBObject>();
+    output.m_batch = new ArrayList<DBObject>();
+    for (int i = 0; i < 4; i++) {
+      output.m_batchQueries.add(new BasicDBObject("key", "k" + i));
+      output.m_batch.add(new BasicDBObject("value", i));
+    }
+
+    List<BulkWriteError> writeErrors = new ArrayList<BulkWriteError>();
+    writeErrors.add(new BulkWriteError(11000, "duplicate key",
+        new BasicDBObject(), 1));
+    output.reportBulkWriteErrors(output.m_batchQueries, output.m_batch,
+        writeErrors);
+
+    // one error for the failed document, and one for the unwritten remainder
+    // of the ordered batch
+    assertEquals(2, errors.getValues().size());
+    String docError = errors.getValues().get(0);
+    assertTrue(docError.contains("duplicate key"));
+    assertTrue(docError.contains("k1"));
+    assertTrue(!docError.contains("k0") && !docError.contains("k2"));
+    assertTrue(errors.getValues().get(1).contains("2"));
+  }
+
+  @Test
+  public void testBatchIsWrittenAtDocumentOrByteLimit() throws KettleException {
+    final MongoDbOutput output = EasyMock.createMockBuilder(MongoDbOutput.class)
+        .addMockedMethod("doBatch").addMockedMethod("logDetailed", //$NON-NLS-1$ //$NON-NLS-2$
+            String.class).createMock();
+    final List<Integer> written = new ArrayList<Integer>();
+    output.doBatch();
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() {
+        written.add(output.m_batch.size());
+        output.m_batch = new ArrayList<DBObject>();
+        output.m_batchBytes = 0;
+        return null;
+      }
+    }).anyTimes();
+    output.logDetailed(EasyMock.anyObject(String.class));
+    EasyMock.expectLastCall().anyTimes();
+    EasyMock.replay(output);
+
+    output.m_batch = new ArrayList<DBObject>();
+    output.m_batchQueries = new ArrayList<DBObject>();
+    output.m_batchInsertSize = 5;
+    output.m_estimateBatchBytes = true;
+    output.m_batchSizeBytes = 1000;
+
+    // small documents - the document count limit applies
+    for (int i = 0; i < 7; i++) {
+      output.addToBatch(null, new BasicDBObject("v", i));
+    }
+    assertEquals(1, written.size());
+    assertEquals(5, written.get(0).intValue());
+
+    // a large document that would take the batch over the byte limit goes
+    // in a batch of its own
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 970; i++) {
+      big.append('x');
+    }
+    output.addToBatch(null, new BasicDBObject("v", big.toString()));
+    assertEquals(2, written.size());
+    assertEquals(2, written.get(1).intValue());
+    assertEquals(1, output.m_batch.size());
+
+    output.addToBatch(null, new BasicDBObject("v", big.toString()));
+    assertEquals(3, written.size());
+    assertEquals(1, written.get(2).intValue());
+
+    // a single document over the byte limit is still written
+    big.append(big);
+    output.addToBatch(null, new BasicDBObject("v", big.toString()));
+    assertEquals(5, written.size());
+    assertEquals(1, written.get(3).intValue());
+    assertEquals(1, written.get(4).intValue());
+    assertEquals(0, output.m_batch.size());
+  }
+
+  /**
+   * A step whose batches are "written" once the test opens the gate. A batch
+   * fails if its first document has a "fail" field
+   */
+  protected static class GatedWriter extends MongoDbOutput {
+    protected final CountDownLatch m_gate = new CountDownLatch(1);
+    protected final List<DBObject> m_written = Collections
+        .synchronizedList(new ArrayList<DBObject>());
+    protected volatile boolean m_writerFinished;
+
+    public GatedWriter(int batchesInFlight) {
+      super(new StepMeta(), new MongoDbOutputData(), 0, new TransMeta(),
+          new Trans());
+      m_meta = new MongoDbOutputMeta();
+      m_data = new MongoDbOutputData() {
+        @Override
+        public DBObject kettleRowToMongo(Object[] row) {
+          return new BasicDBObject("v", row[0]); //$NON-NLS-1$
+        }
+      };
+      m_authContext = new AuthContext(null);
+      m_batch = new ArrayList<DBObject>();
+      m_batchQueries = new ArrayList<DBObject>();
+      m_inFlightMatchQueries = new HashSet<DBObject>();
+      m_batchesInFlight = batchesInFlight;
+      m_writerPool = Executors.newFixedThreadPool(batchesInFlight);
+    }
+
+    @Override
+    protected void writeBatch(int batchNumber, List<DBObject> queries,
+        List<DBObject> docs, long bytes) throws KettleException {
+      try {
+        if (!m_gate.await(5, TimeUnit.SECONDS)) {
+          throw new KettleException("gate not opened"); //$NON-NLS-1$
+        }
+      } catch (InterruptedException e) {
+        // take a while to stop, like a write finishing its round trip
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e1) {
+        }
+        m_writerFinished = true;
+        throw new KettleException(e);
+      }
+
+      if (docs.get(0).get("fail") != null) { //$NON-NLS-1$
+        throw new KettleException("write failed"); //$NON-NLS-1$
+      }
+      m_written.addAll(docs);
+    }
+
+    /** Add a document to the batch and hand the batch to the writer pool */
+    public void write(DBObject query, DBObject doc) throws KettleException {
+      addToBatch(query, doc);
+      doBatch();
+    }
+  }
+
+  /** Runs a task on another thread, keeping any exception it throws */
+  protected static abstract class Background extends Thread {
+    protected volatile Exception m_failure;
+
+    protected abstract void task() throws Exception;
+
+    @Override
+    public void run() {
+      try {
+        task();
+      } catch (Exception ex) {
+        m_failure = ex;
+      }
+    }
+
+    /** Wait for the task to finish and rethrow its exception, if any */
+    public void finish() throws Exception {
+      join(5000);
+      assertFalse(isAlive());
+      if (m_failure != null) {
+        throw m_failure;
+      }
+    }
+  }
+
+  @Test
+  public void testFailedBatchFailsTheNextWait() throws KettleException {
+    GatedWriter output = new GatedWriter(1);
+    try {
+      output.m_gate.countDown();
+      output.write(null, new BasicDBObject("fail", true)); //$NON-NLS-1$
+
+      // the next batch waits for the failed one to make room
+      try {
+        output.write(null, new BasicDBObject("v", 1)); //$NON-NLS-1$
+        fail("the failed batch should have been reported"); //$NON-NLS-1$
+      } catch (KettleException ex) {
+        assertTrue(ex.getMessage().contains("write failed")); //$NON-NLS-1$
+      }
+      assertTrue(output.m_inFlightBatches.isEmpty());
+      assertTrue(output.m_written.isEmpty());
+    } finally {
+      output.dispose(output.m_meta, output.m_data);
+    }
+  }
+
+  @Test
+  public void testBatchesInFlightAreLimited() throws Exception {
+    final GatedWriter output = new GatedWriter(2);
+    try {
+      output.write(null, new BasicDBObject("v", 1)); //$NON-NLS-1$
+      output.write(null, new BasicDBObject("v", 2)); //$NON-NLS-1$
+      assertEquals(2, output.m_inFlightBatches.size());
+
+      Background third = new Background() {
+        @Override
+        protected void task() throws KettleException {
+          output.write(null, new BasicDBObject("v", 3)); //$NON-NLS-1$
+        }
+      };
+      third.start();
+      third.join(200);
+      assertTrue(third.isAlive());
+
+      output.m_gate.countDown();
+      third.finish();
+      output.waitForBatchesInFlight();
+      assertEquals(3, output.m_written.size());
+    } finally {
+      output.dispose(output.m_meta, output.m_data);
+    }
+  }
+
+  @Test
+  public void testUpsertToADocumentInFlightWaitsForIt() throws Exception {
+    final GatedWriter output = new GatedWriter(2);
+    try {
+      output.write(new BasicDBObject("key", 1), //$NON-NLS-1$
+          new BasicDBObject("v", "first")); //$NON-NLS-1$ //$NON-NLS-2$
+
+      // another document doesn't have to wait
+      assertTrue(output.upsertRow(new Object[] { "other" }, //$NON-NLS-1$
+          new BasicDBObject("key", 2), false)); //$NON-NLS-1$
+      assertEquals(1, output.m_batch.size());
+
+      Background upsert = new Background() {
+        @Override
+        protected void task() throws KettleException {
+          output.upsertRow(new Object[] { "second" }, //$NON-NLS-1$
+              new BasicDBObject("key", 1), false); //$NON-NLS-1$
+        }
+      };
+      upsert.start();
+      upsert.join(200);
+      assertTrue(upsert.isAlive());
+      assertTrue(output.m_written.isEmpty());
+
+      output.m_gate.countDown();
+      upsert.finish();
+
+      // the earlier update was acknowledged before the new one was batched
+      assertEquals(1, output.m_written.size());
+      assertEquals(2, output.m_batch.size());
+      assertEquals("second", output.m_batch.get(1).get("v")); //$NON-NLS-1$ //$NON-NLS-2$
+      assertTrue(output.m_inFlightMatchQueries.isEmpty());
+    } finally {
+      output.dispose(output.m_meta, output.m_data);
+    }
+  }
+
+  @Test
+  public void testDisposeWaitsForTheWriters() throws KettleException {
+    GatedWriter output = new GatedWriter(1);
+    output.write(null, new BasicDBObject("v", 1)); //$NON-NLS-1$
+
+    output.dispose(output.m_meta, output.m_data);
+    assertTrue(output.m_writerFinished);
+    assertNull(output.m_writerPool);
+  }
+
   private MongoDbOutput prepareMongoDbOutputMock(){  
 	  MongoDbOutput output = EasyMock.createNiceMock( MongoDbOutput.class );
 	  EasyMock.expect( output.environmentSubstitute( EasyMock.anyObject( String.class ) ) )
@@ -0,0 +1,108 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.di.trans.steps.mongodboutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class MongoDbOutputUpdateCoalescerTest {
+
+  protected static DBObject parse(String json) {
+    return (DBObject) JSON.parse(json);
+  }
+
+  @Test
+  public void testPushIncAndSetAreMerged() {
+    DBObject update = parse("{\"$push\" : {\"lines\" : {\"sku\" : \"a\"}}, "
+        + "\"$inc\" : {\"count\" : 1}, \"$set\" : {\"status\" : \"new\"}}");
+
+    assertTrue(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$push\" : {\"lines\" : {\"sku\" : \"b\"}}, "
+            + "\"$inc\" : {\"count\" : 2}, \"$set\" : {\"status\" : \"paid\"}}")));
+    assertTrue(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$push\" : {\"lines\" : {\"sku\" : \"c\"}}, "
+            + "\"$inc\" : {\"count\" : 0.5, \"other\" : 1}}")));
+
+    assertEquals(parse(
+        "{\"$push\" : {\"lines\" : {\"$each\" : [{\"sku\" : \"a\"}, "
+            + "{\"sku\" : \"b\"}, {\"sku\" : \"c\"}]}}, "
+            + "\"$inc\" : {\"count\" : 3.5, \"other\" : 1}, "
+            + "\"$set\" : {\"status\" : \"paid\"}}").toString(),
+        update.toString());
+  }
+
+  @Test
+  public void testIntegerIncrementsStayIntegers() {
+    DBObject update = parse("{\"$inc\" : {\"count\" : 1}}");
+    ((DBObject) update.get("$inc")).put("count", new Long(1));
+    DBObject next = parse("{\"$inc\" : {}}");
+    ((DBObject) next.get("$inc")).put("count", new Long(41));
+
+    assertTrue(MongoDbOutputUpdateCoalescer.merge(update, next));
+    assertEquals(new Long(42), ((DBObject) update.get("$inc")).get("count"));
+
+    // int32 increments stay int32, so the field they are applied to does too
+    update = parse("{\"$inc\" : {\"count\" : 1}}");
+    assertTrue(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$inc\" : {\"count\" : 41}}")));
+    assertEquals(new Integer(42), ((DBObject) update.get("$inc")).get("count"));
+
+    // unless the sum doesn't fit
+    assertTrue(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$inc\" : {\"count\" : " + Integer.MAX_VALUE + "}}")));
+    assertEquals(new Long(Integer.MAX_VALUE + 42L),
+        ((DBObject) update.get("$inc")).get("count"));
+
+    // an int64 and an int32 give an int64
+    DBObject mixed = parse("{\"$inc\" : {\"count\" : 1}}");
+    ((DBObject) next.get("$inc")).put("count", new Long(41));
+    assertTrue(MongoDbOutputUpdateCoalescer.merge(mixed, next));
+    assertEquals(new Long(42), ((DBObject) mixed.get("$inc")).get("count"));
+  }
+
+  @Test
+  public void testConflictingUpdatesAreNotMerged() {
+    String original = "{\"$set\" : {\"a\" : {\"b\" : 1}}, "
+        + "\"$push\" : {\"list\" : {\"$each\" : [1, 2]}}}";
+    DBObject update = parse(original);
+
+    // the same field with a different operation
+    assertFalse(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$inc\" : {\"a\" : 1}}")));
+
+    // a sub-field of a field that is set
+    assertFalse(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$set\" : {\"a.b\" : 2}}")));
+
+    // a $each that didn't come from merging
+    assertFalse(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$push\" : {\"list\" : 3}}")));
+
+    // other operations
+    assertFalse(MongoDbOutputUpdateCoalescer.merge(update,
+        parse("{\"$addToSet\" : {\"tags\" : \"x\"}}")));
+
+    assertEquals(parse(original).toString(), update.toString());
+  }
+}
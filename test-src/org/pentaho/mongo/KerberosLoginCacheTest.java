@@ -0,0 +1,214 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import org.junit.Test;
+import org.pentaho.mongo.KerberosUtil.JaasAuthenticationMode;
+
+public class KerberosLoginCacheTest {
+
+  /** Start of the lifetime of the tickets handed out by the test module */
+  protected static long s_ticketStart;
+
+  /** Set to make the next login fail */
+  protected static boolean s_failLogin;
+
+  /**
+   * Adds a non-renewable ticket, valid from {@link #s_ticketStart} for an
+   * hour, to the subject
+   */
+  public static class TicketLoginModule implements LoginModule {
+    protected Subject m_subject;
+    protected KerberosTicket m_ticket;
+
+    @Override
+    public void initialize(Subject subject, CallbackHandler handler,
+        Map<String, ?> sharedState, Map<String, ?> options) {
+      m_subject = subject;
+    }
+
+    @Override
+    public boolean login() throws LoginException {
+      if (s_failLogin) {
+        throw new LoginException("KDC unreachable");
+      }
+      return true;
+    }
+
+    @Override
+    public boolean commit() {
+      KerberosPrincipal client = new KerberosPrincipal("user@EXAMPLE.COM");
+      KerberosPrincipal server = new KerberosPrincipal(
+          "krbtgt/EXAMPLE.COM@EXAMPLE.COM");
+      m_ticket = new KerberosTicket(new byte[] { 1 }, client, server,
+          new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 1, new boolean[32], new Date(
+              s_ticketStart), new Date(s_ticketStart), new Date(
+              s_ticketStart + 3600000L), null, null);
+      m_subject.getPrivateCredentials().add(m_ticket);
+      return true;
+    }
+
+    @Override
+    public boolean abort() {
+      return true;
+    }
+
+    @Override
+    public boolean logout() {
+      m_subject.getPrivateCredentials().remove(m_ticket);
+      return true;
+    }
+  }
+
+  protected static final KerberosLoginCache.Authenticator TEST_LOGIN = new KerberosLoginCache.Authenticator() {
+    @Override
+    public LoginContext login(KerberosLoginCache.LoginKey key)
+        throws LoginException {
+      Configuration config = new Configuration() {
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+          return new AppConfigurationEntry[] { new AppConfigurationEntry(
+              TicketLoginModule.class.getName(),
+              AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
+              Collections.<String, Object> emptyMap()) };
+        }
+      };
+      LoginContext login = new LoginContext("test", new Subject(), null,
+          config);
+      login.login();
+
+      return login;
+    }
+  };
+
+  protected static KerberosLoginCache.LoginKey key(String principal) {
+    return new KerberosLoginCache.LoginKey(
+        JaasAuthenticationMode.KERBEROS_USER, principal, null);
+  }
+
+  protected static KerberosTicket ticket(LoginContext login) {
+    Set<KerberosTicket> tickets = login.getSubject().getPrivateCredentials(
+        KerberosTicket.class);
+    assertEquals(1, tickets.size());
+
+    return tickets.iterator().next();
+  }
+
+  @Test
+  public void testLoginsAreSharedAndReleased() throws LoginException {
+    s_ticketStart = System.currentTimeMillis();
+    s_failLogin = false;
+
+    LoginContext first = KerberosLoginCache.acquire(key("a@EXAMPLE.COM"),
+        TEST_LOGIN);
+    LoginContext second = KerberosLoginCache.acquire(key("a@EXAMPLE.COM"),
+        TEST_LOGIN);
+    LoginContext other = KerberosLoginCache.acquire(key("b@EXAMPLE.COM"),
+        TEST_LOGIN);
+    assertSame(first, second);
+    assertFalse(first == other);
+    assertEquals(2, KerberosLoginCache.getRefCount(first));
+
+    KerberosLoginCache.release(second);
+    assertEquals(1, KerberosLoginCache.getRefCount(first));
+    assertEquals(1, first.getSubject()
+        .getPrivateCredentials(KerberosTicket.class).size());
+
+    // the last reference logs out
+    KerberosLoginCache.release(first);
+    assertEquals(0, KerberosLoginCache.getRefCount(first));
+    assertTrue(first.getSubject().getPrivateCredentials(KerberosTicket.class)
+        .isEmpty());
+
+    // releasing again, or releasing an unknown login, has no effect
+    KerberosLoginCache.release(first);
+    KerberosLoginCache.release(TEST_LOGIN.login(key("c@EXAMPLE.COM")));
+    assertEquals(1, KerberosLoginCache.getRefCount(other));
+
+    KerberosLoginCache.release(other);
+  }
+
+  @Test
+  public void testNeedsRenewal() {
+    long now = System.currentTimeMillis();
+    KerberosPrincipal client = new KerberosPrincipal("user@EXAMPLE.COM");
+    KerberosTicket ticket = new KerberosTicket(new byte[] { 1 }, client,
+        client, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 1, new boolean[32],
+        new Date(now - 10000L), null, new Date(now + 90000L), null, null);
+
+    // 10% of the way through its lifetime, falling back to the auth time
+    assertFalse(KerberosLoginCache.needsRenewal(ticket, now));
+    assertFalse(KerberosLoginCache.needsRenewal(ticket, now + 69000L));
+    assertTrue(KerberosLoginCache.needsRenewal(ticket, now + 70000L));
+  }
+
+  @Test
+  public void testReloginKeepsTheSharedSubjectAuthenticated()
+      throws LoginException {
+    // tickets past the renewal point
+    s_ticketStart = System.currentTimeMillis() - 3000000L;
+    s_failLogin = false;
+
+    LoginContext login = KerberosLoginCache.acquire(key("d@EXAMPLE.COM"),
+        TEST_LOGIN);
+    try {
+      Subject subject = login.getSubject();
+      KerberosTicket expiring = ticket(login);
+
+      // a failed login leaves the subject as it was
+      s_failLogin = true;
+      KerberosLoginCache.renewTickets();
+      assertSame(expiring, ticket(login));
+
+      s_failLogin = false;
+      s_ticketStart = System.currentTimeMillis();
+      KerberosLoginCache.renewTickets();
+      KerberosTicket renewed = ticket(login);
+      assertFalse(expiring == renewed);
+      assertSame(subject, login.getSubject());
+      assertTrue(renewed.isCurrent());
+      assertFalse(renewed.isDestroyed());
+      assertFalse(KerberosLoginCache.needsRenewal(renewed,
+          System.currentTimeMillis()));
+    } finally {
+      KerberosLoginCache.release(login);
+    }
+    assertTrue(login.getSubject().getPrivateCredentials(KerberosTicket.class)
+        .isEmpty());
+  }
+}
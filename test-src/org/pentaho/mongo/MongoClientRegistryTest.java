@@ -0,0 +1,137 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.Variables;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+
+public class MongoClientRegistryTest {
+
+  /** Creates (unconnected) clients and remembers their pool sizes */
+  protected static class Factory implements MongoClientRegistry.ClientFactory {
+    protected List<Integer> m_poolSizes = new ArrayList<Integer>();
+
+    @Override
+    public MongoClient create(int connectionsPerHost) throws KettleException {
+      m_poolSizes.add(connectionsPerHost);
+      try {
+        return new MongoClient(new ServerAddress("localhost"),
+            new MongoClientOptions.Builder().connectionsPerHost(
+                connectionsPerHost).build());
+      } catch (UnknownHostException e) {
+        throw new KettleException(e);
+      }
+    }
+  }
+
+  @Test
+  public void testLeasesWithTheSameKeyShareAClient() throws KettleException {
+    Factory factory = new Factory();
+
+    MongoClient a = MongoClientRegistry.lease("test-share", 2, factory);
+    MongoClient b = MongoClientRegistry.lease("test-share", 2, factory);
+    MongoClient other = MongoClientRegistry.lease("test-share-other", 2,
+        factory);
+
+    assertTrue(a == b);
+    assertTrue(a != other);
+    assertEquals(2, factory.m_poolSizes.size());
+    assertEquals(2, MongoClientRegistry.getLeases(a));
+
+    MongoClientRegistry.release(b, 2);
+    assertEquals(1, MongoClientRegistry.getLeases(a));
+    MongoClientRegistry.release(a, 2);
+    assertEquals(0, MongoClientRegistry.getLeases(a));
+    MongoClientRegistry.release(other, 2);
+
+    // the closed client isn't handed out again
+    MongoClient c = MongoClientRegistry.lease("test-share", 2, factory);
+    assertTrue(c != a);
+    MongoClientRegistry.release(c, 2);
+  }
+
+  @Test
+  public void testPoolGrowsWithTheLeases() throws KettleException {
+    Factory factory = new Factory();
+    int half = MongoClientRegistry.MIN_CONNECTIONS_PER_HOST / 2;
+
+    MongoClient a = MongoClientRegistry.lease("test-grow", half, factory);
+    MongoClient b = MongoClientRegistry.lease("test-grow", half, factory);
+    assertTrue(a == b);
+
+    // doesn't fit in the pool of the current client
+    MongoClient c = MongoClientRegistry.lease("test-grow", 10, factory);
+    assertTrue(c != a);
+    assertEquals(MongoClientRegistry.MIN_CONNECTIONS_PER_HOST,
+        factory.m_poolSizes.get(0).intValue());
+    assertEquals(MongoClientRegistry.MIN_CONNECTIONS_PER_HOST + 10,
+        factory.m_poolSizes.get(1).intValue());
+
+    // new leases get the larger client, the old one stays with its leases
+    MongoClient d = MongoClientRegistry.lease("test-grow", 1, factory);
+    assertTrue(c == d);
+    assertEquals(2, MongoClientRegistry.getLeases(a));
+
+    MongoClientRegistry.release(a, half);
+    MongoClientRegistry.release(b, half);
+    assertEquals(0, MongoClientRegistry.getLeases(a));
+    assertEquals(2, MongoClientRegistry.getLeases(c));
+    MongoClientRegistry.release(c, 10);
+    MongoClientRegistry.release(d, 1);
+    assertEquals(0, MongoClientRegistry.getLeases(c));
+  }
+
+  @Test
+  public void testConnectionKeyUsesEffectiveSettings() {
+    Variables vars = new Variables();
+    vars.setVariable("mongo.host", "localhost");
+
+    MongoCredential cred = MongoCredential.createMongoCRCredential("bob",
+        "admin", "secret".toCharArray());
+    String key = MongoUtils.connectionKey("${mongo.host}", "27017", cred,
+        false, null, null, "primary", null, null, false, null, vars);
+
+    assertEquals(key, MongoUtils.connectionKey("localhost", "27017", cred,
+        false, null, null, "primary", null, null, false, null, vars));
+    assertFalse(key.contains("secret"));
+
+    // a different password
+    assertFalse(key.equals(MongoUtils.connectionKey("localhost", "27017",
+        MongoCredential.createMongoCRCredential("bob", "admin",
+            "other".toCharArray()), false, null, null, "primary", null, null,
+        false, null, vars)));
+
+    // a different read preference
+    assertFalse(key.equals(MongoUtils.connectionKey("localhost", "27017",
+        cred, false, null, null, "nearest", null, null, false, null, vars)));
+  }
+}
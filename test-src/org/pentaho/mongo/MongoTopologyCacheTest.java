@@ -0,0 +1,90 @@
+/*!
+* Copyright 2010 - 2013 Pentaho Corporation.  All rights reserved.
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+*/
+
+package org.pentaho.mongo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class MongoTopologyCacheTest {
+
+  /** Counts the loads */
+  protected static class Loader implements MongoTopologyCache.Loader {
+    protected int m_loads;
+
+    @Override
+    public DBObject load() throws KettleException {
+      m_loads++;
+      return (DBObject) JSON.parse(MongoUtilsTest.REP_SET_CONFIG);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    MongoTopologyCache.clear();
+    MongoTopologyCache.setTimeToLive(MongoTopologyCache.DEFAULT_TTL);
+  }
+
+  @Test
+  public void testRepeatedLookupsDontLoadAgain() throws KettleException {
+    Loader loader = new Loader();
+
+    MongoTopologyCache.get("a", loader);
+    DBObject config = MongoTopologyCache.get("a", loader);
+    assertEquals(1, loader.m_loads);
+
+    // another cluster
+    MongoTopologyCache.get("b", loader);
+    assertEquals(2, loader.m_loads);
+
+    List<String> modes = new ArrayList<String>();
+    MongoUtils.extractLastErrorModes(config, modes);
+    assertEquals("DCThree", modes.get(0));
+
+    // callers get their own copy
+    ((BasicDBList) config.get(MongoUtils.REPL_SET_MEMBERS)).clear();
+    assertEquals(3,
+        ((BasicDBList) MongoTopologyCache.get("a", loader).get(
+            MongoUtils.REPL_SET_MEMBERS)).size());
+  }
+
+  @Test
+  public void testEntriesExpireAndCanBeRefreshed() throws KettleException {
+    Loader loader = new Loader();
+
+    MongoTopologyCache.get("a", loader);
+    MongoTopologyCache.refresh("a");
+    MongoTopologyCache.get("a", loader);
+    assertEquals(2, loader.m_loads);
+
+    MongoTopologyCache.setTimeToLive(0);
+    MongoTopologyCache.refresh("a");
+    MongoTopologyCache.get("a", loader);
+    MongoTopologyCache.get("a", loader);
+    assertEquals(4, loader.m_loads);
+  }
+}